@@ -662,6 +662,53 @@ public class ElementTest {
         Assert.assertEquals("JSON with non-unique element", "{\"su\":[{\"_content\":\"subject\"}]}", e.toString());
     }
 
+    @Test
+    public void streamingElementsXml() {
+        streamingElements(XMLElement.mFactory);
+    }
+
+    @Test
+    public void streamingElementsJson() {
+        streamingElements(Element.JSONElement.mFactory);
+    }
+
+    private void streamingElements(ElementFactory factory) {
+        Element tree = factory.createElement(MailConstants.SEARCH_RESPONSE);
+        tree.addAttribute(MailConstants.A_QUERY_OFFSET, 0);
+        for (int i = 0; i < 3; i++) {
+            addHit(tree, i);
+        }
+        tree.addAttribute(MailConstants.A_QUERY_MORE, false);
+        tree.addNonUniqueElement(MailConstants.E_INFO);
+
+        Element streamed = factory.createElement(MailConstants.SEARCH_RESPONSE);
+        streamed.addAttribute(MailConstants.A_QUERY_OFFSET, 0);
+        streamed.addStreamingElements(MailConstants.E_MSG, 3, new Element.ChildStream.ChildWriter() {
+            @Override
+            public void write(int index, Element parent) {
+                addHit(parent, index);
+            }
+        });
+        streamed.addAttribute(MailConstants.A_QUERY_MORE, false);
+        streamed.addNonUniqueElement(MailConstants.E_INFO);
+
+        Assert.assertEquals("compact", tree.toString(), streamed.toString());
+        // serializing more than once replays the writer
+        Assert.assertEquals("pretty", tree.prettyPrint(), streamed.prettyPrint());
+        Assert.assertNull("empty run", streamed.addStreamingElements(MailConstants.E_CONV, 0, null));
+        Assert.assertEquals("clone", tree.toString(), streamed.clone().toString());
+        // the streamed children are only there once serialized
+        Assert.assertEquals("listed", 1, streamed.listElements(null).size());
+        Assert.assertTrue("has children", streamed.hasChildren());
+    }
+
+    private static void addHit(Element parent, int index) {
+        Element m = parent.addNonUniqueElement(MailConstants.E_MSG);
+        m.addAttribute(MailConstants.A_ID, index);
+        m.addAttribute(MailConstants.E_SUBJECT, "subject " + index, Element.Disposition.CONTENT);
+        m.addNonUniqueElement(MailConstants.E_HIT_MIMEPART).addAttribute(MailConstants.A_PART, "1");
+    }
+
     @Test
     public void reorderChildren() {
         final String expected =
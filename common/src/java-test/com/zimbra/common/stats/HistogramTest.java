@@ -0,0 +1,73 @@
+/*
+ * ***** BEGIN LICENSE BLOCK *****
+ * Zimbra Collaboration Suite Server
+ * Copyright (C) 2017 Synacor, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software Foundation,
+ * version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <https://www.gnu.org/licenses/>.
+ * ***** END LICENSE BLOCK *****
+ */
+package com.zimbra.common.stats;
+
+import java.util.List;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class HistogramTest {
+
+    @Test
+    public void buckets() {
+        for (long v = 0; v < 100000; v++) {
+            int bucket = Histogram.bucketFor(v);
+            Assert.assertTrue(v + " above bucket bound", v <= Histogram.upperBoundOf(bucket));
+            if (bucket > 0) {
+                Assert.assertTrue(v + " below bucket bound", v > Histogram.upperBoundOf(bucket - 1));
+            }
+        }
+        Assert.assertEquals(Long.MAX_VALUE, Histogram.upperBoundOf(Histogram.bucketFor(Long.MAX_VALUE)));
+    }
+
+    @Test
+    public void percentiles() {
+        Histogram histogram = new Histogram();
+        Assert.assertEquals(0, histogram.getPercentile(50));
+
+        for (int i = 1; i <= 1000; i++) {
+            histogram.record(i);
+        }
+        Assert.assertEquals(1000, histogram.getCount());
+        Assert.assertEquals(1000, histogram.getMax());
+        long p50 = histogram.getPercentile(50);
+        Assert.assertTrue("p50=" + p50, p50 >= 500 && p50 <= 625);
+        long p99 = histogram.getPercentile(99);
+        Assert.assertTrue("p99=" + p99, p99 >= 990 && p99 <= 1000);
+        Assert.assertEquals(1000, histogram.getPercentile(100));
+
+        histogram.reset();
+        Assert.assertEquals(0, histogram.getCount());
+        Assert.assertEquals(0, histogram.getMax());
+        Assert.assertEquals(0, histogram.getPercentile(99));
+    }
+
+    @Test
+    public void accumulator() {
+        Histogram histogram = new Histogram().setCountName("n").addPercentileName(50, "p50").setMaxName("max");
+        Assert.assertEquals("[n, p50, max]", histogram.getNames().toString());
+        histogram.record(3);
+        histogram.record(3);
+        histogram.record(7);
+        List<Object> data = histogram.getData();
+        Assert.assertEquals(3, data.size());
+        Assert.assertEquals(3L, data.get(0));
+        Assert.assertEquals(3L, data.get(1));
+        Assert.assertEquals(7L, data.get(2));
+    }
+}
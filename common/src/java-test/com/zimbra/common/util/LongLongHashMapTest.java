@@ -0,0 +1,81 @@
+/*
+ * ***** BEGIN LICENSE BLOCK *****
+ * Zimbra Collaboration Suite Server
+ * Copyright (C) 2017 Synacor, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software Foundation,
+ * version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <https://www.gnu.org/licenses/>.
+ * ***** END LICENSE BLOCK *****
+ */
+package com.zimbra.common.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import org.junit.Test;
+
+public class LongLongHashMapTest {
+
+    @Test
+    public void putGetRemove() {
+        LongLongHashMap map = new LongLongHashMap();
+        assertEquals(-1L, map.get(5L));
+        assertEquals(-1L, map.put(5L, 50L));
+        assertEquals(50L, map.put(5L, 51L));
+        assertEquals(51L, map.get(5L));
+        assertEquals(-1L, map.put(0L, 7L));
+        assertEquals(7L, map.get(0L));
+        assertTrue(map.containsKey(0L));
+        assertEquals(-1L, map.put(1L << 40, 8L));
+        assertEquals(8L, map.get(1L << 40));
+        assertEquals(-1L, map.get(1L << 41));
+        assertEquals(3, map.size());
+        assertEquals(51L, map.remove(5L));
+        assertEquals(7L, map.remove(0L));
+        assertEquals(8L, map.remove(1L << 40));
+        assertFalse(map.containsKey(5L));
+        assertEquals(0, map.size());
+    }
+
+    @Test
+    public void matchesHashMap() {
+        LongLongHashMap map = new LongLongHashMap(4, Long.MIN_VALUE);
+        Map<Long, Long> expected = new HashMap<Long, Long>();
+        Random random = new Random(1234);
+        for (int i = 0; i < 100000; i++) {
+            // mailbox id in the high word, item id in the low word
+            long key = ((long) random.nextInt(50) << 32) | random.nextInt(100);
+            if (random.nextInt(3) == 0) {
+                Long removed = expected.remove(key);
+                assertEquals(removed == null ? Long.MIN_VALUE : removed.longValue(), map.remove(key));
+            } else {
+                long value = random.nextLong();
+                Long previous = expected.put(key, value);
+                assertEquals(previous == null ? Long.MIN_VALUE : previous.longValue(), map.put(key, value));
+            }
+        }
+        assertEquals(expected.size(), map.size());
+        for (long mailboxId = 0; mailboxId < 50; mailboxId++) {
+            for (long itemId = 0; itemId < 100; itemId++) {
+                long key = (mailboxId << 32) | itemId;
+                Long value = expected.get(key);
+                assertEquals(value == null ? Long.MIN_VALUE : value.longValue(), map.get(key));
+            }
+        }
+        map.clear();
+        assertEquals(0, map.size());
+        assertEquals(Long.MIN_VALUE, map.get(1L));
+    }
+}
@@ -295,6 +295,11 @@ public final class DebugConfig {
      */
     public static final int syncMaximumDeleteCount = value ("sync_maximum_delete_count", 0);
 
+    /**
+     * "sync_modified_items_page_size" number of modified items read from the database at a time by a delta sync.
+     */
+    public static final int syncModifiedItemsPageSize = value ("sync_modified_items_page_size", 1000);
+
     /*
      *  Turn off the detection logic of a series of symbol characters in the sender's
      *  display name.  If this key is false (default), a sender's display name which
@@ -177,6 +177,7 @@ public final class LC {
 
     @Supported
     public static final KnownKey zimbra_store_copy_buffer_size_kb = KnownKey.newKey(16); // KB
+    public static final KnownKey zimbra_blob_compression_block_size_kb = KnownKey.newKey(64); // KB
     public static final KnownKey zimbra_nio_file_copy_chunk_size_kb = KnownKey.newKey(512); // KB
     public static final KnownKey zimbra_blob_input_stream_buffer_size_kb = KnownKey.newKey(1); // KB
 
@@ -192,6 +193,10 @@ public final class LC {
     @Supported
     public static final KnownKey zimbra_mailbox_galsync_cache = KnownKey.newKey(10000);
 
+    public static final KnownKey zimbra_mailbox_offheap_item_cache_mb = KnownKey.newKey(0);
+    public static final KnownKey zimbra_message_cache_max_bytes = KnownKey.newKey(0);
+    public static final KnownKey zimbra_message_cache_concurrency = KnownKey.newKey(16);
+
     @Supported
     public static final KnownKey zimbra_mailbox_change_checkpoint_frequency = KnownKey.newKey(100);
 
@@ -202,12 +207,21 @@ public final class LC {
     public static final KnownKey zimbra_mailbox_lock_timeout = KnownKey.newKey(60); // seconds
 
     public static final KnownKey zimbra_mailbox_lock_readwrite = KnownKey.newKey(true);
+    public static final KnownKey zimbra_mailbox_lock_fair = KnownKey.newKey(false);
+
+    public static final KnownKey zimbra_redolog_group_commit = KnownKey.newKey(false);
+    public static final KnownKey zimbra_redolog_group_commit_ring_size = KnownKey.newKey(4096);
+    public static final KnownKey zimbra_redolog_preallocate_segments = KnownKey.newKey(false);
+    public static final KnownKey zimbra_redolog_segment_pool_size = KnownKey.newKey(2);
 
     @Supported
     public static final KnownKey zimbra_index_threads = KnownKey.newKey(10);
 
     @Supported
     public static final KnownKey zimbra_reindex_threads = KnownKey.newKey(10);
+    public static final KnownKey zimbra_index_queue_max_tasks = KnownKey.newKey(10000);
+    public static final KnownKey zimbra_index_queue_max_tasks_per_mailbox = KnownKey.newKey(100);
+    public static final KnownKey zimbra_index_queue_starvation_limit = KnownKey.newKey(8);
 
     @Supported
     public static final KnownKey zimbra_index_max_readers = KnownKey.newKey(35);
@@ -224,6 +238,9 @@ public final class LC {
     @Supported
     public static final KnownKey zimbra_index_reader_cache_ttl = KnownKey.newKey(300);
 
+    public static final KnownKey zimbra_index_nrt_enabled = KnownKey.newKey(false);
+    public static final KnownKey zimbra_index_nrt_max_staleness_ms = KnownKey.newKey(1000);
+
     @Supported
     public static final KnownKey zimbra_index_deferred_items_failure_delay = KnownKey.newKey(300);
 
@@ -327,6 +344,8 @@ public final class LC {
     @Supported
     @Reloadable
     public static final KnownKey soap_response_chunked_transfer_encoding_enabled = KnownKey.newKey(true);
+    @Reloadable
+    public static final KnownKey soap_response_streaming_enabled = KnownKey.newKey(true);
     public static final KnownKey zimbra_servlet_output_stream_buffer_size = KnownKey.newKey(5120);
 
     public static final KnownKey rest_response_cache_control_value = KnownKey.newKey("no-store, no-cache");
@@ -502,6 +521,8 @@ public final class LC {
     @Supported
     public static final KnownKey ldap_cache_zimlet_maxage = KnownKey.newKey(15);
 
+    public static final KnownKey ldap_cache_refresh_threads = KnownKey.newKey(2); //0 makes the first lookup of an expired entry reload it instead
+
     public static final KnownKey ldap_cache_custom_dynamic_group_membership_maxage_ms =
             KnownKey.newKey(10 * Constants.MILLIS_PER_MINUTE);
 
@@ -515,6 +536,8 @@ public final class LC {
     public static final KnownKey acl_cache_target_maxage = KnownKey.newKey(15);
     public static final KnownKey acl_cache_credential_maxsize = KnownKey.newKey(512);
     public static final KnownKey acl_cache_enabled = KnownKey.newKey(true);
+    public static final KnownKey acl_folder_rights_index_maxsize = KnownKey.newKey(10000); //per mailbox, 0 disables the folder rights index
+    public static final KnownKey acl_folder_rights_index_maxage = KnownKey.newKey(2);
 
     @Supported
     public static final KnownKey gal_group_cache_maxsize_per_domain = KnownKey.newKey(0);
@@ -692,6 +715,11 @@ public final class LC {
     @Supported
     public static final KnownKey calendar_cache_range_months = KnownKey.newKey(3);
     public static final KnownKey calendar_cache_max_stale_items = KnownKey.newKey(10);
+    public static final KnownKey calendar_cache_max_bytes = KnownKey.newKey(104857600); //0 bounds the in-memory summary cache by calendar_cache_lru_size instead
+    public static final KnownKey calendar_cache_concurrency = KnownKey.newKey(16);
+    public static final KnownKey calendar_cache_refresh_ahead_min = KnownKey.newKey(360); //0 disables rebuilding hot calendars ahead of the range rollover
+    public static final KnownKey calendar_cache_refresh_max = KnownKey.newKey(200);
+    public static final KnownKey calendar_cache_busy_timeline_size = KnownKey.newKey(1000); //0 disables the busy timelines used for local free/busy
     public static final KnownKey calendar_exchange_form_auth_url = KnownKey.newKey("/exchweb/bin/auth/owaauth.dll");
     public static final KnownKey calendar_item_get_max_retries = KnownKey.newKey(100);
 
@@ -726,6 +754,7 @@ public final class LC {
     public static final KnownKey imap_throttle_acct_limit = KnownKey.newKey(5000);
     public static final KnownKey imap_throttle_command_limit = KnownKey.newKey(25);
     public static final KnownKey imap_throttle_fetch = KnownKey.newKey(true);
+    public static final KnownKey imap_zero_copy_fetch = KnownKey.newKey(true);
     public static final KnownKey data_source_imap_reuse_connections = KnownKey.newKey(false);
 
     @Supported
@@ -839,6 +868,14 @@ public final class LC {
     public static final KnownKey search_disable_database_hints = KnownKey.newKey(false);
     public static final KnownKey search_dbfirst_term_percentage_cutoff = KnownKey.newKey(0.8F);
     public static final KnownKey search_tagged_item_count_join_query_cutoff = KnownKey.newKey(1000); //beyond this limit server will not use join in the query while fetching unread items
+    public static final KnownKey search_bitmap_join_max_hits = KnownKey.newKey(200000); //0 disables the in-memory bitmap join of Lucene and DB hits
+    public static final KnownKey search_result_cache_size_kb = KnownKey.newKey(16384); //0 disables the search result cache
+    public static final KnownKey search_result_cache_max_hits = KnownKey.newKey(5000);
+    public static final KnownKey search_result_cache_prefetch_pages = KnownKey.newKey(0); //each page read ahead costs a full fetch of its hits
+
+    public static final KnownKey ephemeral_async_threads = KnownKey.newKey(4);
+    public static final KnownKey ephemeral_write_behind_window_ms = KnownKey.newKey(5000); //0 disables write-behind of ephemeral attributes
+    public static final KnownKey ephemeral_write_behind_attrs = KnownKey.newKey("zimbraLastLogonTimestamp");
 
     public static final KnownKey zmstat_interval = KnownKey.newKey(30);
     public static final KnownKey zmstat_disk_interval = KnownKey.newKey(600);
@@ -1089,11 +1126,16 @@ public final class LC {
     public static final KnownKey freebusy_exchange_cn2 = KnownKey.newKey(null);
     public static final KnownKey freebusy_exchange_cn3 = KnownKey.newKey(null);
     public static final KnownKey freebusy_disable_nodata_status = KnownKey.newKey(false);
+    public static final KnownKey freebusy_query_threads = KnownKey.newKey(8); //0 resolves the targets of a free/busy query one at a time
+    public static final KnownKey freebusy_query_timeout_ms = KnownKey.newKey(10000);
+    public static final KnownKey freebusy_query_queue_size = KnownKey.newKey(64); //when full, the querying thread runs tasks itself
 
     public static final KnownKey notes_enabled = KnownKey.newKey(false);
 
     public static final KnownKey zimbra_lmtp_validate_messages = KnownKey.newKey(true);
     public static final KnownKey zimbra_lmtp_max_line_length = KnownKey.newKey(10240);
+    public static final KnownKey zimbra_lmtp_parallel_delivery_threads = KnownKey.newKey(0);
+    public static final KnownKey zimbra_lmtp_parallel_delivery_min_recipients = KnownKey.newKey(10);
 
     public static final KnownKey data_source_scheduling_enabled = KnownKey.newKey(true);
     public static final KnownKey data_source_eas_sync_email = KnownKey.newKey(true);
@@ -1261,6 +1303,13 @@ public final class LC {
     @Supported
     public static final KnownKey external_store_delete_max_ioexceptions = KnownKey.newKey(25);
 
+    public static final KnownKey packed_store_directory = KnownKey.newKey("${zimbra_home}/store/packed");
+    public static final KnownKey packed_store_max_blob_size = KnownKey.newKey(8192);
+    public static final KnownKey packed_store_max_pack_size = KnownKey.newKey(64 * 1024 * 1024);
+    public static final KnownKey packed_store_compaction_threshold = KnownKey.newKey(50); // percent
+    public static final KnownKey packed_store_compaction_interval = KnownKey.newKey(Constants.MILLIS_PER_HOUR);
+    public static final KnownKey packed_store_max_open_mailboxes = KnownKey.newKey(1000);
+
     public enum PUBLIC_SHARE_VISIBILITY { samePrimaryDomain, all, none };
 
     /**
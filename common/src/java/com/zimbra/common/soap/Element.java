@@ -149,6 +149,23 @@ public abstract class Element implements Cloneable {
     public Element addUniqueElement(QName qname) throws ContainerException  { return addNonUniqueElement(qname); }
     public Element addUniqueElement(Element elt) throws ContainerException  { return addNonUniqueElement(elt); }
 
+    /** Adds a run of <tt>count</tt> child elements called <tt>name</tt> which are only generated, one at a time,
+     *  when this <tt>Element</tt> is serialized.  See {@link ChildStream}.  The run must be the only set of
+     *  children with that name.  Returns <tt>null</tt> when <tt>count</tt> is zero, as nothing is added. */
+    public ChildStream addStreamingElements(String name, int count, ChildStream.ChildWriter writer)
+    throws ContainerException {
+        if (count <= 0) {
+            return null;
+        }
+        ChildStream stream = new ChildStream(name, count, writer);
+        addChildStream(stream);
+        return stream;
+    }
+
+    void addChildStream(ChildStream stream) throws ContainerException {
+        throw new ContainerException("cannot stream children of <" + getName() + ">");
+    }
+
     /**
      * The approach to namespaces is to ALWAYS store them on elements that use them (for either the element's name
      * or in one of its attributes names) but ignore them where they are not used.  This means that unused namespace
@@ -976,6 +993,8 @@ public abstract class Element implements Cloneable {
                 throw new ContainerException("already stored non-unique element(s) with name: " + name);
             } else if (obj instanceof String || obj instanceof Number || obj instanceof Boolean) {
                 throw new ContainerException("already stored attribute with name: " + name);
+            } else if (obj instanceof ChildStream) {
+                throw new ContainerException("already stored streamed elements with name: " + name);
             } else if (obj instanceof Element) {
                 if (elt.mAttributes.isEmpty())
                     return (Element) obj;
@@ -988,6 +1007,14 @@ public abstract class Element implements Cloneable {
             return elt;
         }
 
+        @Override
+        void addChildStream(ChildStream stream) throws ContainerException {
+            if (mAttributes.containsKey(stream.getName())) {
+                throw new ContainerException("already stored element or attribute with name: " + stream.getName());
+            }
+            mAttributes.put(stream.getName(), stream);
+        }
+
         @Override
         public Element setText(String content) throws ContainerException {
             return addAttribute(A_CONTENT, content);
@@ -1026,7 +1053,7 @@ public abstract class Element implements Cloneable {
 
         private void checkNamingConflict(String key) throws ContainerException {
             Object obj = mAttributes.get(key);
-            if (obj instanceof Element || obj instanceof List<?>)
+            if (obj instanceof Element || obj instanceof List<?> || obj instanceof ChildStream)
                 throw new ContainerException("already stored element with name: " + key);
         }
 
@@ -1082,7 +1109,8 @@ public abstract class Element implements Cloneable {
             HashSet<Attribute> set = new HashSet<Attribute>();
             for (Map.Entry<String, Object> attr : mAttributes.entrySet()) {
                 Object obj = attr.getValue();
-                if (obj != null && !attr.getKey().equals(A_CONTENT) && !(obj instanceof Element || obj instanceof List<?>))
+                if (obj != null && !attr.getKey().equals(A_CONTENT) &&
+                        !(obj instanceof Element || obj instanceof List<?> || obj instanceof ChildStream))
                     set.add(new Attribute(attr, this));
             }
             return set;
@@ -1121,7 +1149,8 @@ public abstract class Element implements Cloneable {
         public boolean hasChildren() {
             if (!mAttributes.isEmpty()) {
                 for (Object obj : mAttributes.values())
-                    if (obj instanceof Element || obj instanceof List<?> || obj instanceof KeyValuePair)
+                    if (obj instanceof Element || obj instanceof List<?> || obj instanceof KeyValuePair ||
+                            obj instanceof ChildStream)
                         return true;
             }
             return false;
@@ -1159,7 +1188,9 @@ public abstract class Element implements Cloneable {
         @Override
         public String getAttribute(String key, String defaultValue) {
             Object obj = mAttributes.get(key);
-            if (obj != null) {
+            if (obj instanceof ChildStream) {
+                return defaultValue;
+            } else if (obj != null) {
                 if (obj instanceof List<?>)
                     obj = ((List<?>) obj).isEmpty() ? null : ((List<?>) obj).get(0);
                 if (obj instanceof Element)
@@ -1478,6 +1509,24 @@ public abstract class Element implements Cloneable {
                         ((JSONElement) value).marshal(out, indent, safe);
                     } else if (value instanceof FileBackedElement) {
                         ((FileBackedElement) value).marshal(out);
+                    } else if (value instanceof ChildStream) {
+                        ChildStream stream = (ChildStream) value;
+                        int lindent = indent < 0 ? -1 : indent + INDENT_SIZE;
+                        boolean first = true;
+                        out.append('[');
+                        for (int i = 0; i < stream.size(); i++) {
+                            for (Element child : stream.generate(this, i)) {
+                                if (!first) {
+                                    out.append(',');
+                                }
+                                if (stream.size() > 1) {
+                                    indent(out, lindent, true);
+                                }
+                                ((JSONElement) child).marshal(out, lindent, safe);
+                                first = false;
+                            }
+                        }
+                        out.append(']');
                     } else if (value instanceof Element) {
                         out.append('"').append(StringUtil.jsEncode(value)).append('"');
                     } else if (!(value instanceof List<?>)) {
@@ -1530,6 +1579,18 @@ public abstract class Element implements Cloneable {
     public static class XMLElement extends Element {
         private String        mText;
         private List<Element> mChildren;
+        private List<PositionedStream> mStreams;
+
+        /** A {@link ChildStream} and the number of children that precede it. */
+        private static final class PositionedStream {
+            final ChildStream stream;
+            int position;
+
+            PositionedStream(ChildStream stream, int position) {
+                this.stream = stream;
+                this.position = position;
+            }
+        }
 
         public static final ElementFactory mFactory = new XMLFactory();
 
@@ -1658,9 +1719,22 @@ public abstract class Element implements Cloneable {
             return elt.collapseNamespace();
         }
 
+        @Override
+        void addChildStream(ChildStream stream) throws ContainerException {
+            if (mText != null) {
+                throw new ContainerException(
+                        "cannot add children to element containing text - <" +
+                        this.getName() + ">, trying to add <" + stream.getName() + ">");
+            }
+            if (mStreams == null) {
+                mStreams = new ArrayList<PositionedStream>(1);
+            }
+            mStreams.add(new PositionedStream(stream, mChildren == null ? 0 : mChildren.size()));
+        }
+
         @Override
         public Element setText(String content) throws ContainerException {
-            if (content != null && !content.trim().equals("") && mChildren != null) {
+            if (content != null && !content.trim().equals("") && (mChildren != null || mStreams != null)) {
                 throw new ContainerException(
                         "cannot set text on element with children - <" + this.getName() + ">");
             }
@@ -1729,10 +1803,22 @@ public abstract class Element implements Cloneable {
         protected void detach(Element elt) throws ContainerException {
             super.detach(elt);
             if (mChildren != null) {
-                mChildren.remove(elt);
+                int index = mChildren.indexOf(elt);
+                if (index < 0) {
+                    return;
+                }
+                mChildren.remove(index);
                 if (mChildren.size() == 0) {
                     mChildren = null;
                 }
+                // streams following the detached child move up with their neighbours
+                if (mStreams != null) {
+                    for (PositionedStream ps : mStreams) {
+                        if (ps.position > index) {
+                            ps.position--;
+                        }
+                    }
+                }
             }
         }
 
@@ -1792,7 +1878,7 @@ public abstract class Element implements Cloneable {
 
         @Override
         public boolean hasChildren() {
-            return mChildren != null && !mChildren.isEmpty();
+            return (mChildren != null && !mChildren.isEmpty()) || mStreams != null;
         }
 
         @Override
@@ -1920,6 +2006,11 @@ public abstract class Element implements Cloneable {
                 for (Element child : mChildren)
                     clone.addNonUniqueElement(child.clone());
             }
+            if (mStreams != null) {
+                clone.mStreams = new ArrayList<PositionedStream>(mStreams.size());
+                for (PositionedStream ps : mStreams)
+                    clone.mStreams.add(new PositionedStream(ps.stream, ps.position));
+            }
             return clone;
         }
 
@@ -1982,18 +2073,23 @@ public abstract class Element implements Cloneable {
                 }
             }
             // element content (children/text) and closing
-            if (mChildren != null || !StringUtil.isNullOrEmpty(mText)) {
+            if (mChildren != null || mStreams != null || !StringUtil.isNullOrEmpty(mText)) {
                 out.append('>');
-                if (mChildren != null) {
-                    for (Element child : mChildren) {
-                        if (child instanceof XMLElement) {
-                            ((XMLElement) child).marshal(out, indent < 0 ? -1 : indent + INDENT_SIZE, safe);
-                        } else if (child instanceof FileBackedElement) {
-                            child.marshal(out);
-                        } else {
-                            out.append(xmlEncode(child.toString(), false));
+                if (mChildren != null || mStreams != null) {
+                    int position = 0;
+                    if (mChildren != null) {
+                        for (Element child : mChildren) {
+                            marshalStreams(out, position++, indent, safe);
+                            if (child instanceof XMLElement) {
+                                ((XMLElement) child).marshal(out, indent < 0 ? -1 : indent + INDENT_SIZE, safe);
+                            } else if (child instanceof FileBackedElement) {
+                                child.marshal(out);
+                            } else {
+                                out.append(xmlEncode(child.toString(), false));
+                            }
                         }
                     }
+                    marshalStreams(out, position, indent, safe);
                     indent(out, indent, true);
                 } else {
                     out.append(xmlEncode(getText(safe), false));
@@ -2004,6 +2100,23 @@ public abstract class Element implements Cloneable {
             }
         }
 
+        /** Generates and writes out the streamed children that follow the first <tt>position</tt> children. */
+        private void marshalStreams(Appendable out, int position, int indent, boolean safe) throws IOException {
+            if (mStreams == null) {
+                return;
+            }
+            for (PositionedStream ps : mStreams) {
+                if (ps.position != position) {
+                    continue;
+                }
+                for (int i = 0; i < ps.stream.size(); i++) {
+                    for (Element elt : ps.stream.generate(this, i)) {
+                        ((XMLElement) elt).marshal(out, indent < 0 ? -1 : indent + INDENT_SIZE, safe);
+                    }
+                }
+            }
+        }
+
         private static String getAttrValue(Map.Entry<String, Object> attr, boolean safe) {
             return safe && isSensitiveAttr(attr) ? SENSITIVE_STRING_REPLACEMENT : (String) attr.getValue();
         }
@@ -2170,6 +2283,54 @@ public abstract class Element implements Cloneable {
         }
     }
 
+    /**
+     * A run of same-named child elements which are only generated while their parent is serialized.  Use this for
+     * big responses (e.g. search hits) so that the full element tree never has to be held in memory; each child is
+     * written by the {@link ChildWriter} into a scratch copy of the parent, marshalled straight to the output and then
+     * dropped.
+     * <p>
+     * A stream is not an {@link Element}: the generated children can't be looked up or listed through the parent, and
+     * only show up in its serialized form.  The run is written again every time the parent is serialized (e.g. for
+     * logging), so the writer must be repeatable.
+     */
+    public static final class ChildStream {
+        public interface ChildWriter {
+            /** Adds the child elements for the <tt>index</tt>th entry of the run to <tt>parent</tt>. */
+            void write(int index, Element parent) throws ServiceException;
+        }
+
+        private final String name;
+        private final int count;
+        private final ChildWriter writer;
+
+        ChildStream(String name, int count, ChildWriter writer) {
+            this.name = name;
+            this.count = count;
+            this.writer = writer;
+        }
+
+        /** Returns the name of the generated elements. */
+        public String getName() {
+            return name;
+        }
+
+        /** Returns the number of entries in the run. */
+        public int size() {
+            return count;
+        }
+
+        List<Element> generate(Element parent, int index) throws IOException {
+            // same QName as the real parent, so that the children see the same namespace declarations
+            Element scratch = parent.getFactory().createElement(parent.getQName());
+            try {
+                writer.write(index, scratch);
+            } catch (ServiceException e) {
+                throw new IOException("failed to write <" + name + "> " + index + " of " + count, e);
+            }
+            return scratch.listElements(name);
+        }
+    }
+
     public static void main(String[] args) throws ContainerException, SoapParseException {
         System.out.println(Element.parseJSON("{ 'a':'b'}").getAttribute("a", null));
         System.out.println(Element.parseJSON("{ '_attrs' : {'a':'b'}}").getAttribute("a", null));
@@ -0,0 +1,202 @@
+/*
+ * ***** BEGIN LICENSE BLOCK *****
+ * Zimbra Collaboration Suite Server
+ * Copyright (C) 2017 Synacor, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software Foundation,
+ * version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <https://www.gnu.org/licenses/>.
+ * ***** END LICENSE BLOCK *****
+ */
+package com.zimbra.common.stats;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Tracks the distribution of non-negative values between subsequent calls to
+ * {@link #reset}, and reports count, maximum and percentiles.  Values are kept in
+ * log-linear buckets (four per power of two), so a percentile is accurate to
+ * within 25% of the actual value.  Recording never blocks.
+ */
+public class Histogram
+implements Accumulator {
+
+    private static final int SUB_BUCKET_BITS = 2;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    private static final int NUM_BUCKETS = (64 - SUB_BUCKET_BITS) * SUB_BUCKETS;
+
+    private final AtomicLongArray mBuckets = new AtomicLongArray(NUM_BUCKETS);
+    private final AtomicLong mCount = new AtomicLong();
+    private final AtomicLong mMax = new AtomicLong();
+
+    private String mCountName;
+    private String mMaxName;
+    private final List<Double> mPercentiles = new ArrayList<Double>();
+    private final List<String> mPercentileNames = new ArrayList<String>();
+    private List<String> mNames = Collections.emptyList();
+
+    /**
+     * If non-null, the given name will be returned by {@link #getNames()}
+     * and the number of recorded values will be returned by {@link #getData()}.
+     */
+    public synchronized Histogram setCountName(String name) {
+        mCountName = name;
+        updateNames();
+        return this;
+    }
+
+    /**
+     * If non-null, the given name will be returned by {@link #getNames()}
+     * and the largest recorded value will be returned by {@link #getData()}.
+     */
+    public synchronized Histogram setMaxName(String name) {
+        mMaxName = name;
+        updateNames();
+        return this;
+    }
+
+    /**
+     * The given name will be returned by {@link #getNames()} and the value at
+     * the given percentile (0 - 100) will be returned by {@link #getData()}.
+     */
+    public synchronized Histogram addPercentileName(double percentile, String name) {
+        if (percentile < 0.0 || percentile > 100.0) {
+            throw new IllegalArgumentException("invalid percentile " + percentile);
+        }
+        mPercentiles.add(percentile);
+        mPercentileNames.add(name);
+        updateNames();
+        return this;
+    }
+
+    private void updateNames() {
+        List<String> names = new ArrayList<String>();
+        if (mCountName != null) {
+            names.add(mCountName);
+        }
+        names.addAll(mPercentileNames);
+        if (mMaxName != null) {
+            names.add(mMaxName);
+        }
+        mNames = Collections.unmodifiableList(names);
+    }
+
+    /**
+     * Records a value.  Negative values are recorded as 0.
+     */
+    public void record(long value) {
+        if (value < 0) {
+            value = 0;
+        }
+        mBuckets.incrementAndGet(bucketFor(value));
+        mCount.incrementAndGet();
+        long max;
+        while (value > (max = mMax.get())) {
+            if (mMax.compareAndSet(max, value)) {
+                break;
+            }
+        }
+    }
+
+    /**
+     * Returns the number of values recorded since the last call to {@link #reset}.
+     */
+    public long getCount() {
+        return mCount.get();
+    }
+
+    /**
+     * Returns the largest value recorded since the last call to {@link #reset}.
+     */
+    public long getMax() {
+        return mMax.get();
+    }
+
+    /**
+     * Returns the (approximate) value at the given percentile, or 0 if nothing
+     * has been recorded since the last call to {@link #reset}.
+     */
+    public long getPercentile(double percentile) {
+        long[] counts = new long[NUM_BUCKETS];
+        long total = 0;
+        for (int i = 0; i < NUM_BUCKETS; i++) {
+            counts[i] = mBuckets.get(i);
+            total += counts[i];
+        }
+        if (total == 0) {
+            return 0;
+        }
+        long rank = (long) Math.ceil(total * percentile / 100.0);
+        if (rank < 1) {
+            rank = 1;
+        }
+        long seen = 0;
+        for (int i = 0; i < NUM_BUCKETS; i++) {
+            seen += counts[i];
+            if (seen >= rank) {
+                return Math.min(upperBoundOf(i), getMax());
+            }
+        }
+        return getMax();
+    }
+
+    static int bucketFor(long value) {
+        if (value < SUB_BUCKETS) {
+            return (int) value;
+        }
+        int exp = 63 - Long.numberOfLeadingZeros(value);
+        int sub = (int) ((value >>> (exp - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1));
+        return (exp - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + sub;
+    }
+
+    static long upperBoundOf(int bucket) {
+        if (bucket < SUB_BUCKETS) {
+            return bucket;
+        }
+        int exp = bucket / SUB_BUCKETS + SUB_BUCKET_BITS - 1;
+        int sub = bucket % SUB_BUCKETS;
+        long bound = ((long) (SUB_BUCKETS + sub + 1) << (exp - SUB_BUCKET_BITS)) - 1;
+        return bound < 0 ? Long.MAX_VALUE : bound;
+    }
+
+    ////////////// Accumulator implementation ///////////////////
+
+    @Override
+    public synchronized List<String> getNames() {
+        return mNames;
+    }
+
+    @Override
+    public synchronized List<Object> getData() {
+        List<Object> data = new ArrayList<Object>(mNames.size());
+        if (mCountName != null) {
+            data.add(getCount());
+        }
+        for (Double percentile : mPercentiles) {
+            data.add(getPercentile(percentile));
+        }
+        if (mMaxName != null) {
+            data.add(getMax());
+        }
+        return data;
+    }
+
+    @Override
+    public synchronized void reset() {
+        for (int i = 0; i < NUM_BUCKETS; i++) {
+            mBuckets.set(i, 0);
+        }
+        mCount.set(0);
+        mMax.set(0);
+    }
+}
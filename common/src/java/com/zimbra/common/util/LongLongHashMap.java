@@ -0,0 +1,179 @@
+/*
+ * ***** BEGIN LICENSE BLOCK *****
+ * Zimbra Collaboration Suite Server
+ * Copyright (C) 2017 Synacor, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software Foundation,
+ * version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <https://www.gnu.org/licenses/>.
+ * ***** END LICENSE BLOCK *****
+ */
+package com.zimbra.common.util;
+
+import java.util.Arrays;
+
+/**
+ * Hash map from {@code long} to {@code long} without boxing, for indexes that hold an entry for every cached item.
+ * Uses open addressing with linear probing; an entry takes 16 bytes at the configured load factor instead of the 70+
+ * bytes of a {@code HashMap<Long, Long>} entry, and the map holds two arrays instead of an object per entry.  Not
+ * thread safe.
+ */
+public final class LongLongHashMap {
+
+    private static final long FREE = 0L;
+
+    private long[] keys;
+    private long[] values;
+    private int size;
+    private int threshold;
+    private boolean hasFreeKey;
+    private long freeValue;
+    private final long missingValue;
+
+    /**
+     * @param missingValue value returned by {@link #get(long)} and {@link #remove(long)} for absent keys
+     */
+    public LongLongHashMap(int expectedSize, long missingValue) {
+        this.missingValue = missingValue;
+        int capacity = 8;
+        while (capacity * 3 / 4 < expectedSize) {
+            capacity <<= 1;
+        }
+        allocate(capacity);
+    }
+
+    public LongLongHashMap() {
+        this(8, -1L);
+    }
+
+    private void allocate(int capacity) {
+        keys = new long[capacity];
+        values = new long[capacity];
+        threshold = capacity * 3 / 4;
+    }
+
+    private static int mix(long key) {
+        long h = key * 0x9E3779B97F4A7C15L;
+        return (int) (h ^ (h >>> 32));
+    }
+
+    private int slot(long key) {
+        int mask = keys.length - 1;
+        int pos = mix(key) & mask;
+        while (keys[pos] != FREE && keys[pos] != key) {
+            pos = (pos + 1) & mask;
+        }
+        return pos;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    public boolean containsKey(long key) {
+        if (key == FREE) {
+            return hasFreeKey;
+        }
+        return keys[slot(key)] == key;
+    }
+
+    public long get(long key) {
+        if (key == FREE) {
+            return hasFreeKey ? freeValue : missingValue;
+        }
+        int pos = slot(key);
+        return keys[pos] == key ? values[pos] : missingValue;
+    }
+
+    /**
+     * @return the previous value, or the missing value if there was none
+     */
+    public long put(long key, long value) {
+        if (key == FREE) {
+            long previous = hasFreeKey ? freeValue : missingValue;
+            if (!hasFreeKey) {
+                hasFreeKey = true;
+                size++;
+            }
+            freeValue = value;
+            return previous;
+        }
+        int pos = slot(key);
+        if (keys[pos] == key) {
+            long previous = values[pos];
+            values[pos] = value;
+            return previous;
+        }
+        keys[pos] = key;
+        values[pos] = value;
+        if (++size > threshold) {
+            rehash(keys.length << 1);
+        }
+        return missingValue;
+    }
+
+    /**
+     * @return the removed value, or the missing value if there was none
+     */
+    public long remove(long key) {
+        if (key == FREE) {
+            if (!hasFreeKey) {
+                return missingValue;
+            }
+            hasFreeKey = false;
+            size--;
+            return freeValue;
+        }
+        int pos = slot(key);
+        if (keys[pos] != key) {
+            return missingValue;
+        }
+        long previous = values[pos];
+        size--;
+        // shift back the following entries of the probe sequence so that lookups don't stop at the hole
+        int mask = keys.length - 1;
+        int hole = pos;
+        int next = (pos + 1) & mask;
+        while (keys[next] != FREE) {
+            int home = mix(keys[next]) & mask;
+            if (((next - home) & mask) >= ((next - hole) & mask)) {
+                keys[hole] = keys[next];
+                values[hole] = values[next];
+                hole = next;
+            }
+            next = (next + 1) & mask;
+        }
+        keys[hole] = FREE;
+        return previous;
+    }
+
+    public void clear() {
+        Arrays.fill(keys, FREE);
+        hasFreeKey = false;
+        size = 0;
+    }
+
+    private void rehash(int capacity) {
+        long[] oldKeys = keys;
+        long[] oldValues = values;
+        allocate(capacity);
+        for (int i = 0; i < oldKeys.length; i++) {
+            long key = oldKeys[i];
+            if (key != FREE) {
+                int pos = slot(key);
+                keys[pos] = key;
+                values[pos] = oldValues[i];
+            }
+        }
+    }
+}
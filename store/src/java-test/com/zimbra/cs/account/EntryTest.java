@@ -0,0 +1,71 @@
+/*
+ * ***** BEGIN LICENSE BLOCK *****
+ * Zimbra Collaboration Suite Server
+ * Copyright (C) 2017 Synacor, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software Foundation,
+ * version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <https://www.gnu.org/licenses/>.
+ * ***** END LICENSE BLOCK *****
+ */
+package com.zimbra.cs.account;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.Assert;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import com.zimbra.cs.mailbox.MailboxTestUtil;
+
+public class EntryTest {
+
+    @BeforeClass
+    public static void init() throws Exception {
+        MailboxTestUtil.initServer();
+    }
+
+    private static Map<String, Object> attrs(String... nameValues) {
+        Map<String, Object> attrs = new HashMap<String, Object>();
+        for (int i = 0; i < nameValues.length; i += 2) {
+            attrs.put(nameValues[i], nameValues[i + 1]);
+        }
+        return attrs;
+    }
+
+    @Test
+    public void typedValueFollowsModify() throws Exception {
+        Provisioning prov = Provisioning.getInstance();
+        Account acct = new Account("typed@zimbra.com", "typed@zimbra.com",
+                attrs(Provisioning.A_zimbraMailQuota, "1000", Provisioning.A_zimbraPrefMailPollingInterval, "10m"),
+                null, prov);
+        Assert.assertEquals(1000L, acct.getMailQuota());
+        Assert.assertEquals(600000L, acct.getPrefMailPollingInterval());
+
+        prov.modifyAttrs(acct, attrs(Provisioning.A_zimbraMailQuota, "2000"));
+        Assert.assertEquals(2000L, acct.getMailQuota());
+
+        acct.setAttrs(attrs(Provisioning.A_zimbraMailQuota, "bogus"));
+        Assert.assertEquals(0L, acct.getMailQuota());
+        Assert.assertEquals(42L, acct.getLongAttr(Provisioning.A_zimbraMailQuota, 42L));
+    }
+
+    @Test
+    public void typedValueFollowsDefaults() throws Exception {
+        Provisioning prov = Provisioning.getInstance();
+        Cos cos = new MockCos("typed", "typed-cos-id", attrs(Provisioning.A_zimbraMailQuota, "1000"), prov);
+        Account acct = new Account("typed@zimbra.com", "typed@zimbra.com", attrs(), cos.getAccountDefaults(), prov);
+        Assert.assertEquals(1000L, acct.getMailQuota());
+
+        // the COS refills the same defaults map when it is reloaded
+        cos.setAttrs(attrs(Provisioning.A_zimbraMailQuota, "3000"));
+        Assert.assertEquals(3000L, acct.getMailQuota());
+    }
+}
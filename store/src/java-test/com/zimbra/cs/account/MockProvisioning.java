@@ -209,7 +209,12 @@ public final class MockProvisioning extends Provisioning {
 
     @Override
     public void modifyAttrs(Entry entry, Map<String, ? extends Object> attrs, boolean checkImmutable) {
-        Map<String, Object> map = entry.getAttrs(false, false);
+        modifyAttrMap(entry.getAttrs(false, false), attrs);
+        // the attribute map was changed in place
+        entry.resetTypedValues();
+    }
+
+    private void modifyAttrMap(Map<String, Object> map, Map<String, ? extends Object> attrs) {
         for (Map.Entry<String, ? extends Object> attr : attrs.entrySet()) {
             String key = attr.getKey();
             if (attr.getValue() != null) {
@@ -0,0 +1,103 @@
+/*
+ * ***** BEGIN LICENSE BLOCK *****
+ * Zimbra Collaboration Suite Server
+ * Copyright (C) 2017 Synacor, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software Foundation,
+ * version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <https://www.gnu.org/licenses/>.
+ * ***** END LICENSE BLOCK *****
+ */
+package com.zimbra.cs.account.cache;
+
+import java.util.HashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Assert;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import com.zimbra.common.service.ServiceException;
+import com.zimbra.cs.account.Cos;
+import com.zimbra.cs.account.MockCos;
+import com.zimbra.cs.account.Provisioning;
+import com.zimbra.cs.account.cache.ConcurrentEntryCache.Refresher;
+import com.zimbra.cs.mailbox.MailboxTestUtil;
+
+public class NamedEntryCacheTest {
+
+    @BeforeClass
+    public static void init() throws Exception {
+        MailboxTestUtil.initServer();
+    }
+
+    private static Cos newCos(String name) {
+        return new MockCos(name, name + "-id", new HashMap<String, Object>(), Provisioning.getInstance());
+    }
+
+    @Test
+    public void lookup() throws Exception {
+        NamedEntryCache<Cos> cache = new NamedEntryCache<Cos>(10, 0);
+        Cos cos = newCos("lookup");
+        cache.put(cos);
+        Assert.assertSame(cos, cache.getById("lookup-id"));
+        Assert.assertSame(cos, cache.getByName("LOOKUP"));
+        Assert.assertNull(cache.getById("other-id"));
+        Assert.assertEquals(2, cache.getHitCount());
+        Assert.assertEquals(1, cache.getMissCount());
+
+        cache.remove(cos);
+        Assert.assertNull(cache.getByName("lookup"));
+        Assert.assertEquals(0, cache.getSize());
+    }
+
+    @Test
+    public void onlyFirstLookupOfExpiredEntryReloads() throws Exception {
+        NamedEntryCache<Cos> cache = new NamedEntryCache<Cos>(10, 200);
+        Cos cos = newCos("expired");
+        cache.put(cos);
+        Thread.sleep(250);
+        Assert.assertNull(cache.getById("expired-id"));
+        Assert.assertSame(cos, cache.getById("expired-id"));
+        Assert.assertSame(cos, cache.getByName("expired"));
+
+        // not put back in time
+        Thread.sleep(200);
+        Assert.assertNull(cache.getById("expired-id"));
+        Assert.assertNull(cache.getByName("expired"));
+    }
+
+    @Test
+    public void refreshAhead() throws Exception {
+        final AtomicInteger refreshes = new AtomicInteger();
+        final CountDownLatch refreshed = new CountDownLatch(1);
+        NamedEntryCache<Cos> cache = new NamedEntryCache<Cos>(10, 200);
+        cache.setRefresher(new Refresher<Cos>() {
+            @Override
+            public void refresh(Cos entry) throws ServiceException {
+                refreshes.incrementAndGet();
+                refreshed.countDown();
+            }
+        });
+        Cos cos = newCos("refresh");
+        cache.put(cos);
+        Thread.sleep(250);
+        for (int i = 0; i < 5; i++) {
+            Assert.assertSame(cos, cache.getById("refresh-id"));
+        }
+        Assert.assertTrue(refreshed.await(5, TimeUnit.SECONDS));
+
+        // put back with a new lifetime
+        Thread.sleep(100);
+        Assert.assertSame(cos, cache.getByName("refresh"));
+        Assert.assertEquals(1, refreshes.get());
+    }
+}
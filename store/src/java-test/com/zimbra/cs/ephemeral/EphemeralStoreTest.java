@@ -5,8 +5,10 @@ import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertTrue;
 
+import java.util.Arrays;
 import java.util.Date;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.concurrent.TimeUnit;
 
@@ -249,6 +251,74 @@ public class EphemeralStoreTest {
         assertEquals(LdapDateUtil.toGeneralizedTime(date), attrs.get(Provisioning.A_zimbraLastLogonTimestamp));
     }
 
+    @Test
+    public void testBatch() throws Exception {
+        EphemeralLocation target = new TestLocation();
+        EphemeralKey key1 = new EphemeralKey("foo1");
+        EphemeralKey key2 = new EphemeralKey("foo2");
+        store.set(Arrays.asList(new EphemeralInput(key1, "bar1"), new EphemeralInput(key2, "bar2")), target);
+        store.update(Arrays.asList(new EphemeralInput(key1, "baz1")), target);
+        List<EphemeralResult> results = store.getAsync(Arrays.asList(key1, key2, new EphemeralKey("foo3")), target)
+                .get();
+        assertEquals(3, results.size());
+        assertArrayEquals(new String[] {"bar1", "baz1"}, results.get(0).getValues());
+        assertEquals("bar2", results.get(1).getValue());
+        assertTrue(results.get(2).isEmpty());
+    }
+
+    @Test
+    public void testWriteBehind() throws Exception {
+        EphemeralLocation target = new TestLocation();
+        EphemeralKey key = new EphemeralKey("foo");
+        EphemeralKey dynamicKey = new EphemeralKey("foo", "1");
+        // long enough that only reads write out the pending changes
+        WriteBehindEphemeralStore writeBehind = new WriteBehindEphemeralStore(EphemeralStore.getFactory(), 3600000L);
+        try {
+            writeBehind.set(new EphemeralInput(key, "bar"), target);
+            writeBehind.set(new EphemeralInput(key, "baz"), target);
+            writeBehind.update(new EphemeralInput(dynamicKey, "dynamic"), target);
+            writeBehind.update(new EphemeralInput(dynamicKey, "dynamic"), target);
+            assertTrue(store.get(key, target).isEmpty());
+
+            // repeated writes to the same key were merged
+            assertEquals("baz", writeBehind.get(key, target).getValue());
+            assertArrayEquals(new String[] {"dynamic"}, store.get(dynamicKey, target).getValues());
+
+            writeBehind.set(new EphemeralInput(key, "qux"), target);
+            assertEquals("baz", store.get(key, target).getValue());
+        } finally {
+            writeBehind.close();
+        }
+        assertEquals("qux", store.get(key, target).getValue());
+    }
+
+    @Test
+    public void testWriteBehindDelete() throws Exception {
+        EphemeralLocation target = new TestLocation();
+        EphemeralKey key = new EphemeralKey("foo");
+        EphemeralKey dynamicKey = new EphemeralKey("foo", "1");
+        WriteBehindEphemeralStore writeBehind = new WriteBehindEphemeralStore(EphemeralStore.getFactory(), 3600000L);
+        try {
+            writeBehind.set(new EphemeralInput(key, "bar"), target);
+            writeBehind.update(new EphemeralInput(dynamicKey, "dynamic"), target);
+
+            // a pending set is read without being written out
+            assertEquals("bar", writeBehind.get(key, target).getValue());
+            assertTrue(store.get(key, target).isEmpty());
+
+            // a delete is not undone by writing out what was pending before it
+            writeBehind.delete(key, "bar", target);
+            writeBehind.delete(dynamicKey, "dynamic", target);
+            assertTrue(writeBehind.get(key, target).isEmpty());
+            writeBehind.flush();
+            assertTrue(store.get(key, target).isEmpty());
+            assertTrue(store.get(dynamicKey, target).isEmpty());
+        } finally {
+            writeBehind.close();
+        }
+        assertTrue(store.get(key, target).isEmpty());
+    }
+
     @Test
     public void testFallbackEphemeralStore() throws Exception {
 
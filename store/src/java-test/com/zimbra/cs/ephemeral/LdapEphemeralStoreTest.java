@@ -3,6 +3,7 @@ package com.zimbra.cs.ephemeral;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertTrue;
 
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.Map;
 
@@ -96,6 +97,31 @@ public class LdapEphemeralStoreTest {
         verifyAttrMap(expected);
     }
 
+    @Test
+    public void testBatch() throws Exception {
+        EphemeralLocation location = new TestLocation();
+        store.set(Arrays.asList(new EphemeralInput(new EphemeralKey("foo"), "bar"),
+                new EphemeralInput(new EphemeralKey("foo"), "baz"),
+                new EphemeralInput(new EphemeralKey("foo2"), "bar2")), location);
+        assertEquals(1, helper.executions);
+        verifyAttrMap(makeMap("foo", "baz"));
+        verifyAttrMap(makeMap("foo2", "bar2"));
+        helper.reset();
+
+        EphemeralInput input = new EphemeralInput(new EphemeralKey("foo", "1"), "bar");
+        input.setExpiration(new AbsoluteExpiration(1000L));
+        EphemeralInput input2 = new EphemeralInput(new EphemeralKey("foo2", "1"), "bar");
+        input2.setExpiration(new AbsoluteExpiration(1000L));
+        store.update(Arrays.asList(input, input2), location);
+        assertEquals(2, helper.executions);
+        helper.reset();
+        Thread.sleep(1500);
+        store.purgeExpired(Arrays.asList(new EphemeralKey("foo"), new EphemeralKey("foo2")), location);
+        assertEquals(3, helper.executions);
+        verifyAttrMap(makeMap("-foo", "bar|1|1000"));
+        verifyAttrMap(makeMap("-foo2", "bar|1|1000"));
+    }
+
     @Test
     public void testHasKey() throws Exception {
         EphemeralLocation target = new TestLocation();
@@ -165,6 +191,7 @@ public class LdapEphemeralStoreTest {
         private InMemoryEphemeralStore store;
         private EphemeralLocation location;
         private AttributeEncoder encoder;
+        int executions;
 
         public MockLdapHelper() {
             store = new InMemoryEphemeralStore();
@@ -205,6 +232,7 @@ public class LdapEphemeralStoreTest {
 
         @Override
         void executeChange() throws ServiceException {
+            executions++;
             for (Map.Entry<String, Object> kv: attrs.entrySet()) {
                 String key = kv.getKey();
                 String[] values = objectToStringArray(kv.getValue());
@@ -1,5 +1,7 @@
 package com.zimbra.cs.imap;
 
+import java.io.IOException;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.Set;
 
@@ -12,6 +14,7 @@ import org.junit.Test;
 
 import com.zimbra.cs.account.Account;
 import com.zimbra.cs.account.Provisioning;
+import com.zimbra.cs.mailbox.Flag;
 import com.zimbra.cs.mailbox.MailItem.Type;
 import com.zimbra.cs.mailbox.Mailbox;
 import com.zimbra.cs.mailbox.MailboxManager;
@@ -61,4 +64,42 @@ public class ImapFolderTest {
         Assert.assertNotNull(i4set);
         Assert.assertEquals(3, i4set.size());
     }
-}
\ No newline at end of file
+
+    @Test
+    public void codecRoundTrip() throws Exception {
+        ImapCredentials creds = new ImapCredentials(acct, ImapCredentials.EnabledHack.NONE);
+        ImapFolder i4folder = new ImapFolder(new ImapPath("trash", creds), (byte) 0, null);
+        for (int id = 1; id <= 200; id++) {
+            String[] tags = id % 3 == 0 ? new String[] { "work", id % 2 == 0 ? "urgent" : "later" } : null;
+            i4folder.cache(new ImapMessage(id, id % 7 == 0 ? Type.CONTACT : Type.MESSAGE, id % 5 == 0 ? id + 500 : id,
+                    id % 4 == 0 ? Flag.BITMASK_UNREAD | Flag.BITMASK_FLAGGED : 0, tags), id > 190);
+        }
+        i4folder.getTagset().cache(new ImapFlagCache.ImapFlag("\\Recent", ImapMessage.FLAG_RECENT, false));
+        i4folder.markMessageExpunged(i4folder.getById(20));
+
+        byte[] encoded = ImapFolderCodec.encode(i4folder);
+        ImapFolder decoded = ImapFolderCodec.decode(encoded);
+        Assert.assertEquals(i4folder.getId(), decoded.getId());
+        Assert.assertEquals(i4folder.getUIDValidity(), decoded.getUIDValidity());
+        Assert.assertSame(ImapHandler.ITEM_TYPES, decoded.getTypeConstraint());
+        Assert.assertEquals(i4folder.getSize(), decoded.getSize());
+        for (int seq = 1; seq <= i4folder.getSize(); seq++) {
+            ImapMessage expected = i4folder.getBySequence(seq, true), actual = decoded.getBySequence(seq, true);
+            Assert.assertEquals(expected.sequence, actual.sequence);
+            Assert.assertEquals(expected.msgId, actual.msgId);
+            Assert.assertEquals(expected.imapUid, actual.imapUid);
+            Assert.assertEquals(expected.sflags, actual.sflags);
+            Assert.assertEquals(expected.flags, actual.flags);
+            Assert.assertTrue(Arrays.equals(expected.tags, actual.tags));
+        }
+        Assert.assertEquals(i4folder.getByImapId(525).msgId, decoded.getByImapId(525).msgId);
+        Assert.assertEquals(i4folder.getFlagList(false), decoded.getFlagList(false));
+
+        encoded[2] = (byte) (ImapFolderCodec.VERSION + 1);
+        try {
+            ImapFolderCodec.decode(encoded);
+            Assert.fail("unknown encoding version accepted");
+        } catch (IOException expected) {
+        }
+    }
+}
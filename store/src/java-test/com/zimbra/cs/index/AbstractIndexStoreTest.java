@@ -526,6 +526,31 @@ public abstract class AbstractIndexStoreTest {
         searcher.close();
     }
 
+    @Test
+    public void searchAfterIndexing() throws Exception {
+        ZimbraLog.test.debug("--->TEST searchAfterIndexing");
+        Mailbox mbox = MailboxManager.getInstance().getMailboxByAccountId(MockProvisioning.DEFAULT_ACCOUNT_ID);
+        IndexStore index = mbox.index.getIndexStore();
+        createContact(mbox, "Jane", "Peters", "test1@zimbra.com");
+        mbox.index.indexDeferredItems();
+
+        ZimbraIndexSearcher searcher = index.openSearcher(); // gets cached
+        Assert.assertEquals("docs which match 'test1'", 1,
+                searcher.docFreq(new Term(LuceneFields.L_CONTACT_DATA, "test1")));
+        searcher.close();
+
+        for (int i = 2; i <= 4; i++) {
+            createContact(mbox, "Jane", "Peters", "test" + i + "@zimbra.com");
+            mbox.index.indexDeferredItems();
+            searcher = index.openSearcher();
+            Assert.assertEquals("numDocs right after indexing contact " + i, i,
+                    searcher.getIndexReader().numDocs());
+            Assert.assertEquals("docs which match 'test" + i + "'", 1,
+                    searcher.docFreq(new Term(LuceneFields.L_CONTACT_DATA, "test" + i)));
+            searcher.close();
+        }
+    }
+
     private void checkNextTerm(TermFieldEnumeration fields, Term term) {
         Assert.assertTrue("fields.hasMoreElements() value when expecting:" + term.toString(), fields.hasMoreElements());
         BrowseTerm browseTerm = fields.nextElement();
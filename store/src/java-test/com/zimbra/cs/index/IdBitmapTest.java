@@ -0,0 +1,57 @@
+/*
+ * ***** BEGIN LICENSE BLOCK *****
+ * Zimbra Collaboration Suite Server
+ * Copyright (C) 2017 Synacor, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software Foundation,
+ * version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <https://www.gnu.org/licenses/>.
+ * ***** END LICENSE BLOCK *****
+ */
+package com.zimbra.cs.index;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Unit test for {@link IdBitmap}.
+ */
+public final class IdBitmapTest {
+
+    @Test
+    public void sparse() {
+        IdBitmap bitmap = new IdBitmap();
+        Assert.assertTrue(bitmap.isEmpty());
+        Assert.assertTrue(bitmap.add(5));
+        Assert.assertTrue(bitmap.add(70000));
+        Assert.assertTrue(bitmap.add(Integer.MAX_VALUE));
+        Assert.assertFalse(bitmap.add(70000));
+        Assert.assertEquals(3, bitmap.size());
+        Assert.assertTrue(bitmap.contains(5));
+        Assert.assertTrue(bitmap.contains(70000));
+        Assert.assertTrue(bitmap.contains(Integer.MAX_VALUE));
+        Assert.assertFalse(bitmap.contains(6));
+        Assert.assertFalse(bitmap.contains(70000 - 65536));
+        Assert.assertFalse(bitmap.contains(-1));
+    }
+
+    @Test
+    public void dense() {
+        IdBitmap bitmap = new IdBitmap();
+        // every other ID in one bucket, enough to switch it to a bitmap container
+        for (int i = 0; i < 20000; i += 2) {
+            Assert.assertTrue(bitmap.add(i));
+        }
+        Assert.assertFalse(bitmap.add(10000));
+        Assert.assertEquals(10000, bitmap.size());
+        for (int i = 0; i < 20000; i++) {
+            Assert.assertEquals(i % 2 == 0, bitmap.contains(i));
+        }
+    }
+}
@@ -16,6 +16,10 @@
  */
 package com.zimbra.cs.index;
 
+import org.junit.Test;
+
+import com.zimbra.common.localconfig.LC;
+
 /**
  * Unit test for {@link LuceneIndex}.
  */
@@ -27,4 +31,17 @@ public final class LuceneIndexTest extends AbstractIndexStoreTest {
         // Default for LC.zimbra_class_index_store_factory.value() is USUALLY this
         return "com.zimbra.cs.index.LuceneIndex$Factory";
     }
+
+    @Test
+    public void searchAfterIndexingNrt() throws Exception {
+        LC.zimbra_index_nrt_enabled.setDefault(true);
+        // long enough that searches find the refresh still pending and have to run it themselves
+        LC.zimbra_index_nrt_max_staleness_ms.setDefault(60000);
+        try {
+            searchAfterIndexing();
+        } finally {
+            LC.zimbra_index_nrt_enabled.setDefault(false);
+            LC.zimbra_index_nrt_max_staleness_ms.setDefault(1000);
+        }
+    }
 }
@@ -0,0 +1,142 @@
+/*
+ * ***** BEGIN LICENSE BLOCK *****
+ * Zimbra Collaboration Suite Server
+ * Copyright (C) 2017 Synacor, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software Foundation,
+ * version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <https://www.gnu.org/licenses/>.
+ * ***** END LICENSE BLOCK *****
+ */
+package com.zimbra.cs.index;
+
+import java.util.ArrayList;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.List;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import com.google.common.io.Closeables;
+import com.zimbra.common.localconfig.LC;
+import com.zimbra.common.soap.SoapProtocol;
+import com.zimbra.cs.account.MockProvisioning;
+import com.zimbra.cs.account.Provisioning;
+import com.zimbra.cs.mailbox.DeliveryOptions;
+import com.zimbra.cs.mailbox.MailItem;
+import com.zimbra.cs.mailbox.Mailbox;
+import com.zimbra.cs.mailbox.MailboxManager;
+import com.zimbra.cs.mailbox.MailboxTestUtil;
+import com.zimbra.cs.mailbox.Message;
+import com.zimbra.cs.mailbox.OperationContext;
+import com.zimbra.cs.mime.ParsedMessage;
+import com.zimbra.cs.stats.ZimbraPerf;
+
+/**
+ * Unit test for {@link SearchResultCache}.
+ */
+public final class SearchResultCacheTest {
+
+    @BeforeClass
+    public static void init() throws Exception {
+        MailboxTestUtil.initServer();
+        Provisioning prov = Provisioning.getInstance();
+        prov.createAccount("test@zimbra.com", "secret", new HashMap<String, Object>());
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        MailboxTestUtil.clearData();
+    }
+
+    @Test
+    public void paging() throws Exception {
+        Mailbox mbox = MailboxManager.getInstance().getMailboxByAccountId(MockProvisioning.DEFAULT_ACCOUNT_ID);
+        List<Integer> ids = new ArrayList<Integer>();
+        for (int i = 0; i < 5; i++) {
+            ids.add(0, addMessage(mbox, "paging " + i, i).getId());
+        }
+
+        long hits = ZimbraPerf.COUNTER_SEARCH_RESULT_CACHE.getTotal();
+        long size = SearchResultCache.getInstance().getSize();
+        LC.search_result_cache_prefetch_pages.setDefault(4);
+        try {
+            Assert.assertEquals(ids.subList(0, 2), search(mbox, "in:inbox", 0, 2));
+        } finally {
+            LC.search_result_cache_prefetch_pages.setDefault(0);
+        }
+        Assert.assertEquals(hits, ZimbraPerf.COUNTER_SEARCH_RESULT_CACHE.getTotal());
+        awaitPrefetch(size);
+        Assert.assertEquals(ids.subList(2, 4), search(mbox, "in:inbox", 2, 2));
+        Assert.assertEquals(hits + 100, ZimbraPerf.COUNTER_SEARCH_RESULT_CACHE.getTotal());
+        Assert.assertEquals(ids.subList(4, 5), search(mbox, "in:inbox", 4, 2));
+        Assert.assertEquals(hits + 200, ZimbraPerf.COUNTER_SEARCH_RESULT_CACHE.getTotal());
+
+        // any change to the mailbox invalidates the cached results
+        ids.add(0, addMessage(mbox, "paging 5", 5).getId());
+        Assert.assertEquals(ids.subList(2, 4), search(mbox, "in:inbox", 2, 2));
+        Assert.assertEquals(hits + 200, ZimbraPerf.COUNTER_SEARCH_RESULT_CACHE.getTotal());
+    }
+
+    @Test
+    public void relativeDate() throws Exception {
+        Mailbox mbox = MailboxManager.getInstance().getMailboxByAccountId(MockProvisioning.DEFAULT_ACCOUNT_ID);
+        List<Integer> ids = new ArrayList<Integer>();
+        for (int i = 0; i < 5; i++) {
+            ids.add(0, addMessage(mbox, "relative " + i, i).getId());
+        }
+
+        // "after:-100years" means something else tomorrow, without any change to the mailbox
+        long hits = ZimbraPerf.COUNTER_SEARCH_RESULT_CACHE.getTotal();
+        Assert.assertEquals(ids.subList(0, 2), search(mbox, "in:inbox after:-100years", 0, 2));
+        Assert.assertEquals(ids.subList(2, 4), search(mbox, "in:inbox after:-100years", 2, 2));
+        Assert.assertEquals(hits, ZimbraPerf.COUNTER_SEARCH_RESULT_CACHE.getTotal());
+    }
+
+    /**
+     * Waits for the following pages of the last search to be read ahead and cached.
+     */
+    private void awaitPrefetch(long size) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 10000;
+        while (SearchResultCache.getInstance().getSize() == size && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+    }
+
+    private Message addMessage(Mailbox mbox, String subject, int day) throws Exception {
+        DeliveryOptions dopt = new DeliveryOptions().setFolderId(Mailbox.ID_FOLDER_INBOX);
+        long received = 1500000000000L + day * 86400000L;
+        return mbox.addMessage(null, new ParsedMessage(("Subject: " + subject).getBytes(), received, false), dopt,
+                null);
+    }
+
+    private List<Integer> search(Mailbox mbox, String query, int offset, int limit) throws Exception {
+        SearchParams params = new SearchParams();
+        params.setQueryString(query);
+        params.setSortBy(SortBy.DATE_DESC);
+        params.setTypes(EnumSet.of(MailItem.Type.MESSAGE));
+        params.setOffset(offset);
+        params.setLimit(limit);
+
+        List<Integer> result = new ArrayList<Integer>();
+        ZimbraQueryResults results = mbox.index.search(SoapProtocol.Soap12, new OperationContext(mbox), params);
+        try {
+            ResultsPager pager = ResultsPager.create(results, params);
+            while (pager.hasNext() && result.size() < limit) {
+                result.add(pager.getNextHit().getItemId());
+            }
+        } finally {
+            Closeables.closeQuietly(results);
+        }
+        return result;
+    }
+}
@@ -0,0 +1,105 @@
+/*
+ * ***** BEGIN LICENSE BLOCK *****
+ * Zimbra Collaboration Suite Server
+ * Copyright (C) 2017 Synacor, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software Foundation,
+ * version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <https://www.gnu.org/licenses/>.
+ * ***** END LICENSE BLOCK *****
+ */
+package com.zimbra.cs.lmtpserver;
+
+import java.io.ByteArrayInputStream;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import com.zimbra.common.account.Key.AccountBy;
+import com.zimbra.common.localconfig.LC;
+import com.zimbra.cs.account.Account;
+import com.zimbra.cs.account.Provisioning;
+import com.zimbra.cs.mailbox.MailItem;
+import com.zimbra.cs.mailbox.Mailbox;
+import com.zimbra.cs.mailbox.MailboxManager;
+import com.zimbra.cs.mailbox.MailboxTestUtil;
+import com.zimbra.cs.mailbox.Message;
+
+/**
+ * Unit test for {@link ZimbraLmtpBackend}.
+ */
+public final class ZimbraLmtpBackendTest {
+    private static final int RECIPIENTS = 8;
+    private static final String[] CHARSETS = { "utf-8", "iso-8859-1", "windows-1252", "iso-8859-15" };
+
+    @BeforeClass
+    public static void init() throws Exception {
+        MailboxTestUtil.initServer();
+        Provisioning prov = Provisioning.getInstance();
+        for (int i = 0; i < RECIPIENTS; i++) {
+            Map<String, Object> attrs = new HashMap<String, Object>();
+            // delivery sets a per-recipient default charset on the message being delivered
+            attrs.put(Provisioning.A_zimbraPrefMailDefaultCharset, CHARSETS[i % CHARSETS.length]);
+            prov.createAccount("rcpt" + i + "@zimbra.com", "secret", attrs);
+        }
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        MailboxTestUtil.clearData();
+        LC.zimbra_lmtp_parallel_delivery_threads.setDefault(4);
+        LC.zimbra_lmtp_parallel_delivery_min_recipients.setDefault(2);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        LC.zimbra_lmtp_parallel_delivery_threads.setDefault(0);
+        LC.zimbra_lmtp_parallel_delivery_min_recipients.setDefault(10);
+    }
+
+    @Test
+    public void parallelDelivery() throws Exception {
+        String raw = "From: sender@example.com\r\n" +
+                "To: rcpt0@zimbra.com\r\n" +
+                "Subject: caf\u00e9 cr\u00e8me\r\n" +
+                "\r\n" +
+                "na\u00efve r\u00e9sum\u00e9\r\n";
+
+        for (int round = 0; round < 5; round++) {
+            LmtpEnvelope env = new LmtpEnvelope();
+            env.setSender(new LmtpAddress("<sender@example.com>", new String[] { "BODY", "SIZE" }, null));
+            for (int i = 0; i < RECIPIENTS; i++) {
+                env.addLocalRecipient(new LmtpAddress("<rcpt" + i + "@zimbra.com>", null, null));
+            }
+            // a distinct Message-ID per round, so that deliveries aren't deduped
+            byte[] msg = ("Message-ID: <parallel" + round + "@example.com>\r\n" + raw).getBytes("iso-8859-1");
+            new ZimbraLmtpBackend(LmtpConfig.getInstance()).deliver(env, new ByteArrayInputStream(msg), msg.length);
+            for (LmtpAddress recipient : env.getLocalRecipients()) {
+                Assert.assertEquals(recipient.getEmailAddress(), LmtpReply.DELIVERY_OK, recipient.getDeliveryStatus());
+            }
+        }
+
+        for (int i = 0; i < RECIPIENTS; i++) {
+            Account account = Provisioning.getInstance().get(AccountBy.name, "rcpt" + i + "@zimbra.com");
+            Mailbox mbox = MailboxManager.getInstance().getMailboxByAccount(account);
+            List<Integer> ids = mbox.getItemIds(null, Mailbox.ID_FOLDER_INBOX).getIds(MailItem.Type.MESSAGE);
+            Assert.assertEquals(account.getName(), 5, ids.size());
+            for (int id : ids) {
+                Message message = mbox.getMessageById(null, id);
+                Assert.assertTrue(account.getName(), message.getSubject().startsWith("caf"));
+            }
+        }
+    }
+}
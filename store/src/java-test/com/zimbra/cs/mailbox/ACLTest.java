@@ -28,7 +28,9 @@ import com.zimbra.common.service.ServiceException;
 import com.zimbra.cs.account.Account;
 import com.zimbra.cs.account.GuestAccount;
 import com.zimbra.cs.account.Provisioning;
+import com.zimbra.cs.account.accesscontrol.PermissionCache;
 import com.zimbra.cs.mailbox.MailItem.UnderlyingData;
+import com.zimbra.cs.stats.ZimbraPerf;
 
 public class ACLTest {
 
@@ -87,6 +89,61 @@ public class ACLTest {
         }
     }
     
+    @Test
+    public void folderRightsIndex() throws Exception {
+        Account owner = Provisioning.getInstance().get(Key.AccountBy.name, "owner@zimbra.com");
+        Account grantee = Provisioning.getInstance().get(Key.AccountBy.name, "principal@zimbra.com");
+        Mailbox mbox = MailboxManager.getInstance().getMailboxByAccount(owner);
+        OperationContext octxt = new OperationContext(owner);
+
+        Folder parent = mbox.createFolder(octxt, "parent", new Folder.FolderOptions());
+        Folder child = mbox.createFolder(octxt, "child", parent.getId(), new Folder.FolderOptions());
+        mbox.grantAccess(octxt, parent.getId(), grantee.getId(), ACL.GRANTEE_USER, ACL.stringToRights("r"), null);
+
+        long hits = ZimbraPerf.COUNTER_FOLDER_RIGHTS_INDEX.getTotal();
+        Assert.assertEquals(ACL.RIGHT_READ, checkRights(mbox, child.getId(), grantee));
+        Assert.assertEquals(hits, ZimbraPerf.COUNTER_FOLDER_RIGHTS_INDEX.getTotal());
+        Assert.assertEquals(ACL.RIGHT_READ, checkRights(mbox, child.getId(), grantee));
+        Assert.assertEquals(hits + 100, ZimbraPerf.COUNTER_FOLDER_RIGHTS_INDEX.getTotal());
+
+        // changing the parent's grants recompiles the subfolder
+        mbox.grantAccess(octxt, parent.getId(), grantee.getId(), ACL.GRANTEE_USER, ACL.stringToRights("rw"), null);
+        Assert.assertEquals(ACL.RIGHT_READ | ACL.RIGHT_WRITE, checkRights(mbox, child.getId(), grantee));
+        mbox.revokeAccess(octxt, parent.getId(), grantee.getId());
+        Assert.assertEquals(0, checkRights(mbox, child.getId(), grantee));
+
+        // so does cutting the subfolder off from its parent
+        mbox.grantAccess(octxt, parent.getId(), grantee.getId(), ACL.GRANTEE_USER, ACL.stringToRights("r"), null);
+        Assert.assertEquals(ACL.RIGHT_READ, checkRights(mbox, child.getId(), grantee));
+        mbox.alterTag(octxt, child.getId(), MailItem.Type.FOLDER, Flag.FlagInfo.NO_INHERIT, true, null);
+        Assert.assertEquals(0, checkRights(mbox, child.getId(), grantee));
+    }
+
+    @Test
+    public void folderRightsIndexPermissionFlush() throws Exception {
+        Account owner = Provisioning.getInstance().get(Key.AccountBy.name, "owner@zimbra.com");
+        Account grantee = Provisioning.getInstance().get(Key.AccountBy.name, "principal@zimbra.com");
+        Mailbox mbox = MailboxManager.getInstance().getMailboxByAccount(owner);
+        OperationContext octxt = new OperationContext(owner);
+
+        Folder folder = mbox.createFolder(octxt, "flushed", new Folder.FolderOptions());
+        mbox.grantAccess(octxt, folder.getId(), grantee.getId(), ACL.GRANTEE_USER, ACL.stringToRights("r"), null);
+        Assert.assertEquals(ACL.RIGHT_READ, checkRights(mbox, folder.getId(), grantee));
+
+        // a group membership change may grant or revoke rights in any mailbox, so every entry is recompiled
+        PermissionCache.invalidateCache();
+        long hits = ZimbraPerf.COUNTER_FOLDER_RIGHTS_INDEX.getTotal();
+        Assert.assertEquals(ACL.RIGHT_READ, checkRights(mbox, folder.getId(), grantee));
+        Assert.assertEquals(hits, ZimbraPerf.COUNTER_FOLDER_RIGHTS_INDEX.getTotal());
+        Assert.assertEquals(ACL.RIGHT_READ, checkRights(mbox, folder.getId(), grantee));
+        Assert.assertEquals(hits + 100, ZimbraPerf.COUNTER_FOLDER_RIGHTS_INDEX.getTotal());
+    }
+
+    private static short checkRights(Mailbox mbox, int folderId, Account authuser) throws ServiceException {
+        return mbox.getFolderById(null, folderId).checkRights((short) (ACL.RIGHT_READ | ACL.RIGHT_WRITE), authuser,
+                false);
+    }
+
     @Test
 	public void testPublicAccess() throws Exception {
 		Account owner = Provisioning.getInstance().get(Key.AccountBy.name,"owner@zimbra.com");
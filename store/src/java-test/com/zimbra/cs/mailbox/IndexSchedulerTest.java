@@ -0,0 +1,158 @@
+/*
+ * ***** BEGIN LICENSE BLOCK *****
+ * Zimbra Collaboration Suite Server
+ * Copyright (C) 2017 Synacor, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software Foundation,
+ * version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <https://www.gnu.org/licenses/>.
+ * ***** END LICENSE BLOCK *****
+ */
+package com.zimbra.cs.mailbox;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.zimbra.cs.mailbox.IndexScheduler.Priority;
+
+/**
+ * Unit test for {@link IndexScheduler}.
+ */
+public final class IndexSchedulerTest {
+    private IndexScheduler scheduler;
+    private final List<String> log = Collections.synchronizedList(new ArrayList<String>());
+
+    @After
+    public void tearDown() {
+        if (scheduler != null) {
+            scheduler.shutdown();
+        }
+    }
+
+    private Runnable record(final String name, final CountDownLatch done) {
+        return new Runnable() {
+            @Override
+            public void run() {
+                log.add(name);
+                done.countDown();
+            }
+        };
+    }
+
+    private static Runnable block(final CountDownLatch started, final CountDownLatch release) {
+        return new Runnable() {
+            @Override
+            public void run() {
+                started.countDown();
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                }
+            }
+        };
+    }
+
+    @Test
+    public void priorityAndRoundRobin() throws Exception {
+        scheduler = new IndexScheduler("IndexTest", 1, 1, 100, 100, 8);
+        CountDownLatch started = new CountDownLatch(1), release = new CountDownLatch(1), done = new CountDownLatch(5);
+        scheduler.submit(Priority.INTERACTIVE, 9, block(started, release));
+        Assert.assertTrue(started.await(10, TimeUnit.SECONDS));
+
+        scheduler.submit(Priority.BATCH, 1, record("batch1", done));
+        scheduler.submit(Priority.INTERACTIVE, 1, record("deliver1a", done));
+        scheduler.submit(Priority.INTERACTIVE, 1, record("deliver1b", done));
+        scheduler.submit(Priority.BACKGROUND, 2, record("merge2", done));
+        scheduler.submit(Priority.INTERACTIVE, 2, record("deliver2", done));
+        Assert.assertEquals(3, scheduler.getQueueDepth(Priority.INTERACTIVE));
+        Assert.assertEquals(1, scheduler.getQueueDepth(Priority.BATCH));
+
+        release.countDown();
+        Assert.assertTrue(done.await(10, TimeUnit.SECONDS));
+        Assert.assertEquals(Arrays.asList("deliver1a", "deliver2", "deliver1b", "merge2", "batch1"), log);
+        Assert.assertEquals(0, scheduler.getQueueDepth(Priority.INTERACTIVE));
+        Assert.assertEquals(0, scheduler.getOldestWaitMillis(Priority.BATCH));
+    }
+
+    @Test
+    public void admissionLimits() throws Exception {
+        scheduler = new IndexScheduler("IndexTest", 1, 1, 3, 2, 8);
+        CountDownLatch started = new CountDownLatch(1), release = new CountDownLatch(1), done = new CountDownLatch(3);
+        scheduler.submit(Priority.INTERACTIVE, 9, block(started, release));
+        Assert.assertTrue(started.await(10, TimeUnit.SECONDS));
+
+        scheduler.submit(Priority.INTERACTIVE, 1, record("a", done));
+        scheduler.submit(Priority.INTERACTIVE, 1, record("b", done));
+        try {
+            scheduler.submit(Priority.INTERACTIVE, 1, record("rejected", done));
+            Assert.fail("per-mailbox limit not enforced");
+        } catch (RejectedExecutionException expected) {
+        }
+        scheduler.submit(Priority.INTERACTIVE, 2, record("c", done));
+        try {
+            scheduler.submit(Priority.INTERACTIVE, 3, record("rejected", done));
+            Assert.fail("class limit not enforced");
+        } catch (RejectedExecutionException expected) {
+        }
+        // limits apply per class
+        scheduler.submit(Priority.BATCH, 1, record("d", done));
+
+        release.countDown();
+        Assert.assertTrue(done.await(10, TimeUnit.SECONDS));
+        Assert.assertFalse(log.contains("rejected"));
+    }
+
+    @Test
+    public void starvationLimit() throws Exception {
+        scheduler = new IndexScheduler("IndexTest", 1, 1, 100, 100, 2);
+        CountDownLatch started = new CountDownLatch(1), release = new CountDownLatch(1), done = new CountDownLatch(7);
+        scheduler.submit(Priority.INTERACTIVE, 9, block(started, release));
+        Assert.assertTrue(started.await(10, TimeUnit.SECONDS));
+
+        scheduler.submit(Priority.BATCH, 1, record("batch1", done));
+        scheduler.submit(Priority.BACKGROUND, 1, record("merge1", done));
+        for (int i = 1; i <= 5; i++) {
+            scheduler.submit(Priority.INTERACTIVE, 1, record("deliver" + i, done));
+        }
+
+        release.countDown();
+        Assert.assertTrue(done.await(10, TimeUnit.SECONDS));
+        Assert.assertEquals(Arrays.asList("deliver1", "deliver2", "merge1", "batch1", "deliver3", "deliver4",
+                "deliver5"), log);
+    }
+
+    @Test
+    public void batchThreadCap() throws Exception {
+        scheduler = new IndexScheduler("IndexTest", 2, 1, 100, 100, 8);
+        CountDownLatch started = new CountDownLatch(1), release = new CountDownLatch(1);
+        CountDownLatch done = new CountDownLatch(1), batchDone = new CountDownLatch(1);
+        scheduler.submit(Priority.BATCH, 1, block(started, release));
+        Assert.assertTrue(started.await(10, TimeUnit.SECONDS));
+
+        scheduler.submit(Priority.BATCH, 2, record("batch2", batchDone));
+        scheduler.submit(Priority.INTERACTIVE, 3, record("deliver3", done));
+        // the idle thread takes the interactive task but not the second batch task
+        Assert.assertTrue(done.await(10, TimeUnit.SECONDS));
+        Assert.assertFalse(batchDone.await(100, TimeUnit.MILLISECONDS));
+        Assert.assertEquals(1, scheduler.getQueueDepth(Priority.BATCH));
+
+        release.countDown();
+        Assert.assertTrue(batchDone.await(10, TimeUnit.SECONDS));
+        Assert.assertEquals(Arrays.asList("deliver3", "batch2"), log);
+    }
+}
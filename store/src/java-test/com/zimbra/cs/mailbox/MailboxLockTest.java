@@ -200,6 +200,23 @@ public class MailboxLockTest {
         }
     }
 
+    @Test
+    public void holdStats() throws Exception {
+        Mailbox mbox = MailboxManager.getInstance().getMailboxByAccountId(MockProvisioning.DEFAULT_ACCOUNT_ID);
+        mbox.lock.getStats().reset();
+        mbox.lock.lock(true);
+        mbox.lock.setOperation("test");
+        mbox.lock.lock(false);
+        mbox.lock.setOperation("nested");
+        mbox.lock.release();
+        Assert.assertEquals(0, mbox.lock.getStats().getHoldCount());
+        mbox.lock.release();
+        Assert.assertEquals(1, mbox.lock.getStats().getWaitCount());
+        Assert.assertEquals(1, mbox.lock.getStats().getHoldCount());
+        Assert.assertEquals(1, mbox.lock.getStats().getTopHolders(10).size());
+        Assert.assertEquals("test", mbox.lock.getStats().getTopHolders(10).get(0).operation);
+    }
+
     @Test
     public void promote() {
         final Thread readThread = new Thread("MailboxLockTest-Reader") {
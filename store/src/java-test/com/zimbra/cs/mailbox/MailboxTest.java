@@ -44,6 +44,7 @@ import com.zimbra.cs.account.Account;
 import com.zimbra.cs.account.MockProvisioning;
 import com.zimbra.cs.account.Provisioning;
 import com.zimbra.cs.index.BrowseTerm;
+import com.zimbra.cs.mailbox.util.ModifiedItemsCursor;
 import com.zimbra.cs.mailbox.util.TypedIdList;
 import com.zimbra.cs.mime.ParsedMessage;
 import com.zimbra.cs.session.PendingLocalModifications;
@@ -581,6 +582,32 @@ public final class MailboxTest {
         mbox.getVisibleFolders(new OperationContext(mbox));
     }
 
+    @Test
+    public void modifiedItemsCursor() throws Exception {
+        Mailbox mbox = MailboxManager.getInstance().getMailboxByAccountId(MockProvisioning.DEFAULT_ACCOUNT_ID);
+        int changeId = mbox.getLastChangeID();
+        for (int i = 0; i < 5; i++) {
+            mbox.addMessage(null, new ParsedMessage(("Subject: cursor " + i).getBytes(), false),
+                    STANDARD_DELIVERY_OPTIONS, null);
+        }
+        OperationContext octxt = new OperationContext(mbox);
+        List<Integer> expected = mbox.getModifiedItems(octxt, changeId).getFirst();
+        Assert.assertFalse(expected.isEmpty());
+
+        // walk the same delta two items at a time
+        List<Integer> paged = new ArrayList<Integer>();
+        ModifiedItemsCursor cursor = new ModifiedItemsCursor(changeId);
+        int pages = 0;
+        while (cursor.hasMore()) {
+            List<Integer> page = mbox.getModifiedItems(octxt, cursor, 0, MailItem.Type.UNKNOWN, null, -1, 2).getFirst();
+            Assert.assertTrue(page.size() <= 2);
+            paged.addAll(page);
+            pages++;
+        }
+        Assert.assertEquals(expected, paged);
+        Assert.assertEquals(expected.size() / 2 + 1, pages);
+    }
+
     /**
      * @throws java.lang.Exception
      */
@@ -0,0 +1,99 @@
+/*
+ * ***** BEGIN LICENSE BLOCK *****
+ * Zimbra Collaboration Suite Server
+ * Copyright (C) 2017 Synacor, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software Foundation,
+ * version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <https://www.gnu.org/licenses/>.
+ * ***** END LICENSE BLOCK *****
+ */
+package com.zimbra.cs.mailbox;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Unit test for {@link OffHeapItemCache}.
+ */
+public final class OffHeapItemCacheTest {
+
+    private static byte[] data(int size, int fill) {
+        byte[] data = new byte[size];
+        for (int i = 0; i < size; i++) {
+            data[i] = (byte) (fill + i);
+        }
+        return data;
+    }
+
+    @Test
+    public void putGet() {
+        OffHeapItemCache cache = new OffHeapItemCache(64 * 1024, 4);
+        cache.put(1, 257, data(100, 1));
+        cache.put(2, 257, data(50, 2));
+        Assert.assertArrayEquals(data(100, 1), cache.get(1, 257));
+        Assert.assertArrayEquals(data(50, 2), cache.get(2, 257));
+        Assert.assertNull(cache.get(1, 258));
+
+        cache.put(1, 257, data(30, 3));
+        Assert.assertArrayEquals(data(30, 3), cache.get(1, 257));
+
+        cache.remove(1, 257);
+        Assert.assertNull(cache.get(1, 257));
+        Assert.assertArrayEquals(data(50, 2), cache.get(2, 257));
+    }
+
+    @Test
+    public void invalidateMailbox() {
+        OffHeapItemCache cache = new OffHeapItemCache(64 * 1024, 4);
+        cache.put(1, 300, data(10, 1));
+        cache.put(2, 300, data(10, 2));
+        cache.invalidate(1);
+        Assert.assertNull(cache.get(1, 300));
+        Assert.assertArrayEquals(data(10, 2), cache.get(2, 300));
+
+        cache.put(1, 300, data(10, 3));
+        Assert.assertArrayEquals(data(10, 3), cache.get(1, 300));
+    }
+
+    @Test
+    public void invalidateSharedGeneration() {
+        OffHeapItemCache cache = new OffHeapItemCache(64 * 1024, 4);
+        cache.put(1, 300, data(10, 1));
+        cache.put(4097, 300, data(10, 2));
+        cache.put(2, 300, data(10, 3));
+        // mailboxes 1 and 4097 share a generation slot
+        cache.invalidate(4097);
+        Assert.assertNull(cache.get(1, 300));
+        Assert.assertNull(cache.get(4097, 300));
+        Assert.assertArrayEquals(data(10, 3), cache.get(2, 300));
+    }
+
+    @Test
+    public void overwriteOldest() {
+        // a single segment of 4KB holds 40 entries of 100 bytes including the header
+        OffHeapItemCache cache = new OffHeapItemCache(4096, 1);
+        for (int i = 1; i <= 1000; i++) {
+            cache.put(1, i, data(84, i));
+        }
+        Assert.assertEquals(40, cache.size());
+        Assert.assertNull(cache.get(1, 960));
+        for (int i = 961; i <= 1000; i++) {
+            Assert.assertArrayEquals(data(84, i), cache.get(1, i));
+        }
+    }
+
+    @Test
+    public void tooLarge() {
+        OffHeapItemCache cache = new OffHeapItemCache(4096, 1);
+        cache.put(1, 1, data(10, 1));
+        cache.put(1, 1, data(2000, 1));
+        Assert.assertNull(cache.get(1, 1));
+    }
+}
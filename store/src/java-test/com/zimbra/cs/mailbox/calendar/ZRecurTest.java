@@ -0,0 +1,110 @@
+/*
+ * ***** BEGIN LICENSE BLOCK *****
+ * Zimbra Collaboration Suite Server
+ * Copyright (C) 2017 Synacor, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software Foundation,
+ * version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <https://www.gnu.org/licenses/>.
+ * ***** END LICENSE BLOCK *****
+ */
+package com.zimbra.cs.mailbox.calendar;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.Iterator;
+import java.util.List;
+
+import org.junit.Assert;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import com.zimbra.common.calendar.ICalTimeZone;
+import com.zimbra.common.calendar.ParsedDateTime;
+import com.zimbra.common.calendar.TimeZoneMap;
+import com.zimbra.cs.mailbox.MailboxTestUtil;
+
+public class ZRecurTest {
+
+    private static final ICalTimeZone UTC = ICalTimeZone.getUTC();
+    private static final TimeZoneMap TZMAP = new TimeZoneMap(UTC);
+
+    @BeforeClass
+    public static void init() throws Exception {
+        MailboxTestUtil.initServer();
+    }
+
+    private static long utc(String dt) throws Exception {
+        return ParsedDateTime.parse(dt, TZMAP, UTC, UTC).getUtcTime();
+    }
+
+    /**
+     * Expanding over a range that starts long after DTSTART, which steps over the intervals before the range, has to
+     * give the same instances as expanding from DTSTART and keeping the ones in the range.
+     */
+    private static void assertSameAsFromDtStart(String rule, String dtStart, String rangeStart, String rangeEnd)
+    throws Exception {
+        ZRecur recur = new ZRecur(rule, TZMAP);
+        ParsedDateTime start = ParsedDateTime.parse(dtStart, TZMAP, UTC, UTC);
+        long from = utc(rangeStart);
+        long to = utc(rangeEnd);
+
+        List<Date> expected = new ArrayList<Date>();
+        for (Date date : recur.expandRecurrenceOverRange(start, start.getUtcTime(), to)) {
+            if (date.getTime() >= from)
+                expected.add(date);
+        }
+        Assert.assertFalse(rule, expected.isEmpty());
+        Assert.assertEquals(rule, expected, recur.expandRecurrenceOverRange(start, from, to));
+    }
+
+    @Test
+    public void seekDaily() throws Exception {
+        assertSameAsFromDtStart("FREQ=DAILY", "20150105T090000", "20160601T000000", "20160608T000000");
+        assertSameAsFromDtStart("FREQ=DAILY;INTERVAL=3;BYHOUR=8,17", "20150105T090000",
+                "20160601T000000", "20160608T000000");
+    }
+
+    @Test
+    public void seekWeekly() throws Exception {
+        assertSameAsFromDtStart("FREQ=WEEKLY;INTERVAL=2;BYDAY=MO,WE,FR", "20150105T090000",
+                "20160601T000000", "20160615T000000");
+    }
+
+    @Test
+    public void seekMonthly() throws Exception {
+        assertSameAsFromDtStart("FREQ=MONTHLY;BYMONTHDAY=31", "20000131T090000", "20160101T000000", "20170101T000000");
+        assertSameAsFromDtStart("FREQ=MONTHLY;BYDAY=-1FR", "20000128T090000", "20160101T000000", "20160401T000000");
+    }
+
+    @Test
+    public void noSeekWithByDayForDaily() throws Exception {
+        assertSameAsFromDtStart("FREQ=DAILY;BYDAY=MO,TU,WE,TH,FR", "20150105T090000",
+                "20160601T000000", "20160608T000000");
+    }
+
+    @Test
+    public void countIsFromDtStart() throws Exception {
+        ZRecur recur = new ZRecur("FREQ=DAILY;COUNT=10", TZMAP);
+        ParsedDateTime start = ParsedDateTime.parse("20150105T090000", TZMAP, UTC, UTC);
+        List<Date> dates = recur.expandRecurrenceOverRange(start, utc("20150110T000000"), utc("20160101T000000"));
+        Assert.assertEquals(5, dates.size());
+        Assert.assertEquals(utc("20150114T090000"), dates.get(4).getTime());
+    }
+
+    @Test
+    public void iteratorIsLazy() throws Exception {
+        ZRecur recur = new ZRecur("FREQ=DAILY", TZMAP);
+        ParsedDateTime start = ParsedDateTime.parse("20150105T090000", TZMAP, UTC, UTC);
+        Iterator<Date> iter = recur.iterator(start, utc("20160601T000000"), utc("20170601T000000"));
+        Assert.assertTrue(iter.hasNext());
+        Assert.assertEquals(utc("20160601T090000"), iter.next().getTime());
+        Assert.assertEquals(utc("20160602T090000"), iter.next().getTime());
+    }
+}
@@ -0,0 +1,181 @@
+/*
+ * ***** BEGIN LICENSE BLOCK *****
+ * Zimbra Collaboration Suite Server
+ * Copyright (C) 2017 Synacor, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software Foundation,
+ * version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <https://www.gnu.org/licenses/>.
+ * ***** END LICENSE BLOCK *****
+ */
+package com.zimbra.cs.mailbox.calendar.cache;
+
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.TimeZone;
+import java.util.UUID;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import com.zimbra.common.calendar.ZCalendar.ZCalendarBuilder;
+import com.zimbra.cs.account.Account;
+import com.zimbra.cs.account.MockProvisioning;
+import com.zimbra.cs.account.Provisioning;
+import com.zimbra.cs.mailbox.Folder;
+import com.zimbra.cs.mailbox.MailItem;
+import com.zimbra.cs.mailbox.Mailbox;
+import com.zimbra.cs.mailbox.MailboxManager;
+import com.zimbra.cs.mailbox.MailboxTestUtil;
+import com.zimbra.cs.mailbox.calendar.IcalXmlStrMap;
+import com.zimbra.cs.mailbox.calendar.Invite;
+
+/**
+ * Unit test for {@link BusyTimeline} and {@link BusyTimelineCache}.
+ */
+public final class BusyTimelineCacheTest {
+
+    private static final long HOUR = 60 * 60 * 1000L;
+    private static final long DAY = 24 * HOUR;
+
+    private Mailbox mbox;
+    private long base;
+
+    @BeforeClass
+    public static void init() throws Exception {
+        MailboxTestUtil.initServer();
+        Provisioning prov = Provisioning.getInstance();
+        prov.createAccount("test@zimbra.com", "secret", new HashMap<String, Object>());
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        MailboxTestUtil.clearData();
+        mbox = MailboxManager.getInstance().getMailboxByAccountId(MockProvisioning.DEFAULT_ACCOUNT_ID);
+        // tomorrow on the hour, well inside the window the calendar summary cache keeps
+        base = (System.currentTimeMillis() / HOUR + 24) * HOUR;
+    }
+
+    /**
+     * The cached timeline has the same busy spans as one worked out from the calendar summary on the fly.
+     */
+    @Test
+    public void sameAsOnTheFly() throws Exception {
+        int busy = addAppointment(Mailbox.ID_FOLDER_CALENDAR, base, null, null, null);
+        int tentative = addAppointment(Mailbox.ID_FOLDER_CALENDAR, base + DAY, IcalXmlStrMap.FBTYPE_BUSY_TENTATIVE,
+                null, null);
+        int free = addAppointment(Mailbox.ID_FOLDER_CALENDAR, base + 2 * DAY, IcalXmlStrMap.FBTYPE_FREE, null, null);
+        int transparent = addAppointment(Mailbox.ID_FOLDER_CALENDAR, base + 3 * DAY, null,
+                IcalXmlStrMap.TRANSP_TRANSPARENT, null);
+        int daily = addAppointment(Mailbox.ID_FOLDER_CALENDAR, base + 4 * HOUR, null, null, "FREQ=DAILY;COUNT=5");
+
+        long start = base - DAY;
+        long end = base + 10 * DAY;
+        BusyTimeline cached = mbox.getBusyTimelineForRange(null, Mailbox.ID_FOLDER_CALENDAR, start, end);
+        Assert.assertNotNull(cached);
+        BusyTimeline onTheFly = BusyTimeline.build(mbox.getCalendarSummaryForRange(null, Mailbox.ID_FOLDER_CALENDAR,
+                MailItem.Type.APPOINTMENT, start, end).data);
+
+        List<String> spans = toStrings(cached.getSpans(start, end));
+        Assert.assertEquals(toStrings(onTheFly.getSpans(start, end)), spans);
+        Assert.assertEquals(7, spans.size());
+        Assert.assertTrue(contains(spans, busy));
+        Assert.assertTrue(contains(spans, tentative));
+        Assert.assertTrue(contains(spans, daily));
+        Assert.assertFalse(contains(spans, free));
+        Assert.assertFalse(contains(spans, transparent));
+
+        // sub-ranges pick out the overlapping spans only
+        Assert.assertEquals(toStrings(onTheFly.getSpans(base + 30 * 60 * 1000L, base + DAY + 1)),
+                toStrings(cached.getSpans(base + 30 * 60 * 1000L, base + DAY + 1)));
+        Assert.assertEquals(3, cached.getSpans(base + 30 * 60 * 1000L, base + DAY + 1).size());
+    }
+
+    /**
+     * Creating, moving or deleting an appointment makes the next lookup recompute the timeline.
+     */
+    @Test
+    public void staleAfterModify() throws Exception {
+        long start = base - DAY;
+        long end = base + 10 * DAY;
+        int first = addAppointment(Mailbox.ID_FOLDER_CALENDAR, base, null, null, null);
+        BusyTimeline timeline = mbox.getBusyTimelineForRange(null, Mailbox.ID_FOLDER_CALENDAR, start, end);
+        Assert.assertEquals(1, timeline.getSpans(start, end).size());
+        Assert.assertSame(timeline, mbox.getBusyTimelineForRange(null, Mailbox.ID_FOLDER_CALENDAR, start, end));
+
+        int second = addAppointment(Mailbox.ID_FOLDER_CALENDAR, base + DAY, null, null, null);
+        timeline = mbox.getBusyTimelineForRange(null, Mailbox.ID_FOLDER_CALENDAR, start, end);
+        Assert.assertTrue(contains(toStrings(timeline.getSpans(start, end)), first));
+        Assert.assertTrue(contains(toStrings(timeline.getSpans(start, end)), second));
+
+        Folder other = mbox.createFolder(null, "/Other Calendar",
+                new Folder.FolderOptions().setDefaultView(MailItem.Type.APPOINTMENT));
+        BusyTimeline otherTimeline = mbox.getBusyTimelineForRange(null, other.getId(), start, end);
+        Assert.assertEquals(0, otherTimeline.getSpans(start, end).size());
+        mbox.move(null, first, MailItem.Type.APPOINTMENT, other.getId());
+        timeline = mbox.getBusyTimelineForRange(null, Mailbox.ID_FOLDER_CALENDAR, start, end);
+        Assert.assertFalse(contains(toStrings(timeline.getSpans(start, end)), first));
+        otherTimeline = mbox.getBusyTimelineForRange(null, other.getId(), start, end);
+        Assert.assertTrue(contains(toStrings(otherTimeline.getSpans(start, end)), first));
+
+        mbox.delete(null, second, MailItem.Type.APPOINTMENT);
+        timeline = mbox.getBusyTimelineForRange(null, Mailbox.ID_FOLDER_CALENDAR, start, end);
+        Assert.assertEquals(0, timeline.getSpans(start, end).size());
+    }
+
+    private int addAppointment(int folderId, long start, String freeBusy, String transparency, String rrule)
+    throws Exception {
+        SimpleDateFormat format = new SimpleDateFormat("yyyyMMdd'T'HHmmss'Z'");
+        format.setTimeZone(TimeZone.getTimeZone("UTC"));
+        String ics = "BEGIN:VCALENDAR\n"
+            + "VERSION:2.0\n"
+            + "BEGIN:VEVENT\n"
+            + "UID:" + UUID.randomUUID() + "\n"
+            + "SUMMARY:busy timeline\n"
+            + "ORGANIZER:mailto:test@zimbra.com\n"
+            + "DTSTART:" + format.format(new Date(start)) + "\n"
+            + "DTEND:" + format.format(new Date(start + HOUR)) + "\n"
+            + (rrule != null ? "RRULE:" + rrule + "\n" : "")
+            + "DTSTAMP:" + format.format(new Date()) + "\n"
+            + "END:VEVENT\n"
+            + "END:VCALENDAR\n";
+        Account acct = mbox.getAccount();
+        Invite invite = Invite.createFromCalendar(acct, null, ZCalendarBuilder.build(ics), true).get(0);
+        if (freeBusy != null) {
+            invite.setFreeBusy(freeBusy);
+        }
+        if (transparency != null) {
+            invite.setTransparency(transparency);
+        }
+        return mbox.addInvite(null, invite, folderId).calItemId;
+    }
+
+    private static List<String> toStrings(List<BusyTimeline.Span> spans) {
+        List<String> result = new ArrayList<String>(spans.size());
+        for (BusyTimeline.Span span : spans) {
+            result.add(span.getCalItemId() + ":" + span.getStart() + "-" + span.getEnd() + ":" + span.getFreeBusy() +
+                    ":" + span.getRecurrenceId());
+        }
+        return result;
+    }
+
+    private static boolean contains(List<String> spans, int calItemId) {
+        for (String span : spans) {
+            if (span.startsWith(calItemId + ":")) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
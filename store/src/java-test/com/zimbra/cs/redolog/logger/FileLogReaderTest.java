@@ -108,6 +108,48 @@ public class FileLogReaderTest {
         Assert.assertNull("More ops in file.", logReader.getNextOp());
     }
 
+    @Test
+    public void readsPreallocatedSegment() throws Exception {
+        RedoSegmentPool pool = new RedoSegmentPool(folder.getRoot(), 1 /* rounded up to 1MB */, 1);
+        logWriter = new FileLogWriter(EasyMock.createNiceMock(RedoLogManager.class), logfile, 0, pool);
+        writeOp(new TransactionId(7, 3));
+        writeOp(new TransactionId(8, 4));
+        Assert.assertEquals("segment not preallocated", pool.getSegmentSize(), logfile.length());
+
+        logReader.open();
+        Assert.assertEquals(new TransactionId(7, 3), logReader.getNextOp().getTransactionId());
+        Assert.assertEquals(new TransactionId(8, 4), logReader.getNextOp().getTransactionId());
+        Assert.assertNull("More ops in file.", logReader.getNextOp());
+        logReader.close();
+    }
+
+    @Test
+    public void readsUnclosedPreallocatedSegment() throws Exception {
+        RedoSegmentPool pool = new RedoSegmentPool(folder.getRoot(), 1 /* rounded up to 1MB */, 1);
+        logWriter = new FileLogWriter(EasyMock.createNiceMock(RedoLogManager.class), logfile, 0, pool);
+        writeOp(new TransactionId(7, 3));
+        logWriter.open();
+        RedoableOp op = EasyMock.createMockBuilder(CopyItem.class).withConstructor()
+                            .addMockedMethod("getTransactionId").createMock();
+        EasyMock.expect(op.getTransactionId()).andStubReturn(new TransactionId(8, 4));
+        EasyMock.replay(op);
+        logWriter.log(op, op.getInputStream(), true /* synchronous */);
+        long dataEnd = logWriter.getSize();
+        // no close; header still says the file is open, as after a crash
+
+        logReader.open();
+        Assert.assertEquals(new TransactionId(7, 3), logReader.getNextOp().getTransactionId());
+        Assert.assertEquals(new TransactionId(8, 4), logReader.getNextOp().getTransactionId());
+        Assert.assertNull("zero-filled tail should end the log", logReader.getNextOp());
+        Assert.assertEquals(dataEnd, logReader.position());
+        logReader.close();
+
+        FileLogWriter reopened = new FileLogWriter(EasyMock.createNiceMock(RedoLogManager.class), logfile, 0, pool);
+        reopened.open();
+        Assert.assertEquals("writer should resume after the last record", dataEnd, reopened.getSize());
+        reopened.close();
+    }
+
     @Test(expected = IOException.class)
     public void readBeforeOpen() throws Exception {
         logReader.getNextOp();
@@ -0,0 +1,144 @@
+/*
+ * ***** BEGIN LICENSE BLOCK *****
+ * Zimbra Collaboration Suite Server
+ * Copyright (C) 2017 Synacor, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software Foundation,
+ * version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <https://www.gnu.org/licenses/>.
+ * ***** END LICENSE BLOCK *****
+ */
+package com.zimbra.cs.redolog.logger;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import junit.framework.Assert;
+
+import org.easymock.EasyMock;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.zimbra.cs.mailbox.MailboxOperation;
+import com.zimbra.cs.mailbox.MailboxTestUtil;
+import com.zimbra.cs.redolog.CommitId;
+import com.zimbra.cs.redolog.RedoCommitCallback;
+import com.zimbra.cs.redolog.RedoLogManager;
+import com.zimbra.cs.redolog.RolloverManager;
+import com.zimbra.cs.redolog.op.CommitTxn;
+import com.zimbra.cs.redolog.op.RedoableOp;
+
+public class GroupCommitLogWriterTest {
+    @Rule public TemporaryFolder folder = new TemporaryFolder();
+
+    private RedoLogManager mockRedoLogManager;
+    private GroupCommitLogWriter logWriter;
+
+    @BeforeClass
+    public static void init() throws Exception {
+        MailboxTestUtil.initServer();
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        mockRedoLogManager = EasyMock.createNiceMock(RedoLogManager.class);
+        logWriter = new GroupCommitLogWriter(mockRedoLogManager, folder.newFile("logfile"), 4 /* ring size */);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        logWriter.close();
+    }
+
+    private static RedoableOp newOp() {
+        return EasyMock.createMockBuilder(RedoableOp.class).withConstructor(MailboxOperation.Preview).createMock();
+    }
+
+    @Test
+    public void synchronousLog() throws Exception {
+        logWriter.open();
+        logWriter.log(newOp(), new ByteArrayInputStream("some bytes".getBytes()), true /* synchronous */);
+        logWriter.log(newOp(), new ByteArrayInputStream("more".getBytes()), false /* asynchronous */);
+        Assert.assertEquals("file size incorrect.", FileHeader.HEADER_LEN + 14, logWriter.getSize());
+    }
+
+    @Test
+    public void concurrentCommitters() throws Exception {
+        logWriter.open();
+        final int numThreads = 8;
+        final int perThread = 50;
+        final List<Throwable> errors = new ArrayList<Throwable>();
+        List<Thread> threads = new ArrayList<Thread>();
+        for (int i = 0; i < numThreads; i++) {
+            Thread t = new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        for (int j = 0; j < perThread; j++) {
+                            logWriter.log(newOp(), new ByteArrayInputStream("0123456789".getBytes()), true);
+                        }
+                    } catch (Throwable e) {
+                        synchronized (errors) {
+                            errors.add(e);
+                        }
+                    }
+                }
+            };
+            threads.add(t);
+            t.start();
+        }
+        for (Thread t : threads) {
+            t.join();
+        }
+        Assert.assertTrue("errors: " + errors, errors.isEmpty());
+        Assert.assertEquals("file size incorrect.", FileHeader.HEADER_LEN + numThreads * perThread * 10,
+                logWriter.getSize());
+    }
+
+    @Test
+    public void asynchronousLogIsFsynced() throws Exception {
+        RedoLogManager redoLogMgr = EasyMock.createNiceMock(RedoLogManager.class);
+        EasyMock.expect(redoLogMgr.getRolloverManager())
+                .andReturn(new RolloverManager(redoLogMgr, folder.newFile("redo.log"))).anyTimes();
+        EasyMock.replay(redoLogMgr);
+
+        final CountDownLatch committed = new CountDownLatch(1);
+        CommitTxn commit = EasyMock.createMockBuilder(CommitTxn.class).addMockedMethod("getCallback").createMock();
+        EasyMock.expect(commit.getCallback()).andReturn(new RedoCommitCallback() {
+            @Override
+            public void callback(CommitId cid) {
+                committed.countDown();
+            }
+        }).anyTimes();
+        EasyMock.replay(commit);
+
+        // no synchronous entry follows, so only the commit thread can fsync it
+        GroupCommitLogWriter writer = new GroupCommitLogWriter(redoLogMgr, folder.newFile("async"), 4);
+        writer.open();
+        try {
+            writer.log(commit, new ByteArrayInputStream("commit".getBytes()), false /* asynchronous */);
+            Assert.assertTrue("commit callback not made", committed.await(10, TimeUnit.SECONDS));
+        } finally {
+            writer.close();
+        }
+    }
+
+    @Test(expected = IOException.class)
+    public void logBeforeOpen() throws Exception {
+        logWriter.log(newOp(), new ByteArrayInputStream("some bytes".getBytes()), true);
+    }
+}
@@ -17,15 +17,20 @@
 package com.zimbra.cs.store;
 
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.util.Arrays;
+import java.util.zip.GZIPInputStream;
 
 import org.junit.After;
 import org.junit.Assert;
 import org.junit.Before;
 import org.junit.Test;
 
+import com.zimbra.common.util.ByteUtil;
+
 public class BlobInputStreamTest {
     @Before
     public void startUp() {
@@ -90,4 +95,36 @@ public class BlobInputStreamTest {
         Assert.assertFalse("file is gone", file.exists());
         Assert.assertNull("can't create substream after delete", bis.newStream(0, CONTENT.length));
     }
+
+    @Test
+    public void blockCompressed() throws Exception {
+        byte[] content = new byte[1000];
+        for (int i = 0; i < content.length; i++) {
+            content[i] = (byte) ('a' + i % 26);
+        }
+        File file = File.createTempFile(BlobInputStreamTest.class.getSimpleName(), ".msg");
+        file.deleteOnExit();
+        BlockCompressedOutputStream out = new BlockCompressedOutputStream(new FileOutputStream(file), 64);
+        out.write(content);
+        out.close();
+
+        BlockCompressedFormat.Index index = BlockCompressedFormat.readIndex(file);
+        Assert.assertNotNull("block index", index);
+        Assert.assertEquals("raw size", content.length, index.getRawSize());
+        Assert.assertEquals("block count", 16, index.getBlockCount());
+
+        // legacy readers see a plain gzip file
+        Assert.assertArrayEquals("gzip content", content,
+                ByteUtil.getContent(new GZIPInputStream(new FileInputStream(file)), -1));
+
+        // ranged reads only inflate the blocks they touch
+        BlobInputStream bis = new BlobInputStream(file, content.length);
+        InputStream substream = bis.newStream(300, 700);
+        Assert.assertArrayEquals("substream content", Arrays.copyOfRange(content, 300, 700),
+                ByteUtil.getContent(substream, -1));
+        substream = bis.newStream(990, content.length);
+        Assert.assertArrayEquals("tail content", Arrays.copyOfRange(content, 990, content.length),
+                ByteUtil.getContent(substream, -1));
+        bis.close();
+    }
 }
@@ -20,12 +20,15 @@ package com.zimbra.cs.store;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 
 import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
+import java.nio.channels.ClosedByInterruptException;
 import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.zip.GZIPOutputStream;
 
 import org.junit.After;
@@ -122,6 +125,94 @@ public class FileDescriptorCacheTest {
         assertEquals(2, fdc.getSize());
     }
 
+    @Test
+    public void concurrentReads()
+    throws Exception {
+        FileCache<String> uc = FileCache.Builder.createWithStringKey(uncompressedDir, false).build();
+        final FileDescriptorCache fdc = new FileDescriptorCache(uc);
+        fdc.setMaxSize(2);
+
+        final List<File> files = Lists.newArrayList();
+        for (int i = 0; i < 5; i++) {
+            File file = File.createTempFile(NAME_PREFIX, ".tmp");
+            tempFiles.add(file);
+            Files.write(("content " + i).getBytes(), file);
+            files.add(file);
+        }
+
+        final AtomicInteger failures = new AtomicInteger();
+        List<Thread> threads = Lists.newArrayList();
+        for (int t = 0; t < 8; t++) {
+            final int seed = t;
+            Thread thread = new Thread() {
+                @Override
+                public void run() {
+                    byte[] buf = new byte[9];
+                    for (int i = 0; i < 500; i++) {
+                        int n = (seed + i) % files.size();
+                        File file = files.get(n);
+                        try {
+                            int numRead = fdc.read(file.getPath(), file.length(), 0, buf, 0, buf.length);
+                            if (numRead != buf.length || !("content " + n).equals(new String(buf))) {
+                                failures.incrementAndGet();
+                            }
+                        } catch (IOException e) {
+                            failures.incrementAndGet();
+                        }
+                    }
+                }
+            };
+            threads.add(thread);
+            thread.start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        assertEquals(0, failures.get());
+        assertTrue(fdc.getSize() <= 2);
+        assertTrue(fdc.getEvictionCount() > 0);
+        // Evicted descriptors were closed by the last reader.
+        assertEquals(fdc.getSize(), fdc.getOpenFileCount());
+
+        fdc.shutdown();
+        assertEquals(0, fdc.getSize());
+        assertEquals(0, fdc.getOpenFileCount());
+    }
+
+    @Test
+    public void interruptedRead()
+    throws Exception {
+        FileCache<String> uc = FileCache.Builder.createWithStringKey(uncompressedDir, false).build();
+        FileDescriptorCache fdc = new FileDescriptorCache(uc);
+        File file = File.createTempFile(NAME_PREFIX, ".tmp");
+        tempFiles.add(file);
+        Files.write("content".getBytes(), file);
+        byte[] buf = new byte[7];
+
+        assertEquals(7, fdc.read(file.getPath(), file.length(), 0, buf, 0, buf.length));
+        assertEquals(1, fdc.getOpenFileCount());
+
+        // the interrupt closes the shared channel
+        Thread.currentThread().interrupt();
+        try {
+            fdc.read(file.getPath(), file.length(), 0, buf, 0, buf.length);
+            fail("read should have been interrupted");
+        } catch (ClosedByInterruptException expected) {
+        } finally {
+            Thread.interrupted();
+        }
+        assertEquals(0, fdc.getSize());
+        assertEquals(0, fdc.getOpenFileCount());
+
+        // the next reader gets a new descriptor
+        buf = new byte[7];
+        assertEquals(7, fdc.read(file.getPath(), file.length(), 0, buf, 0, buf.length));
+        assertEquals("content", new String(buf));
+        assertEquals(1, fdc.getOpenFileCount());
+        fdc.shutdown();
+    }
+
     private void write(File file, String content)
     throws IOException {
         OutputStream out = new GZIPOutputStream(new FileOutputStream(file));
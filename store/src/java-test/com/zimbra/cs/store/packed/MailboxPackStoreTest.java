@@ -0,0 +1,152 @@
+/*
+ * ***** BEGIN LICENSE BLOCK *****
+ * Zimbra Collaboration Suite Server
+ * Copyright (C) 2017 Synacor, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software Foundation,
+ * version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <https://www.gnu.org/licenses/>.
+ * ***** END LICENSE BLOCK *****
+ */
+package com.zimbra.cs.store.packed;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.zimbra.common.util.ByteUtil;
+import com.zimbra.common.util.FileUtil;
+
+public class MailboxPackStoreTest {
+
+    private File dir;
+
+    @Before
+    public void setUp() throws IOException {
+        dir = File.createTempFile(MailboxPackStoreTest.class.getSimpleName(), "");
+        dir.delete();
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        FileUtil.deleteDir(dir);
+    }
+
+    private static byte[] content(int size, int seed) {
+        byte[] b = new byte[size];
+        for (int i = 0; i < size; i++) {
+            b[i] = (byte) (seed + i);
+        }
+        return b;
+    }
+
+    private int countPacks() {
+        int count = 0;
+        for (String name : dir.list()) {
+            if (name.endsWith(".dat")) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    private static long put(MailboxPackStore store, byte[] data) throws IOException {
+        return store.put(new ByteArrayInputStream(data), data.length);
+    }
+
+    private static byte[] get(MailboxPackStore store, long key) throws IOException {
+        return ByteUtil.getContent(store.get(key), -1);
+    }
+
+    @Test
+    public void putGetDelete() throws Exception {
+        MailboxPackStore store = new MailboxPackStore(dir, 100, 1000);
+        byte[] small = content(50, 1);
+        byte[] large = content(500, 2);
+        long k1 = put(store, small);
+        long k2 = put(store, large);
+        Assert.assertArrayEquals(small, get(store, k1));
+        Assert.assertArrayEquals(large, get(store, k2));
+        Assert.assertEquals(2, store.getKeys().size());
+
+        Assert.assertTrue(store.delete(k1));
+        Assert.assertFalse(store.delete(k1));
+        Assert.assertNull(store.get(k1));
+        Assert.assertTrue(store.delete(k2));
+        Assert.assertTrue(store.getKeys().isEmpty());
+        store.close();
+    }
+
+    @Test
+    public void lengthAndLooseFile() throws Exception {
+        MailboxPackStore store = new MailboxPackStore(dir, 100, 1000);
+        long packed = put(store, content(50, 1));
+        long loose = put(store, content(500, 2));
+        Assert.assertEquals(50, store.getLength(packed));
+        Assert.assertEquals(500, store.getLength(loose));
+        Assert.assertNull(store.getLooseBlobFile(packed));
+        File file = store.getLooseBlobFile(loose);
+        Assert.assertNotNull(file);
+        Assert.assertEquals(500, file.length());
+
+        store.delete(loose);
+        Assert.assertEquals(-1, store.getLength(loose));
+        Assert.assertNull(store.getLooseBlobFile(loose));
+        store.close();
+    }
+
+    @Test
+    public void reopen() throws Exception {
+        MailboxPackStore store = new MailboxPackStore(dir, 100, 1000);
+        long k1 = put(store, content(40, 1));
+        long k2 = put(store, content(60, 2));
+        store.delete(k1);
+        store.close();
+
+        store = new MailboxPackStore(dir, 100, 1000);
+        Assert.assertNull(store.get(k1));
+        Assert.assertArrayEquals(content(60, 2), get(store, k2));
+        long k3 = put(store, content(10, 3));
+        Assert.assertTrue("keys are not reused", k3 > k2);
+        store.close();
+    }
+
+    @Test
+    public void compact() throws Exception {
+        MailboxPackStore store = new MailboxPackStore(dir, 100, 250);
+        long[] keys = new long[10];
+        for (int i = 0; i < keys.length; i++) {
+            keys[i] = put(store, content(100, i));
+        }
+        for (int i = 0; i < keys.length; i += 2) {
+            store.delete(keys[i]);
+        }
+        Assert.assertTrue(store.needsCompaction(50));
+        int before = countPacks();
+        store.compact(50);
+        Assert.assertTrue("compaction deletes packs", countPacks() < before);
+        for (int i = 1; i < keys.length; i += 2) {
+            Assert.assertArrayEquals(content(100, i), get(store, keys[i]));
+        }
+        store.close();
+
+        // the rewritten index survives a restart
+        store = new MailboxPackStore(dir, 100, 250);
+        Assert.assertEquals(5, store.getKeys().size());
+        for (int i = 1; i < keys.length; i += 2) {
+            Assert.assertArrayEquals(content(100, i), get(store, keys[i]));
+        }
+        store.close();
+    }
+}
@@ -0,0 +1,94 @@
+/*
+ * ***** BEGIN LICENSE BLOCK *****
+ * Zimbra Collaboration Suite Server
+ * Copyright (C) 2017 Synacor, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software Foundation,
+ * version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <https://www.gnu.org/licenses/>.
+ * ***** END LICENSE BLOCK *****
+ */
+package com.zimbra.soap;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import com.zimbra.common.soap.Element;
+import com.zimbra.common.soap.MailConstants;
+import com.zimbra.common.soap.SoapProtocol;
+import com.zimbra.common.soap.ZimbraNamespace;
+import com.zimbra.cs.account.Account;
+import com.zimbra.cs.account.MockProvisioning;
+import com.zimbra.cs.account.Provisioning;
+import com.zimbra.cs.mailbox.DeliveryOptions;
+import com.zimbra.cs.mailbox.Flag;
+import com.zimbra.cs.mailbox.Mailbox;
+import com.zimbra.cs.mailbox.MailboxManager;
+import com.zimbra.cs.mailbox.MailboxTestUtil;
+import com.zimbra.cs.mailbox.Message;
+import com.zimbra.cs.service.mail.ItemAction;
+import com.zimbra.cs.service.mail.ServiceTestUtil;
+
+/**
+ * Unit test for {@link SoapEngine}.
+ */
+public final class SoapEngineTest {
+
+    @BeforeClass
+    public static void init() throws Exception {
+        MailboxTestUtil.initServer();
+        Provisioning prov = Provisioning.getInstance();
+        prov.createAccount("test@zimbra.com", "secret", new HashMap<String, Object>());
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        MailboxTestUtil.clearData();
+    }
+
+    @Test
+    public void batchIsNotStreamed() throws Exception {
+        Account acct = Provisioning.getInstance().getAccountById(MockProvisioning.DEFAULT_ACCOUNT_ID);
+        Mailbox mbox = MailboxManager.getInstance().getMailboxByAccount(acct);
+        DeliveryOptions dopt = new DeliveryOptions().setFolderId(Mailbox.ID_FOLDER_INBOX)
+                .setFlags(Flag.BITMASK_UNREAD);
+        Message msg = mbox.addMessage(null, MailboxTestUtil.generateMessage("batch"), dopt, null);
+
+        Map<String, Object> context = ServiceTestUtil.getRequestContext(acct);
+        context.put(SoapServlet.STREAMING_RESPONSE, Boolean.TRUE);
+        SoapEngine engine = (SoapEngine) context.get(SoapEngine.ZIMBRA_ENGINE);
+        ZimbraSoapContext zsc = (ZimbraSoapContext) context.get(SoapEngine.ZIMBRA_CONTEXT);
+
+        // the search reports the message as unread, although the next request in the batch marks it read
+        Element batch = new Element.XMLElement(ZimbraNamespace.E_BATCH_REQUEST);
+        batch.addNonUniqueElement(MailConstants.SEARCH_REQUEST)
+            .addAttribute(MailConstants.A_SEARCH_TYPES, "message")
+            .addAttribute(MailConstants.E_QUERY, "in:inbox", Element.Disposition.CONTENT);
+        batch.addNonUniqueElement(MailConstants.ITEM_ACTION_REQUEST).addElement(MailConstants.E_ACTION)
+            .addAttribute(MailConstants.A_OPERATION, ItemAction.OP_READ)
+            .addAttribute(MailConstants.A_ID, msg.getId());
+        Element resp = engine.dispatchBatch(batch, context, zsc, false, null);
+
+        List<Element> responses = resp.listElements();
+        Assert.assertEquals(2, responses.size());
+        Assert.assertFalse(SoapProtocol.Soap12.isFault(responses.get(0)));
+        Assert.assertFalse(SoapProtocol.Soap12.isFault(responses.get(1)));
+        List<Element> hits = responses.get(0).listElements(MailConstants.E_MSG);
+        Assert.assertEquals(1, hits.size());
+        Assert.assertEquals(msg.getId(), hits.get(0).getAttributeInt(MailConstants.A_ID));
+        Assert.assertTrue(hits.get(0).getAttribute(MailConstants.A_FLAGS, "").contains("u"));
+        Assert.assertFalse(mbox.getMessageById(null, msg.getId()).isUnread());
+    }
+}
@@ -513,7 +513,7 @@ public class Account extends ZAttrAccount implements GroupedEntry, AliasedEntry
     }
 
     public void cleanExpiredTokens() throws ServiceException {
-        purgeAuthTokens();
+        purgeEphemeralAttrs(Provisioning.A_zimbraAuthTokens, Provisioning.A_zimbraCsrfTokenData);
     }
 }
 
@@ -30,6 +30,9 @@ import java.util.List;
 import java.util.Locale;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -44,6 +47,7 @@ import com.zimbra.client.ZJSONObject;
 import com.zimbra.common.account.ProvisioningConstants;
 import com.zimbra.common.service.ServiceException;
 import com.zimbra.common.util.ByteUtil;
+import com.zimbra.common.util.Constants;
 import com.zimbra.common.util.DateUtil;
 import com.zimbra.common.util.ZimbraLog;
 import com.zimbra.cs.account.AttributeManager.IDNType;
@@ -100,6 +104,16 @@ public abstract class Entry implements ToZJSONObject {
     private final Provisioning mProvisioning;
     private AttributeManager mAttrMgr;
 
+    /** parsed values of the attributes read through the typed getters, by attribute name */
+    private final ConcurrentMap<String, TypedValue> mTypedValues = new ConcurrentHashMap<String, TypedValue>();
+    /** bumped by resetData(), which is called whenever the attributes or defaults of the entry are replaced */
+    private volatile int mAttrsVersion;
+    /**
+     * bumped whenever an entry refills the defaults it hands out to other entries (COS, domain, config and always-on
+     * cluster entries refill the same map in place), since that changes their values without a resetData()
+     */
+    private static final AtomicInteger sDefaultsVersion = new AtomicInteger();
+
     protected static String[] sEmptyMulti = new String[0];
     protected static List<byte[]> sEmptyListMulti = new ArrayList<byte[]>();
 
@@ -198,6 +212,96 @@ public abstract class Entry implements ToZJSONObject {
         if (mData != null)
             mData.clear();
         mLocale = null;
+        resetTypedValues();
+    }
+
+    /**
+     * Drops the parsed values of the typed getters.  Called by resetData(); code that changes the attribute map of an
+     * entry in place has to call it too.
+     */
+    protected synchronized void resetTypedValues() {
+        mAttrsVersion++;
+        mTypedValues.clear();
+    }
+
+    private static enum ValueType { BOOLEAN, INTEGER, LONG, TIME_INTERVAL, GENERALIZED_TIME }
+
+    /**
+     * Value of an attribute as one of the typed getters parses it, along with the versions of the attributes and of
+     * the defaults it was parsed from.  A value that is missing or can't be parsed is kept as not set, so that the
+     * getter returns the caller's default.
+     */
+    private static final class TypedValue {
+        private final ValueType type;
+        private final boolean isSet;
+        private final long value;
+        private final int attrsVersion;
+        private final int defaultsVersion;
+
+        private TypedValue(ValueType type, boolean isSet, long value, int attrsVersion, int defaultsVersion) {
+            this.type = type;
+            this.isSet = isSet;
+            this.value = value;
+            this.attrsVersion = attrsVersion;
+            this.defaultsVersion = defaultsVersion;
+        }
+
+        private static TypedValue parse(ValueType type, String v, int attrsVersion, int defaultsVersion) {
+            boolean isSet = false;
+            long value = 0;
+            if (v != null) {
+                try {
+                    switch (type) {
+                    case BOOLEAN:
+                        value = ProvisioningConstants.TRUE.equals(v) ? 1 : 0;
+                        break;
+                    case INTEGER:
+                        value = Integer.parseInt(v);
+                        break;
+                    case LONG:
+                        if (MemoryUnitUtil.isMemoryUnit(v))
+                            value = new MemoryUnitUtil(1024).convertToBytes(v);
+                        else
+                            value = Long.parseLong(v);
+                        break;
+                    case TIME_INTERVAL:
+                        value = DateUtil.getTimeInterval(v);
+                        break;
+                    case GENERALIZED_TIME:
+                        Date d = LdapDateUtil.parseGeneralizedTime(v);
+                        if (d == null)
+                            return new TypedValue(type, false, 0, attrsVersion, defaultsVersion);
+                        value = d.getTime();
+                        break;
+                    }
+                    isSet = true;
+                } catch (NumberFormatException e) {
+                } catch (ServiceException e) {
+                }
+            }
+            return new TypedValue(type, isSet, value, attrsVersion, defaultsVersion);
+        }
+    }
+
+    /**
+     * Returns the parsed value of the attribute, parsing it only if it wasn't parsed since the entry or its defaults
+     * last changed.  Only single-valued attributes in the schema that don't go through the ephemeral store are kept.
+     */
+    private TypedValue getTypedValue(String name, ValueType type, boolean skipEphemeralCheck) {
+        int attrsVersion = mAttrsVersion;
+        int defaultsVersion = sDefaultsVersion.get();
+        TypedValue tv = mTypedValues.get(name);
+        if (tv != null && tv.type == type && tv.attrsVersion == attrsVersion && tv.defaultsVersion == defaultsVersion)
+            return tv;
+
+        tv = TypedValue.parse(type, getAttr(name, true, skipEphemeralCheck), attrsVersion, defaultsVersion);
+        AttributeManager attrMgr = getAttributeManager();
+        if (attrMgr != null && (skipEphemeralCheck || !attrMgr.isEphemeral(name))) {
+            AttributeInfo ai = attrMgr.getAttributeInfo(name);
+            if (ai != null && ai.getCardinality() != AttributeCardinality.multi)
+                mTypedValues.put(name, tv);
+        }
+        return tv;
     }
 
     /**
@@ -398,11 +502,19 @@ public abstract class Entry implements ToZJSONObject {
             if (ephemeralAttrs == null) {
                 return attrs;
             }
+            // fetch them all in one call
+            List<AttributeInfo> infos = new ArrayList<AttributeInfo>(ephemeralAttrs.size());
+            List<EphemeralKey> keys = new ArrayList<EphemeralKey>(ephemeralAttrs.size());
             for (Map.Entry<String, AttributeInfo> entry: ephemeralAttrs.entrySet()) {
-                String attrName= entry.getKey();
-                AttributeInfo info = entry.getValue();
-                EphemeralResult result = getEphemeralAttr(attrName);
-                if (!result.isEmpty()) {
+                infos.add(entry.getValue());
+                keys.add(new EphemeralKey(entry.getKey()));
+            }
+            List<EphemeralResult> results = ephemeralFactory.getStore().get(keys, new LdapEntryLocation(this));
+            for (int i = 0; i < keys.size(); i++) {
+                String attrName = keys.get(i).getKey();
+                AttributeInfo info = infos.get(i);
+                EphemeralResult result = results.get(i);
+                if (result != null && !result.isEmpty()) {
                     switch(info.getType()) {
                     case TYPE_BOOLEAN:
                         attrs.put(attrName, result.getBoolValue());
@@ -446,8 +558,8 @@ public abstract class Entry implements ToZJSONObject {
     }
 
     protected boolean getBooleanAttr(String name, boolean defaultValue, boolean skipEphemeralCheck) {
-        String v = getAttr(name, true, skipEphemeralCheck);
-        return v == null ? defaultValue : ProvisioningConstants.TRUE.equals(v);
+        TypedValue tv = getTypedValue(name, ValueType.BOOLEAN, skipEphemeralCheck);
+        return tv.isSet ? tv.value != 0 : defaultValue;
     }
 
     public byte[] getBinaryAttr(String name) {
@@ -470,11 +582,8 @@ public abstract class Entry implements ToZJSONObject {
     }
 
     protected Date getGeneralizedTimeAttr(String name, Date defaultValue, boolean skipEphemeralCheck) {
-        String v = getAttr(name, true, skipEphemeralCheck);
-        if (v == null)
-            return defaultValue;
-        Date d = LdapDateUtil.parseGeneralizedTime(v);
-        return d == null ? defaultValue : d;
+        TypedValue tv = getTypedValue(name, ValueType.GENERALIZED_TIME, skipEphemeralCheck);
+        return tv.isSet ? new Date(tv.value) : defaultValue;
     }
 
     /**
@@ -488,12 +597,8 @@ public abstract class Entry implements ToZJSONObject {
     }
 
     protected int getIntAttr(String name, int defaultValue, boolean skipEphemeralCheck) {
-        String v = getAttr(name, true, skipEphemeralCheck);
-        try {
-            return v == null ? defaultValue : Integer.parseInt(v);
-        } catch (NumberFormatException e) {
-            return defaultValue;
-        }
+        TypedValue tv = getTypedValue(name, ValueType.INTEGER, skipEphemeralCheck);
+        return tv.isSet ? (int) tv.value : defaultValue;
     }
 
     public Locale getLocale() throws ServiceException {
@@ -523,15 +628,8 @@ public abstract class Entry implements ToZJSONObject {
     }
 
     protected long getLongAttr(String name, long defaultValue, boolean skipEphemeralCheck) {
-        String v = getAttr(name, true, skipEphemeralCheck);
-        try {
-            if (MemoryUnitUtil.isMemoryUnit(v))
-                return new MemoryUnitUtil(1024).convertToBytes(v);
-            else
-                return v == null ? defaultValue : Long.parseLong(v);
-        } catch (NumberFormatException e) {
-            return defaultValue;
-        }
+        TypedValue tv = getTypedValue(name, ValueType.LONG, skipEphemeralCheck);
+        return tv.isSet ? tv.value : defaultValue;
     }
 
     /**
@@ -684,8 +782,8 @@ public abstract class Entry implements ToZJSONObject {
     }
 
     protected long getTimeInterval(String name, long defaultValue, boolean skipEphemeralCheck) {
-        String v = getAttr(name, true, skipEphemeralCheck);
-        return DateUtil.getTimeInterval(v, defaultValue);
+        TypedValue tv = getTypedValue(name, ValueType.TIME_INTERVAL, skipEphemeralCheck);
+        return tv.isSet ? tv.value : defaultValue;
     }
 
     /**
@@ -700,7 +798,8 @@ public abstract class Entry implements ToZJSONObject {
      * @return interval in seconds
      */
     public long getTimeIntervalSecs(String name, long defaultValue) {
-        return DateUtil.getTimeIntervalSecs(getAttr(name), defaultValue);
+        TypedValue tv = getTypedValue(name, ValueType.TIME_INTERVAL, false);
+        return tv.isSet ? Math.round((float) tv.value / Constants.MILLIS_PER_SECOND) : defaultValue;
     }
 
     /**
@@ -770,6 +869,8 @@ public abstract class Entry implements ToZJSONObject {
             Object obj = getObject(a, true);
             if (obj != null) defaults.put(a, obj);
         }
+        // the map may have been handed out as the defaults of other entries
+        sDefaultsVersion.incrementAndGet();
         //return Collections.unmodifiableMap(defaults);
     }
 
@@ -885,7 +986,7 @@ public abstract class Entry implements ToZJSONObject {
 
     public EphemeralResult getEphemeralAttr(String key, String dynamicComponent) throws ServiceException {
         EphemeralLocation location = new LdapEntryLocation(this);
-        EphemeralStore store = EphemeralStore.getFactory().getStore();
+        EphemeralStore store = EphemeralStore.getFactory().getStore(key);
         EphemeralKey ephemeralKey = new EphemeralKey(key, dynamicComponent);
         EphemeralResult result = store.get(ephemeralKey, location);
         return result == null ? EphemeralResult.emptyResult(ephemeralKey) : result;
@@ -896,7 +997,7 @@ public abstract class Entry implements ToZJSONObject {
         //but this method is only called by unsetters for single-valued non-dynamic ephemeral attributes,
         //which means we can first fetch the value and then delete it.
         EphemeralLocation location = new LdapEntryLocation(this);
-        EphemeralStore store = EphemeralStore.getFactory().getStore();
+        EphemeralStore store = EphemeralStore.getFactory().getStore(key);
         EphemeralKey ephemeralKey = new EphemeralKey(key);
         String curValue = store.get(ephemeralKey, location).getValue();
         store.delete(ephemeralKey, curValue, location);
@@ -904,7 +1005,7 @@ public abstract class Entry implements ToZJSONObject {
 
     public void deleteEphemeralAttr(String key, String dynamicComponent, String value) throws ServiceException {
         EphemeralLocation location = new LdapEntryLocation(this);
-        EphemeralStore store = EphemeralStore.getFactory().getStore();
+        EphemeralStore store = EphemeralStore.getFactory().getStore(key);
         store.delete(new EphemeralKey(key, dynamicComponent), value, location);
     }
 
@@ -940,8 +1041,18 @@ public abstract class Entry implements ToZJSONObject {
     public void modifyEphemeralAttr(String key, String dynamicComponent, String[] values, boolean update, Expiration expiration) throws ServiceException {
         EphemeralLocation location = new LdapEntryLocation(this);
         EphemeralStore store = EphemeralStore.getFactory().getStore();
+        List<EphemeralInput> inputs = new ArrayList<EphemeralInput>(values.length);
         for (String value: values) {
-            modifyEphemeralAttrInternal(key, dynamicComponent, value, update, expiration, store, location);
+            EphemeralInput input = new EphemeralInput(new EphemeralKey(key, dynamicComponent), value);
+            if (expiration != null) {
+                input.setExpiration(expiration);
+            }
+            inputs.add(input);
+        }
+        if (update) {
+            store.update(inputs, location);
+        } else {
+            store.set(inputs, location);
         }
     }
 
@@ -955,6 +1066,16 @@ public abstract class Entry implements ToZJSONObject {
         store.purgeExpired(new EphemeralKey(key), location);
     }
 
+    public void purgeEphemeralAttrs(String... keys) throws ServiceException {
+        EphemeralLocation location = new LdapEntryLocation(this);
+        EphemeralStore store = EphemeralStore.getFactory().getStore();
+        List<EphemeralKey> ephemeralKeys = new ArrayList<EphemeralKey>(keys.length);
+        for (String key : keys) {
+            ephemeralKeys.add(new EphemeralKey(key));
+        }
+        store.purgeExpired(ephemeralKeys, location);
+    }
+
     public boolean hasEphemeralAttr(String key, String dynamicComponent) throws ServiceException {
         EphemeralLocation location = new LdapEntryLocation(this);
         EphemeralStore store = EphemeralStore.getFactory().getStore();
@@ -25,6 +25,7 @@ import com.zimbra.cs.account.GuestAccount;
 import com.zimbra.cs.account.MailTarget;
 import com.zimbra.cs.account.Provisioning;
 import com.zimbra.cs.account.accesscontrol.Rights.Admin;
+import com.zimbra.cs.mailbox.FolderRightsIndex;
 import com.zimbra.soap.admin.type.CacheEntryType;
 
 public class PermissionCache {
@@ -59,6 +60,7 @@ public class PermissionCache {
         RightBearer.Grantee.clearGranteeCache();
         RightCommand.clearAllEffectiveRightsCache();
         PermCacheManager.getInstance().invalidateCache();
+        FolderRightsIndex.invalidateAll();
     }
 
     /**
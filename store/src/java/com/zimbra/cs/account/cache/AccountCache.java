@@ -23,149 +23,110 @@
  */
 package com.zimbra.cs.account.cache;
 
-import java.util.Map;
-
-import com.zimbra.common.util.MapUtil;
-import com.zimbra.common.stats.Counter;
-import com.zimbra.common.stats.HitRateCounter;
 import com.zimbra.cs.account.Account;
 import com.zimbra.cs.account.Provisioning;
+import com.zimbra.cs.account.cache.ConcurrentEntryCache.Refresher;
 
 public class AccountCache implements IAccountCache {
-    
-    private Map<String, CacheEntry> mNameCache;
-    private Map<String, CacheEntry> mIdCache;
-    private Map<String, CacheEntry> mAliasCache;
-    private Map<String, CacheEntry> mForeignPrincipalCache;
-    private Counter mHitRate = new HitRateCounter();
-
-    private long mRefreshTTL;
-
-    static class CacheEntry {
-        long mLifetime;
-        Account mEntry;
-        CacheEntry(Account entry, long expires) {
-            mEntry = entry;
-            mLifetime = System.currentTimeMillis() + expires;
-        }
-        
-        boolean isStale() {
-            return mLifetime < System.currentTimeMillis();
-        }
-    }
-    
+
+    private static final int BY_NAME = 0;
+    private static final int BY_ID = 1;
+    private static final int BY_ALIAS = 2;
+    private static final int BY_FOREIGN_PRINCIPAL = 3;
+    private static final int[] BY_NAME_OR_ALIAS = new int[] { BY_NAME, BY_ALIAS };
+
+    private final ConcurrentEntryCache<Account> mCache;
+
 /**
  * @param maxItems
  * @param refreshTTL
  */
     public AccountCache(int maxItems, long refreshTTL) {
-        mNameCache = MapUtil.newLruMap(maxItems);
-        mIdCache = MapUtil.newLruMap(maxItems);
-        mAliasCache = MapUtil.newLruMap(maxItems); 
-        mForeignPrincipalCache = MapUtil.newLruMap(maxItems);  
-        
-        mRefreshTTL = refreshTTL;
+        mCache = new ConcurrentEntryCache<Account>(4, maxItems, refreshTTL) {
+            @Override
+            protected String[] getKeys(Account entry, int index) {
+                switch (index) {
+                case BY_NAME:
+                    return new String[] { entry.getName() };
+                case BY_ID:
+                    return new String[] { entry.getId() };
+                case BY_ALIAS:
+                    return entry.getMultiAttr(Provisioning.A_zimbraMailAlias);
+                default:
+                    return entry.getMultiAttr(Provisioning.A_zimbraForeignPrincipal);
+                }
+            }
+        };
     }
 
-    @Override
-    public synchronized void clear() {
-        mNameCache.clear();
-        mIdCache.clear();
-        mAliasCache.clear();
-        mForeignPrincipalCache.clear();
+    /**
+     * Sets what reloads accounts once they are older than the refresh TTL.
+     */
+    public void setRefresher(Refresher<? super Account> refresher) {
+        mCache.setRefresher(refresher);
     }
 
     @Override
-    public synchronized void remove(Account entry) {
-        if (entry != null) {
-            mNameCache.remove(entry.getName());
-            mIdCache.remove(entry.getId());
-            
-            String aliases[] = entry.getMultiAttr(Provisioning.A_zimbraMailAlias);            
-            for (String alias : aliases) {
-                mAliasCache.remove(alias);
-            }
-            
-            String fps[] = entry.getMultiAttr(Provisioning.A_zimbraForeignPrincipal);            
-            for (String fp : fps) {
-                mForeignPrincipalCache.remove(fp);
-            }
-        }
+    public void clear() {
+        mCache.clear();
     }
-    
+
     @Override
-    public synchronized void put(Account entry) {
-        if (entry != null) {
-            CacheEntry cacheEntry = new CacheEntry(entry, mRefreshTTL);
-            mNameCache.put(entry.getName(), cacheEntry);
-            mIdCache.put(entry.getId(), cacheEntry);
-            
-            String aliases[] = entry.getMultiAttr(Provisioning.A_zimbraMailAlias);            
-            for (String alias : aliases) {
-                mAliasCache.put(alias, cacheEntry); 
-            }
-            
-            String fps[] = entry.getMultiAttr(Provisioning.A_zimbraForeignPrincipal);            
-            for (String fp : fps) {
-                mForeignPrincipalCache.put(fp, cacheEntry); 
-            }
-        }
+    public void remove(Account entry) {
+        mCache.remove(entry);
     }
-    
+
     @Override
-    public synchronized void replace(Account entry) {
-        remove(entry);
-        put(entry);
+    public void put(Account entry) {
+        mCache.put(entry);
     }
 
-    private Account get(String key, Map cache) {
-        CacheEntry ce = (CacheEntry) cache.get(key);
-        if (ce != null) {
-            if (mRefreshTTL != 0 && ce.isStale()) {
-                remove(ce.mEntry);
-                mHitRate.increment(0);
-                return null;
-            } else {
-                mHitRate.increment(100);
-                return ce.mEntry;
-            }
-        } else {
-            mHitRate.increment(0);
-            return null;
-        }
+    @Override
+    public void replace(Account entry) {
+        mCache.remove(entry);
+        mCache.put(entry);
     }
-    
+
     @Override
-    public synchronized Account getById(String key) {
-        return get(key, mIdCache);
+    public Account getById(String key) {
+        return mCache.get(BY_ID, key);
     }
-    
+
     @Override
-    public synchronized Account getByName(String key) {
-        Account acct = get(key.toLowerCase(), mNameCache);
-        if (acct != null) {
-            return acct;
-        } else {
-            return get(key.toLowerCase(), mAliasCache);
-        }
+    public Account getByName(String key) {
+        return mCache.get(BY_NAME_OR_ALIAS, key.toLowerCase());
     }
-    
+
     @Override
-    public synchronized Account getByForeignPrincipal(String key) {
-        return get(key, mForeignPrincipalCache);
+    public Account getByForeignPrincipal(String key) {
+        return mCache.get(BY_FOREIGN_PRINCIPAL, key);
     }
-    
+
     @Override
-    public synchronized int getSize() {
-        return mIdCache.size();
+    public int getSize() {
+        return mCache.getSize(BY_ID);
     }
-    
+
     /**
      * Returns the cache hit rate as a value between 0 and 100.
      */
     @Override
-    public synchronized double getHitRate() {
-    	 return mHitRate.getAverage();
+    public double getHitRate() {
+        return mCache.getHitRate();
+    }
+
+    @Override
+    public long getHitCount() {
+        return mCache.getHitCount();
+    }
+
+    @Override
+    public long getMissCount() {
+        return mCache.getMissCount();
     }
-}
 
+    @Override
+    public double getLoadTime() {
+        return mCache.getLoadTime();
+    }
+}
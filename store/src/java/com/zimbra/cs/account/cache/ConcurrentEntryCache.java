@@ -0,0 +1,261 @@
+/*
+ * ***** BEGIN LICENSE BLOCK *****
+ * Zimbra Collaboration Suite Server
+ * Copyright (C) 2017 Synacor, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software Foundation,
+ * version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <https://www.gnu.org/licenses/>.
+ * ***** END LICENSE BLOCK *****
+ */
+package com.zimbra.cs.account.cache;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import com.google.common.cache.CacheBuilder;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.zimbra.common.localconfig.LC;
+import com.zimbra.common.service.ServiceException;
+import com.zimbra.common.stats.Counter;
+import com.zimbra.common.stats.HitRateCounter;
+import com.zimbra.common.util.ZimbraLog;
+import com.zimbra.cs.account.NamedEntry;
+
+/**
+ * The part of the entry caches that keeps the entries: one bounded concurrent map per lookup key (id, name, alias
+ * and so on), all pointing at the same {@link CacheEntry}, so that lookups don't go through a cache-wide monitor.
+ * <p>
+ * Once an entry is older than the refresh TTL, the first lookup that finds it hands it to a shared pool of
+ * {@code ldap_cache_refresh_threads} threads to be reloaded by the {@link Refresher}, and it keeps being returned
+ * until the reload puts it back. Without a refresher (or with no threads) the first lookup gets null and is expected
+ * to load and put the entry itself, while the others keep getting the old one. Either way only one reload of a
+ * popular entry is done when it expires. An entry that hasn't been put back within another refresh TTL is dropped.
+ *
+ * @param <E> type of the cached entries
+ */
+public abstract class ConcurrentEntryCache<E extends NamedEntry> {
+
+    /**
+     * Reloads an entry in place.
+     */
+    public interface Refresher<E> {
+        void refresh(E entry) throws ServiceException;
+    }
+
+    private static final int REFRESH_THREADS = LC.ldap_cache_refresh_threads.intValue();
+    private static ExecutorService refreshExecutor;
+
+    static class CacheEntry<E> {
+        final E mEntry;
+        final long mLifetime;
+        final AtomicBoolean mRefreshing = new AtomicBoolean();
+
+        CacheEntry(E entry, long expires) {
+            mEntry = entry;
+            mLifetime = System.currentTimeMillis() + expires;
+        }
+    }
+
+    private final List<ConcurrentMap<String, CacheEntry<E>>> mIndexes;
+    private final long mRefreshTTL;
+    private volatile Refresher<? super E> mRefresher;
+    private final Counter mHitRate = new HitRateCounter();
+    /** milliseconds taken by each refresh, averaged over the interval since it was last read */
+    private final Counter mLoadTime = new HitRateCounter();
+
+    /**
+     * @param numIndexes number of lookup keys; see {@link #getKeys(NamedEntry, int)}
+     * @param maxItems maximum number of keys kept in each index
+     * @param refreshTTL milliseconds after which an entry is reloaded; 0 keeps entries until they are evicted
+     */
+    protected ConcurrentEntryCache(int numIndexes, int maxItems, long refreshTTL) {
+        mIndexes = new ArrayList<ConcurrentMap<String, CacheEntry<E>>>(numIndexes);
+        for (int i = 0; i < numIndexes; i++) {
+            mIndexes.add(newLruMap(maxItems));
+        }
+        mRefreshTTL = refreshTTL;
+    }
+
+    /**
+     * Returns a concurrent map that evicts the least recently used keys once it holds more than {@code maxItems}.
+     */
+    static <V> ConcurrentMap<String, V> newLruMap(int maxItems) {
+        return CacheBuilder.newBuilder().maximumSize(Math.max(maxItems, 0)).<String, V>build().asMap();
+    }
+
+    private static synchronized ExecutorService getRefreshExecutor() {
+        if (refreshExecutor == null && REFRESH_THREADS > 0) {
+            refreshExecutor = Executors.newFixedThreadPool(REFRESH_THREADS,
+                    new ThreadFactoryBuilder().setNameFormat("LdapCacheRefresh-%d").setDaemon(true).build());
+        }
+        return refreshExecutor;
+    }
+
+    /**
+     * Returns the keys the entry is looked up by in the index.
+     */
+    protected abstract String[] getKeys(E entry, int index);
+
+    public void setRefresher(Refresher<? super E> refresher) {
+        mRefresher = refresher;
+    }
+
+    public void clear() {
+        for (ConcurrentMap<String, CacheEntry<E>> index : mIndexes) {
+            index.clear();
+        }
+    }
+
+    public void put(E entry) {
+        if (entry != null) {
+            CacheEntry<E> cacheEntry = new CacheEntry<E>(entry, mRefreshTTL);
+            for (int i = 0; i < mIndexes.size(); i++) {
+                for (String key : getKeys(entry, i)) {
+                    if (key != null)
+                        mIndexes.get(i).put(key, cacheEntry);
+                }
+            }
+        }
+    }
+
+    public void remove(E entry) {
+        if (entry != null) {
+            for (int i = 0; i < mIndexes.size(); i++) {
+                for (String key : getKeys(entry, i)) {
+                    if (key != null)
+                        mIndexes.get(i).remove(key);
+                }
+            }
+        }
+    }
+
+    public void remove(int index, String key) {
+        if (key != null)
+            mIndexes.get(index).remove(key);
+    }
+
+    /** drops the keys of the entry that still point at the cache entry, leaving any newer put in place */
+    private void remove(CacheEntry<E> cacheEntry) {
+        for (int i = 0; i < mIndexes.size(); i++) {
+            for (String key : getKeys(cacheEntry.mEntry, i)) {
+                if (key != null)
+                    mIndexes.get(i).remove(key, cacheEntry);
+            }
+        }
+    }
+
+    public E get(int index, String key) {
+        CacheEntry<E> ce = key == null ? null : mIndexes.get(index).get(key);
+        E entry = ce == null ? null : check(index, key, ce);
+        mHitRate.increment(entry == null ? 0 : 100);
+        return entry;
+    }
+
+    /**
+     * Looks up an entry in the first index that has the key, counting a single hit or miss.
+     */
+    public E get(int[] indexes, String key) {
+        E entry = null;
+        if (key != null) {
+            for (int index : indexes) {
+                CacheEntry<E> ce = mIndexes.get(index).get(key);
+                if (ce != null) {
+                    entry = check(index, key, ce);
+                    break;
+                }
+            }
+        }
+        mHitRate.increment(entry == null ? 0 : 100);
+        return entry;
+    }
+
+    /**
+     * Returns the entry unless the caller has to reload it.
+     */
+    private E check(int index, String key, CacheEntry<E> ce) {
+        if (mRefreshTTL == 0)
+            return ce.mEntry;
+        long now = System.currentTimeMillis();
+        if (ce.mLifetime >= now)
+            return ce.mEntry;
+
+        if (ce.mRefreshing.compareAndSet(false, true)) {
+            return refresh(ce) ? ce.mEntry : null;
+        } else if (ce.mLifetime + mRefreshTTL < now) {
+            // whoever was to reload it didn't put it back
+            remove(ce);
+            mIndexes.get(index).remove(key, ce);
+            return null;
+        }
+        return ce.mEntry;
+    }
+
+    /**
+     * Hands the entry to the refresh pool.
+     *
+     * @return false if the caller has to reload the entry
+     */
+    private boolean refresh(final CacheEntry<E> ce) {
+        final Refresher<? super E> refresher = mRefresher;
+        ExecutorService executor = refresher == null ? null : getRefreshExecutor();
+        if (executor == null)
+            return false;
+        try {
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    long start = System.currentTimeMillis();
+                    try {
+                        refresher.refresh(ce.mEntry);
+                        mLoadTime.increment(System.currentTimeMillis() - start);
+                        put(ce.mEntry);
+                    } catch (Exception e) {
+                        ZimbraLog.account.warn("unable to refresh cached entry %s", ce.mEntry.getName(), e);
+                        remove(ce);
+                    }
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            return false;
+        }
+        return true;
+    }
+
+    public int getSize(int index) {
+        return mIndexes.get(index).size();
+    }
+
+    /**
+     * Returns the cache hit rate as a value between 0 and 100.
+     */
+    public double getHitRate() {
+        return mHitRate.getAverage();
+    }
+
+    public long getHitCount() {
+        return mHitRate.getTotal() / 100;
+    }
+
+    public long getMissCount() {
+        return mHitRate.getCount() - getHitCount();
+    }
+
+    /**
+     * Returns the average time in milliseconds it took to refresh an entry since the last call.
+     */
+    public double getLoadTime() {
+        return mLoadTime.getAverage();
+    }
+}
@@ -25,28 +25,24 @@ package com.zimbra.cs.account.cache;
 
 import java.util.Map;
 
-import com.zimbra.common.util.MapUtil;
 import com.zimbra.common.account.Key.DomainBy;
-import com.zimbra.common.stats.Counter;
-import com.zimbra.common.stats.HitRateCounter;
 import com.zimbra.cs.account.Domain;
 import com.zimbra.cs.account.Provisioning;
+import com.zimbra.cs.account.cache.ConcurrentEntryCache.Refresher;
 
 /**
  * @author schemers
  **/
 public class DomainCache implements IDomainCache {
-    
-    private Map mNameCache;
-    private Map mIdCache;
-    private Map mVirtualHostnameCache;
-    private Map mForeignNameCache;
-    private Map mKrb5RealmCache;
-    
-    private long mRefreshTTL;
-    private Counter mHitRate = new HitRateCounter();
 
-    
+    private static final int BY_NAME = 0;
+    private static final int BY_ID = 1;
+    private static final int BY_VIRTUAL_HOSTNAME = 2;
+    private static final int BY_FOREIGN_NAME = 3;
+    private static final int BY_KRB5_REALM = 4;
+
+    private final ConcurrentEntryCache<Domain> mCache;
+
     public enum GetFromDomainCacheOption {
         POSITIVE, // only get from positive cache
         NEGATIVE, // only get from negative cache
@@ -61,19 +57,6 @@ public class DomainCache implements IDomainCache {
      */
     private NegativeCache mNegativeCache;
 
-    static class CacheEntry {
-        long mLifetime;
-        Domain mEntry;
-        CacheEntry(Domain entry, long expires) {
-            mEntry = entry;
-            mLifetime = System.currentTimeMillis() + expires;
-        }
-        
-        boolean isStale() {
-            return mLifetime < System.currentTimeMillis();
-        }
-    }
-    
     public static class NonExistingDomain extends Domain {
         private NonExistingDomain() {
             super(null, null, null, null, null);
@@ -82,11 +65,11 @@ public class DomainCache implements IDomainCache {
     
 
     class NegativeCache {
-        private Map mNegativeNameCache;
-        private Map mNegativeIdCache;
-        private Map mNegativeVirtualHostnameCache;
-        private Map mNegativeForeignNameCache;
-        private Map mNegativeKrb5RealmCache;
+        private Map<String, NonExistingDomain> mNegativeNameCache;
+        private Map<String, NonExistingDomain> mNegativeIdCache;
+        private Map<String, NonExistingDomain> mNegativeVirtualHostnameCache;
+        private Map<String, NonExistingDomain> mNegativeForeignNameCache;
+        private Map<String, NonExistingDomain> mNegativeKrb5RealmCache;
 
         private long mNERefreshTTL;
         
@@ -97,11 +80,11 @@ public class DomainCache implements IDomainCache {
         private boolean mEnabled = true;
         
         private NegativeCache(int maxItems, long refreshTTL) {
-            mNegativeNameCache = MapUtil.newLruMap(maxItems);
-            mNegativeIdCache = MapUtil.newLruMap(maxItems);
-            mNegativeVirtualHostnameCache = MapUtil.newLruMap(maxItems);  
-            mNegativeForeignNameCache = MapUtil.newLruMap(maxItems);  
-            mNegativeKrb5RealmCache = MapUtil.newLruMap(maxItems);   
+            mNegativeNameCache = ConcurrentEntryCache.newLruMap(maxItems);
+            mNegativeIdCache = ConcurrentEntryCache.newLruMap(maxItems);
+            mNegativeVirtualHostnameCache = ConcurrentEntryCache.newLruMap(maxItems);
+            mNegativeForeignNameCache = ConcurrentEntryCache.newLruMap(maxItems);
+            mNegativeKrb5RealmCache = ConcurrentEntryCache.newLruMap(maxItems);
             mNERefreshTTL = refreshTTL;
         }
         
@@ -136,15 +119,15 @@ public class DomainCache implements IDomainCache {
             
             switch (domainBy) {
             case name:
-                return (NonExistingDomain)mNegativeNameCache.get(key);
+                return mNegativeNameCache.get(key);
             case id:
-                return (NonExistingDomain)mNegativeIdCache.get(key);
+                return mNegativeIdCache.get(key);
             case virtualHostname:
-                return (NonExistingDomain)mNegativeVirtualHostnameCache.get(key);
+                return mNegativeVirtualHostnameCache.get(key);
             case foreignName:
-                return (NonExistingDomain)mNegativeForeignNameCache.get(key);
+                return mNegativeForeignNameCache.get(key);
             case krb5Realm:
-                return (NonExistingDomain)mNegativeKrb5RealmCache.get(key);
+                return mNegativeKrb5RealmCache.get(key);
             }
             return null;
         }
@@ -204,201 +187,141 @@ public class DomainCache implements IDomainCache {
  * @param refreshTTL
  */
     public DomainCache(int maxItems, long refreshTTL, int maxItemsNegative, long refreshTTLNegative) {
-        mNameCache = MapUtil.newLruMap(maxItems);
-        mIdCache = MapUtil.newLruMap(maxItems);
-        mVirtualHostnameCache = MapUtil.newLruMap(maxItems);  
-        mForeignNameCache = MapUtil.newLruMap(maxItems); 
-        mKrb5RealmCache = MapUtil.newLruMap(maxItems);   
-        mRefreshTTL = refreshTTL;
-        
+        mCache = new ConcurrentEntryCache<Domain>(5, maxItems, refreshTTL) {
+            @Override
+            protected String[] getKeys(Domain entry, int index) {
+                switch (index) {
+                case BY_NAME:
+                    return new String[] { entry.getName() };
+                case BY_ID:
+                    return new String[] { entry.getId() };
+                case BY_VIRTUAL_HOSTNAME:
+                    return toLowerCase(entry.getMultiAttr(Provisioning.A_zimbraVirtualHostname));
+                case BY_FOREIGN_NAME:
+                    return toLowerCase(entry.getMultiAttr(Provisioning.A_zimbraForeignName));
+                default:
+                    return new String[] { entry.getAttr(Provisioning.A_zimbraAuthKerberos5Realm) };
+                }
+            }
+        };
+
         mNegativeCache = new NegativeCache(maxItemsNegative, refreshTTLNegative);
     }
 
+    private static String[] toLowerCase(String[] values) {
+        String[] lower = new String[values.length];
+        for (int i = 0; i < values.length; i++) {
+            lower[i] = values[i].toLowerCase();
+        }
+        return lower;
+    }
+
+    /**
+     * Sets what reloads domains once they are older than the refresh TTL.
+     */
+    public void setRefresher(Refresher<? super Domain> refresher) {
+        mCache.setRefresher(refresher);
+    }
+
     @Override
-    public synchronized void clear() {
-        mNameCache.clear();
-        mIdCache.clear();
-        mVirtualHostnameCache.clear();
-        mForeignNameCache.clear();
-        mKrb5RealmCache.clear();
-        
+    public void clear() {
+        mCache.clear();
         mNegativeCache.clear();
     }
 
     @Override
-    public synchronized void remove(Domain entry) {
-        if (entry != null) {
-            mNameCache.remove(entry.getName());
-            mIdCache.remove(entry.getId());
-            
-            String vhost[] = entry.getMultiAttr(Provisioning.A_zimbraVirtualHostname);            
-            for (String vh : vhost)
-                mVirtualHostnameCache.remove(vh.toLowerCase());
-            
-            String foreignName[] = entry.getMultiAttr(Provisioning.A_zimbraForeignName);            
-            for (String fn : foreignName)
-                mForeignNameCache.remove(fn.toLowerCase());
-            
-            String krb5Realm = entry.getAttr(Provisioning.A_zimbraAuthKerberos5Realm);
-            if (krb5Realm != null)
-                mKrb5RealmCache.remove(krb5Realm);
-        }
+    public void remove(Domain entry) {
+        mCache.remove(entry);
     }
-    
+
     @Override
-    public synchronized void replace(Domain entry) {
+    public void replace(Domain entry) {
         remove(entry);
         put(DomainBy.id, entry.getId(), entry);
     }
-    
+
     @Override
-    public synchronized void removeFromNegativeCache(DomainBy domainBy, String key) {
+    public void removeFromNegativeCache(DomainBy domainBy, String key) {
         mNegativeCache.remove(domainBy, key);
     }
-    
+
     @Override
-    public synchronized void put(DomainBy domainBy, String key, Domain entry) {
+    public void put(DomainBy domainBy, String key, Domain entry) {
         if (entry != null) {
             // clean it from the non-existing cache first
             mNegativeCache.clean(domainBy, key, entry);
-            
-            CacheEntry cacheEntry = new CacheEntry(entry, mRefreshTTL);
-            mNameCache.put(entry.getName(), cacheEntry);
-            mIdCache.put(entry.getId(), cacheEntry);
-            
-            String vhost[] = entry.getMultiAttr(Provisioning.A_zimbraVirtualHostname);            
-            for (String vh : vhost)
-                mVirtualHostnameCache.put(vh.toLowerCase(), cacheEntry);          
-            
-            String foreignName[] = entry.getMultiAttr(Provisioning.A_zimbraForeignName);            
-            for (String fn : foreignName)
-                mForeignNameCache.put(fn.toLowerCase(), cacheEntry);  
-            
-            String krb5Realm = entry.getAttr(Provisioning.A_zimbraAuthKerberos5Realm);
-            if (krb5Realm != null)
-                mKrb5RealmCache.put(krb5Realm, cacheEntry);
+            mCache.put(entry);
         } else {
             mNegativeCache.put(domainBy, key);
         }
     }
 
-    private Domain get(String key, Map cache) {
-        CacheEntry ce = (CacheEntry) cache.get(key);
-        if (ce != null) {
-            if (mRefreshTTL != 0 && ce.isStale()) {
-                remove(ce.mEntry);
-                mHitRate.increment(0);
-                return null;
-            } else {
-                mHitRate.increment(100);
-                return ce.mEntry;
-            }
-        } else {
-            mHitRate.increment(0);
-            return null;
-        }
-    }
-    
-    @Override
-    public synchronized Domain getById(String key, GetFromDomainCacheOption option) {
-        
+    private Domain get(DomainBy domainBy, int index, String key, GetFromDomainCacheOption option) {
         switch (option) {
         case POSITIVE:
-            return get(key, mIdCache);
+            return mCache.get(index, key);
         case NEGATIVE:
-            return mNegativeCache.get(DomainBy.id, key);
+            return mNegativeCache.get(domainBy, key);
         case BOTH:
-            Domain d = get(key, mIdCache);
+            Domain d = mCache.get(index, key);
             if (d == null)
-                d = mNegativeCache.get(DomainBy.id, key);
+                d = mNegativeCache.get(domainBy, key);
             return d;
         default:
             return null;
         }
     }
-    
+
     @Override
-    public synchronized Domain getByName(String key, GetFromDomainCacheOption option) {
-        
-        switch (option) {
-        case POSITIVE:
-            return get(key.toLowerCase(), mNameCache);
-        case NEGATIVE:
-            return mNegativeCache.get(DomainBy.name, key);
-        case BOTH:
-            Domain d = get(key.toLowerCase(), mNameCache);
-            if (d == null)
-                d = mNegativeCache.get(DomainBy.name, key);
-            return d;
-        default:
-            return null;
-        }
+    public Domain getById(String key, GetFromDomainCacheOption option) {
+        return get(DomainBy.id, BY_ID, key, option);
     }
-    
+
     @Override
-    public synchronized Domain getByVirtualHostname(String key, GetFromDomainCacheOption option) {
-        
-        switch (option) {
-        case POSITIVE:
-            return get(key.toLowerCase(), mVirtualHostnameCache);
-        case NEGATIVE:
-            return mNegativeCache.get(DomainBy.virtualHostname, key);
-        case BOTH:
-            Domain d = get(key.toLowerCase(), mVirtualHostnameCache);
-            if (d == null)
-                d = mNegativeCache.get(DomainBy.virtualHostname, key);
-            return d;
-        default:
-            return null;
-        }
+    public Domain getByName(String key, GetFromDomainCacheOption option) {
+        return get(DomainBy.name, BY_NAME, key.toLowerCase(), option);
     }
-    
+
     @Override
-    public synchronized Domain getByForeignName(String key, GetFromDomainCacheOption option) {
-        
-        switch (option) {
-        case POSITIVE:
-            return get(key.toLowerCase(), mForeignNameCache);
-        case NEGATIVE:
-            return mNegativeCache.get(DomainBy.foreignName, key);
-        case BOTH:
-            Domain d = get(key.toLowerCase(), mForeignNameCache);
-            if (d == null)
-                d = mNegativeCache.get(DomainBy.foreignName, key);
-            return d;
-        default:
-            return null;
-        }
+    public Domain getByVirtualHostname(String key, GetFromDomainCacheOption option) {
+        return get(DomainBy.virtualHostname, BY_VIRTUAL_HOSTNAME, key.toLowerCase(), option);
     }
-    
+
     @Override
-    public synchronized Domain getByKrb5Realm(String key, GetFromDomainCacheOption option) {
-        
-        switch (option) {
-        case POSITIVE:
-            return get(key.toLowerCase(), mKrb5RealmCache);
-        case NEGATIVE:
-            return mNegativeCache.get(DomainBy.krb5Realm, key);
-        case BOTH:
-            Domain d = get(key.toLowerCase(), mKrb5RealmCache);
-            if (d == null)
-                d = mNegativeCache.get(DomainBy.krb5Realm, key);
-            return d;
-        default:
-            return null;
-        }
+    public Domain getByForeignName(String key, GetFromDomainCacheOption option) {
+        return get(DomainBy.foreignName, BY_FOREIGN_NAME, key.toLowerCase(), option);
     }
 
     @Override
-    public synchronized int getSize() {
-        return mIdCache.size();
+    public Domain getByKrb5Realm(String key, GetFromDomainCacheOption option) {
+        return get(DomainBy.krb5Realm, BY_KRB5_REALM, key.toLowerCase(), option);
     }
-    
+
+    @Override
+    public int getSize() {
+        return mCache.getSize(BY_ID);
+    }
+
     /**
      * Returns the cache hit rate as a value between 0 and 100.<br />
      */
     @Override
-    public synchronized double getHitRate() {
-    	 return mHitRate.getAverage();
+    public double getHitRate() {
+        return mCache.getHitRate();
+    }
+
+    @Override
+    public long getHitCount() {
+        return mCache.getHitCount();
+    }
+
+    @Override
+    public long getMissCount() {
+        return mCache.getMissCount();
+    }
+
+    @Override
+    public double getLoadTime() {
+        return mCache.getLoadTime();
     }
 }
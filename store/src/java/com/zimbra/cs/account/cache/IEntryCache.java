@@ -19,4 +19,7 @@ package com.zimbra.cs.account.cache;
 public interface IEntryCache {
     public int getSize();
     public double getHitRate();
+    public long getHitCount();
+    public long getMissCount();
+    public double getLoadTime();
 }
@@ -24,85 +24,69 @@
 package com.zimbra.cs.account.cache;
 
 import java.util.List;
-import java.util.Map;
 
-import com.zimbra.common.util.MapUtil;
-import com.zimbra.common.stats.Counter;
-import com.zimbra.common.stats.HitRateCounter;
 import com.zimbra.cs.account.NamedEntry;
+import com.zimbra.cs.account.cache.ConcurrentEntryCache.Refresher;
 
 /**
  * @author schemers
  **/
 public class NamedEntryCache<E extends NamedEntry> implements INamedEntryCache<E> {
-    
-    private Map mNameCache;
-    private Map mIdCache;
-    
-    private long mRefreshTTL;
-    private Counter mHitRate = new HitRateCounter();
-   
-
-    static class CacheEntry<E extends NamedEntry> {
-        long mLifetime;
-        E mEntry;
-        CacheEntry(E entry, long expires) {
-            mEntry = entry;
-            mLifetime = System.currentTimeMillis() + expires;
-        }
-        
-        boolean isStale() {
-            return mLifetime < System.currentTimeMillis();
-        }
-    }
-    
+
+    private static final int BY_NAME = 0;
+    private static final int BY_ID = 1;
+
+    private final ConcurrentEntryCache<E> mCache;
+
 /**
  * @param maxItems
  * @param refreshTTL
  */
     public NamedEntryCache(int maxItems, long refreshTTL) {
-        mNameCache = MapUtil.newLruMap(maxItems);
-        mIdCache = MapUtil.newLruMap(maxItems);
-        mRefreshTTL = refreshTTL;
+        mCache = new ConcurrentEntryCache<E>(2, maxItems, refreshTTL) {
+            @Override
+            protected String[] getKeys(E entry, int index) {
+                return new String[] { index == BY_NAME ? entry.getName() : entry.getId() };
+            }
+        };
+    }
+
+    /**
+     * Sets what reloads entries once they are older than the refresh TTL.
+     */
+    public void setRefresher(Refresher<? super E> refresher) {
+        mCache.setRefresher(refresher);
     }
 
     @Override
-    public synchronized void clear() {
-        mNameCache.clear();
-        mIdCache.clear();
+    public void clear() {
+        mCache.clear();
     }
 
     @Override
-    public synchronized void remove(String name, String id) {
-        mNameCache.remove(name);
-        mIdCache.remove(id);
+    public void remove(String name, String id) {
+        mCache.remove(BY_NAME, name);
+        mCache.remove(BY_ID, id);
     }
-    
+
     @Override
-    public synchronized void remove(E entry) {
-        if (entry != null) {
-            mNameCache.remove(entry.getName());
-            mIdCache.remove(entry.getId());
-        }
+    public void remove(E entry) {
+        mCache.remove(entry);
     }
-    
+
     @Override
-    public synchronized void put(E entry) {
-        if (entry != null) {
-            CacheEntry<E> cacheEntry = new CacheEntry<E>(entry, mRefreshTTL);
-            mNameCache.put(entry.getName(), cacheEntry);
-            mIdCache.put(entry.getId(), cacheEntry);
-        }
+    public void put(E entry) {
+        mCache.put(entry);
     }
-    
+
     @Override
-    public synchronized void replace(E entry) {
-        remove(entry);
-        put(entry);
+    public void replace(E entry) {
+        mCache.remove(entry);
+        mCache.put(entry);
     }
 
     @Override
-    public synchronized void put(List<E> entries, boolean clear) {
+    public void put(List<E> entries, boolean clear) {
         if (entries != null) {
             if (clear) clear();
             for (E e: entries)
@@ -110,45 +94,41 @@ public class NamedEntryCache<E extends NamedEntry> implements INamedEntryCache<E
         }
     }
 
-    @SuppressWarnings("unchecked")
-    private E get(String key, Map cache) {
-        CacheEntry<E> ce = (CacheEntry<E>) cache.get(key);
-        if (ce != null) {
-            if (mRefreshTTL != 0 && ce.isStale()) {
-                remove(ce.mEntry);
-                mHitRate.increment(0);
-                return null;
-            } else {
-                mHitRate.increment(100);
-                return ce.mEntry;
-            }
-        } else {
-            mHitRate.increment(0);
-            return null;
-        }
-    }
-    
     @Override
-    public synchronized E getById(String key) {
-        return get(key, mIdCache);
+    public E getById(String key) {
+        return mCache.get(BY_ID, key);
     }
-    
+
     @Override
-    public synchronized E getByName(String key) {
-        return get(key.toLowerCase(), mNameCache);
+    public E getByName(String key) {
+        return mCache.get(BY_NAME, key.toLowerCase());
     }
-    
+
     @Override
-    public synchronized int getSize() {
-        return mIdCache.size();
+    public int getSize() {
+        return mCache.getSize(BY_ID);
     }
-    
-  
+
     /**
      * Returns the cache hit rate as a value between 0 and 100.
      */
     @Override
-    public synchronized double getHitRate() {
-        return mHitRate.getAverage();
+    public double getHitRate() {
+        return mCache.getHitRate();
+    }
+
+    @Override
+    public long getHitCount() {
+        return mCache.getHitCount();
+    }
+
+    @Override
+    public long getMissCount() {
+        return mCache.getMissCount();
+    }
+
+    @Override
+    public double getLoadTime() {
+        return mCache.getLoadTime();
     }
 }
@@ -35,6 +35,7 @@ import com.zimbra.cs.account.ShareLocator;
 import com.zimbra.cs.account.UCService;
 import com.zimbra.cs.account.XMPPComponent;
 import com.zimbra.cs.account.cache.AccountCache;
+import com.zimbra.cs.account.cache.ConcurrentEntryCache.Refresher;
 import com.zimbra.cs.account.cache.DomainCache;
 import com.zimbra.cs.account.cache.DomainCache.GetFromDomainCacheOption;
 import com.zimbra.cs.account.cache.IAccountCache;
@@ -69,12 +70,12 @@ abstract class LdapCache {
      */
     static class LRUMapCache extends LdapCache {
 
-        private final IAccountCache accountCache =
+        private final AccountCache accountCache =
             new AccountCache(
                     LC.ldap_cache_account_maxsize.intValue(),
                     LC.ldap_cache_account_maxage.intValue() * Constants.MILLIS_PER_MINUTE);
 
-        private final INamedEntryCache<LdapCos> cosCache =
+        private final NamedEntryCache<LdapCos> cosCache =
             new NamedEntryCache<LdapCos>(
                     LC.ldap_cache_cos_maxsize.intValue(),
                     LC.ldap_cache_cos_maxage.intValue() * Constants.MILLIS_PER_MINUTE);
@@ -84,7 +85,7 @@ abstract class LdapCache {
                         LC.ldap_cache_share_locator_maxsize.intValue(),
                         LC.ldap_cache_share_locator_maxage.intValue() * Constants.MILLIS_PER_MINUTE);
 
-        private final IDomainCache domainCache =
+        private final DomainCache domainCache =
             new DomainCache(
                     LC.ldap_cache_domain_maxsize.intValue(),
                     LC.ldap_cache_domain_maxage.intValue() * Constants.MILLIS_PER_MINUTE,
@@ -93,17 +94,17 @@ abstract class LdapCache {
 
         private final IMimeTypeCache mimeTypeCache = new LdapMimeTypeCache();
 
-        private final INamedEntryCache<Server> serverCache =
+        private final NamedEntryCache<Server> serverCache =
             new NamedEntryCache<Server>(
                     LC.ldap_cache_server_maxsize.intValue(),
                     LC.ldap_cache_server_maxage.intValue() * Constants.MILLIS_PER_MINUTE);
 
-        private final INamedEntryCache<UCService> ucServiceCache =
+        private final NamedEntryCache<UCService> ucServiceCache =
             new NamedEntryCache<UCService>(
                     LC.ldap_cache_ucservice_maxsize.intValue(),
                     LC.ldap_cache_ucservice_maxage.intValue() * Constants.MILLIS_PER_MINUTE);
 
-        private final INamedEntryCache<LdapZimlet> zimletCache =
+        private final NamedEntryCache<LdapZimlet> zimletCache =
             new NamedEntryCache<LdapZimlet>(
                     LC.ldap_cache_zimlet_maxsize.intValue(),
                     LC.ldap_cache_zimlet_maxage.intValue() * Constants.MILLIS_PER_MINUTE);
@@ -114,16 +115,31 @@ abstract class LdapCache {
                     LC.ldap_cache_group_maxsize.intValue(),
                     LC.ldap_cache_group_maxage.intValue() * Constants.MILLIS_PER_MINUTE);
 
-        private final INamedEntryCache<XMPPComponent> xmppComponentCache =
+        private final NamedEntryCache<XMPPComponent> xmppComponentCache =
             new NamedEntryCache<XMPPComponent>(
                     LC.ldap_cache_xmppcomponent_maxsize.intValue(),
                     LC.ldap_cache_xmppcomponent_maxage.intValue() * Constants.MILLIS_PER_MINUTE);
 
-        private final INamedEntryCache<AlwaysOnCluster> alwaysOnClusterCache =
+        private final NamedEntryCache<AlwaysOnCluster> alwaysOnClusterCache =
                 new NamedEntryCache<AlwaysOnCluster>(
                         LC.ldap_cache_alwaysoncluster_maxsize.intValue(),
                         LC.ldap_cache_alwaysoncluster_maxage.intValue() * Constants.MILLIS_PER_MINUTE);
 
+        /**
+         * @param refresher reloads entries once they are older than the maxage of their cache; groups and share
+         *        locators are left to expire, as reloading doesn't put them back in their caches
+         */
+        LRUMapCache(Refresher<NamedEntry> refresher) {
+            accountCache.setRefresher(refresher);
+            cosCache.setRefresher(refresher);
+            domainCache.setRefresher(refresher);
+            serverCache.setRefresher(refresher);
+            ucServiceCache.setRefresher(refresher);
+            zimletCache.setRefresher(refresher);
+            xmppComponentCache.setRefresher(refresher);
+            alwaysOnClusterCache.setRefresher(refresher);
+        }
+
         @Override
         IAccountCache accountCache() {
             return accountCache;
@@ -228,6 +244,15 @@ abstract class LdapCache {
 
             @Override
             public double getHitRate() { return 0; }
+
+            @Override
+            public long getHitCount() { return 0; }
+
+            @Override
+            public long getMissCount() { return 0; }
+
+            @Override
+            public double getLoadTime() { return 0; }
         }
 
         static class NoopDomainCache implements IDomainCache {
@@ -265,6 +290,15 @@ abstract class LdapCache {
             @Override
             public double getHitRate() { return 0; }
 
+            @Override
+            public long getHitCount() { return 0; }
+
+            @Override
+            public long getMissCount() { return 0; }
+
+            @Override
+            public double getLoadTime() { return 0; }
+
             @Override
             public int getSize() { return 0; }
 
@@ -284,6 +318,15 @@ abstract class LdapCache {
             @Override
             public double getHitRate() { return 0; }
 
+            @Override
+            public long getHitCount() { return 0; }
+
+            @Override
+            public long getMissCount() { return 0; }
+
+            @Override
+            public double getLoadTime() { return 0; }
+
             @Override
             public int getSize() { return 0; }
 
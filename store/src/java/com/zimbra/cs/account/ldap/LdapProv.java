@@ -75,10 +75,13 @@ public abstract class LdapProv extends Provisioning {
 
     public abstract int getAccountCacheSize();
     public abstract double getAccountCacheHitRate();
+    public abstract long getAccountCacheMissCount();
+    public abstract double getAccountCacheLoadTime();
     public abstract int getCosCacheSize();
     public abstract double getCosCacheHitRate();
     public abstract int getDomainCacheSize();
     public abstract double getDomainCacheHitRate();
+    public abstract double getDomainCacheLoadTime();
     public abstract int getServerCacheSize();
     public abstract double getServerCacheHitRate();
     public abstract int getUCServiceCacheSize();
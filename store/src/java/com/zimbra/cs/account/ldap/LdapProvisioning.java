@@ -120,6 +120,7 @@ import com.zimbra.cs.account.auth.AuthContext;
 import com.zimbra.cs.account.auth.AuthMechanism;
 import com.zimbra.cs.account.auth.AuthMechanism.AuthMech;
 import com.zimbra.cs.account.auth.PasswordUtil;
+import com.zimbra.cs.account.cache.ConcurrentEntryCache.Refresher;
 import com.zimbra.cs.account.cache.DomainCache;
 import com.zimbra.cs.account.cache.DomainCache.GetFromDomainCacheOption;
 import com.zimbra.cs.account.cache.IAccountCache;
@@ -285,7 +286,12 @@ public class LdapProvisioning extends LdapProv implements CacheAwareProvisioning
         }
 
         if (this.useCache) {
-            cache = new LdapCache.LRUMapCache();
+            cache = new LdapCache.LRUMapCache(new Refresher<NamedEntry>() {
+                @Override
+                public void refresh(NamedEntry entry) throws ServiceException {
+                    reload(entry, false);
+                }
+            });
         } else {
             cache = new LdapCache.NoopCache();
         }
@@ -327,6 +333,12 @@ public class LdapProvisioning extends LdapProv implements CacheAwareProvisioning
     @Override
     public double getAccountCacheHitRate() { return accountCache.getHitRate(); }
 
+    @Override
+    public long getAccountCacheMissCount() { return accountCache.getMissCount(); }
+
+    @Override
+    public double getAccountCacheLoadTime() { return accountCache.getLoadTime(); }
+
     @Override
     public int getCosCacheSize() { return cosCache.getSize(); }
 
@@ -339,6 +351,9 @@ public class LdapProvisioning extends LdapProv implements CacheAwareProvisioning
     @Override
     public double getDomainCacheHitRate() { return domainCache.getHitRate(); }
 
+    @Override
+    public double getDomainCacheLoadTime() { return domainCache.getLoadTime(); }
+
     @Override
     public int getServerCacheSize() { return serverCache.getSize(); }
 
@@ -557,7 +572,10 @@ public class LdapProvisioning extends LdapProv implements CacheAwareProvisioning
 
     private void modifyEphemeralAttrs(Entry entry, Map<String, Object> attrs, Map<String, AttributeInfo> ephemeralAttrMap) throws ServiceException {
         EphemeralLocation location = new LdapEntryLocation(entry);
-        EphemeralStore store = EphemeralStore.getFactory().getStore();
+        EphemeralStore.Factory factory = EphemeralStore.getFactory();
+        EphemeralStore store = factory.getStore();
+        EphemeralChanges changes = new EphemeralChanges();
+        EphemeralChanges writeBehindChanges = new EphemeralChanges();
         for (Map.Entry<String, Object> e: attrs.entrySet()) {
             String key = e.getKey();
             Object value = e.getValue();
@@ -571,6 +589,7 @@ public class LdapProvisioning extends LdapProv implements CacheAwareProvisioning
             AttributeInfo ai = ephemeralAttrMap.get(key.toLowerCase());
             AttributeConverter converter = null;
             if (ai == null) { continue; }
+            EphemeralChanges target = EphemeralStore.Factory.isWriteBehind(key) ? writeBehindChanges : changes;
             if (ai.isDynamic()) {
                 converter = AttributeMigration.getConverter(key);
                 if (converter == null) {
@@ -587,22 +606,48 @@ public class LdapProvisioning extends LdapProv implements CacheAwareProvisioning
                     for (Object v : values) {
                         if (v == null) { continue; }
                         String s = v.toString();
-                        handleEphemeralAttrChange(store, key, s, location, ai, converter, doAdd, doRemove);
+                        handleEphemeralAttrChange(factory, key, s, location, ai, converter, doAdd, doRemove, target);
                     }
                 }
             } else if (value instanceof Map) {
                 throw ServiceException.FAILURE("Map is not a supported value type", null);
             } else if (value != null) {
                 String s = value.toString();
-                handleEphemeralAttrChange(store, key, s, location, ai, converter, doAdd, doRemove);
+                handleEphemeralAttrChange(factory, key, s, location, ai, converter, doAdd, doRemove, target);
             } else {
                 ZimbraLog.ephemeral.warn("Ephemeral attribute %s doesn't support deletion by key; only deletion by key+value is supported", key);
             }
         }
+        changes.writeTo(store, location);
+        if (!writeBehindChanges.isEmpty()) {
+            writeBehindChanges.writeTo(factory.getWriteBehindStore(), location);
+        }
+    }
+
+    /**
+     * Sets and adds of ephemeral attributes, collected so that they reach the EphemeralStore in one batch.
+     */
+    private static final class EphemeralChanges {
+        private final List<EphemeralInput> sets = new ArrayList<EphemeralInput>();
+        private final List<EphemeralInput> updates = new ArrayList<EphemeralInput>();
+
+        boolean isEmpty() {
+            return sets.isEmpty() && updates.isEmpty();
+        }
+
+        void writeTo(EphemeralStore store, EphemeralLocation location) throws ServiceException {
+            if (!sets.isEmpty()) {
+                store.set(sets, location);
+            }
+            if (!updates.isEmpty()) {
+                store.update(updates, location);
+            }
+        }
     }
 
-    private void handleEphemeralAttrChange(EphemeralStore store, String key, String value, EphemeralLocation location,
-            AttributeInfo ai, AttributeConverter converter, boolean doAdd, boolean doRemove)
+    private void handleEphemeralAttrChange(EphemeralStore.Factory factory, String key, String value,
+            EphemeralLocation location, AttributeInfo ai, AttributeConverter converter, boolean doAdd, boolean doRemove,
+            EphemeralChanges changes)
     throws ServiceException {
         EphemeralInput input;
         if (ai.isDynamic()) {
@@ -615,13 +660,13 @@ public class LdapProvisioning extends LdapProv implements CacheAwareProvisioning
             input = new EphemeralInput(new EphemeralKey(key), value.toString());
         }
         if (doAdd) {
-            store.update(input, location);
+            changes.updates.add(input);
         }
         else if (doRemove) {
-            store.delete(input.getEphemeralKey(), (String) input.getValue(), location);
+            factory.getStore(key).delete(input.getEphemeralKey(), (String) input.getValue(), location);
         }
         else {
-            store.set(input, location);
+            changes.sets.add(input);
         }
     }
 
@@ -79,6 +79,7 @@ import com.zimbra.cs.mailbox.Metadata;
 import com.zimbra.cs.mailbox.Note;
 import com.zimbra.cs.mailbox.Tag;
 import com.zimbra.cs.mailbox.VirtualConversation;
+import com.zimbra.cs.mailbox.util.ModifiedItemsCursor;
 import com.zimbra.cs.mailbox.util.TagUtil;
 import com.zimbra.cs.mailbox.util.TypedIdList;
 import com.zimbra.cs.pop3.Pop3Message;
@@ -2770,7 +2771,7 @@ public class DbMailItem {
                 stmt.setInt(pos++, sinceDate);
             }
 
-            return populateWithResultSetData(visible, stmt, lastDeleteSync);
+            return populateWithResultSetData(visible, stmt, lastDeleteSync, null);
         } catch (SQLException e) {
             throw ServiceException.FAILURE("getting items modified since " + lastSync, e);
         } finally {
@@ -2778,6 +2779,53 @@ public class DbMailItem {
         }
     }
 
+    /**
+     * Returns the next page of at most {@code limit} items modified after the {@code cursor} position, in
+     * (mod_metadata, id) order, and moves the cursor past the last row read.  Otherwise the same as
+     * {@link #getModifiedItems(Mailbox, MailItem.Type, long, int, Set, int, int)}.
+     */
+    public static Pair<List<Integer>,TypedIdList> getModifiedItems(Mailbox mbox, MailItem.Type type,
+            ModifiedItemsCursor cursor, int sinceDate, Set<Integer> visible, int lastDeleteSync, int limit)
+    throws ServiceException {
+        if (Mailbox.isCachedType(type)) {
+            throw ServiceException.INVALID_REQUEST("folders and tags must be retrieved from cache", null);
+        }
+        DbConnection conn = mbox.getOperationConnection();
+        PreparedStatement stmt = null;
+        try {
+            String typeConstraint = type == MailItem.Type.UNKNOWN ? "type NOT IN " + NON_SYNCABLE_TYPES : typeIn(type);
+            String dateConstraint = sinceDate > 0 ? "date > ? AND " : "";
+            StringBuilder buf = new StringBuilder();
+            // the redundant "mod_metadata >= ?" keeps this a range scan on the mod_metadata index
+            buf.append("SELECT id, type, folder_id, uuid, mod_metadata, prev_folders" +
+                " FROM " + getMailItemTableName(mbox) +
+                " WHERE " + IN_THIS_MAILBOX_AND + "mod_metadata >= ? AND (mod_metadata > ? OR id > ?) AND " +
+                dateConstraint + typeConstraint +
+                " ORDER BY mod_metadata, id");
+            if (limit > 0 && Db.supports(Db.Capability.LIMIT_CLAUSE)) {
+                buf.append(" ").append(Db.getInstance().limit(limit));
+            }
+
+            stmt = conn.prepareStatement(buf.toString());
+            int pos = 1;
+            pos = setMailboxId(stmt, mbox, pos);
+            stmt.setInt(pos++, cursor.getModSequence());
+            stmt.setInt(pos++, cursor.getModSequence());
+            stmt.setInt(pos++, cursor.getItemId());
+            if (sinceDate > 0) {
+                stmt.setInt(pos++, sinceDate);
+            }
+
+            Pair<List<Integer>, TypedIdList> page = populateWithResultSetData(visible, stmt, lastDeleteSync, cursor);
+            cursor.endPage(limit);
+            return page;
+        } catch (SQLException e) {
+            throw ServiceException.FAILURE("getting items modified since " + cursor, e);
+        } finally {
+            DbPool.closeStatement(stmt);
+        }
+    }
+
     public static Pair<List<Map<String,String>>, TypedIdList> getItemsChangedSinceDate(Mailbox mbox,
         MailItem.Type type,  int changeDate, Set<Integer> visible)
         throws ServiceException {
@@ -2854,13 +2902,16 @@ public class DbMailItem {
      * @throws ServiceException
      */
     private static Pair<List<Integer>, TypedIdList> populateWithResultSetData(Set<Integer> visible,
-        PreparedStatement stmt, int lastDeleteSync) throws SQLException, ServiceException {
+        PreparedStatement stmt, int lastDeleteSync, ModifiedItemsCursor cursor) throws SQLException, ServiceException {
         List<Integer> modified = new ArrayList<Integer>();
         TypedIdList missed = new TypedIdList();
         ResultSet rs = null;
         try {
             rs = stmt.executeQuery();
             while (rs.next()) {
+                if (cursor != null) {
+                    cursor.advance(rs.getInt(5), rs.getInt(1));
+                }
                 if (visible == null || visible.contains(rs.getInt(3))) {
                     modified.add(rs.getInt(1));
                 } else {
@@ -1,8 +1,15 @@
 package com.zimbra.cs.ephemeral;
 
 import java.io.PrintWriter;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import org.apache.commons.cli.CommandLine;
 import org.apache.commons.cli.CommandLineParser;
@@ -11,6 +18,9 @@ import org.apache.commons.cli.HelpFormatter;
 import org.apache.commons.cli.Options;
 
 import com.google.common.annotations.VisibleForTesting;
+import com.google.common.collect.Sets;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.zimbra.common.localconfig.LC;
 import com.zimbra.common.service.ServiceException;
 import com.zimbra.common.util.CliUtil;
 import com.zimbra.common.util.Log.Level;
@@ -39,6 +49,7 @@ public abstract class EphemeralStore {
     private static boolean autoloadExtensions = true;
     private static Map<String, String> factories = new HashMap<String, String>();
     private static Factory factory;
+    private static ExecutorService asyncExecutor;
     protected AttributeEncoder encoder;
     static {
         factories.put("ldap", LdapEphemeralStore.Factory.class.getName());
@@ -125,6 +136,122 @@ public abstract class EphemeralStore {
     public abstract void deleteData(EphemeralLocation location)
             throws ServiceException;
 
+    /**
+     * Get the values for several keys at the same location. The results are in
+     * the same order as the keys. Backends that can fetch several keys in one
+     * round-trip should override this; by default the keys are fetched one at
+     * a time.
+     *
+     * @param keys
+     * @param location
+     * @return
+     * @throws ServiceException
+     */
+    public List<EphemeralResult> get(List<EphemeralKey> keys, EphemeralLocation location)
+            throws ServiceException {
+        List<EphemeralResult> results = new ArrayList<EphemeralResult>(keys.size());
+        for (EphemeralKey key : keys) {
+            results.add(get(key, location));
+        }
+        return results;
+    }
+
+    /**
+     * Set several values at the same location, as if by calling
+     * {@link #set(EphemeralInput, EphemeralLocation)} for each in order.
+     * Backends that can write several keys in one round-trip should override this.
+     *
+     * @param inputs
+     * @param location
+     * @throws ServiceException
+     */
+    public void set(List<EphemeralInput> inputs, EphemeralLocation location)
+            throws ServiceException {
+        for (EphemeralInput input : inputs) {
+            set(input, location);
+        }
+    }
+
+    /**
+     * Add several values at the same location, as if by calling
+     * {@link #update(EphemeralInput, EphemeralLocation)} for each in order.
+     * Backends that can write several keys in one round-trip should override this.
+     *
+     * @param inputs
+     * @param location
+     * @throws ServiceException
+     */
+    public void update(List<EphemeralInput> inputs, EphemeralLocation location)
+            throws ServiceException {
+        for (EphemeralInput input : inputs) {
+            update(input, location);
+        }
+    }
+
+    /**
+     * Delete the expired values of several keys at the same location.
+     * Backends that can delete several keys in one round-trip should override this.
+     *
+     * @param keys
+     * @param location
+     * @throws ServiceException
+     */
+    public void purgeExpired(List<EphemeralKey> keys, EphemeralLocation location)
+            throws ServiceException {
+        for (EphemeralKey key : keys) {
+            purgeExpired(key, location);
+        }
+    }
+
+    /**
+     * Asynchronous version of {@link #get(List, EphemeralLocation)}. The store
+     * instance must not be used for anything else until the future is done.
+     */
+    public Future<List<EphemeralResult>> getAsync(final List<EphemeralKey> keys, final EphemeralLocation location) {
+        return getAsyncExecutor().submit(new Callable<List<EphemeralResult>>() {
+            @Override
+            public List<EphemeralResult> call() throws ServiceException {
+                return get(keys, location);
+            }
+        });
+    }
+
+    /**
+     * Asynchronous version of {@link #set(List, EphemeralLocation)}. The store
+     * instance must not be used for anything else until the future is done.
+     */
+    public Future<Void> setAsync(final List<EphemeralInput> inputs, final EphemeralLocation location) {
+        return getAsyncExecutor().submit(new Callable<Void>() {
+            @Override
+            public Void call() throws ServiceException {
+                set(inputs, location);
+                return null;
+            }
+        });
+    }
+
+    /**
+     * Asynchronous version of {@link #update(List, EphemeralLocation)}. The store
+     * instance must not be used for anything else until the future is done.
+     */
+    public Future<Void> updateAsync(final List<EphemeralInput> inputs, final EphemeralLocation location) {
+        return getAsyncExecutor().submit(new Callable<Void>() {
+            @Override
+            public Void call() throws ServiceException {
+                update(inputs, location);
+                return null;
+            }
+        });
+    }
+
+    private static synchronized ExecutorService getAsyncExecutor() {
+        if (asyncExecutor == null) {
+            asyncExecutor = Executors.newFixedThreadPool(Math.max(LC.ephemeral_async_threads.intValue(), 1),
+                    new ThreadFactoryBuilder().setNameFormat("EphemeralStore-%d").setDaemon(true).build());
+        }
+        return asyncExecutor;
+    }
+
     public static void registerFactory(String prefix, String klass) {
         if (factories.containsKey(prefix)) {
             ZimbraLog.ephemeral.warn("Replacing ephemeral factory class '%s' registered for '%s' with '%s'",
@@ -175,6 +302,7 @@ public abstract class EphemeralStore {
 
     public static final void clearFactory() {
         if (factory != null) {
+            factory.flushWriteBehind();
             factory.shutdown();
         }
         factory = null;
@@ -408,7 +536,56 @@ public abstract class EphemeralStore {
 
     public static abstract class Factory {
 
+        private static final Set<String> WRITE_BEHIND_ATTRS = Sets.newHashSet(
+                LC.ephemeral_write_behind_attrs.value().toLowerCase().split("\\s*,\\s*"));
+
         private BackendType backendType = BackendType.primary;
+        private WriteBehindEphemeralStore writeBehindStore;
+
+        /**
+         * Returns a store that holds {@code set} and {@code update} calls for up to
+         * {@code ephemeral_write_behind_window_ms} and merges repeated writes to the
+         * same key before passing them on to this factory's stores in batches.
+         * Only suitable for values that don't need to be seen by other servers
+         * right away; reads through the returned store do see them. If the window
+         * is 0, this is the same as {@link #getStore()}.
+         */
+        public synchronized EphemeralStore getWriteBehindStore() {
+            long window = LC.ephemeral_write_behind_window_ms.longValue();
+            if (window <= 0) {
+                return getStore();
+            }
+            if (writeBehindStore == null) {
+                writeBehindStore = new WriteBehindEphemeralStore(this, window);
+            }
+            return writeBehindStore;
+        }
+
+        /**
+         * Returns true if the attribute is listed in {@code ephemeral_write_behind_attrs}.
+         */
+        public static boolean isWriteBehind(String attrName) {
+            return WRITE_BEHIND_ATTRS.contains(attrName.toLowerCase());
+        }
+
+        /**
+         * Returns the store that reads, writes and deletes of the attribute go through:
+         * the write-behind store for attributes listed in {@code ephemeral_write_behind_attrs},
+         * so that their pending writes are seen and ordered, otherwise {@link #getStore()}.
+         */
+        public EphemeralStore getStore(String attrName) {
+            return isWriteBehind(attrName) ? getWriteBehindStore() : getStore();
+        }
+
+        /**
+         * Writes out anything held by the write-behind store. Call before {@link #shutdown()}.
+         */
+        public synchronized void flushWriteBehind() {
+            if (writeBehindStore != null) {
+                writeBehindStore.close();
+                writeBehindStore = null;
+            }
+        }
 
         public void setBackendType(BackendType type) {
             backendType = type;
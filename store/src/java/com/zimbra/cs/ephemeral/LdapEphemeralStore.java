@@ -2,8 +2,11 @@ package com.zimbra.cs.ephemeral;
 
 import java.util.Arrays;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
 import com.google.common.annotations.VisibleForTesting;
 import com.zimbra.common.service.ServiceException;
@@ -57,6 +60,42 @@ public class LdapEphemeralStore extends EphemeralStore {
         helper.executeChange();
     }
 
+    /**
+     * Sets all the values with a single LDAP modify.
+     */
+    @Override
+    public void set(List<EphemeralInput> inputs, EphemeralLocation location)
+            throws ServiceException {
+        helper.setLocation(location);
+        // a later value for the same attribute replaces an earlier one, as it would with separate calls
+        Map<String, String> changes = new LinkedHashMap<String, String>();
+        for (EphemeralInput input : inputs) {
+            changes.put(encodeKey(input, location), encodeValue(input, location));
+        }
+        for (Map.Entry<String, String> change : changes.entrySet()) {
+            helper.addChange(change.getKey(), change.getValue());
+        }
+        helper.executeChange();
+    }
+
+    /**
+     * Adds all the values with a single LDAP modify.
+     */
+    @Override
+    public void update(List<EphemeralInput> inputs, EphemeralLocation location)
+            throws ServiceException {
+        helper.setLocation(location);
+        Set<String> added = new HashSet<String>();
+        for (EphemeralInput input : inputs) {
+            String key = encodeKey(input, location);
+            String value = encodeValue(input, location);
+            if (added.add(key + '\0' + value)) {
+                helper.addChange("+" + key, value);
+            }
+        }
+        helper.executeChange();
+    }
+
     @Override
     public void delete(EphemeralKey key, String valueToDelete, EphemeralLocation location)
             throws ServiceException {
@@ -80,6 +119,27 @@ public class LdapEphemeralStore extends EphemeralStore {
         deleteInternal(helper, encodedKey, purged);
     }
 
+    /**
+     * Deletes the expired values of all the keys with a single LDAP modify.
+     */
+    @Override
+    public void purgeExpired(List<EphemeralKey> keys, EphemeralLocation location)
+            throws ServiceException {
+        helper.setLocation(location);
+        Set<String> purged = new HashSet<String>();
+        for (EphemeralKey key : keys) {
+            String encodedKey = encodeKey(key, location);
+            String[] values = helper.getMultiAttr(key.getKey());
+            DynamicResultsHelper iteratorHelper = new DynamicResultsHelper(key, location, encoder, callback, true);
+            for (String value : iteratorHelper.purge(Arrays.asList(values))) {
+                if (purged.add(encodedKey + '\0' + value)) {
+                    helper.addChange("-" + encodedKey, value);
+                }
+            }
+        }
+        helper.executeChange();
+    }
+
     @Override
     public boolean has(EphemeralKey key, EphemeralLocation location)
             throws ServiceException {
@@ -0,0 +1,271 @@
+package com.zimbra.cs.ephemeral;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TimerTask;
+
+import com.google.common.base.Joiner;
+import com.google.common.base.Objects;
+import com.zimbra.common.service.ServiceException;
+import com.zimbra.common.util.ZimbraLog;
+import com.zimbra.cs.util.Zimbra;
+
+/**
+ * EphemeralStore that holds writes for a while and merges repeated writes to the
+ * same key before passing them on, in one batch per location, to the stores of
+ * the backing factory. A later {@code set} replaces an earlier {@code set} or
+ * {@code update} of the same key; an {@code update} with the same key and value
+ * as an earlier one replaces it. A read of a key whose only pending write is a
+ * {@code set} is answered from the pending value; other reads write out whatever
+ * is pending for their location first. A delete drops pending {@code update}s of
+ * the same value and writes out the rest of the location before deleting, so a
+ * later flush can't bring the value back.
+ *
+ * Pending writes are lost if the server goes down without
+ * {@link EphemeralStore.Factory#flushWriteBehind()} being called, so this is only
+ * meant for values like the last logon timestamp.
+ */
+class WriteBehindEphemeralStore extends EphemeralStore {
+
+    private final EphemeralStore.Factory backend;
+    private final TimerTask flushTask;
+    /** held while pending writes are passed on, so that they reach the backend in order */
+    private final Object writeLock = new Object();
+    private Map<String, PendingWrites> pending = new LinkedHashMap<String, PendingWrites>();
+
+    WriteBehindEphemeralStore(EphemeralStore.Factory backend, long window) {
+        this.backend = backend;
+        this.flushTask = new TimerTask() {
+            @Override
+            public void run() {
+                flush();
+            }
+        };
+        Zimbra.sTimer.schedule(flushTask, window, window);
+    }
+
+    private static String locationKey(EphemeralLocation location) {
+        return Joiner.on("|").join(location.getLocation());
+    }
+
+    private PendingWrites getPendingWrites(EphemeralLocation location) {
+        String key = locationKey(location);
+        PendingWrites writes = pending.get(key);
+        if (writes == null) {
+            writes = new PendingWrites(location);
+            pending.put(key, writes);
+        }
+        return writes;
+    }
+
+    @Override
+    public void set(EphemeralInput input, EphemeralLocation location) throws ServiceException {
+        synchronized (this) {
+            getPendingWrites(location).set(input);
+        }
+    }
+
+    @Override
+    public void update(EphemeralInput input, EphemeralLocation location) throws ServiceException {
+        synchronized (this) {
+            getPendingWrites(location).update(input);
+        }
+    }
+
+    @Override
+    public void set(List<EphemeralInput> inputs, EphemeralLocation location) throws ServiceException {
+        synchronized (this) {
+            PendingWrites writes = getPendingWrites(location);
+            for (EphemeralInput input : inputs) {
+                writes.set(input);
+            }
+        }
+    }
+
+    @Override
+    public void update(List<EphemeralInput> inputs, EphemeralLocation location) throws ServiceException {
+        synchronized (this) {
+            PendingWrites writes = getPendingWrites(location);
+            for (EphemeralInput input : inputs) {
+                writes.update(input);
+            }
+        }
+    }
+
+    @Override
+    public EphemeralResult get(EphemeralKey key, EphemeralLocation location) throws ServiceException {
+        synchronized (this) {
+            PendingWrites writes = pending.get(locationKey(location));
+            EphemeralInput input = writes == null ? null : writes.getPendingSet(key);
+            if (input != null) {
+                return new EphemeralResult(key, input.getValue().toString());
+            }
+        }
+        flush(location);
+        return backend.getStore().get(key, location);
+    }
+
+    @Override
+    public List<EphemeralResult> get(List<EphemeralKey> keys, EphemeralLocation location) throws ServiceException {
+        flush(location);
+        return backend.getStore().get(keys, location);
+    }
+
+    @Override
+    public boolean has(EphemeralKey key, EphemeralLocation location) throws ServiceException {
+        flush(location);
+        return backend.getStore().has(key, location);
+    }
+
+    @Override
+    public void delete(EphemeralKey key, String value, EphemeralLocation location) throws ServiceException {
+        synchronized (writeLock) {
+            synchronized (this) {
+                PendingWrites writes = pending.get(locationKey(location));
+                if (writes != null) {
+                    writes.cancelUpdate(key, value);
+                }
+            }
+            flush(location);
+            backend.getStore().delete(key, value, location);
+        }
+    }
+
+    @Override
+    public void purgeExpired(EphemeralKey key, EphemeralLocation location) throws ServiceException {
+        flush(location);
+        backend.getStore().purgeExpired(key, location);
+    }
+
+    @Override
+    public void purgeExpired(List<EphemeralKey> keys, EphemeralLocation location) throws ServiceException {
+        flush(location);
+        backend.getStore().purgeExpired(keys, location);
+    }
+
+    @Override
+    public void deleteData(EphemeralLocation location) throws ServiceException {
+        synchronized (writeLock) {
+            synchronized (this) {
+                // nothing left to write them to
+                pending.remove(locationKey(location));
+            }
+            backend.getStore().deleteData(location);
+        }
+    }
+
+    /**
+     * Writes out what is pending for the location.
+     */
+    void flush(EphemeralLocation location) throws ServiceException {
+        synchronized (writeLock) {
+            PendingWrites writes;
+            synchronized (this) {
+                writes = pending.remove(locationKey(location));
+            }
+            if (writes != null) {
+                writes.writeTo(backend.getStore());
+            }
+        }
+    }
+
+    /**
+     * Writes out everything that is pending.
+     */
+    void flush() {
+        synchronized (writeLock) {
+            Map<String, PendingWrites> toWrite;
+            synchronized (this) {
+                if (pending.isEmpty()) {
+                    return;
+                }
+                toWrite = pending;
+                pending = new LinkedHashMap<String, PendingWrites>();
+            }
+            EphemeralStore store = backend.getStore();
+            for (PendingWrites writes : toWrite.values()) {
+                try {
+                    writes.writeTo(store);
+                } catch (ServiceException e) {
+                    ZimbraLog.ephemeral.warn("unable to write out pending ephemeral changes for %s",
+                            locationKey(writes.location), e);
+                }
+            }
+        }
+    }
+
+    /**
+     * Stops the periodic flush and writes out everything that is pending.
+     */
+    void close() {
+        flushTask.cancel();
+        flush();
+    }
+
+    private static final class PendingWrites {
+        final EphemeralLocation location;
+        /** by key name, since a set replaces every value of the key */
+        final Map<String, EphemeralInput> sets = new LinkedHashMap<String, EphemeralInput>();
+        /** by key name, dynamic component and value */
+        final Map<List<Object>, EphemeralInput> updates = new LinkedHashMap<List<Object>, EphemeralInput>();
+
+        PendingWrites(EphemeralLocation location) {
+            this.location = location;
+        }
+
+        void set(EphemeralInput input) {
+            String name = input.getEphemeralKey().getKey();
+            for (Iterator<List<Object>> it = updates.keySet().iterator(); it.hasNext();) {
+                if (name.equals(it.next().get(0))) {
+                    it.remove();
+                }
+            }
+            sets.remove(name);
+            sets.put(name, input);
+        }
+
+        void update(EphemeralInput input) {
+            EphemeralKey key = input.getEphemeralKey();
+            List<Object> id = Arrays.<Object>asList(key.getKey(), key.getDynamicComponent(),
+                    String.valueOf(input.getValue()));
+            updates.remove(id);
+            updates.put(id, input);
+        }
+
+        /**
+         * Returns the pending {@code set} of the key, or null if there is none or
+         * there are also pending {@code update}s of the key.
+         */
+        EphemeralInput getPendingSet(EphemeralKey key) {
+            EphemeralInput input = sets.get(key.getKey());
+            if (input == null ||
+                    !Objects.equal(input.getEphemeralKey().getDynamicComponent(), key.getDynamicComponent())) {
+                return null;
+            }
+            for (List<Object> id : updates.keySet()) {
+                if (key.getKey().equals(id.get(0))) {
+                    return null;
+                }
+            }
+            return input;
+        }
+
+        void cancelUpdate(EphemeralKey key, String value) {
+            updates.remove(Arrays.<Object>asList(key.getKey(), key.getDynamicComponent(), value));
+        }
+
+        void writeTo(EphemeralStore store) throws ServiceException {
+            // sets go first; any update still pending for the same key came after it
+            if (!sets.isEmpty()) {
+                store.set(new ArrayList<EphemeralInput>(sets.values()), location);
+            }
+            if (!updates.isEmpty()) {
+                store.update(new ArrayList<EphemeralInput>(updates.values()), location);
+            }
+        }
+    }
+}
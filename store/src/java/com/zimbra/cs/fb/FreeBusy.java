@@ -133,8 +133,14 @@ public class FreeBusy implements Iterable<FreeBusy.Interval> {
             //
             //         Remember this "uber-start" interval, we'll need it below
             //
-            Interval uberStart;
-            for (uberStart = mHead; uberStart.hasNext(); uberStart = uberStart.getNext())
+            //         Intervals are mostly added in start time order, so start looking
+            //         where the last one went in rather than at the head.
+            //
+            Interval uberStart = mHead;
+            if (mLastAdded != null && mLastAdded.mStart <= toAdd.mStart) {
+                uberStart = mLastAdded;
+            }
+            for (; uberStart.hasNext(); uberStart = uberStart.getNext())
             {
                 if (uberStart.getNext().mStart > toAdd.mStart) {
                     break;
@@ -235,6 +241,8 @@ public class FreeBusy implements Iterable<FreeBusy.Interval> {
             if (cur.hasPrev()) {
                 cur = cur.getPrev();
             }
+            // nothing at or before cur is removed below
+            mLastAdded = cur;
             
             while (cur.getNext() != null) {
                 assert(cur.getNext().mStart == cur.mEnd);
@@ -266,6 +274,7 @@ public class FreeBusy implements Iterable<FreeBusy.Interval> {
         long mEnd;
         
         Interval mHead;
+        Interval mLastAdded;  // still in the list; where the last addInterval() started merging
     }
     
     public static class Interval {
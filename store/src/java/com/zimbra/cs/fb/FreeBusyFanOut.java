@@ -0,0 +1,118 @@
+/*
+ * ***** BEGIN LICENSE BLOCK *****
+ * Zimbra Collaboration Suite Server
+ * Copyright (C) 2017 Synacor, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software Foundation,
+ * version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <https://www.gnu.org/licenses/>.
+ * ***** END LICENSE BLOCK *****
+ */
+package com.zimbra.cs.fb;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.zimbra.common.localconfig.LC;
+import com.zimbra.common.util.ZimbraLog;
+
+/**
+ * Runs the per-target (or per-server) parts of a free/busy query side by side on a shared pool of
+ * {@code freebusy_query_threads} threads, so that a query for many attendees takes about as long as its slowest
+ * target rather than the sum of all of them. At most {@code freebusy_query_queue_size} tasks wait for a pool thread;
+ * when the queue is full, the calling thread runs the task itself, so a busy pool slows queries down rather than
+ * leaving their targets to time out in the queue. Whatever hasn't finished {@code freebusy_query_timeout_ms} after
+ * the caller is done handing out and running tasks is given up on and answered with the caller's fallback. Tasks
+ * that are already running are left to finish rather than interrupted, as an interrupt in the middle of mailbox or
+ * file I/O can close channels shared with other threads; only tasks that haven't started yet are cancelled.
+ */
+final class FreeBusyFanOut {
+
+    private static final int THREADS = LC.freebusy_query_threads.intValue();
+    private static final long TIMEOUT = LC.freebusy_query_timeout_ms.longValue();
+    private static final int QUEUE_SIZE = LC.freebusy_query_queue_size.intValue();
+
+    private static ExecutorService executor;
+
+    private FreeBusyFanOut() {
+    }
+
+    private static synchronized ExecutorService getExecutor() {
+        if (executor == null) {
+            executor = new ThreadPoolExecutor(THREADS, THREADS, 0L, TimeUnit.MILLISECONDS,
+                    new ArrayBlockingQueue<Runnable>(Math.max(QUEUE_SIZE, 1)),
+                    new ThreadFactoryBuilder().setNameFormat("FreeBusyQuery-%d").setDaemon(true).build());
+        }
+        return executor;
+    }
+
+    /**
+     * Runs the tasks and returns their results in the same order. A task that throws, or that doesn't finish in
+     * time, is replaced by the fallback at the same position. Tasks are run on the calling thread when there is
+     * only one, the pool is disabled or its queue is full.
+     */
+    static <T> List<T> invokeAll(List<? extends Callable<T>> tasks, List<T> fallbacks) {
+        List<T> results = new ArrayList<T>(tasks.size());
+        if (THREADS <= 0 || tasks.size() <= 1) {
+            for (int i = 0; i < tasks.size(); i++) {
+                try {
+                    results.add(tasks.get(i).call());
+                } catch (Exception e) {
+                    ZimbraLog.fb.warn("free/busy task failed", e);
+                    results.add(fallbacks.get(i));
+                }
+            }
+            return results;
+        }
+
+        List<Future<T>> futures = new ArrayList<Future<T>>(tasks.size());
+        for (Callable<T> task : tasks) {
+            try {
+                futures.add(getExecutor().submit(task));
+            } catch (RejectedExecutionException e) {
+                FutureTask<T> inline = new FutureTask<T>(task);
+                inline.run();
+                futures.add(inline);
+            }
+        }
+        long deadline = System.currentTimeMillis() + TIMEOUT;
+        for (int i = 0; i < futures.size(); i++) {
+            Future<T> future = futures.get(i);
+            try {
+                results.add(future.get(Math.max(deadline - System.currentTimeMillis(), 0), TimeUnit.MILLISECONDS));
+            } catch (TimeoutException e) {
+                ZimbraLog.fb.warn("free/busy task timed out after %dms", TIMEOUT);
+                future.cancel(false);
+                results.add(fallbacks.get(i));
+            } catch (ExecutionException e) {
+                ZimbraLog.fb.warn("free/busy task failed", e.getCause());
+                results.add(fallbacks.get(i));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                for (Future<T> rest : futures.subList(i, futures.size())) {
+                    rest.cancel(false);
+                }
+                results.addAll(fallbacks.subList(i, fallbacks.size()));
+                break;
+            }
+        }
+        return results;
+    }
+}
@@ -19,6 +19,8 @@ package com.zimbra.cs.fb;
 import java.util.Collection;
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.Callable;
 
 import javax.servlet.http.HttpServletRequest;
 
@@ -113,41 +115,66 @@ public class FreeBusyQuery {
     }
     
     private void prepareRequests(ArrayList<FreeBusy> local, RemoteFreeBusyProvider remote, ArrayList<String> external) {
-    	for (String id : mTargets.keySet()) {
-    		Account acct = mTargets.get(id);
-    		try {
-    		    if (acct == null || acct.isAccountExternal() ||
-    		        acct.getBooleanAttr(Provisioning.A_zimbraFreebusyLocalMailboxNotActive, false)) {
-    		        external.add(id);
-    		        continue;
-    		    }
-    		    int folder = mTargetFolder.get(id);
-    		
-        		if (Provisioning.onLocalServer(acct)) {
-        		    Mailbox mbox = MailboxManager.getInstance().getMailboxByAccount(acct);
-        		    OperationContext octxt = null;
-        		    if (mCtxt != null && mCtxt.getAuthToken() != null)
-        		        octxt = new OperationContext(mCtxt.getAuthToken());
-        		    else if (mRequestor != null)
-        		        octxt = new OperationContext(mRequestor);
-        		    else
-        		        octxt = new OperationContext(GuestAccount.ANONYMOUS_ACCT);
-                    Appointment exAppt = null;
-                    if (mExApptUid != null) {
-                        CalendarItem ci = mbox.getCalendarItemByUid(octxt, mExApptUid);
-                        if (ci instanceof Appointment)
-                            exAppt = (Appointment) ci;
-                    }
-        		    local.add(mbox.getFreeBusy(octxt, id, mStart, mEnd, folder, exAppt));
-        		} else {
-        			remote.addFreeBusyRequest(mRequestor, acct, id, mStart, mEnd, folder);
-        		}
-    		} catch (ServiceException e) {
+        List<String> localIds = new ArrayList<String>();
+        for (String id : mTargets.keySet()) {
+            Account acct = mTargets.get(id);
+            try {
+                if (acct == null || acct.isAccountExternal() ||
+                    acct.getBooleanAttr(Provisioning.A_zimbraFreebusyLocalMailboxNotActive, false)) {
+                    external.add(id);
+                    continue;
+                }
+                if (Provisioning.onLocalServer(acct)) {
+                    localIds.add(id);
+                } else {
+                    remote.addFreeBusyRequest(mRequestor, acct, id, mStart, mEnd, mTargetFolder.get(id));
+                }
+            } catch (ServiceException e) {
                 ZimbraLog.fb.error("cannot get free/busy for "+id, e);
-    		}
-    	}
+            }
+        }
+
+        // look the local mailboxes up side by side; a mailbox that takes too long shows up as no data
+        List<Callable<FreeBusy>> tasks = new ArrayList<Callable<FreeBusy>>(localIds.size());
+        List<FreeBusy> fallbacks = new ArrayList<FreeBusy>(localIds.size());
+        for (final String id : localIds) {
+            tasks.add(new Callable<FreeBusy>() {
+                @Override
+                public FreeBusy call() {
+                    try {
+                        return getLocalFreeBusy(id);
+                    } catch (ServiceException e) {
+                        ZimbraLog.fb.error("cannot get free/busy for "+id, e);
+                        return null;
+                    }
+                }
+            });
+            fallbacks.add(FreeBusy.nodataFreeBusy(id, mStart, mEnd));
+        }
+        for (FreeBusy fb : FreeBusyFanOut.invokeAll(tasks, fallbacks)) {
+            if (fb != null)
+                local.add(fb);
+        }
     }
-    
+
+    private FreeBusy getLocalFreeBusy(String id) throws ServiceException {
+        Mailbox mbox = MailboxManager.getInstance().getMailboxByAccount(mTargets.get(id));
+        OperationContext octxt = null;
+        if (mCtxt != null && mCtxt.getAuthToken() != null)
+            octxt = new OperationContext(mCtxt.getAuthToken());
+        else if (mRequestor != null)
+            octxt = new OperationContext(mRequestor);
+        else
+            octxt = new OperationContext(GuestAccount.ANONYMOUS_ACCT);
+        Appointment exAppt = null;
+        if (mExApptUid != null) {
+            CalendarItem ci = mbox.getCalendarItemByUid(octxt, mExApptUid);
+            if (ci instanceof Appointment)
+                exAppt = (Appointment) ci;
+        }
+        return mbox.getFreeBusy(octxt, id, mStart, mEnd, mTargetFolder.get(id), exAppt);
+    }
+
     private int getHopcount() {        
         int hopcount = -1;
         String hopcountStr = mReq.getHeader("X-ZIMBRA-FREEBUSY-HOPCOUNT");
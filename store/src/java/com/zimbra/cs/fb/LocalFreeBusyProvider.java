@@ -17,7 +17,7 @@
 package com.zimbra.cs.fb;
 
 import java.util.ArrayList;
-import java.util.Iterator;
+import java.util.Collections;
 import java.util.List;
 
 import com.zimbra.common.localconfig.LC;
@@ -37,10 +37,8 @@ import com.zimbra.cs.mailbox.MailItem;
 import com.zimbra.cs.mailbox.Mailbox;
 import com.zimbra.cs.mailbox.MailboxManager;
 import com.zimbra.cs.mailbox.calendar.IcalXmlStrMap;
+import com.zimbra.cs.mailbox.calendar.cache.BusyTimeline;
 import com.zimbra.cs.mailbox.calendar.cache.CalSummaryCache.CalendarDataResult;
-import com.zimbra.cs.mailbox.calendar.cache.CalendarItemData;
-import com.zimbra.cs.mailbox.calendar.cache.FullInstanceData;
-import com.zimbra.cs.mailbox.calendar.cache.InstanceData;
 
 public class LocalFreeBusyProvider {
 
@@ -66,15 +64,27 @@ public class LocalFreeBusyProvider {
 
         IntervalList intervals = new IntervalList(start, end);
 
-        List<CalendarDataResult> calDataResultList;
+        // Busy timelines are kept for the range the calendar summary cache covers; outside of it, work them
+        // out from the summaries on the fly.
+        List<BusyTimeline> timelines;
         if (folder == FreeBusyQuery.CALENDAR_FOLDER_ALL) {
-            calDataResultList = mbox.getAllCalendarsSummaryForRange(null, MailItem.Type.APPOINTMENT, start, end);
+            timelines = mbox.getAllBusyTimelinesForRange(null, start, end);
+            if (timelines == null) {
+                timelines = new ArrayList<BusyTimeline>();
+                for (CalendarDataResult result :
+                        mbox.getAllCalendarsSummaryForRange(null, MailItem.Type.APPOINTMENT, start, end)) {
+                    timelines.add(BusyTimeline.build(result.data));
+                }
+            }
         } else {
-            calDataResultList = new ArrayList<CalendarDataResult>(1);
-            calDataResultList.add(mbox.getCalendarSummaryForRange(null, folder, MailItem.Type.APPOINTMENT, start, end));
+            BusyTimeline timeline = mbox.getBusyTimelineForRange(null, folder, start, end);
+            if (timeline == null)
+                timeline = BusyTimeline.build(
+                        mbox.getCalendarSummaryForRange(null, folder, MailItem.Type.APPOINTMENT, start, end).data);
+            timelines = Collections.singletonList(timeline);
         }
-        for (CalendarDataResult result : calDataResultList) {
-            int folderId = result.data.getFolderId();
+        for (BusyTimeline timeline : timelines) {
+            int folderId = timeline.getFolderId();
             Folder f = mbox.getFolderById(null, folderId);
             if ((f.getFlagBitmask() & Flag.BITMASK_EXCLUDE_FREEBUSY) != 0) {
                 ZimbraLog.fb.debug("Calendar '%s' id=%s ignored - has EXCLUDE_FREEBUSY flag set", f.getName(), folderId);
@@ -89,55 +99,15 @@ public class LocalFreeBusyProvider {
                         f.getName(), folderId, folderFBAllowed, accountAceAllowed);
                 continue;
             }
-            for (Iterator<CalendarItemData> iter = result.data.calendarItemIterator(); iter.hasNext(); ) {
-                CalendarItemData appt = iter.next();
-                int apptId = appt.getCalItemId();
+            // spans come in start time order, which lets the interval list pick up where the last one went in
+            for (BusyTimeline.Span span : timeline.getSpans(start, end)) {
+                int apptId = span.getCalItemId();
                 if (apptId == exApptId)
                     continue;
-                FullInstanceData defaultInstance = appt.getDefaultData();
-                if (defaultInstance == null)
-                    continue;
-                boolean isTransparent = false;
-                String transp = defaultInstance.getTransparency();
-                isTransparent = IcalXmlStrMap.TRANSP_TRANSPARENT.equals(transp);
-                long defaultDuration = 0;
-                if (defaultInstance.getDuration() != null)
-                    defaultDuration = defaultInstance.getDuration().longValue();
-                String defaultFreeBusy = defaultInstance.getFreeBusyActual();
-                for (Iterator<InstanceData> instIter = appt.instanceIterator(); instIter.hasNext(); ) {
-                    InstanceData instance = instIter.next();
-                    long instStart = instance.getDtStart() != null ? instance.getDtStart().longValue() : 0;
-                    // Skip instances that are outside the time range but were returned due to alarm being in range.
-                    if (instStart >= end)
-                        continue;
-                    long dur = defaultDuration;
-                    if (instance.getDuration() != null)
-                        dur = instance.getDuration().longValue();
-                    if (dur <= 0)  // Only consider instances with non-zero, positive duration.
-                        continue;
-                    long instEnd = instStart + dur;
-
-                    long recurIdDt = 0;
-                    // Skip if instance is TRANSPARENT to free/busy searches.
-                    if (instance instanceof FullInstanceData) {
-                        FullInstanceData fullInst = (FullInstanceData) instance;
-                        String transpInst = fullInst.getTransparency();
-                        recurIdDt = fullInst.getRecurrenceId();
-                        if (IcalXmlStrMap.TRANSP_TRANSPARENT.equals(transpInst))
-                            continue;
-                    } else if (isTransparent) {
-                        continue;
-                    }
-
-                    String freeBusy = instance.getFreeBusyActual();
-                    if (freeBusy == null)
-                        freeBusy = defaultFreeBusy;
-                    if (!IcalXmlStrMap.FBTYPE_FREE.equals(freeBusy)) {
-                        FBInstance fbInst = new FBInstance(freeBusy, instStart, instEnd, apptId, recurIdDt);
-                        Interval ival = new Interval(instStart, instEnd, freeBusy, fbInst);
-                        intervals.addInterval(ival);
-                    }
-                }
+                FBInstance fbInst = new FBInstance(span.getFreeBusy(), span.getStart(), span.getEnd(), apptId,
+                        span.getRecurrenceId());
+                Interval ival = new Interval(span.getStart(), span.getEnd(), span.getFreeBusy(), fbInst);
+                intervals.addInterval(ival);
             }
         }
         if (!accountAceAllowed && numAllowedFolders == 0 && !LC.freebusy_disable_nodata_status.booleanValue()) {
@@ -20,12 +20,14 @@ import java.io.IOException;
 import java.io.UnsupportedEncodingException;
 import java.net.URLEncoder;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.EnumSet;
 import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.Callable;
 
 import javax.servlet.http.HttpServletRequest;
 
@@ -105,61 +107,79 @@ public class RemoteFreeBusyProvider extends FreeBusyProvider {
 
     @Override
     public List<FreeBusy> getResults() {
+        // one GET per account, all of them side by side
+        List<Callable<List<FreeBusy>>> tasks = new ArrayList<Callable<List<FreeBusy>>>(mRequestList.size());
+        List<List<FreeBusy>> fallbacks = new ArrayList<List<FreeBusy>>(mRequestList.size());
+        for (final Request req : mRequestList) {
+            tasks.add(new Callable<List<FreeBusy>>() {
+                @Override
+                public List<FreeBusy> call() {
+                    return getResults(req);
+                }
+            });
+            fallbacks.add(Collections.singletonList(FreeBusy.nodataFreeBusy(req.email, mStart, mEnd)));
+        }
+        ArrayList<FreeBusy> fbList = new ArrayList<FreeBusy>();
+        for (List<FreeBusy> result : FreeBusyFanOut.invokeAll(tasks, fallbacks)) {
+            fbList.addAll(result);
+        }
+        return fbList;
+    }
+
+    private List<FreeBusy> getResults(Request req) {
         ArrayList<FreeBusy> fbList = new ArrayList<FreeBusy>();
-        for (Request req : mRequestList) {
-            HttpMethod method = null;
-            Account acct = (Account)req.data;
+        HttpMethod method = null;
+        Account acct = (Account)req.data;
+        try {
+            StringBuilder targetUrl = new StringBuilder();
+            targetUrl.append(UserServlet.getRestUrl(acct));
+            targetUrl.append("/Calendar?fmt=ifb");
+            targetUrl.append("&start=").append(mStart);
+            targetUrl.append("&end=").append(mEnd);
+            if (req.folder != FreeBusyQuery.CALENDAR_FOLDER_ALL)
+                targetUrl.append("&").append(UserServlet.QP_FREEBUSY_CALENDAR).append("=").append(req.folder);
+            try {
+                if (mExApptUid != null)
+                    targetUrl.append("&").append(UserServlet.QP_EXUID).append("=").append(URLEncoder.encode(mExApptUid, "UTF-8"));
+            } catch (UnsupportedEncodingException e) {}
+            String authToken = null;
             try {
-                StringBuilder targetUrl = new StringBuilder();
-                targetUrl.append(UserServlet.getRestUrl(acct));
-                targetUrl.append("/Calendar?fmt=ifb");
-                targetUrl.append("&start=").append(mStart);
-                targetUrl.append("&end=").append(mEnd);
-                if (req.folder != FreeBusyQuery.CALENDAR_FOLDER_ALL)
-                    targetUrl.append("&").append(UserServlet.QP_FREEBUSY_CALENDAR).append("=").append(req.folder);
+                if (mSoapCtxt != null)
+                    authToken = mSoapCtxt.getAuthToken().getEncoded();
+            } catch (AuthTokenException e) {}
+            if (authToken != null) {
+                targetUrl.append("&").append(ZimbraServlet.QP_ZAUTHTOKEN).append("=");
                 try {
-                    if (mExApptUid != null)
-                        targetUrl.append("&").append(UserServlet.QP_EXUID).append("=").append(URLEncoder.encode(mExApptUid, "UTF-8"));
+                    targetUrl.append(URLEncoder.encode(authToken, "UTF-8"));
                 } catch (UnsupportedEncodingException e) {}
-                String authToken = null;
-                try {
-                    if (mSoapCtxt != null)
-                        authToken = mSoapCtxt.getAuthToken().getEncoded();
-                } catch (AuthTokenException e) {}
-                if (authToken != null) {
-                    targetUrl.append("&").append(ZimbraServlet.QP_ZAUTHTOKEN).append("=");
-                    try {
-                        targetUrl.append(URLEncoder.encode(authToken, "UTF-8"));
-                    } catch (UnsupportedEncodingException e) {}
-                }
-                HttpClient client = ZimbraHttpConnectionManager.getInternalHttpConnMgr().newHttpClient();
-                HttpProxyUtil.configureProxy(client);
-                method = new GetMethod(targetUrl.toString());
-                String fbMsg;
-                try {
-                    HttpClientUtil.executeMethod(client, method);
-                    byte[] buf = ByteUtil.getContent(method.getResponseBodyAsStream(), 0);
-                    fbMsg = new String(buf, "UTF-8");
-                } catch (IOException ex) {
-                    // ignore this recipient and go on
-                    fbMsg = null;
-                }
-                if (fbMsg != null) {
-                    ZVCalendar cal = ZCalendarBuilder.build(fbMsg);
-                    for (Iterator<ZComponent> compIter = cal.getComponentIterator(); compIter.hasNext(); ) {
-                        ZComponent comp = compIter.next();
-                        if (ICalTok.VFREEBUSY.equals(comp.getTok())) {
-                            FreeBusy fb = FreeBusy.parse(comp);
-                            fbList.add(fb);
-                        }
+            }
+            HttpClient client = ZimbraHttpConnectionManager.getInternalHttpConnMgr().newHttpClient();
+            HttpProxyUtil.configureProxy(client);
+            method = new GetMethod(targetUrl.toString());
+            String fbMsg;
+            try {
+                HttpClientUtil.executeMethod(client, method);
+                byte[] buf = ByteUtil.getContent(method.getResponseBodyAsStream(), 0);
+                fbMsg = new String(buf, "UTF-8");
+            } catch (IOException ex) {
+                // ignore this recipient and go on
+                fbMsg = null;
+            }
+            if (fbMsg != null) {
+                ZVCalendar cal = ZCalendarBuilder.build(fbMsg);
+                for (Iterator<ZComponent> compIter = cal.getComponentIterator(); compIter.hasNext(); ) {
+                    ZComponent comp = compIter.next();
+                    if (ICalTok.VFREEBUSY.equals(comp.getTok())) {
+                        FreeBusy fb = FreeBusy.parse(comp);
+                        fbList.add(fb);
                     }
                 }
-            } catch (ServiceException e) {
-                ZimbraLog.fb.warn("can't get free/busy information for "+req.email, e);
-            } finally {
-                if (method != null)
-                    method.releaseConnection();
             }
+        } catch (ServiceException e) {
+            ZimbraLog.fb.warn("can't get free/busy information for "+req.email, e);
+        } finally {
+            if (method != null)
+                method.releaseConnection();
         }
         return fbList;
     }
@@ -211,36 +231,64 @@ public class RemoteFreeBusyProvider extends FreeBusyProvider {
 
     @Override
     public void addResults(Element response) {
-        Provisioning prov = Provisioning.getInstance();
+        // proxy to all the servers side by side, then add their answers in order on this thread
+        List<String[]> servers = new ArrayList<String[]>(mRemoteAccountMap.size());
+        List<Callable<List<Element>>> tasks = new ArrayList<Callable<List<Element>>>(mRemoteAccountMap.size());
         for (Map.Entry<String, StringBuilder> entry : mRemoteAccountMap.entrySet()) {
             // String server = entry.getKey();
-            String paramStr = entry.getValue().toString();
-            String[] idStrs = paramStr.split(",");
+            final String paramStr = entry.getValue().toString();
+            final String[] idStrs = paramStr.split(",");
+            servers.add(idStrs);
+            tasks.add(new Callable<List<Element>>() {
+                @Override
+                public List<Element> call() {
+                    return proxyRequest(paramStr, idStrs);
+                }
+            });
+        }
+        List<List<Element>> results =
+            FreeBusyFanOut.invokeAll(tasks, Collections.<List<Element>>nCopies(tasks.size(), null));
+        for (int i = 0; i < results.size(); i++) {
+            List<Element> result = results.get(i);
+            if (result == null) {
+                addFailedAccounts(response, servers.get(i));
+                continue;
+            }
+            for (Element thisElt : result)
+                response.addElement(thisElt);
+        }
+    }
 
-            try {
-                Element req = mSoapCtxt.getRequestProtocol().getFactory().createElement(MailConstants.GET_FREE_BUSY_REQUEST);
-                req.addAttribute(MailConstants.A_CAL_START_TIME, mStart);
-                req.addAttribute(MailConstants.A_CAL_END_TIME, mEnd);
-                req.addAttribute(MailConstants.A_UID, paramStr);
+    /**
+     * Returns the free/busy elements of the accounts from their server, or null if the request failed.
+     */
+    private List<Element> proxyRequest(String paramStr, String[] idStrs) {
+        Provisioning prov = Provisioning.getInstance();
+        List<Element> elts = new ArrayList<Element>();
+        try {
+            Element req = mSoapCtxt.getRequestProtocol().getFactory().createElement(MailConstants.GET_FREE_BUSY_REQUEST);
+            req.addAttribute(MailConstants.A_CAL_START_TIME, mStart);
+            req.addAttribute(MailConstants.A_CAL_END_TIME, mEnd);
+            req.addAttribute(MailConstants.A_UID, paramStr);
 
-                // hack: use the ID of the first user
-                Account acct = prov.get(AccountBy.name, idStrs[0], mSoapCtxt.getAuthToken());
-                if (acct == null)
-                    acct = prov.get(AccountBy.id, idStrs[0], mSoapCtxt.getAuthToken());
-                if (acct != null) {
-                    Element remoteResponse = proxyRequest(req, acct.getId(), mSoapCtxt);
-                    for (Element thisElt : remoteResponse.listElements())
-                        response.addElement(thisElt.detach());
-                } else {
-                    ZimbraLog.fb.debug("Account " + idStrs[0] + " not found while searching free/busy");
-                }
-            } catch (SoapFaultException e) {
-                ZimbraLog.fb.error("cannot get free/busy for "+idStrs[0], e);
-                addFailedAccounts(response, idStrs);
-            } catch (ServiceException e) {
-                ZimbraLog.fb.error("cannot get free/busy for "+idStrs[0], e);
-                addFailedAccounts(response, idStrs);
+            // hack: use the ID of the first user
+            Account acct = prov.get(AccountBy.name, idStrs[0], mSoapCtxt.getAuthToken());
+            if (acct == null)
+                acct = prov.get(AccountBy.id, idStrs[0], mSoapCtxt.getAuthToken());
+            if (acct != null) {
+                Element remoteResponse = proxyRequest(req, acct.getId(), mSoapCtxt);
+                for (Element thisElt : remoteResponse.listElements())
+                    elts.add(thisElt.detach());
+            } else {
+                ZimbraLog.fb.debug("Account " + idStrs[0] + " not found while searching free/busy");
             }
+            return elts;
+        } catch (SoapFaultException e) {
+            ZimbraLog.fb.error("cannot get free/busy for "+idStrs[0], e);
+            return null;
+        } catch (ServiceException e) {
+            ZimbraLog.fb.error("cannot get free/busy for "+idStrs[0], e);
+            return null;
         }
     }
 
@@ -16,12 +16,14 @@
  */
 package com.zimbra.cs.imap;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.util.Arrays;
 import java.util.Comparator;
 
@@ -89,20 +91,18 @@ final class DiskImapCache implements ImapSessionManager.Cache<String, ImapFolder
         if (pagefile.exists()) {
             return;
         }
-        FileOutputStream fos = null;
-        ObjectOutputStream oos = null;
+        OutputStream os = null;
         try {
-            oos = new ObjectOutputStream(fos = new FileOutputStream(pagefile));
-            synchronized (folder) {
-                oos.writeObject(folder);
-            }
+            os = new BufferedOutputStream(new FileOutputStream(pagefile));
+            ImapFolderCodec.encode(folder, os);
+            os.close();
+            os = null;
         } catch (IOException e) {
-            ByteUtil.closeStream(oos);
-            ByteUtil.closeStream(fos);
+            ByteUtil.closeStream(os);
+            os = null;
             pagefile.delete();
         } finally {
-            ByteUtil.closeStream(oos);
-            ByteUtil.closeStream(fos);
+            ByteUtil.closeStream(os);
         }
     }
 
@@ -112,20 +112,18 @@ final class DiskImapCache implements ImapSessionManager.Cache<String, ImapFolder
         if (!pagefile.exists()) {
             return null;
         }
-        FileInputStream fis = null;
-        ObjectInputStream ois = null;
+        InputStream is = null;
         try {
-            // read serialized ImapFolder from cache
-            ois = new ObjectInputStream(fis = new FileInputStream(pagefile));
-            return (ImapFolder) ois.readObject();
+            // read encoded ImapFolder from cache; files in an older format fail the codec's version check
+            is = new BufferedInputStream(new FileInputStream(pagefile));
+            return ImapFolderCodec.decode(is);
         } catch (Exception e) {
-            ByteUtil.closeStream(ois);
-            ByteUtil.closeStream(fis);
+            ByteUtil.closeStream(is);
+            is = null;
             pagefile.delete();
             return null;
         } finally {
-            ByteUtil.closeStream(ois);
-            ByteUtil.closeStream(fis);
+            ByteUtil.closeStream(is);
         }
     }
 
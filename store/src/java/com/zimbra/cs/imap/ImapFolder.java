@@ -123,6 +123,16 @@ public final class ImapFolder implements ImapListener.ImapFolderData, java.io.Se
         this.tags = new ImapFlagCache();
     }
 
+    /** Reconstitutes a cached folder decoded by {@link ImapFolderCodec}.  As with a Java-deserialized
+     *  instance, the folder has no session state until {@link #restore} is called. */
+    ImapFolder(int folderId, int uidValidity, String query, Set<MailItem.Type> typeConstraint, ImapFlagCache tags) {
+        this.folderId = folderId;
+        this.uidValidity = uidValidity;
+        this.query = query;
+        this.typeConstraint = typeConstraint;
+        this.tags = tags;
+    }
+
     protected void setInitialSize() {
         SessionData sdata = sessionData;
         if (sdata != null) {
@@ -294,6 +304,16 @@ public final class ImapFolder implements ImapListener.ImapFolderData, java.io.Se
         }
     }
 
+    /** Returns the live message list; callers must hold the folder's monitor while iterating it. */
+    List<ImapMessage> getMessageList() {
+        return sequence;
+    }
+
+    /** Appends a message decoded by {@link ImapFolderCodec}, which supplies them in sequence order. */
+    void appendDecoded(ImapMessage i4msg) {
+        sequence.add(i4msg);
+    }
+
     public ImapPath getPath() {
         return path;
     }
@@ -0,0 +1,331 @@
+/*
+ * ***** BEGIN LICENSE BLOCK *****
+ * Zimbra Collaboration Suite Server
+ * Copyright (C) 2017 Synacor, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software Foundation,
+ * version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <https://www.gnu.org/licenses/>.
+ * ***** END LICENSE BLOCK *****
+ */
+package com.zimbra.cs.imap;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import com.zimbra.cs.imap.ImapFlagCache.ImapFlag;
+import com.zimbra.cs.mailbox.MailItem;
+
+/**
+ * Compact binary encoding of an {@link ImapFolder} snapshot for the IMAP session caches.
+ * <p>
+ * Unlike Java serialization, the format carries no class descriptors and needs no reflection.  Messages are
+ * written in sequence order with their UIDs as zigzag varint gaps from the previous UID, and each message
+ * leads with a bit-packed header saying which of its remaining fields differ from their common defaults, so
+ * a message with no flags, no tags and {@code msgId == imapUid} costs two bytes.  Tag names are interned
+ * inline: the first use of a name writes it, later uses write its index.
+ * <p>
+ * Layout (version 1): magic {@code 'I' '4'}, version byte, folder id, UID validity, query, type constraint,
+ * flag cache, message count, messages.  Readers reject any other magic or version, which the cache backends
+ * treat as a miss, so a format change only costs a cold re-SELECT.
+ */
+final class ImapFolderCodec {
+    private static final int MAGIC_0 = 'I', MAGIC_1 = '4';
+    static final int VERSION = 1;
+
+    // per-message header bits
+    private static final int MSG_ID_DIFFERS   = 0x01;
+    private static final int MSG_SEQ_DIFFERS  = 0x02;
+    private static final int MSG_HAS_SFLAGS   = 0x04;
+    private static final int MSG_HAS_FLAGS    = 0x08;
+    private static final int MSG_HAS_TAGS     = 0x10;
+
+    // per-flag attribute bits
+    private static final int FLAG_POSITIVE  = 0x01;
+    private static final int FLAG_PERMANENT = 0x02;
+    private static final int FLAG_LISTED    = 0x04;
+
+    private ImapFolderCodec() {
+    }
+
+    static byte[] encode(ImapFolder folder) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(64 + folder.getSize() * 4);
+        encode(folder, out);
+        return out.toByteArray();
+    }
+
+    static ImapFolder decode(byte[] data) throws IOException {
+        return decode(new ByteArrayInputStream(data));
+    }
+
+    /** Writes the folder to {@code out}.  The stream is neither buffered nor closed here. */
+    static void encode(ImapFolder folder, OutputStream out) throws IOException {
+        out.write(MAGIC_0);
+        out.write(MAGIC_1);
+        out.write(VERSION);
+        synchronized (folder) {
+            writeSignedVarint(out, folder.getId());
+            writeSignedVarint(out, folder.getUIDValidity());
+            writeString(out, folder.getQuery());
+            writeTypes(out, folder.getTypeConstraint());
+            writeFlags(out, folder.getTagset());
+
+            List<ImapMessage> sequence = folder.getMessageList();
+            int size = sequence.size();
+            writeVarint(out, size);
+            Map<String, Integer> tagIndex = new HashMap<String, Integer>();
+            int prevUid = 0;
+            for (int i = 0; i < size; i++) {
+                ImapMessage i4msg = sequence.get(i);
+                int header = 0;
+                if (i4msg.msgId != i4msg.imapUid) {
+                    header |= MSG_ID_DIFFERS;
+                }
+                if (i4msg.sequence != i + 1) {
+                    header |= MSG_SEQ_DIFFERS;
+                }
+                if (i4msg.sflags != 0) {
+                    header |= MSG_HAS_SFLAGS;
+                }
+                if (i4msg.flags != 0) {
+                    header |= MSG_HAS_FLAGS;
+                }
+                if (i4msg.tags != null) {
+                    header |= MSG_HAS_TAGS;
+                }
+                out.write(header);
+                writeSignedVarint(out, i4msg.imapUid - prevUid);
+                prevUid = i4msg.imapUid;
+                if ((header & MSG_ID_DIFFERS) != 0) {
+                    writeSignedVarint(out, i4msg.msgId - i4msg.imapUid);
+                }
+                if ((header & MSG_SEQ_DIFFERS) != 0) {
+                    writeSignedVarint(out, i4msg.sequence - (i + 1));
+                }
+                if ((header & MSG_HAS_SFLAGS) != 0) {
+                    writeVarint(out, i4msg.sflags & 0xFFFF);
+                }
+                if ((header & MSG_HAS_FLAGS) != 0) {
+                    writeVarint(out, i4msg.flags);
+                }
+                if ((header & MSG_HAS_TAGS) != 0) {
+                    writeVarint(out, i4msg.tags.length);
+                    for (String tag : i4msg.tags) {
+                        Integer index = tagIndex.get(tag);
+                        if (index == null) {
+                            // an index one past the end of the table introduces a new name
+                            writeVarint(out, tagIndex.size());
+                            writeString(out, tag);
+                            tagIndex.put(tag, tagIndex.size());
+                        } else {
+                            writeVarint(out, index);
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    /** Reads a folder written by {@link #encode(ImapFolder, OutputStream)}.  The stream is not closed here. */
+    static ImapFolder decode(InputStream in) throws IOException {
+        if (read(in) != MAGIC_0 || read(in) != MAGIC_1) {
+            throw new IOException("not an encoded IMAP folder");
+        }
+        int version = read(in);
+        if (version != VERSION) {
+            throw new IOException("unsupported IMAP folder encoding version " + version);
+        }
+        int folderId = readSignedVarint(in);
+        int uidValidity = readSignedVarint(in);
+        String query = readString(in);
+        Set<MailItem.Type> types = readTypes(in);
+        ImapFlagCache flags = readFlags(in);
+
+        int size = readVarint(in);
+        if (size < 0) {
+            throw new IOException("invalid message count " + size);
+        }
+        ImapFolder folder = new ImapFolder(folderId, uidValidity, query, types, flags);
+        List<String> tagTable = new ArrayList<String>();
+        int uid = 0;
+        for (int i = 0; i < size; i++) {
+            int header = read(in);
+            uid += readSignedVarint(in);
+            int msgId = (header & MSG_ID_DIFFERS) != 0 ? uid + readSignedVarint(in) : uid;
+            int seq = (header & MSG_SEQ_DIFFERS) != 0 ? i + 1 + readSignedVarint(in) : i + 1;
+            short sflags = (header & MSG_HAS_SFLAGS) != 0 ? (short) readVarint(in) : 0;
+            int msgFlags = (header & MSG_HAS_FLAGS) != 0 ? readVarint(in) : 0;
+            String[] tags = null;
+            if ((header & MSG_HAS_TAGS) != 0) {
+                tags = new String[readVarint(in)];
+                for (int t = 0; t < tags.length; t++) {
+                    int index = readVarint(in);
+                    if (index == tagTable.size()) {
+                        tagTable.add(readString(in));
+                    } else if (index < 0 || index > tagTable.size()) {
+                        throw new IOException("invalid tag reference " + index);
+                    }
+                    tags[t] = tagTable.get(index);
+                }
+            }
+            folder.appendDecoded(new ImapMessage(seq, msgId, uid, sflags, msgFlags, tags));
+        }
+        return folder;
+    }
+
+    private static void writeTypes(OutputStream out, Set<MailItem.Type> types) throws IOException {
+        // the default constraint is shared, so keep sharing it after a round trip
+        if (types == ImapHandler.ITEM_TYPES) {
+            writeVarint(out, 0);
+            return;
+        }
+        writeVarint(out, types.size() + 1);
+        for (MailItem.Type type : types) {
+            out.write(type.toByte());
+        }
+    }
+
+    private static Set<MailItem.Type> readTypes(InputStream in) throws IOException {
+        int count = readVarint(in);
+        if (count == 0) {
+            return ImapHandler.ITEM_TYPES;
+        }
+        Set<MailItem.Type> types = EnumSet.noneOf(MailItem.Type.class);
+        for (int i = 1; i < count; i++) {
+            types.add(MailItem.Type.of((byte) read(in)));
+        }
+        return types;
+    }
+
+    private static void writeFlags(OutputStream out, ImapFlagCache flags) throws IOException {
+        List<ImapFlag> list = new ArrayList<ImapFlag>();
+        for (ImapFlag i4flag : flags) {
+            list.add(i4flag);
+        }
+        writeVarint(out, list.size());
+        for (ImapFlag i4flag : list) {
+            writeString(out, i4flag.mName);
+            writeString(out, i4flag.mImapName);
+            writeSignedVarint(out, i4flag.mId);
+            writeVarlong(out, i4flag.mBitmask);
+            out.write((i4flag.mPositive ? FLAG_POSITIVE : 0) | (i4flag.mPermanent ? FLAG_PERMANENT : 0) |
+                    (i4flag.mListed ? FLAG_LISTED : 0));
+        }
+    }
+
+    private static ImapFlagCache readFlags(InputStream in) throws IOException {
+        ImapFlagCache flags = new ImapFlagCache();
+        for (int count = readVarint(in); count > 0; count--) {
+            String name = readString(in);
+            String imapName = readString(in);
+            int id = readSignedVarint(in);
+            long bitmask = readVarlong(in);
+            int bits = read(in);
+            flags.cache(new ImapFlag(name, imapName, id, bitmask, (bits & FLAG_POSITIVE) != 0,
+                    (bits & FLAG_PERMANENT) != 0, (bits & FLAG_LISTED) != 0));
+        }
+        return flags;
+    }
+
+    private static void writeString(OutputStream out, String str) throws IOException {
+        if (str == null) {
+            writeVarint(out, 0);
+            return;
+        }
+        byte[] bytes = str.getBytes(StandardCharsets.UTF_8);
+        writeVarint(out, bytes.length + 1);
+        out.write(bytes);
+    }
+
+    private static String readString(InputStream in) throws IOException {
+        int len = readVarint(in) - 1;
+        if (len < 0) {
+            return null;
+        }
+        byte[] bytes = new byte[len];
+        int off = 0;
+        while (off < len) {
+            int n = in.read(bytes, off, len - off);
+            if (n < 0) {
+                throw new EOFException();
+            }
+            off += n;
+        }
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /** Writes {@code value} as an unsigned LEB128 varint; negative values take five bytes. */
+    static void writeVarint(OutputStream out, int value) throws IOException {
+        while ((value & ~0x7F) != 0) {
+            out.write((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        out.write(value);
+    }
+
+    static void writeSignedVarint(OutputStream out, int value) throws IOException {
+        writeVarint(out, (value << 1) ^ (value >> 31));
+    }
+
+    private static void writeVarlong(OutputStream out, long value) throws IOException {
+        while ((value & ~0x7FL) != 0) {
+            out.write((int) (value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        out.write((int) value);
+    }
+
+    static int readVarint(InputStream in) throws IOException {
+        int value = 0;
+        for (int shift = 0; shift < 35; shift += 7) {
+            int b = read(in);
+            value |= (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IOException("malformed varint");
+    }
+
+    static int readSignedVarint(InputStream in) throws IOException {
+        int raw = readVarint(in);
+        return (raw >>> 1) ^ -(raw & 1);
+    }
+
+    private static long readVarlong(InputStream in) throws IOException {
+        long value = 0;
+        for (int shift = 0; shift < 70; shift += 7) {
+            int b = read(in);
+            value |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IOException("malformed varlong");
+    }
+
+    private static int read(InputStream in) throws IOException {
+        int b = in.read();
+        if (b < 0) {
+            throw new EOFException();
+        }
+        return b;
+    }
+}
@@ -0,0 +1,63 @@
+/*
+ * ***** BEGIN LICENSE BLOCK *****
+ * Zimbra Collaboration Suite Server
+ * Copyright (C) 2017 Synacor, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software Foundation,
+ * version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <https://www.gnu.org/licenses/>.
+ * ***** END LICENSE BLOCK *****
+ */
+package com.zimbra.cs.imap;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import org.ehcache.core.spi.service.FileBasedPersistenceContext;
+import org.ehcache.spi.serialization.Serializer;
+import org.ehcache.spi.serialization.SerializerException;
+
+/**
+ * Ehcache value serializer for the IMAP session caches, using {@link ImapFolderCodec} instead of Java
+ * serialization.  Ehcache instantiates it reflectively, hence the public constructors.
+ */
+public final class ImapFolderSerializer implements Serializer<ImapFolder> {
+
+    public ImapFolderSerializer(ClassLoader loader) {
+    }
+
+    /** Used for the persistent inactive session cache; the codec keeps no state to persist. */
+    public ImapFolderSerializer(ClassLoader loader, FileBasedPersistenceContext context) {
+    }
+
+    @Override
+    public ByteBuffer serialize(ImapFolder folder) throws SerializerException {
+        try {
+            return ByteBuffer.wrap(ImapFolderCodec.encode(folder));
+        } catch (IOException e) {
+            throw new SerializerException("failed to encode IMAP folder " + folder.getId(), e);
+        }
+    }
+
+    @Override
+    public ImapFolder read(ByteBuffer binary) throws SerializerException {
+        byte[] data = new byte[binary.remaining()];
+        binary.duplicate().get(data);
+        try {
+            return ImapFolderCodec.decode(data);
+        } catch (IOException e) {
+            throw new SerializerException("failed to decode IMAP folder", e);
+        }
+    }
+
+    @Override
+    public boolean equals(ImapFolder folder, ByteBuffer binary) throws SerializerException {
+        return serialize(folder).equals(binary);
+    }
+}
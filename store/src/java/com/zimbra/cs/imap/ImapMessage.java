@@ -159,6 +159,16 @@ public class ImapMessage implements Comparable<ImapMessage>, java.io.Serializabl
         this.tags    = i4msg.tags;
     }
 
+    /** Rebuilds a message from its {@link ImapFolderCodec} encoding. */
+    ImapMessage(int sequence, int msgId, int imapUid, short sflags, int flags, String[] tags) {
+        this.sequence = sequence;
+        this.msgId    = msgId;
+        this.imapUid  = imapUid;
+        this.sflags   = sflags;
+        this.flags    = flags;
+        this.tags     = tags;
+    }
+
     ImapMessage(ImapMessageInfo msgInfo) {
         this.msgId   = msgInfo.getId();
         this.imapUid = msgInfo.getImapUid();
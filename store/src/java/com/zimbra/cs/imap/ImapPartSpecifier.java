@@ -18,10 +18,13 @@ package com.zimbra.cs.imap;
 
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.io.PrintStream;
+import java.nio.channels.FileChannel;
 import java.util.Enumeration;
 import java.util.List;
 
@@ -30,6 +33,8 @@ import javax.mail.internet.MimeBodyPart;
 import javax.mail.internet.MimeMessage;
 import javax.mail.internet.MimePart;
 
+import com.google.common.io.Closeables;
+import com.zimbra.common.localconfig.LC;
 import com.zimbra.common.mailbox.ZimbraMailItem;
 import com.zimbra.common.service.ServiceException;
 import com.zimbra.common.util.ByteUtil;
@@ -37,7 +42,10 @@ import com.zimbra.common.util.InputStreamWithSize;
 import com.zimbra.common.util.StartOutOfBoundsException;
 import com.zimbra.common.util.StringUtil;
 import com.zimbra.common.util.ZimbraLog;
+import com.zimbra.cs.mailbox.Message;
 import com.zimbra.cs.mime.Mime;
+import com.zimbra.cs.server.NioOutputStream;
+import com.zimbra.cs.store.MailboxBlob;
 
 class ImapPartSpecifier {
     static class BinaryDecodingException extends Exception {
@@ -182,7 +190,67 @@ class ImapPartSpecifier {
 
     void write(PrintStream ps, OutputStream os, ZimbraMailItem zmi)
     throws IOException, BinaryDecodingException, ServiceException {
-        write(ps, os, new ZimbraMailItemGettableInputStreamWithSize(zmi));
+        if (!transfer(ps, os, zmi)) {
+            write(ps, os, new ZimbraMailItemGettableInputStreamWithSize(zmi));
+        }
+    }
+
+    /**
+     * Sends a whole-message literal (e.g. <tt>BODY[]</tt> or <tt>RFC822</tt>) straight from
+     * the blob file to the socket, without copying it through the heap.  Only possible when
+     * the blob is stored uncompressed and the connection isn't encrypted.
+     *
+     * @return false if nothing was written and the content must be copied instead
+     */
+    private boolean transfer(PrintStream ps, OutputStream os, ZimbraMailItem zmi)
+    throws IOException, ServiceException {
+        if (!(os instanceof NioOutputStream) || !(zmi instanceof Message) || !isEntireMessage() ||
+                command.startsWith("BINARY") || !LC.imap_zero_copy_fetch.booleanValue()) {
+            return false;
+        }
+        NioOutputStream nos = (NioOutputStream) os;
+        if (!nos.isTransferSupported()) {
+            return false;
+        }
+        MailboxBlob mblob = ((Message) zmi).getBlob();
+        File file = mblob == null ? null : mblob.getRawFile();
+        if (file == null) {
+            return false;
+        }
+
+        long size = zmi.getSize();
+        long start = 0, length = size;
+        if (octetStart >= 0) {
+            if (octetStart >= size) {
+                return false;
+            }
+            start = octetStart;
+            length = Math.min(size, octetEnd) - octetStart;
+        }
+        if (length <= 0) {
+            return false;
+        }
+
+        FileChannel channel = null;
+        try {
+            channel = new FileInputStream(file).getChannel();
+            if (channel.size() != size) {
+                Closeables.closeQuietly(channel);
+                return false;
+            }
+        } catch (IOException e) {
+            ZimbraLog.imap.debug("unable to open %s for transfer; copying instead", file, e);
+            Closeables.closeQuietly(channel);
+            return false;
+        }
+
+        ps.print(this);
+        ps.print(" {");
+        ps.print(length);
+        ps.write('}');   /* } added to fix vim buggy brace matching code */
+        nos.write(ImapHandler.LINE_SEPARATOR_BYTES);
+        nos.transferFrom(channel, start, length);
+        return true;
     }
 
     void write(PrintStream ps, OutputStream os, MimeMessage mimeMsg)
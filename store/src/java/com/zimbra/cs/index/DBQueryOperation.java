@@ -32,7 +32,9 @@ import org.apache.lucene.document.Document;
 import org.apache.lucene.index.Term;
 
 import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Lists;
 import com.google.common.io.Closeables;
+import com.zimbra.common.localconfig.LC;
 import com.zimbra.common.service.ServiceException;
 import com.zimbra.common.util.ZimbraLog;
 import com.zimbra.cs.db.Db;
@@ -57,6 +59,11 @@ import com.zimbra.cs.service.util.ItemId;
  */
 public class DBQueryOperation extends QueryOperation {
     private static final int MAX_HITS_PER_CHUNK = 2000;
+    /**
+     * Number of rows scanned per DB query in a bitmap join.  Only IDs and sort keys are fetched, so this can be much
+     * larger than {@link #MAX_HITS_PER_CHUNK}.
+     */
+    private static final int BITMAP_JOIN_SCAN_SIZE = 10000;
 
     private DbSearchConstraints constraints = new DbSearchConstraints.Leaf();
     private int hitsOffset = 0; // this is the logical offset of the end of the mDBHits buffer
@@ -94,6 +101,13 @@ public class DBQueryOperation extends QueryOperation {
      */
     private LuceneQueryOperation.LuceneResultsChunk luceneChunk = null;
 
+    /**
+     * Index IDs of all the Lucene hits, when running a bitmap join.
+     */
+    private IdBitmap luceneIds = null;
+
+    private JoinQueryInfo joinInfo = null;
+
     /**
      * If set, then this is the AccountId of the owner of a folder we are searching. We track it at the toplevel here
      * b/c we need to make sure that we handle unions (don't combine) and intersections (always empty set) correctly.
@@ -108,7 +122,8 @@ public class DBQueryOperation extends QueryOperation {
         NO_RESULTS,
         NO_LUCENE,
         DB_FIRST,
-        LUCENE_FIRST;
+        LUCENE_FIRST,
+        BITMAP_JOIN;
     }
 
     /**
@@ -513,9 +528,15 @@ public class DBQueryOperation extends QueryOperation {
                         } else if (shouldExecuteDbFirst()) {
                             luceneOp.clearFilterClause();
                             executeMode = QueryExecuteMode.DB_FIRST;
+                        } else if (shouldExecuteBitmapJoin()) {
+                            executeMode = QueryExecuteMode.BITMAP_JOIN;
                         } else {
                             executeMode = QueryExecuteMode.LUCENE_FIRST;
                         }
+                        if (luceneOp != null) {
+                            joinInfo = new JoinQueryInfo(executeMode.name());
+                            queryInfo.add(joinInfo);
+                        }
                     }
 
                     getNextChunk();
@@ -659,9 +680,18 @@ public class DBQueryOperation extends QueryOperation {
     }
 
     private void dbSearch(List<DbSearch.Result> results, SortBy sort, int offset, int size) throws ServiceException {
+        dbSearch(results, fetch, sort, offset, size);
+    }
+
+    private void dbSearch(List<DbSearch.Result> results, DbSearch.FetchMode fetchMode, SortBy sort, int offset,
+            int size) throws ServiceException {
         long start = System.currentTimeMillis();
-        results.addAll(context.getMailbox().index.search(constraints, fetch, sort, offset, size,
-                context.getParams().inDumpster()));
+        List<DbSearch.Result> found = context.getMailbox().index.search(constraints, fetchMode, sort, offset, size,
+                context.getParams().inDumpster());
+        results.addAll(found);
+        if (joinInfo != null) {
+            joinInfo.addDbQuery(found.size());
+        }
         ZimbraLog.search.debug("DBSearch elapsed=%d", System.currentTimeMillis() - start);
     }
 
@@ -679,6 +709,51 @@ public class DBQueryOperation extends QueryOperation {
         return constraints.tryDbFirst(context.getMailbox());
     }
 
+    /**
+     * A bitmap join pays off when the Lucene hits would take several IN clause round trips to push into the DB, but
+     * scanning the DB constraints in sort order takes fewer queries than that.  The decision must not cost a query of
+     * its own, so it is made only when the DB hit count is already known or can be bounded from the folder counts.
+     */
+    private boolean shouldExecuteBitmapJoin() throws ServiceException {
+        int maxHits = LC.search_bitmap_join_max_hits.intValue();
+        if (maxHits <= 0) {
+            return false;
+        }
+        long luceneHits = luceneOp.getHitCount();
+        int inClauseSize = Math.min(Db.getINClauseBatchSize(), MAX_HITS_PER_CHUNK);
+        if (luceneHits <= Math.min(inClauseSize, hitsPerChunk) || luceneHits > maxHits) {
+            return false;
+        }
+        long luceneFirstQueries = luceneHits / inClauseSize + 1;
+        long dbHits = getEstimatedDbHitCount();
+        if (dbHits < 0) {
+            return false;
+        }
+        long scanQueries = dbHits / BITMAP_JOIN_SCAN_SIZE + 1;
+        ZimbraLog.search.debug("BitmapJoin estimate lucene=%d,luceneFirstQueries=%d,scanQueries=%d",
+                luceneHits, luceneFirstQueries, scanQueries);
+        return scanQueries <= luceneFirstQueries;
+    }
+
+    /**
+     * Returns the DB hit count if it has already been counted, otherwise the total item count of the target folders
+     * as an upper bound, or -1 if neither is available without a DB query.
+     */
+    private long getEstimatedDbHitCount() {
+        if (dbHitCount >= 0) {
+            return dbHitCount;
+        }
+        Set<Folder> targetFolders = getTargetFolders();
+        if (targetFolders == null || targetFolders.isEmpty()) {
+            return -1;
+        }
+        long total = 0;
+        for (Folder folder : targetFolders) {
+            total += folder.getItemCount();
+        }
+        return total;
+    }
+
     private void noLuceneGetNextChunk(SortBy sort) throws ServiceException {
         dbSearch(dbHits, sort, hitsOffset, hitsPerChunk);
 
@@ -791,6 +866,70 @@ public class DBQueryOperation extends QueryOperation {
         } while (dbHits.size() == 0 && !endOfHits);
     }
 
+    private void bitmapJoinGetNextChunk(SortBy sort) throws ServiceException {
+        DbSearchConstraints.Leaf sc = getTopLeafConstraint();
+        if (luceneIds == null) {
+            // (1) Get the index IDs of ALL the Lucene hits at once into a bitmap.  Only the index ID field is read; the
+            // documents are loaded for the matching items in (3).
+            luceneIds = luceneOp.getAllIndexIds();
+            joinInfo.setLuceneHits(luceneIds.size());
+            // we want only indexed items from db
+            sc.hasIndexId = Boolean.TRUE;
+        }
+        if (luceneIds.isEmpty()) {
+            endOfHits = true;
+            return;
+        }
+
+        do {
+            // (2) Walk the DB results in sort order, fetching only IDs, and keep the ones Lucene matched
+            List<DbSearch.Result> dbResults = new ArrayList<DbSearch.Result>();
+            dbSearch(dbResults, DbSearch.FetchMode.ID, sort, dbOffset, BITMAP_JOIN_SCAN_SIZE);
+            if (dbResults.size() < BITMAP_JOIN_SCAN_SIZE) {
+                endOfHits = true;
+            }
+            dbOffset += dbResults.size();
+
+            List<DbSearch.Result> matches = new ArrayList<DbSearch.Result>();
+            for (DbSearch.Result sr : dbResults) {
+                if (luceneIds.contains(sr.getIndexId())) {
+                    matches.add(sr);
+                }
+            }
+            if (matches.isEmpty()) {
+                continue;
+            }
+
+            // (3) Load the Lucene documents and fetch the requested data for the matching items only
+            List<Integer> matchIndexIds = new ArrayList<Integer>(matches.size());
+            for (DbSearch.Result sr : matches) {
+                matchIndexIds.add(sr.getIndexId());
+            }
+            luceneChunk = luceneOp.getHits(matchIndexIds);
+            if (fetch == DbSearch.FetchMode.ID) {
+                dbHits.addAll(matches);
+                continue;
+            }
+
+            // Each batch is a contiguous run of the sorted matches, so the batch results can simply be appended.  The
+            // matches already satisfy any item ID constraint of the query, which is swapped out for the batch IDs and
+            // restored afterwards.
+            Set<Integer> queryItemIds = new HashSet<Integer>(sc.itemIds);
+            for (List<DbSearch.Result> batch : Lists.partition(matches, Db.getINClauseBatchSize())) {
+                sc.itemIds.clear();
+                try {
+                    for (DbSearch.Result sr : batch) {
+                        sc.itemIds.add(sr.getId());
+                    }
+                    dbSearch(dbHits, sort, -1, -1);
+                } finally {
+                    sc.itemIds.clear();
+                    sc.itemIds.addAll(queryItemIds);
+                }
+            }
+        } while (dbHits.isEmpty() && !endOfHits);
+    }
+
     /**
      * Use all the search parameters (including the embedded {@link LuceneQueryOperation}) to get a chunk of search
      * results and put them into dbHits
@@ -834,6 +973,9 @@ public class DBQueryOperation extends QueryOperation {
                 case LUCENE_FIRST:
                     luceneFirstGetNextChunk(sort);
                     break;
+                case BITMAP_JOIN:
+                    bitmapJoinGetNextChunk(sort);
+                    break;
             }
 
             if (dbHits.size() == 0) {
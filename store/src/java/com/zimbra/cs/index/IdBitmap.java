@@ -0,0 +1,151 @@
+/*
+ * ***** BEGIN LICENSE BLOCK *****
+ * Zimbra Collaboration Suite Server
+ * Copyright (C) 2017 Synacor, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software Foundation,
+ * version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <https://www.gnu.org/licenses/>.
+ * ***** END LICENSE BLOCK *****
+ */
+package com.zimbra.cs.index;
+
+import java.util.Arrays;
+
+/**
+ * Compressed set of non-negative int IDs in the style of a roaring bitmap. IDs are bucketed by their high 16 bits.
+ * Each bucket stores its low 16 bits in a sorted array while sparse, and switches to a 65536-bit bitmap once it holds
+ * more than {@link #ARRAY_MAX} IDs, so memory stays proportional to the number of IDs however they are distributed.
+ */
+final class IdBitmap {
+    private static final int ARRAY_MAX = 4096;
+
+    private int[] keys = new int[4];
+    private Container[] containers = new Container[4];
+    private int buckets = 0;
+    private int size = 0;
+
+    /**
+     * @return true if the ID was not already present
+     */
+    boolean add(int id) {
+        assert id >= 0 : id;
+        int key = id >>> 16;
+        int pos = Arrays.binarySearch(keys, 0, buckets, key);
+        if (pos < 0) {
+            pos = -pos - 1;
+            if (buckets == keys.length) {
+                keys = Arrays.copyOf(keys, buckets * 2);
+                containers = Arrays.copyOf(containers, buckets * 2);
+            }
+            System.arraycopy(keys, pos, keys, pos + 1, buckets - pos);
+            System.arraycopy(containers, pos, containers, pos + 1, buckets - pos);
+            keys[pos] = key;
+            containers[pos] = new ArrayContainer();
+            buckets++;
+        }
+        Container container = containers[pos];
+        if (!container.add((char) id)) {
+            return false;
+        }
+        if (container instanceof ArrayContainer && container.size() > ARRAY_MAX) {
+            containers[pos] = ((ArrayContainer) container).toBitmap();
+        }
+        size++;
+        return true;
+    }
+
+    boolean contains(int id) {
+        if (id < 0) {
+            return false;
+        }
+        int pos = Arrays.binarySearch(keys, 0, buckets, id >>> 16);
+        return pos >= 0 && containers[pos].contains((char) id);
+    }
+
+    int size() {
+        return size;
+    }
+
+    boolean isEmpty() {
+        return size == 0;
+    }
+
+    private interface Container {
+        boolean add(char low);
+        boolean contains(char low);
+        int size();
+    }
+
+    private static final class ArrayContainer implements Container {
+        private char[] values = new char[4];
+        private int size = 0;
+
+        @Override
+        public boolean add(char low) {
+            int pos = Arrays.binarySearch(values, 0, size, low);
+            if (pos >= 0) {
+                return false;
+            }
+            pos = -pos - 1;
+            if (size == values.length) {
+                values = Arrays.copyOf(values, size * 2);
+            }
+            System.arraycopy(values, pos, values, pos + 1, size - pos);
+            values[pos] = low;
+            size++;
+            return true;
+        }
+
+        @Override
+        public boolean contains(char low) {
+            return Arrays.binarySearch(values, 0, size, low) >= 0;
+        }
+
+        @Override
+        public int size() {
+            return size;
+        }
+
+        BitmapContainer toBitmap() {
+            BitmapContainer bitmap = new BitmapContainer();
+            for (int i = 0; i < size; i++) {
+                bitmap.add(values[i]);
+            }
+            return bitmap;
+        }
+    }
+
+    private static final class BitmapContainer implements Container {
+        private final long[] bits = new long[1 << 10];
+        private int size = 0;
+
+        @Override
+        public boolean add(char low) {
+            long mask = 1L << low;
+            int word = low >>> 6;
+            if ((bits[word] & mask) != 0) {
+                return false;
+            }
+            bits[word] |= mask;
+            size++;
+            return true;
+        }
+
+        @Override
+        public boolean contains(char low) {
+            return (bits[low >>> 6] & (1L << low)) != 0;
+        }
+
+        @Override
+        public int size() {
+            return size;
+        }
+    }
+}
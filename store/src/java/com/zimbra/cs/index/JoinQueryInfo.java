@@ -0,0 +1,60 @@
+/*
+ * ***** BEGIN LICENSE BLOCK *****
+ * Zimbra Collaboration Suite Server
+ * Copyright (C) 2017 Synacor, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software Foundation,
+ * version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <https://www.gnu.org/licenses/>.
+ * ***** END LICENSE BLOCK *****
+ */
+package com.zimbra.cs.index;
+
+import com.zimbra.common.soap.Element;
+
+/**
+ * Describes how a {@link DBQueryOperation} joined its Lucene hits with the DB, and what that cost.
+ */
+public final class JoinQueryInfo implements QueryInfo {
+
+    private final String mMode;
+    private long mLuceneHits = -1;
+    private int mDbQueries;
+    private long mDbRows;
+
+    JoinQueryInfo(String mode) {
+        mMode = mode;
+    }
+
+    void setLuceneHits(long luceneHits) {
+        mLuceneHits = luceneHits;
+    }
+
+    void addDbQuery(int rows) {
+        mDbQueries++;
+        mDbRows += rows;
+    }
+
+    @Override
+    public Element toXml(Element parent) {
+        Element qinfo = parent.addElement("join");
+        qinfo.addAttribute("mode", mMode);
+        if (mLuceneHits >= 0) {
+            qinfo.addAttribute("luceneHits", mLuceneHits);
+        }
+        qinfo.addAttribute("dbQueries", mDbQueries);
+        qinfo.addAttribute("dbRows", mDbRows);
+        return qinfo;
+    }
+
+    @Override
+    public String toString() {
+        return "JOIN(" + mMode + ",lucene=" + mLuceneHits + ",queries=" + mDbQueries + ",rows=" + mDbRows + ")";
+    }
+}
@@ -22,7 +22,9 @@ import java.io.PrintStream;
 import java.util.List;
 import java.util.NoSuchElementException;
 import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
 import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.Semaphore;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
@@ -32,6 +34,7 @@ import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
 
 import org.apache.lucene.document.Document;
+import org.apache.lucene.document.FieldSelector;
 import org.apache.lucene.index.CheckIndex;
 import org.apache.lucene.index.CorruptIndexException;
 import org.apache.lucene.index.IndexReader;
@@ -48,6 +51,7 @@ import org.apache.lucene.search.Query;
 import org.apache.lucene.search.Sort;
 import org.apache.lucene.search.SortField;
 import org.apache.lucene.search.TermQuery;
+import org.apache.lucene.store.AlreadyClosedException;
 import org.apache.lucene.store.NoSuchDirectoryException;
 import org.apache.lucene.util.Version;
 
@@ -58,12 +62,14 @@ import com.google.common.cache.RemovalListener;
 import com.google.common.cache.RemovalNotification;
 import com.google.common.io.Closeables;
 import com.google.common.io.NullOutputStream;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import com.googlecode.concurrentlinkedhashmap.ConcurrentLinkedHashMap;
 import com.googlecode.concurrentlinkedhashmap.EvictionListener;
 import com.zimbra.common.localconfig.LC;
 import com.zimbra.common.service.ServiceException;
 import com.zimbra.common.util.ZimbraLog;
 import com.zimbra.cs.mailbox.Folder;
+import com.zimbra.cs.mailbox.IndexScheduler;
 import com.zimbra.cs.mailbox.MailItem;
 import com.zimbra.cs.mailbox.Mailbox;
 import com.zimbra.cs.mailbox.MailboxIndex;
@@ -114,10 +120,30 @@ public final class LuceneIndex extends IndexStore {
         })
         .build();
 
+    /**
+     * In near-real-time mode, cached searchers are refreshed from the live {@link IndexWriter} instead of being
+     * reopened from the directory after every indexing batch, so only the segments the batch changed are loaded.
+     * Refreshes are deferred by up to {@link LC#zimbra_index_nrt_max_staleness_ms} to coalesce batches, but a search
+     * arriving in the meantime runs the pending refresh first and never sees a stale searcher.
+     */
+    private static boolean isNrtEnabled() {
+        return LC.zimbra_index_nrt_enabled.booleanValue();
+    }
+
+    /** Lazily started, so that the refresh thread only exists once near-real-time mode has been used. */
+    private static final class NrtRefresher {
+        static final ScheduledExecutorService EXECUTOR = Executors.newSingleThreadScheduledExecutor(
+                new ThreadFactoryBuilder().setNameFormat("IndexRefresh").setDaemon(true).build());
+    }
+
     private final Mailbox mailbox;
     private final LuceneDirectory luceneDirectory;
     private final AtomicBoolean pendingDelete = new AtomicBoolean(false);
     private final WriterInfo writerInfo = new WriterInfo();
+    /** writer pinned open by the pending NRT refresh, null if none is pending; guarded by this */
+    private IndexWriterRef refreshRef;
+    /** merge task waiting in the index queue, null if none is queued; guarded by this */
+    private MergeTask pendingMerge;
 
     /**
      * Holds information related to writers to the index.
@@ -376,12 +402,10 @@ public final class LuceneIndex extends IndexStore {
      */
     @Override
     public synchronized ZimbraIndexSearcher openSearcher() throws IOException {
-        IndexSearcherImpl searcher = null;
-        if (mailbox.isGalSyncMailbox()) {
-            searcher = GAL_SEARCHER_CACHE.get(mailbox.getId());
-        } else {
-            searcher = SEARCHER_CACHE.getIfPresent(mailbox.getId());
+        if (refreshRef != null) {
+            refreshSearcher();
         }
+        IndexSearcherImpl searcher = getCachedSearcher();
         if (searcher != null) {
             ZimbraLog.search.debug("CacheHitLuceneSearcher %s", searcher);
             searcher.inc();
@@ -391,7 +415,18 @@ public final class LuceneIndex extends IndexStore {
         READER_THROTTLE.acquireUninterruptibly();
         long start = System.currentTimeMillis();
         try {
-            searcher = new IndexSearcherImpl(openIndexReader(true));
+            IndexWriterRef ref = isNrtEnabled() ? writerInfo.getWriterRef() : null;
+            if (ref != null) {
+                // hold the writer open while the NRT reader is created from it
+                ref.inc();
+                try {
+                    searcher = new IndexSearcherImpl(IndexReader.open(ref.get(), true));
+                } finally {
+                    ref.dec();
+                }
+            } else {
+                searcher = new IndexSearcherImpl(openIndexReader(true));
+            }
         } catch (IOException e) {
             // Handle the special case of trying to open a not-yet-created index, by opening for write and immediately
             // closing. Index directory should get initialized as a result.
@@ -420,6 +455,106 @@ public final class LuceneIndex extends IndexStore {
         return searcher;
     }
 
+    private IndexSearcherImpl getCachedSearcher() {
+        if (mailbox.isGalSyncMailbox()) {
+            return GAL_SEARCHER_CACHE.get(mailbox.getId());
+        } else {
+            return SEARCHER_CACHE.getIfPresent(mailbox.getId());
+        }
+    }
+
+    /**
+     * Schedules an NRT refresh of the cached searcher for an indexing batch about to be committed through
+     * {@code ref}. The refresh holds a reference on the writer so that batches arriving before it runs reuse the same
+     * writer, which lets the refresh reopen incrementally. Must be called while the caller still holds its own
+     * reference, so that the writer can't be closed underneath.
+     */
+    private synchronized void scheduleRefresh(IndexWriterRef ref) {
+        if (refreshRef != null || getCachedSearcher() == null) {
+            return; // already pending, or nothing to refresh until the next openSearcher()
+        }
+        if (writerInfo.getWriterRef() != ref) {
+            evict(); // the writer was closed, so the cached searcher can't be refreshed from it
+            return;
+        }
+        ref.inc();
+        refreshRef = ref;
+        try {
+            NrtRefresher.EXECUTOR.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    refreshSearcher();
+                }
+            }, LC.zimbra_index_nrt_max_staleness_ms.longValue(), TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException e) {
+            refreshRef = null;
+            ref.dec();
+        }
+    }
+
+    /**
+     * Runs the pending NRT refresh, if any, replacing the cached searcher with one that reflects all changes made
+     * through the pinned writer.
+     */
+    private synchronized void refreshSearcher() {
+        IndexWriterRef ref = refreshRef;
+        if (ref == null) {
+            return;
+        }
+        refreshRef = null;
+        try {
+            IndexSearcherImpl searcher = getCachedSearcher();
+            if (searcher != null && !isPendingDelete()) {
+                long start = System.currentTimeMillis();
+                IndexReader reader = ((ZimbraLuceneIndexReader) searcher.getIndexReader()).getLuceneReader();
+                IndexReader newReader = IndexReader.openIfChanged(reader, ref.get(), true);
+                if (newReader != null) {
+                    ZimbraLog.search.debug("RefreshLuceneSearcher %s,elapsed=%d", searcher,
+                            System.currentTimeMillis() - start);
+                    cacheSearcher(new IndexSearcherImpl(newReader));
+                }
+            }
+        } catch (IOException e) {
+            ZimbraLog.search.warn("Failed to refresh searcher %s", this, e);
+            evict();
+        } catch (AlreadyClosedException e) {
+            ZimbraLog.search.warn("Failed to refresh searcher %s", this, e);
+            evict();
+        } finally {
+            ref.dec();
+        }
+    }
+
+    /**
+     * Evicts the cached searcher if it misses changes committed to the directory. Once its writer is closed an NRT
+     * searcher can no longer be refreshed incrementally, so the next openSearcher() must reopen from the directory.
+     */
+    private void evictIfNotCurrent() {
+        IndexSearcherImpl searcher = getCachedSearcher();
+        if (searcher == null) {
+            return;
+        }
+        try {
+            if (!((ZimbraLuceneIndexReader) searcher.getIndexReader()).getLuceneReader().isCurrent()) {
+                evict();
+            }
+        } catch (IOException e) {
+            evict();
+        } catch (AlreadyClosedException e) {
+            evict();
+        }
+    }
+
+    private void cacheSearcher(IndexSearcherImpl searcher) {
+        if (mailbox.isGalSyncMailbox()) {
+            //make sure that we close the previous value associated with the key
+            Closeables.closeQuietly(GAL_SEARCHER_CACHE.put(mailbox.getId(), searcher));
+        } else {
+            // the removal listener closes the previous value associated with the key
+            SEARCHER_CACHE.asMap().put(mailbox.getId(), searcher);
+        }
+    }
+
     /**
      * Check to see if it is OK for us to create an index in the specified directory.
      *
@@ -455,6 +590,13 @@ public final class LuceneIndex extends IndexStore {
 
     @Override
     public synchronized Indexer openIndexer() throws IOException {
+        return new LuceneIndexerImpl(acquireWriter());
+    }
+
+    /**
+     * Returns the shared writer with its reference count incremented, opening it if necessary.
+     */
+    private synchronized IndexWriterRef acquireWriter() throws IOException {
         if (writerInfo.getWriterRef() != null) {
             writerInfo.getWriterRef().inc();
         } else {
@@ -467,7 +609,7 @@ public final class LuceneIndex extends IndexStore {
                 }
             }
         }
-        return new LuceneIndexerImpl(writerInfo.getWriterRef());
+        return writerInfo.getWriterRef();
     }
 
     private IndexWriterRef openWriter() throws IOException {
@@ -496,9 +638,8 @@ public final class LuceneIndex extends IndexStore {
 
         ZimbraLog.index.debug("Commit IndexWriter");
 
-        MergeTask task = new MergeTask(writerInfo.getWriterRef());
-
-        boolean success = false;
+        IndexWriterRef ref = writerInfo.getWriterRef();
+        boolean handedOff = false;
         try {
             try {
                 writerInfo.getWriterRef().get().commit();
@@ -518,13 +659,19 @@ public final class LuceneIndex extends IndexStore {
                 repair(e);
                 throw e; // fail to commit regardless of the repair
             }
-            mailbox.index.submit(task); // merge must run in background
-            success = true;
+            if (pendingMerge == null) {
+                // merge must run in background; the task takes over our reference, so that the writer stays open
+                // for it. A merge already queued covers this commit too.
+                MergeTask task = new MergeTask(ref);
+                mailbox.index.submit(task);
+                pendingMerge = task;
+                handedOff = true;
+            }
         } catch (RejectedExecutionException e) {
-            ZimbraLog.index.warn("Skipping merge because all index threads are busy");
+            ZimbraLog.index.warn("Skipping merge because the index queue is full");
         } finally {
-            if (!success) {
-                writerInfo.getWriterRef().dec();
+            if (!handedOff) {
+                ref.dec();
             }
         }
     }
@@ -541,6 +688,9 @@ public final class LuceneIndex extends IndexStore {
 
         try {
             writerInfo.getWriterRef().get().close(false); // ignore phantom pending merges
+            if (isNrtEnabled()) {
+                evictIfNotCurrent();
+            }
         } catch (CorruptIndexException e) {
             try {
                 repair(e);
@@ -641,12 +791,21 @@ public final class LuceneIndex extends IndexStore {
         private final IndexWriterRef ref;
 
         MergeTask(IndexWriterRef ref) {
-            super(ref.getIndex().mailbox);
+            super(mailbox);
             this.ref = ref;
         }
 
+        @Override
+        protected IndexScheduler.Priority getPriority() {
+            return IndexScheduler.Priority.BACKGROUND;
+        }
+
         @Override
         public void exec() throws IOException {
+            synchronized (LuceneIndex.this) {
+                // commits from now on queue a new merge
+                pendingMerge = null;
+            }
             IndexWriter writer = ref.get();
             MergeScheduler scheduler = (MergeScheduler) writer.getConfig().getMergeScheduler();
             try {
@@ -681,6 +840,10 @@ public final class LuceneIndex extends IndexStore {
         config.setMergeScheduler(new MergeScheduler());
         config.setMaxBufferedDocs(LC.zimbra_index_lucene_max_buffered_docs.intValue());
         config.setRAMBufferSizeMB(LC.zimbra_index_lucene_ram_buffer_size_kb.intValue() / 1024.0);
+        if (isNrtEnabled()) {
+            // NRT readers are pooled by the writer and inherit its divisor instead of the one passed to IndexReader.open
+            config.setReaderTermsIndexDivisor(LC.zimbra_index_lucene_term_index_divisor.intValue());
+        }
         if (LC.zimbra_index_lucene_merge_policy.booleanValue()) {
             LogDocMergePolicy policy = new LogDocMergePolicy();
             config.setMergePolicy(policy);
@@ -798,6 +961,12 @@ public final class LuceneIndex extends IndexStore {
 
         @Override
         public void close() throws IOException {
+            if (isNrtEnabled()) {
+                // pin the writer for the refresh before the commit releases our reference
+                writer.index.scheduleRefresh(writer);
+                writer.index.commitWriter();
+                return;
+            }
             writer.index.commitWriter();
             ZimbraIndexSearcher searcher = null;
             if (writer.getIndex().mailbox.isGalSyncMailbox()) {
@@ -977,6 +1146,15 @@ public final class LuceneIndex extends IndexStore {
             throw new IllegalArgumentException("Expected a ZimbraLuceneDocumentID");
         }
 
+        @Override
+        public Document doc(ZimbraIndexDocumentID docID, FieldSelector selector) throws IOException {
+            if (docID instanceof ZimbraLuceneDocumentID) {
+                ZimbraLuceneDocumentID zlDocID = (ZimbraLuceneDocumentID)docID;
+                return luceneSearcher.doc(zlDocID.getLuceneDocID(), selector);
+            }
+            throw new IllegalArgumentException("Expected a ZimbraLuceneDocumentID");
+        }
+
         @Override
         public int docFreq(Term term) throws IOException {
             return luceneSearcher.docFreq(term);
@@ -19,12 +19,15 @@ package com.zimbra.cs.index;
 
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.List;
 import java.util.ListIterator;
 import java.util.Set;
 
 import org.apache.lucene.document.Document;
+import org.apache.lucene.document.FieldSelector;
+import org.apache.lucene.document.FieldSelectorResult;
 import org.apache.lucene.index.Term;
 import org.apache.lucene.search.BooleanClause;
 import org.apache.lucene.search.BooleanClause.Occur;
@@ -91,6 +94,23 @@ public final class LuceneQueryOperation extends QueryOperation {
     private ZimbraIndexSearcher searcher;
     private Sort sort;
 
+    /**
+     * Hits read by {@link #getAllIndexIds}, each packed as index ID (high 32 bits) and hit number (low 32 bits) and
+     * sorted, so that the hits of an index ID are a contiguous run.
+     */
+    private long[] hitsByIndexId;
+    private int hitsByIndexIdLen = 0;
+
+    private static final FieldSelector INDEX_ID_SELECTOR = new FieldSelector() {
+        private static final long serialVersionUID = 2916813522640766530L;
+
+        @Override
+        public FieldSelectorResult accept(String fieldName) {
+            return LuceneFields.L_MAILBOX_BLOB_ID.equals(fieldName) ?
+                    FieldSelectorResult.LOAD_AND_BREAK : FieldSelectorResult.NO_LOAD;
+        }
+    };
+
     /**
      * Adds the specified text clause at the top level.
      * <p>
@@ -344,6 +364,79 @@ public final class LuceneQueryOperation extends QueryOperation {
         return result;
     }
 
+    /**
+     * Reads the index IDs of all the remaining hits, loading only the {@link LuceneFields#L_MAILBOX_BLOB_ID} field of
+     * each hit.
+     * <p>
+     * Called by a {@link DBQueryOperation} running a bitmap join, which then loads the documents of just the index IDs
+     * that survive the join with {@link #getHits}.
+     */
+    IdBitmap getAllIndexIds() {
+        if (!haveRunSearch) {
+            fetchFirstResults(1000);
+        }
+
+        long start = System.currentTimeMillis();
+        IdBitmap result = new IdBitmap();
+        int luceneLen = hits != null ? hits.getTotalHits() : 0;
+        if (luceneLen > topDocsLen) {
+            // every hit is read, so fetch them all in one go
+            topDocsLen = luceneLen;
+            runSearch();
+        }
+        hitsByIndexId = new long[Math.max(luceneLen - curHitNo, 0)];
+        hitsByIndexIdLen = 0;
+        for (; hits != null && curHitNo < luceneLen; curHitNo++) {
+            ZimbraIndexDocumentID docID = hits.getScoreDoc(curHitNo).getDocumentID();
+            String mbid;
+            try {
+                Document doc = searcher.doc(docID, INDEX_ID_SELECTOR);
+                mbid = doc != null ? doc.get(LuceneFields.L_MAILBOX_BLOB_ID) : null;
+            } catch (Exception e) {
+                ZimbraLog.search.error("Failed to retrieve Lucene document: %s", docID, e);
+                break;
+            }
+            if (mbid != null) {
+                try {
+                    int indexId = Integer.parseInt(mbid);
+                    result.add(indexId);
+                    hitsByIndexId[hitsByIndexIdLen++] = ((long) indexId << 32) | curHitNo;
+                } catch (NumberFormatException e) {
+                    ZimbraLog.search.error("Invalid MAILBOX_BLOB_ID: " + mbid, e);
+                }
+            }
+        }
+        Arrays.sort(hitsByIndexId, 0, hitsByIndexIdLen);
+        ZimbraLog.search.debug("LuceneFetchIds n=%d,elapsed=%d", luceneLen, System.currentTimeMillis() - start);
+        return result;
+    }
+
+    /**
+     * Loads the documents of the hits read by {@link #getAllIndexIds} for the given index IDs.
+     */
+    LuceneResultsChunk getHits(Collection<Integer> indexIds) {
+        LuceneResultsChunk result = new LuceneResultsChunk();
+        if (hits == null || hitsByIndexId == null) {
+            return result;
+        }
+        for (int indexId : indexIds) {
+            if (!result.getHit(indexId).isEmpty()) {
+                continue;
+            }
+            int pos = Arrays.binarySearch(hitsByIndexId, 0, hitsByIndexIdLen, (long) indexId << 32);
+            for (pos = pos < 0 ? -pos - 1 : pos;
+                    pos < hitsByIndexIdLen && (int) (hitsByIndexId[pos] >>> 32) == indexId; pos++) {
+                ZimbraIndexDocumentID docID = hits.getScoreDoc((int) hitsByIndexId[pos]).getDocumentID();
+                try {
+                    result.addHit(indexId, searcher.doc(docID));
+                } catch (Exception e) {
+                    ZimbraLog.search.error("Failed to retrieve Lucene document: %s", docID, e);
+                }
+            }
+        }
+        return result;
+    }
+
     /**
      * It is not possible to search for queries that only consist of a MUST_NOT clause. Combining with MatchAllDocsQuery
      * works in general, but we generate more than one documents per item for multipart messages. If we match including
@@ -507,6 +600,16 @@ public final class LuceneQueryOperation extends QueryOperation {
         return toRet;
     }
 
+    /**
+     * Runs the search if it hasn't been run yet.
+     *
+     * @return number of hits in this search
+     */
+    long getHitCount() {
+        fetchFirstResults(1000);
+        return getTotalHitCount();
+    }
+
     /**
      * Must be called AFTER the first results chunk is fetched.
      *
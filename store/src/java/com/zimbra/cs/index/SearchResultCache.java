@@ -0,0 +1,604 @@
+/*
+ * ***** BEGIN LICENSE BLOCK *****
+ * Zimbra Collaboration Suite Server
+ * Copyright (C) 2017 Synacor, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software Foundation,
+ * version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <https://www.gnu.org/licenses/>.
+ * ***** END LICENSE BLOCK *****
+ */
+package com.zimbra.cs.index;
+
+import java.io.IOException;
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.Field;
+
+import com.google.common.base.Objects;
+import com.google.common.io.Closeables;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.googlecode.concurrentlinkedhashmap.ConcurrentLinkedHashMap;
+import com.googlecode.concurrentlinkedhashmap.Weigher;
+import com.zimbra.common.localconfig.LC;
+import com.zimbra.common.service.ServiceException;
+import com.zimbra.common.util.ZimbraLog;
+import com.zimbra.cs.account.Account;
+import com.zimbra.cs.mailbox.MailItem;
+import com.zimbra.cs.mailbox.Mailbox;
+import com.zimbra.cs.mailbox.OperationContext;
+import com.zimbra.cs.stats.ZimbraPerf;
+
+/**
+ * Server-wide cache of the ordered hits of recent searches, so that paging through the results of the same query
+ * doesn't re-run it from the top.
+ * <p>
+ * Only the hit IDs and sort values are cached, keyed by mailbox and by everything in the request that affects which
+ * hits come back in which order. An entry is only valid while the mailbox change sequence is the same as when the
+ * search ran; any change to the mailbox makes it stale. Each entry holds the hits the requester has paged through
+ * plus {@code search_result_cache_prefetch_pages} more pages, so the following pages are served from memory. The
+ * extra pages are read in the background once the request is done with the results, through the same query, so
+ * they cost as much as if they had been requested; read-ahead is off by default. Searches relative to the current
+ * time are not cached, see {@link ZimbraQuery#hasRelativeDate()}. The cache is bounded by the estimated size of the
+ * entries, {@code search_result_cache_size_kb}.
+ * <p>
+ * Offset paging only. Cursor requests narrow the query itself, so they always run the query.
+ */
+public final class SearchResultCache {
+
+    private static final int MAX_HITS = LC.search_result_cache_max_hits.intValue();
+    private static final int MAX_PRELOAD = 1000;
+
+    /**
+     * Reads ahead the following pages of searches that missed the cache. If it falls behind, the hits read by the
+     * request are cached without reading ahead.
+     */
+    private static final class Prefetcher {
+        static final ExecutorService EXECUTOR = new ThreadPoolExecutor(2, 2, 0L, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<Runnable>(100),
+                new ThreadFactoryBuilder().setNameFormat("SearchPrefetch-%d").setDaemon(true).build());
+    }
+
+    private static final SearchResultCache INSTANCE = new SearchResultCache(LC.search_result_cache_size_kb.intValue());
+
+    private final ConcurrentLinkedHashMap<Key, Entry> entries;
+    private final boolean enabled;
+
+    SearchResultCache(int sizeKB) {
+        enabled = sizeKB > 0 && MAX_HITS > 0;
+        entries = new ConcurrentLinkedHashMap.Builder<Key, Entry>()
+            .maximumWeightedCapacity(Math.max(sizeKB, 1) * 1024)
+            .weigher(new Weigher<Entry>() {
+                @Override
+                public int weightOf(Entry entry) {
+                    return entry.bytes;
+                }
+            })
+            .build();
+    }
+
+    public static SearchResultCache getInstance() {
+        return INSTANCE;
+    }
+
+    /**
+     * @return estimated number of bytes held by the cached entries
+     */
+    public long getSize() {
+        return entries.weightedSize();
+    }
+
+    /**
+     * Returns the key for this search, or null if the search can't be cached.
+     */
+    public Key getKey(Mailbox mbox, OperationContext octxt, SearchParams params) throws ServiceException {
+        if (!enabled || octxt == null || params.getCursor() != null || params.inDumpster()) {
+            return null;
+        }
+        switch (params.getFetchMode()) {
+            case NORMAL:
+            case IDS:
+                break;
+            default:
+                return null;
+        }
+        switch (params.getSortBy()) {
+            case TASK_DUE_ASC:
+            case TASK_DUE_DESC:
+            case TASK_PERCENT_COMPLETE_ASC:
+            case TASK_PERCENT_COMPLETE_DESC:
+            case TASK_STATUS_ASC:
+            case TASK_STATUS_DESC:
+            case NAME_LOCALIZED_ASC:
+            case NAME_LOCALIZED_DESC:
+                return null;
+            default:
+                break;
+        }
+        Account authAcct = octxt.getAuthenticatedUser() != null ? octxt.getAuthenticatedUser() : mbox.getAccount();
+        String query = Objects.toStringHelper("")
+            .add("auth", authAcct.getId())
+            .add("admin", octxt.isUsingAdminPrivileges())
+            .add("trash", authAcct.isPrefIncludeTrashInSearch())
+            .add("spam", authAcct.isPrefIncludeSpamInSearch())
+            .add("query", params.getQueryString())
+            .add("field", params.getDefaultField())
+            .add("types", params.getTypes())
+            .add("sort", params.getSortBy())
+            .add("quick", params.isQuick())
+            .add("expand", params.getCalItemExpandStart() + "-" + params.getCalItemExpandEnd())
+            .add("fetch", params.getFetchMode())
+            .add("deleted", params.getIncludeTagDeleted())
+            .add("muted", params.getIncludeTagMuted())
+            .add("task", params.getAllowableTaskStatuses())
+            .add("tz", params.getTimeZone() != null ? params.getTimeZone().getID() : null)
+            .add("locale", params.getLocale())
+            .toString();
+        return new Key(mbox.getId(), query);
+    }
+
+    /**
+     * Returns the cached results for the requested page, or null if they have to be fetched by running the query.
+     *
+     * @param changeId current change sequence of the mailbox
+     */
+    public ZimbraQueryResults get(Key key, Mailbox mbox, OperationContext octxt, SearchParams params, int changeId) {
+        Entry entry = entries.get(key);
+        // a reloaded Mailbox may have been recreated under the same ID
+        if (entry != null && (entry.changeId != changeId || entry.mailbox.get() != mbox)) {
+            entries.remove(key, entry);
+            entry = null;
+        }
+        boolean hit = entry != null && (entry.complete || entry.hits.length > (long) params.getOffset() +
+                params.getLimit());
+        ZimbraPerf.COUNTER_SEARCH_RESULT_CACHE.increment(hit ? 100 : 0);
+        if (!hit) {
+            return null;
+        }
+        ZimbraLog.search.debug("SearchResultCache hit %s,hits=%d", key, entry.hits.length);
+        return new CachedQueryResults(entry, mbox, octxt, params);
+    }
+
+    /**
+     * Wraps the results of a search so that the hits read from them are cached when they are closed.
+     *
+     * @param changeId change sequence of the mailbox from before the search was run
+     */
+    public ZimbraQueryResults record(Key key, Mailbox mbox, SearchParams params, int changeId,
+            ZimbraQueryResults results) {
+        return new RecordingQueryResults(key, mbox, params, changeId, results);
+    }
+
+    /**
+     * Drops all the cached searches for the mailbox. Only needed for changes to search results that don't advance
+     * the change sequence, such as re-indexing.
+     */
+    public void invalidate(int mailboxId) {
+        for (Iterator<Key> iter = entries.keySet().iterator(); iter.hasNext();) {
+            if (iter.next().mailboxId == mailboxId) {
+                iter.remove();
+            }
+        }
+    }
+
+    public static final class Key {
+        final int mailboxId;
+        private final String query;
+
+        Key(int mailboxId, String query) {
+            this.mailboxId = mailboxId;
+            this.query = query;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (obj instanceof Key) {
+                Key other = (Key) obj;
+                return mailboxId == other.mailboxId && query.equals(other.query);
+            }
+            return false;
+        }
+
+        @Override
+        public int hashCode() {
+            return mailboxId * 31 + query.hashCode();
+        }
+
+        @Override
+        public String toString() {
+            return mailboxId + ":" + query;
+        }
+    }
+
+    private static final class Entry {
+        final WeakReference<Mailbox> mailbox;
+        final int changeId;
+        final SortBy sort;
+        final CachedHit[] hits;
+        final boolean complete;
+        final List<QueryInfo> info;
+        final int bytes;
+
+        Entry(Mailbox mbox, int changeId, SortBy sort, List<CachedHit> hits, boolean complete, List<QueryInfo> info) {
+            this.mailbox = new WeakReference<Mailbox>(mbox);
+            this.changeId = changeId;
+            this.sort = sort;
+            this.hits = hits.toArray(new CachedHit[hits.size()]);
+            this.complete = complete;
+            this.info = info;
+            int size = 64 + this.hits.length * 8;
+            for (CachedHit hit : this.hits) {
+                size += hit.getSize();
+            }
+            bytes = size;
+        }
+    }
+
+    /**
+     * ID, sort value and matched parts of a hit, enough to build an equivalent {@link ZimbraHit}.
+     */
+    private static final class CachedHit {
+        final MailItem.Type type;
+        final int id;
+        final Object sortValue;
+        final String[] parts;
+        final CachedHit[] messages;
+
+        private CachedHit(MailItem.Type type, int id, Object sortValue, String[] parts, CachedHit[] messages) {
+            this.type = type;
+            this.id = id;
+            this.sortValue = sortValue;
+            this.parts = parts;
+            this.messages = messages;
+        }
+
+        /**
+         * Returns null for hits that can't be rebuilt from an ID, such as proxied hits from remote mailboxes.
+         */
+        static CachedHit of(ZimbraHit hit) throws ServiceException {
+            if (hit instanceof MessageHit) {
+                MessageHit mhit = (MessageHit) hit;
+                String[] parts = null;
+                List<MessagePartHit> matched = mhit.getMatchedMimePartNames();
+                if (matched != null && !matched.isEmpty()) {
+                    parts = new String[matched.size()];
+                    for (int i = 0; i < parts.length; i++) {
+                        parts[i] = matched.get(i).getPartName();
+                    }
+                }
+                return new CachedHit(MailItem.Type.MESSAGE, mhit.getItemId(), mhit.sortValue, parts, null);
+            } else if (hit instanceof ConversationHit) {
+                Collection<MessageHit> msgHits = ((ConversationHit) hit).getMessageHits();
+                CachedHit[] messages = new CachedHit[msgHits.size()];
+                int i = 0;
+                for (MessageHit mhit : msgHits) {
+                    messages[i++] = new CachedHit(MailItem.Type.MESSAGE, mhit.getItemId(), mhit.sortValue, null, null);
+                }
+                return new CachedHit(MailItem.Type.CONVERSATION, hit.getItemId(), hit.sortValue, null, messages);
+            } else if (hit instanceof ContactHit) {
+                return new CachedHit(MailItem.Type.CONTACT, hit.getItemId(), hit.sortValue, null, null);
+            } else if (hit instanceof NoteHit) {
+                return new CachedHit(MailItem.Type.NOTE, hit.getItemId(), hit.sortValue, null, null);
+            } else if (hit instanceof TaskHit) {
+                return new CachedHit(MailItem.Type.TASK, hit.getItemId(), hit.sortValue, null, null);
+            } else if (hit instanceof CalendarItemHit) {
+                return new CachedHit(MailItem.Type.APPOINTMENT, hit.getItemId(), hit.sortValue, null, null);
+            } else {
+                return null;
+            }
+        }
+
+        int getSize() {
+            int size = 40 + sizeOf(sortValue);
+            if (parts != null) {
+                for (String part : parts) {
+                    size += sizeOf(part);
+                }
+            }
+            if (messages != null) {
+                for (CachedHit msg : messages) {
+                    size += msg.getSize();
+                }
+            }
+            return size;
+        }
+
+        private static int sizeOf(Object value) {
+            return value instanceof String ? 40 + ((String) value).length() * 2 : 16;
+        }
+    }
+
+    /**
+     * Passes through the results of a search, remembering the hits in order as they are read. On close, reads some
+     * more pages ahead in the background and caches the hits if they were all read in order and could all be cached.
+     */
+    private final class RecordingQueryResults implements ZimbraQueryResults {
+        private final Key key;
+        private final Mailbox mailbox;
+        private final SearchParams params;
+        private final int changeId;
+        private final ZimbraQueryResults results;
+        private List<CachedHit> recorded = new ArrayList<CachedHit>();
+        private int position = 0;
+        private boolean complete = false;
+
+        RecordingQueryResults(Key key, Mailbox mbox, SearchParams params, int changeId, ZimbraQueryResults results) {
+            this.key = key;
+            this.mailbox = mbox;
+            this.params = params;
+            this.changeId = changeId;
+            this.results = results;
+        }
+
+        /**
+         * False once a hit was skipped or couldn't be cached. Hits past {@link #MAX_HITS} are not recorded, but the
+         * ones before them are still cached.
+         */
+        private boolean isRecording() {
+            return recorded != null && (position <= recorded.size() || recorded.size() >= MAX_HITS);
+        }
+
+        @Override
+        public void resetIterator() throws ServiceException {
+            results.resetIterator();
+            position = 0;
+        }
+
+        @Override
+        public ZimbraHit getNext() throws ServiceException {
+            ZimbraHit hit = results.getNext();
+            if (hit == null) {
+                if (isRecording() && position == recorded.size()) {
+                    complete = true;
+                }
+                return null;
+            }
+            if (isRecording() && position == recorded.size() && recorded.size() < MAX_HITS) {
+                CachedHit cached = CachedHit.of(hit);
+                if (cached != null) {
+                    recorded.add(cached);
+                } else {
+                    recorded = null;
+                }
+            }
+            position++;
+            return hit;
+        }
+
+        @Override
+        public ZimbraHit peekNext() throws ServiceException {
+            return results.peekNext();
+        }
+
+        @Override
+        public ZimbraHit skipToHit(int hitNo) throws ServiceException {
+            if (!isRecording() || recorded.size() >= MAX_HITS) {
+                ZimbraHit hit = results.skipToHit(hitNo);
+                position = hitNo + 1;
+                return hit;
+            }
+            // step through the skipped hits so that they are recorded too
+            if (hitNo < position) {
+                resetIterator();
+            }
+            ZimbraHit hit = null;
+            while (position <= hitNo) {
+                hit = getNext();
+                if (hit == null) {
+                    break;
+                }
+            }
+            return hit;
+        }
+
+        @Override
+        public boolean hasNext() throws ServiceException {
+            return results.hasNext();
+        }
+
+        @Override
+        public SortBy getSortBy() {
+            return results.getSortBy();
+        }
+
+        @Override
+        public List<QueryInfo> getResultInfo() {
+            return results.getResultInfo();
+        }
+
+        @Override
+        public long getCursorOffset() {
+            return results.getCursorOffset();
+        }
+
+        @Override
+        public boolean isPreSorted() {
+            return results.isPreSorted();
+        }
+
+        @Override
+        public void close() throws IOException {
+            int prefetchPages = LC.search_result_cache_prefetch_pages.intValue();
+            final long target = Math.min(MAX_HITS,
+                    (long) params.getOffset() + (long) params.getLimit() * (prefetchPages + 1) + 1);
+            if (isRecording() && !complete && recorded.size() < target) {
+                try {
+                    // the results are handed over to the prefetch thread, the request is done with them
+                    Prefetcher.EXECUTOR.execute(new Runnable() {
+                        @Override
+                        public void run() {
+                            cache(target);
+                        }
+                    });
+                    return;
+                } catch (RejectedExecutionException e) {
+                    ZimbraLog.search.debug("Too many searches to prefetch, caching %s as read", key);
+                }
+            }
+            cache(0);
+        }
+
+        private void cache(long target) {
+            try {
+                while (isRecording() && !complete && recorded.size() < target) {
+                    getNext();
+                }
+                if (isRecording() && !recorded.isEmpty()) {
+                    entries.put(key, new Entry(mailbox, changeId, results.getSortBy(), recorded, complete,
+                            Collections.unmodifiableList(new ArrayList<QueryInfo>(results.getResultInfo()))));
+                }
+            } catch (ServiceException e) {
+                ZimbraLog.search.warn("Failed to cache search results %s", key, e);
+            } finally {
+                Closeables.closeQuietly(results);
+            }
+        }
+    }
+
+    /**
+     * Serves a page of hits from a cache entry, batch loading the items of each chunk of hits like
+     * {@link ItemPreloadingGrouper} does.
+     */
+    private static final class CachedQueryResults extends ZimbraQueryResultsImpl {
+        private final Entry entry;
+        private final Mailbox mailbox;
+        private final OperationContext octxt;
+        private final boolean preload;
+        private final int chunkSize;
+        private final ZimbraHit[] hits;
+        private int next = 0;
+
+        CachedQueryResults(Entry entry, Mailbox mbox, OperationContext octxt, SearchParams params) {
+            super(params.getTypes(), entry.sort, params.getFetchMode());
+            this.entry = entry;
+            this.mailbox = mbox;
+            this.octxt = octxt;
+            this.preload = params.getFetchMode() == SearchParams.Fetch.NORMAL && params.getPrefetch();
+            this.chunkSize = Math.min(Math.max(params.getLimit() + 1, 1), MAX_PRELOAD);
+            this.hits = new ZimbraHit[entry.hits.length];
+        }
+
+        @Override
+        public void resetIterator() {
+            next = 0;
+        }
+
+        @Override
+        public ZimbraHit getNext() throws ServiceException {
+            ZimbraHit hit = peekNext();
+            if (hit != null) {
+                next++;
+            }
+            return hit;
+        }
+
+        @Override
+        public ZimbraHit peekNext() throws ServiceException {
+            if (next >= hits.length) {
+                return null;
+            }
+            if (hits[next] == null) {
+                buildChunk(next);
+            }
+            return hits[next];
+        }
+
+        @Override
+        public ZimbraHit skipToHit(int hitNo) throws ServiceException {
+            next = Math.max(hitNo, 0);
+            return getNext();
+        }
+
+        @Override
+        public List<QueryInfo> getResultInfo() {
+            return entry.info;
+        }
+
+        @Override
+        public long getCursorOffset() {
+            return -1;
+        }
+
+        @Override
+        public void close() {
+        }
+
+        private void buildChunk(int start) throws ServiceException {
+            int end = Math.min(start + chunkSize, hits.length);
+            List<ZimbraHit> toLoad = new ArrayList<ZimbraHit>();
+            for (int i = start; i < end && hits[i] == null; i++) {
+                hits[i] = build(entry.hits[i]);
+                toLoad.add(hits[i]);
+                if (hits[i] instanceof ConversationHit) {
+                    toLoad.addAll(((ConversationHit) hits[i]).getMessageHits());
+                }
+            }
+            if (preload) {
+                int[] ids = new int[toLoad.size()];
+                for (int i = 0; i < ids.length; i++) {
+                    ids[i] = toLoad.get(i).itemIsLoaded() ? Mailbox.ID_AUTO_INCREMENT : toLoad.get(i).getItemId();
+                }
+                MailItem[] items = mailbox.getItemById(octxt, ids, MailItem.Type.UNKNOWN);
+                for (int i = 0; i < ids.length; i++) {
+                    if (items[i] != null) {
+                        toLoad.get(i).setItem(items[i]);
+                    }
+                }
+            }
+        }
+
+        private ZimbraHit build(CachedHit cached) {
+            switch (cached.type) {
+                case MESSAGE:
+                    MessageHit mhit = getMessageHit(mailbox, cached.id, null, null, cached.sortValue);
+                    if (cached.parts != null) {
+                        for (String part : cached.parts) {
+                            mhit.addPart(getMessagePartHit(mailbox, cached.id, null, toDocument(part),
+                                    cached.sortValue));
+                        }
+                    }
+                    return mhit;
+                case CONVERSATION:
+                    ConversationHit chit = getConversationHit(mailbox, cached.id, cached.sortValue);
+                    for (CachedHit msg : cached.messages) {
+                        chit.addMessageHit(getMessageHit(mailbox, msg.id, null, null, msg.sortValue));
+                    }
+                    return chit;
+                case CONTACT:
+                    return getContactHit(mailbox, cached.id, null, cached.sortValue);
+                case NOTE:
+                    return getNoteHit(mailbox, cached.id, null, cached.sortValue);
+                case TASK:
+                    return getTaskHit(mailbox, cached.id, null, cached.sortValue);
+                case APPOINTMENT:
+                    return getAppointmentHit(mailbox, cached.id, null, cached.sortValue);
+                default:
+                    throw new IllegalStateException(cached.type.toString());
+            }
+        }
+
+        private static Document toDocument(String part) {
+            Document doc = new Document();
+            doc.add(new Field(LuceneFields.L_PARTNAME, part.isEmpty() ? LuceneFields.L_PARTNAME_TOP : part,
+                    Field.Store.YES, Field.Index.NOT_ANALYZED));
+            return doc;
+        }
+    }
+}
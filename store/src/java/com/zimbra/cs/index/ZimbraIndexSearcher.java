@@ -20,6 +20,7 @@ import java.io.Closeable;
 import java.io.IOException;
 
 import org.apache.lucene.document.Document;
+import org.apache.lucene.document.FieldSelector;
 import org.apache.lucene.index.Term;
 import org.apache.lucene.search.Query;
 import org.apache.lucene.search.Sort;
@@ -34,6 +35,11 @@ public interface ZimbraIndexSearcher extends Closeable {
      */
     Document doc(ZimbraIndexDocumentID docID) throws IOException;
 
+    /**
+     * Returns only the stored fields of document {@code docID} that {@code selector} accepts.
+     */
+    Document doc(ZimbraIndexDocumentID docID, FieldSelector selector) throws IOException;
+
     /**
      * Sometimes used to decide whether we think a query is best evaluated DB-FIRST or INDEX-FIRST.
      * @return the number of documents containing the term {@code term}. 
@@ -333,6 +333,18 @@ public final class ZimbraQuery {
         return false;
     }
 
+    /**
+     * Returns true if this query has at least one date relative to the current time.
+     */
+    public boolean hasRelativeDate() {
+        for (Query query : clauses) {
+            if (query.hasRelativeDate()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
     /**
      * Returns number of text parts of this query.
      */
@@ -41,6 +41,8 @@ import org.apache.lucene.analysis.TokenStream;
 import org.apache.lucene.analysis.tokenattributes.CharTermAttribute;
 import org.apache.lucene.document.Document;
 import org.apache.lucene.document.Field;
+import org.apache.lucene.document.FieldSelector;
+import org.apache.lucene.document.FieldSelectorResult;
 import org.apache.lucene.document.Fieldable;
 import org.apache.lucene.index.Term;
 import org.apache.lucene.search.BooleanClause;
@@ -774,14 +776,25 @@ public final class ElasticSearchIndex extends IndexStore {
          */
         @Override
         public Document doc(ZimbraIndexDocumentID docID) throws IOException {
+            return doc(docID, null);
+        }
+
+        @Override
+        public Document doc(ZimbraIndexDocumentID docID, FieldSelector selector) throws IOException {
             if (docID == null) {
                 return null;
             }
             if (docID instanceof ZimbraElasticDocumentID) {
                 ZimbraElasticDocumentID eDocID = (ZimbraElasticDocumentID) docID;
-                String storedFields[] = { LuceneFields.L_PARTNAME, LuceneFields.L_FILENAME, LuceneFields.L_SORT_SIZE,
-                        LuceneFields.L_SORT_ATTACH, LuceneFields.L_SORT_FLAG, LuceneFields.L_SORT_PRIORITY,
-                        LuceneFields.L_MAILBOX_BLOB_ID, LuceneFields.L_SORT_DATE, LuceneFields.L_VERSION };
+                List<String> storedFields = Lists.newArrayList();
+                for (String field : new String[] { LuceneFields.L_PARTNAME, LuceneFields.L_FILENAME,
+                        LuceneFields.L_SORT_SIZE, LuceneFields.L_SORT_ATTACH, LuceneFields.L_SORT_FLAG,
+                        LuceneFields.L_SORT_PRIORITY, LuceneFields.L_MAILBOX_BLOB_ID, LuceneFields.L_SORT_DATE,
+                        LuceneFields.L_VERSION }) {
+                    if (selector == null || selector.accept(field) != FieldSelectorResult.NO_LOAD) {
+                        storedFields.add(field);
+                    }
+                }
                 String url = String.format("%s%s/%s?fields=%s", indexUrl, indexType, eDocID.getDocID(),
                         Joiner.on(',').join(storedFields));
                 GetMethod method = new GetMethod(ElasticSearchConnector.actualUrl(url));
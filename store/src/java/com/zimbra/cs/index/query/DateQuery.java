@@ -117,12 +117,18 @@ public final class DateQuery extends Query {
     private boolean lowerEq;
     private long highestTime;
     private boolean higherEq;
+    private boolean relative = false;
     private final Type type;
 
     public DateQuery(Type type) {
         this.type = type;
     }
 
+    @Override
+    public boolean hasRelativeDate() {
+        return relative;
+    }
+
     public long getLowestTime() {
         return lowestTime;
     }
@@ -272,6 +278,7 @@ public final class DateQuery extends Query {
             matcher = RELATIVE_DATE_PATTERN.matcher(src);
             if (matcher.lookingAt()) {
                 // RELATIVE DATE!
+                relative = true;
                 String reltime;
                 String what;
 
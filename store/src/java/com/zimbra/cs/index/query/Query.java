@@ -202,4 +202,12 @@ public abstract class Query {
      */
     public abstract boolean hasTextOperation();
 
+    /**
+     * Returns true if this query matches against the current time, such as {@code after:-1day}, so that the same
+     * query string may match different items later on.
+     */
+    public boolean hasRelativeDate() {
+        return false;
+    }
+
 }
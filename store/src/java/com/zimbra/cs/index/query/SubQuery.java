@@ -49,6 +49,16 @@ public class SubQuery extends Query {
         return false;
     }
 
+    @Override
+    public boolean hasRelativeDate() {
+        for (Query sub : clauses) {
+            if (sub.hasRelativeDate()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
     @Override
     public QueryOperation compile(Mailbox mbox, boolean bool) {
         assert false;
@@ -122,4 +122,19 @@ public class LmtpConfig extends ServerConfig {
     public boolean isLHLORequired(){
         return getBooleanAttr(A_zimbraLmtpLHLORequired, true);
     }
+
+    /**
+     * Returns the number of threads that deliver a message to its local recipients in parallel, or 0 to deliver
+     * to one recipient after another on the LMTP thread.
+     */
+    public int getParallelDeliveryThreads() {
+        return LC.zimbra_lmtp_parallel_delivery_threads.intValue();
+    }
+
+    /**
+     * Returns the minimum number of local recipients for a message to be delivered in parallel.
+     */
+    public int getParallelDeliveryMinRecipients() {
+        return LC.zimbra_lmtp_parallel_delivery_min_recipients.intValue();
+    }
 }
@@ -1005,19 +1005,20 @@ public abstract class CalendarItem extends MailItem {
         }
 
         // Remove instances that aren't in the actual range.
-        for (Iterator<Instance> iter = instances.iterator(); iter.hasNext(); ) {
-            Instance inst = iter.next();
+        List<Instance> inRange = new ArrayList<Instance>(instances.size());
+        for (Instance inst : instances) {
             if (inst.hasStart() && inst.hasEnd()) {
                 long instStart = inst.getStart();
                 long instEnd = inst.getEnd();
                 // Remove if instance is not the alarm instance and instance ends before range start
                 // or instance starts after range end. (i.e. instance does not overlap range)
                 if (instStart != alarmInstStart && (instEnd <= start || instStart >= end))
-                    iter.remove();
+                    continue;
             }
+            inRange.add(inst);
         }
 
-        return instances;
+        return inRange;
     }
 
     public static class Instance implements Comparable<Instance> {
@@ -37,9 +37,9 @@ public class DeliveryContext {
 
     private boolean mShared;
     private Blob mIncomingBlob;
-    private MailboxBlob mMailboxBlob;
+    private volatile MailboxBlob mMailboxBlob;
     private List<Integer> mMailboxIdList;
-    private boolean mIsFirst = true;
+    private volatile boolean mIsFirst = true;
 
     /**
      * Constructor for non-shared case
@@ -461,7 +461,7 @@ public class Folder extends MailItem implements FolderStore {
         if (AccessManager.getInstance().canAccessAccount(authuser, getAccount(), asAdmin))
             return rightsNeeded;
 
-        return checkACL(rightsNeeded, authuser, asAdmin);
+        return (short) (mMailbox.getFolderRightsIndex().getGrantedRights(this, authuser) & rightsNeeded);
     }
 
 
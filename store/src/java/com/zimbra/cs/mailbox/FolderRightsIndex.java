@@ -0,0 +1,165 @@
+/*
+ * ***** BEGIN LICENSE BLOCK *****
+ * Zimbra Collaboration Suite Server
+ * Copyright (C) 2017 Synacor, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software Foundation,
+ * version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <https://www.gnu.org/licenses/>.
+ * ***** END LICENSE BLOCK *****
+ */
+package com.zimbra.cs.mailbox;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.zimbra.common.localconfig.LC;
+import com.zimbra.common.service.ServiceException;
+import com.zimbra.common.util.Constants;
+import com.zimbra.common.util.ZimbraLog;
+import com.zimbra.cs.account.Account;
+import com.zimbra.cs.account.GuestAccount;
+import com.zimbra.cs.stats.ZimbraPerf;
+
+/**
+ * Per-mailbox table of the rights each grantee has been granted on each folder, with inherited rights already
+ * resolved, so that {@link Folder#checkRights} doesn't walk the parent chain and re-match every grant (including
+ * group membership lookups) on every access.
+ * <p>
+ * Entries are dropped for a folder and its subfolders whenever the folder's ACL, parent or flags change, and for
+ * the whole mailbox whenever the folder cache is dropped, e.g. on rollback. The next check recompiles them. Every
+ * index is dropped by {@link #invalidateAll}, which runs whenever the permission cache is invalidated, i.e. on group
+ * membership changes and ACL cache flushes, and on LDAP cache flushes. An entry also lapses when one of the grants it
+ * was compiled from expires, and after {@code acl_folder_rights_index_maxage} minutes, which bounds how long a
+ * membership change made without a notification to this server can go unnoticed. Guest accounts are never indexed
+ * since they all share the same ID. The table is cleared once it holds more than
+ * {@code acl_folder_rights_index_maxsize} entries; 0 disables it.
+ */
+public final class FolderRightsIndex {
+
+    private static final int MAX_SIZE = LC.acl_folder_rights_index_maxsize.intValue();
+    private static final long MAX_AGE = LC.acl_folder_rights_index_maxage.longValue() * Constants.MILLIS_PER_MINUTE;
+
+    /** bumped by {@link #invalidateAll}; entries compiled under an older generation are stale */
+    private static final AtomicInteger GENERATION = new AtomicInteger();
+
+    /** folder ID -> grantee account ID -> compiled rights */
+    private final ConcurrentMap<Integer, ConcurrentMap<String, Entry>> folders =
+        new ConcurrentHashMap<Integer, ConcurrentMap<String, Entry>>();
+    private final AtomicInteger size = new AtomicInteger();
+
+    private static final class Entry {
+        final short rights;
+        final long expires;
+        final int generation;
+
+        Entry(short rights, long expires, int generation) {
+            this.rights = rights;
+            this.expires = expires;
+            this.generation = generation;
+        }
+    }
+
+    FolderRightsIndex() {
+    }
+
+    /**
+     * Drops the entries of every mailbox, for changes that may affect any grant, such as group membership.
+     */
+    public static void invalidateAll() {
+        GENERATION.incrementAndGet();
+    }
+
+    /**
+     * Returns the rights granted to the user on the folder, either directly or inherited from its nearest ancestor
+     * with an ACL. Does not account for mailbox ownership or admin access.
+     */
+    short getGrantedRights(Folder folder, Account authuser) throws ServiceException {
+        long now = System.currentTimeMillis();
+        if (MAX_SIZE <= 0 || authuser instanceof GuestAccount) {
+            return compile(folder, authuser, now).rights;
+        }
+
+        ConcurrentMap<String, Entry> grantees = folders.get(folder.getId());
+        Entry entry = grantees == null ? null : grantees.get(authuser.getId());
+        if (entry != null && now < entry.expires && entry.generation == GENERATION.get()) {
+            ZimbraPerf.COUNTER_FOLDER_RIGHTS_INDEX.increment(100);
+            return entry.rights;
+        }
+        ZimbraPerf.COUNTER_FOLDER_RIGHTS_INDEX.increment(0);
+
+        entry = compile(folder, authuser, now);
+        if (grantees == null) {
+            grantees = new ConcurrentHashMap<String, Entry>();
+            ConcurrentMap<String, Entry> existing = folders.putIfAbsent(folder.getId(), grantees);
+            if (existing != null) {
+                grantees = existing;
+            }
+        }
+        if (grantees.put(authuser.getId(), entry) == null && size.incrementAndGet() > MAX_SIZE) {
+            clear();
+        }
+        return entry.rights;
+    }
+
+    private Entry compile(Folder folder, Account authuser, long now) throws ServiceException {
+        // read before compiling, so that an invalidation during the compile leaves the entry stale
+        int generation = GENERATION.get();
+        long expires = now + MAX_AGE;
+        for (MailItem item = folder; item != null; item = item.getParent()) {
+            ACL acl = item.rights;
+            if (acl != null && !acl.isEmpty()) {
+                // a grant that lapses changes the outcome, so the entry can't outlive any of them
+                for (ACL.Grant grant : acl.getGrants()) {
+                    long expiry = grant.getEffectiveExpiry(acl);
+                    if (expiry >= now) {
+                        expires = Math.min(expires, expiry + 1);
+                    }
+                }
+                short granted = acl.getGrantedRights(authuser);
+                if (ZimbraLog.acl.isTraceEnabled()) {
+                    ZimbraLog.acl.trace("FolderRightsIndex '%s' granted=%s from '%s'",
+                            folder.getPath(), granted, item.getPath());
+                }
+                return new Entry(granted, expires, generation);
+            }
+            // no ACLs apply; can we check parent folder for inherited rights?
+            if (item.getId() == Mailbox.ID_FOLDER_ROOT || item.isTagged(Flag.FlagInfo.NO_INHERIT)) {
+                if (ZimbraLog.acl.isTraceEnabled()) {
+                    ZimbraLog.acl.trace("FolderRightsIndex '%s' granted=0 (stopped at '%s')",
+                            folder.getPath(), item.getPath());
+                }
+                break;
+            }
+        }
+        return new Entry((short) 0, expires, generation);
+    }
+
+    /**
+     * Drops the entries of the folder and all of its subfolders, which inherit from it.
+     */
+    void invalidate(Folder folder) {
+        for (Folder subfolder : folder.getSubfolderHierarchy()) {
+            invalidate(subfolder.getId());
+        }
+    }
+
+    void invalidate(int folderId) {
+        ConcurrentMap<String, Entry> grantees = folders.remove(folderId);
+        if (grantees != null) {
+            size.addAndGet(-grantees.size());
+        }
+    }
+
+    void clear() {
+        folders.clear();
+        size.set(0);
+    }
+}
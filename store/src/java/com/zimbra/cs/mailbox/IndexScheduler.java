@@ -0,0 +1,317 @@
+/*
+ * ***** BEGIN LICENSE BLOCK *****
+ * Zimbra Collaboration Suite Server
+ * Copyright (C) 2017 Synacor, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software Foundation,
+ * version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <https://www.gnu.org/licenses/>.
+ * ***** END LICENSE BLOCK *****
+ */
+package com.zimbra.cs.mailbox;
+
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import com.zimbra.common.util.ZimbraLog;
+
+/**
+ * Runs index tasks on a fixed set of threads, in priority order across {@link Priority} classes and round-robin
+ * across mailboxes within a class, so that a single bulk import or re-index cannot hold back the indexing of newly
+ * delivered mail in other mailboxes.  A class with queued tasks that was passed over {@code starvationLimit} times in
+ * a row in favour of higher classes gets the next thread, so a steady stream of interactive work cannot starve merges
+ * or re-index.
+ * <p>
+ * {@link Priority#BATCH} tasks never occupy more than {@code batchThreads} threads at once; the other classes may use
+ * any idle thread.  Admission is bounded per class and per mailbox within a class; {@link #submit} throws
+ * {@link RejectedExecutionException} beyond those limits, just like a saturated executor.
+ */
+public final class IndexScheduler {
+
+    public enum Priority {
+        /** indexing of newly delivered or modified items */
+        INTERACTIVE,
+        /** index maintenance that follows interactive indexing, e.g. merges */
+        BACKGROUND,
+        /** re-index and compaction */
+        BATCH
+    }
+
+    private final String name;
+    private final int threads;
+    private final int batchThreads;
+    private final int maxQueued;
+    private final int maxQueuedPerMailbox;
+    private final int starvationLimit;
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition ready = lock.newCondition();
+    private final ClassQueue[] queues = new ClassQueue[Priority.values().length];
+    private final int[] passedOver = new int[Priority.values().length]; // guarded by lock
+    private int runningBatch = 0; // guarded by lock
+    private boolean started = false; // guarded by lock
+    private boolean shutdown = false; // guarded by lock
+
+    /**
+     * @param name prefix of the worker thread names
+     * @param threads number of worker threads
+     * @param batchThreads maximum number of threads running {@link Priority#BATCH} tasks at once
+     * @param maxQueued maximum number of queued tasks per priority class
+     * @param maxQueuedPerMailbox maximum number of queued tasks per mailbox in each priority class
+     * @param starvationLimit number of times in a row a class with queued tasks may be passed over for higher classes
+     */
+    public IndexScheduler(String name, int threads, int batchThreads, int maxQueued, int maxQueuedPerMailbox,
+            int starvationLimit) {
+        this.name = name;
+        this.threads = Math.max(threads, 1);
+        this.batchThreads = Math.max(Math.min(batchThreads, this.threads), 1);
+        this.maxQueued = maxQueued;
+        this.maxQueuedPerMailbox = maxQueuedPerMailbox;
+        this.starvationLimit = Math.max(starvationLimit, 1);
+        for (int i = 0; i < queues.length; i++) {
+            queues[i] = new ClassQueue();
+        }
+    }
+
+    /**
+     * Starts all worker threads.  Tasks submitted before this is called start the workers themselves.
+     */
+    public void start() {
+        lock.lock();
+        try {
+            startWorkers();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void startWorkers() {
+        assert lock.isHeldByCurrentThread();
+        if (started || shutdown) {
+            return;
+        }
+        started = true;
+        for (int i = 0; i < threads; i++) {
+            Thread worker = new Thread(new Worker(), name + "-" + i);
+            worker.setDaemon(true);
+            worker.start();
+        }
+    }
+
+    /**
+     * Stops the worker threads once they finish their current task.  Queued tasks are discarded.
+     */
+    public void shutdown() {
+        lock.lock();
+        try {
+            shutdown = true;
+            for (ClassQueue queue : queues) {
+                queue.clear();
+            }
+            ready.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Queues a task for the given mailbox.
+     *
+     * @throws RejectedExecutionException if the scheduler is shut down or the admission limit of the task's priority
+     * class or of the mailbox within that class is reached
+     */
+    public void submit(Priority priority, int mailboxId, Runnable task) {
+        lock.lock();
+        try {
+            if (shutdown) {
+                throw new RejectedExecutionException(name + " is shut down");
+            }
+            startWorkers();
+            ClassQueue queue = queues[priority.ordinal()];
+            if (queue.size >= maxQueued) {
+                throw new RejectedExecutionException(name + " " + priority + " queue is full");
+            }
+            if (!queue.offer(mailboxId, task, maxQueuedPerMailbox)) {
+                throw new RejectedExecutionException(name + " " + priority + " queue is full for mailbox " + mailboxId);
+            }
+            ready.signal();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Returns the number of queued, not yet running, tasks of the given class. */
+    public int getQueueDepth(Priority priority) {
+        lock.lock();
+        try {
+            return queues[priority.ordinal()].size;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Returns how long the oldest queued task of the given class has been waiting, or 0 if there is none. */
+    public long getOldestWaitMillis(Priority priority) {
+        lock.lock();
+        try {
+            long oldest = queues[priority.ordinal()].oldestEnqueueTime();
+            return oldest < 0 ? 0 : Math.max(System.currentTimeMillis() - oldest, 0);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Takes the next runnable task, blocking until there is one.  Returns null on shutdown. */
+    private Task take() throws InterruptedException {
+        lock.lock();
+        try {
+            while (!shutdown) {
+                Priority next = null;
+                for (Priority priority : Priority.values()) {
+                    if (isRunnable(priority) && passedOver[priority.ordinal()] >= starvationLimit) {
+                        next = priority;
+                        break;
+                    }
+                }
+                if (next == null) {
+                    for (Priority priority : Priority.values()) {
+                        if (isRunnable(priority)) {
+                            next = priority;
+                            break;
+                        }
+                    }
+                }
+                if (next == null) {
+                    ready.await();
+                    continue;
+                }
+                for (Priority priority : Priority.values()) {
+                    if (priority.ordinal() > next.ordinal() && isRunnable(priority)) {
+                        passedOver[priority.ordinal()]++;
+                    }
+                }
+                passedOver[next.ordinal()] = 0;
+                if (next == Priority.BATCH) {
+                    runningBatch++;
+                }
+                Task task = queues[next.ordinal()].poll();
+                task.priority = next;
+                return task;
+            }
+            return null;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private boolean isRunnable(Priority priority) {
+        assert lock.isHeldByCurrentThread();
+        return queues[priority.ordinal()].size > 0 && (priority != Priority.BATCH || runningBatch < batchThreads);
+    }
+
+    private void done(Task task) {
+        if (task.priority == Priority.BATCH) {
+            lock.lock();
+            try {
+                runningBatch--;
+                ready.signal(); // a queued batch task may be runnable now
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    private final class Worker implements Runnable {
+        @Override
+        public void run() {
+            while (true) {
+                Task task;
+                try {
+                    task = take();
+                } catch (InterruptedException e) {
+                    return;
+                }
+                if (task == null) {
+                    return;
+                }
+                try {
+                    task.runnable.run();
+                } catch (Throwable t) {
+                    ZimbraLog.index.error("Uncaught exception in index task", t);
+                } finally {
+                    done(task);
+                }
+            }
+        }
+    }
+
+    private static final class Task {
+        final Runnable runnable;
+        final long enqueueTime = System.currentTimeMillis();
+        Priority priority;
+
+        Task(Runnable runnable) {
+            this.runnable = runnable;
+        }
+    }
+
+    /** Per-mailbox task queues of one priority class, served round-robin. */
+    private static final class ClassQueue {
+        private final Map<Integer, ArrayDeque<Task>> byMailbox = new HashMap<Integer, ArrayDeque<Task>>();
+        private final ArrayDeque<Integer> ring = new ArrayDeque<Integer>();
+        int size = 0;
+
+        boolean offer(int mailboxId, Runnable runnable, int maxPerMailbox) {
+            ArrayDeque<Task> tasks = byMailbox.get(mailboxId);
+            if (tasks == null) {
+                tasks = new ArrayDeque<Task>();
+                byMailbox.put(mailboxId, tasks);
+                ring.addLast(mailboxId);
+            } else if (tasks.size() >= maxPerMailbox) {
+                return false;
+            }
+            tasks.addLast(new Task(runnable));
+            size++;
+            return true;
+        }
+
+        Task poll() {
+            Integer mailboxId = ring.pollFirst();
+            ArrayDeque<Task> tasks = byMailbox.get(mailboxId);
+            Task task = tasks.pollFirst();
+            if (tasks.isEmpty()) {
+                byMailbox.remove(mailboxId);
+            } else {
+                ring.addLast(mailboxId);
+            }
+            size--;
+            return task;
+        }
+
+        long oldestEnqueueTime() {
+            long oldest = -1;
+            for (ArrayDeque<Task> tasks : byMailbox.values()) {
+                long time = tasks.peekFirst().enqueueTime;
+                if (oldest < 0 || time < oldest) {
+                    oldest = time;
+                }
+            }
+            return oldest;
+        }
+
+        void clear() {
+            byMailbox.clear();
+            ring.clear();
+            size = 0;
+        }
+    }
+}
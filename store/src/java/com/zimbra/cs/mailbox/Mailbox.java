@@ -148,9 +148,12 @@ import com.zimbra.cs.mailbox.calendar.Invite;
 import com.zimbra.cs.mailbox.calendar.RecurId;
 import com.zimbra.cs.mailbox.calendar.Util;
 import com.zimbra.cs.mailbox.calendar.ZOrganizer;
+import com.zimbra.cs.mailbox.calendar.cache.BusyTimeline;
+import com.zimbra.cs.mailbox.calendar.cache.BusyTimelineCache;
 import com.zimbra.cs.mailbox.calendar.cache.CalSummaryCache.CalendarDataResult;
 import com.zimbra.cs.mailbox.calendar.cache.CalendarCacheManager;
 import com.zimbra.cs.mailbox.calendar.tzfixup.TimeZoneFixupRules;
+import com.zimbra.cs.mailbox.util.ModifiedItemsCursor;
 import com.zimbra.cs.mailbox.util.TypedIdList;
 import com.zimbra.cs.mime.Mime;
 import com.zimbra.cs.mime.ParsedAddress;
@@ -372,6 +375,8 @@ public class Mailbox implements MailboxStore {
         RedoableOp recorder = null;
         List<IndexItemEntry> indexItems = new ArrayList<IndexItemEntry>();
         ItemCache itemCache = null;
+        /** items to write to (or, if mapped to null, drop from) the off-heap item cache on commit */
+        Map<Integer, MailItem> offHeapItems = null;
         OperationContext octxt = null;
         TargetConstraint tcon = null;
 
@@ -499,6 +504,7 @@ public class Mailbox implements MailboxStore {
             this.config = null;
             this.deletes = null;
             this.itemCache = null;
+            this.offHeapItems = null;
             this.indexItems.clear();
             this.dirty.clear();
             this.otherDirtyStuff.clear();
@@ -739,6 +745,7 @@ public class Mailbox implements MailboxStore {
     private final List<Session> mListeners = new CopyOnWriteArrayList<Session>();
 
     private FolderCache mFolderCache;
+    private final FolderRightsIndex folderRights = new FolderRightsIndex();
     private Map<Object, Tag> mTagCache;
     private SoftReference<ItemCache> mItemCache = new SoftReference<ItemCache>(null);
     private final Map<String, Integer> mConvHashes = new ConcurrentLinkedHashMap.Builder<String, Integer>()
@@ -1570,6 +1577,9 @@ public class Mailbox implements MailboxStore {
         } catch (ServiceException e) {
             ZimbraLog.mailbox.warn("could not snapshot to-be-deleted item", e);
         }
+        if (item instanceof Folder) {
+            folderRights.invalidate((Folder) item);
+        }
         if (itemSnapshot == null) {
             markItemDeleted(item.getType(), item.getId(), item.getFolderId());
         } else {
@@ -1603,6 +1613,10 @@ public class Mailbox implements MailboxStore {
         if (item.inDumpster() && (reason != Change.METADATA)) {
             throw MailServiceException.IMMUTABLE_OBJECT(item.getId());
         }
+        if (item instanceof Folder && (reason & (Change.ACL | Change.FOLDER | Change.PARENT | Change.FLAGS)) != 0) {
+            // the folder and everything inheriting from it get recompiled on next access
+            folderRights.invalidate((Folder) item);
+        }
         currentChange().dirty.recordModified(item, reason);
     }
 
@@ -1761,6 +1775,7 @@ public class Mailbox implements MailboxStore {
             write = true;
 
         }
+        lock.setOperation(recorder != null ? recorder.getOperation().name() : caller);
         currentChange().startChange(caller, octxt, recorder, write);
 
         // if a Connection object was provided, use it
@@ -1962,6 +1977,7 @@ public class Mailbox implements MailboxStore {
         } else {
             mItemCache.clear();
         }
+        clearOffHeapItems();
         try {
             if (Zimbra.isAlwaysOn()) {
                 DbMailbox.incrementItemcacheCheckpoint(this);
@@ -1987,11 +2003,137 @@ public class Mailbox implements MailboxStore {
             }
         } else {
             getItemCache().put(item);
+            markOffHeapItem(item.getId(), item);
         }
 
         ZimbraLog.cache.debug("cached %s %d in mailbox %d", item.getType(), item.getId(), getId());
     }
 
+    /**
+     * Records an item read or uncached by the current transaction for the off-heap item cache.  Items created,
+     * modified or deleted by the transaction are taken from its pending modifications instead.  Nothing is applied
+     * until the transaction commits, so that data read or written by a transaction that is rolled back never reaches
+     * the cache.
+     *
+     * @param item the item to cache, or null to drop the item from the cache
+     */
+    private void markOffHeapItem(int itemId, MailItem item) {
+        if (OffHeapItemCache.getInstance() == null || itemId <= 0 || !currentChange().isActive()) {
+            return;
+        }
+        if (item instanceof Folder || item instanceof Tag || item instanceof VirtualConversation) {
+            return;
+        }
+        MailboxChange change = currentChange();
+        if (change.offHeapItems == null) {
+            change.offHeapItems = new HashMap<Integer, MailItem>();
+        }
+        change.offHeapItems.put(itemId, item);
+    }
+
+    /** Drops all of this mailbox's items from the off-heap item cache. */
+    private void clearOffHeapItems() {
+        OffHeapItemCache offHeap = OffHeapItemCache.getInstance();
+        if (offHeap != null) {
+            offHeap.invalidate(getId());
+            if (currentChange().isActive()) {
+                currentChange().offHeapItems = null;
+            }
+        }
+    }
+
+    /**
+     * Applies the items read and changed by a successful transaction to the off-heap item cache.  Changes are taken
+     * from the transaction's pending modifications, so that every item the transaction touched is refreshed or
+     * dropped, whether or not the code that changed it also updated the item cache.
+     */
+    private void commitOffHeapItems(MailboxChange change, PendingLocalModifications dirty) {
+        OffHeapItemCache offHeap = OffHeapItemCache.getInstance();
+        if (offHeap == null) {
+            return;
+        }
+        if (change.offHeapItems != null) {
+            for (Map.Entry<Integer, MailItem> entry : change.offHeapItems.entrySet()) {
+                putOffHeapItem(offHeap, entry.getKey(), entry.getValue());
+            }
+        }
+        if (dirty == null) {
+            return;
+        }
+        if (dirty.created != null) {
+            for (Map.Entry<PendingLocalModifications.ModificationKey, BaseItemInfo> entry :
+                    dirty.created.entrySet()) {
+                MailItem item = entry.getValue() instanceof MailItem ? (MailItem) entry.getValue() : null;
+                putOffHeapItem(offHeap, entry.getKey().getItemId(), item);
+            }
+        }
+        if (dirty.modified != null) {
+            for (Map.Entry<PendingLocalModifications.ModificationKey, Change> entry : dirty.modified.entrySet()) {
+                Object what = entry.getValue().what;
+                if (what instanceof Mailbox) {
+                    continue;
+                }
+                // conversations are uncached on commit, since their counts are recomputed from their messages
+                MailItem item = what instanceof MailItem && !(what instanceof Conversation) ? (MailItem) what : null;
+                putOffHeapItem(offHeap, entry.getKey().getItemId(), item);
+            }
+        }
+        if (dirty.deleted != null) {
+            for (PendingLocalModifications.ModificationKey key : dirty.deleted.keySet()) {
+                putOffHeapItem(offHeap, key.getItemId(), null);
+            }
+        }
+    }
+
+    private void putOffHeapItem(OffHeapItemCache offHeap, int itemId, MailItem item) {
+        if (itemId <= 0 || item instanceof Folder || item instanceof Tag || item instanceof VirtualConversation) {
+            return;
+        }
+        if (item == null || item.isTagged(Flag.FlagInfo.UNCACHED)) {
+            offHeap.remove(mId, itemId);
+        } else {
+            offHeap.put(this, item);
+        }
+    }
+
+    /**
+     * Looks up an item that missed the item cache in the off-heap item cache, and moves it back into the item cache.
+     *
+     * @return the item, or null if it has to be fetched from the database
+     */
+    private MailItem getOffHeapItem(int id, MailItem.Type type) throws ServiceException {
+        OffHeapItemCache offHeap = OffHeapItemCache.getInstance();
+        if (offHeap == null || isCachedType(type)) {
+            return null;
+        }
+        MailboxChange change = currentChange();
+        if (change.offHeapItems != null && change.offHeapItems.containsKey(id)) {
+            // cached or uncached by this transaction; the off-heap copy may be stale
+            return null;
+        }
+        if (change.dirty.hasNotifications()) {
+            // changed by this transaction; the off-heap copy may be stale
+            PendingLocalModifications.ModificationKey mkey =
+                new PendingLocalModifications.ModificationKey(getAccountId(), id);
+            if ((change.dirty.created != null && change.dirty.created.containsKey(mkey)) ||
+                    (change.dirty.modified != null && change.dirty.modified.containsKey(mkey)) ||
+                    (change.dirty.deleted != null && change.dirty.deleted.containsKey(mkey))) {
+                return null;
+            }
+        }
+        MailItem.UnderlyingData data = offHeap.get(this, id);
+        ZimbraPerf.COUNTER_MBOX_ITEM_OFFHEAP_CACHE.increment(data == null ? 0 : 100);
+        if (data == null || !MailItem.isAcceptableType(type, MailItem.Type.of(data.type))) {
+            return null;
+        }
+        MailItem item = MailItem.constructItem(this, data);
+        // constructing the item cached it; no need to write it back
+        if (change.offHeapItems != null) {
+            change.offHeapItems.remove(id);
+        }
+        return item;
+    }
+
     protected void uncache(MailItem item) throws ServiceException {
         if (item == null) {
             return;
@@ -2010,6 +2152,7 @@ public class Mailbox implements MailboxStore {
             mFolderCache.remove((Folder) item);
         } else {
             getItemCache().remove(item);
+            markOffHeapItem(item.getId(), null);
             MessageCache.purge(item);
         }
 
@@ -2027,6 +2170,7 @@ public class Mailbox implements MailboxStore {
      * @param itemId  The id of the item to uncache */
     void uncacheItem(Integer itemId) throws ServiceException {
         MailItem item = getItemCache().remove(itemId);
+        markOffHeapItem(itemId, null);
         if (ZimbraLog.cache.isDebugEnabled()) {
             ZimbraLog.cache.debug("uncached item " + itemId + " in mailbox " + getId());
         }
@@ -2068,8 +2212,13 @@ public class Mailbox implements MailboxStore {
         }
     }
 
+    FolderRightsIndex getFolderRightsIndex() {
+        return folderRights;
+    }
+
     private void clearFolderCache() {
         mFolderCache = null;
+        folderRights.clear();
         requiresWriteLock = true;
         // Remove from memcached cache
         try {
@@ -2440,6 +2589,7 @@ public class Mailbox implements MailboxStore {
                     // Remove all data related to this mailbox from memcached, so the data doesn't
                     // get used by another user later by mistake if/when mailbox id gets reused.
                     MemcachedCacheManager.purgeMailbox(this);
+                    clearOffHeapItems();
 
                     success = true;
                 } finally {
@@ -2939,8 +3089,11 @@ public class Mailbox implements MailboxStore {
                 item = new VirtualConversation(this, msg);
             }
         } else {
-            // cache miss, so fetch from the database
-            item = MailItem.getById(this, id, type);
+            // cache miss, so try the off-heap cache before fetching from the database
+            item = getOffHeapItem(id, type);
+            if (item == null) {
+                item = MailItem.getById(this, id, type);
+            }
         }
         if (item == null) {
             ZimbraLog.mailbox.warn("item is null for id [%d] in mailbox [%d]. Virtual conv? [%s] cachedMsg? [%s] sameId? [%s]", id, this.mId, virtualConv, cachedMsg, sameId);
@@ -3970,6 +4123,43 @@ public class Mailbox implements MailboxStore {
         }
     }
 
+    /**
+     * Returns the next page of at most {@code limit} items modified after the {@code cursor} position, in change
+     * order, and moves the cursor past them.  Use this rather than
+     * {@link #getModifiedItems(OperationContext, int, int, MailItem.Type, Set, int, int)} to walk a big delta
+     * without holding all of it in memory; {@link ModifiedItemsCursor#hasMore()} tells when the walk is over.
+     */
+    public Pair<List<Integer>, TypedIdList> getModifiedItems(OperationContext octxt, ModifiedItemsCursor cursor,
+            int sinceDate, MailItem.Type type, Set<Integer> folderIds, int lastDeleteSync, int limit)
+    throws ServiceException {
+        lock.lock(false);
+        try {
+            if (cursor.getModSequence() >= getLastChangeID()) {
+                cursor.endPage(limit);
+                return new Pair<List<Integer>, TypedIdList>(Collections.<Integer> emptyList(), new TypedIdList());
+            }
+            boolean success = false;
+            try {
+                beginReadTransaction("getModifiedItems", octxt);
+
+                Set<Integer> visible = Folder.toId(getAccessibleFolders(ACL.RIGHT_READ));
+                if (folderIds == null) {
+                    folderIds = visible;
+                } else if (visible != null) {
+                    folderIds = SetUtil.intersect(folderIds, visible);
+                }
+                Pair<List<Integer>, TypedIdList> dataList = DbMailItem
+                                .getModifiedItems(this, type, cursor, sinceDate, folderIds, lastDeleteSync, limit);
+                success = true;
+                return dataList;
+            } finally {
+                endTransaction(success);
+            }
+        } finally {
+            lock.release();
+        }
+    }
+
     /**
      * Returns a list of all {@link Folder}s the authenticated user has {@link ACL#RIGHT_READ} access to. Returns
      * {@code null} if the authenticated user has read access to the entire Mailbox.
@@ -4971,6 +5161,64 @@ public class Mailbox implements MailboxStore {
         }
     }
 
+    /**
+     * Returns the busy timeline of an appointment folder for local free/busy, or null if the range isn't covered by
+     * timelines, in which case {@link #getCalendarSummaryForRange} has to be used instead.
+     */
+    public BusyTimeline getBusyTimelineForRange(OperationContext octxt, int folderId, long start, long end)
+                    throws ServiceException {
+        BusyTimelineCache cache = CalendarCacheManager.getInstance().getBusyTimelineCache();
+        if (!cache.covers(start, end)) {
+            return null;
+        }
+        lock.lock(false);
+        try {
+            Folder folder = getFolderById(octxt, folderId);
+            if (!folder.canAccess(ACL.RIGHT_READ)) {
+                throw ServiceException.PERM_DENIED("you do not have sufficient permissions on folder "
+                                + folder.getName());
+            }
+            return cache.getBusyTimeline(this, folder);
+        } finally {
+            lock.release();
+        }
+    }
+
+    /**
+     * Returns the busy timelines of all the appointment folders for local free/busy, or null if the range isn't
+     * covered by timelines, in which case {@link #getAllCalendarsSummaryForRange} has to be used instead.
+     */
+    public List<BusyTimeline> getAllBusyTimelinesForRange(OperationContext octxt, long start, long end)
+                    throws ServiceException {
+        BusyTimelineCache cache = CalendarCacheManager.getInstance().getBusyTimelineCache();
+        if (!cache.covers(start, end)) {
+            return null;
+        }
+        boolean success = false;
+        try {
+            // folder cache is populated in beginTransaction...
+            beginReadTransaction("getAllBusyTimelinesForRange", octxt);
+            success = true;
+            List<BusyTimeline> list = new ArrayList<BusyTimeline>();
+            for (Folder folder : listAllFolders()) {
+                // same folders as getAllCalendarsSummaryForRange() looks at
+                if (folder.inTrash() || folder.inSpam() || folder.getDefaultView() != MailItem.Type.APPOINTMENT) {
+                    continue;
+                }
+                if (!folder.canAccess(ACL.RIGHT_READ)) {
+                    continue;
+                }
+                BusyTimeline timeline = cache.getBusyTimeline(this, folder);
+                if (timeline != null) {
+                    list.add(timeline);
+                }
+            }
+            return list;
+        } finally {
+            endTransaction(success);
+        }
+    }
+
     /**
      * @param octxt
      * @param params
@@ -9818,6 +10066,8 @@ public class Mailbox implements MailboxStore {
                 }
             }
 
+            commitOffHeapItems(change, dirty);
+
             if (change.deletes != null && change.deletes.blobs != null) {
                 // remove cached messages
                 for (String digest : change.deletes.blobDigests) {
@@ -26,12 +26,9 @@ import java.util.HashSet;
 import java.util.List;
 import java.util.ListIterator;
 import java.util.Set;
-import java.util.concurrent.ExecutorService;
 import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.Semaphore;
-import java.util.concurrent.SynchronousQueue;
-import java.util.concurrent.ThreadPoolExecutor;
-import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.regex.Pattern;
 
 import org.apache.lucene.analysis.Analyzer;
@@ -43,7 +40,6 @@ import com.google.common.collect.ImmutableSet;
 import com.google.common.collect.Multimaps;
 import com.google.common.collect.SetMultimap;
 import com.google.common.io.Closeables;
-import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import com.zimbra.common.localconfig.LC;
 import com.zimbra.common.mime.InternetAddress;
 import com.zimbra.common.service.ServiceException;
@@ -66,6 +62,7 @@ import com.zimbra.cs.index.LuceneFields;
 import com.zimbra.cs.index.LuceneIndex;
 import com.zimbra.cs.index.ReSortingQueryResults;
 import com.zimbra.cs.index.SearchParams;
+import com.zimbra.cs.index.SearchResultCache;
 import com.zimbra.cs.index.SortBy;
 import com.zimbra.cs.index.ZimbraAnalyzer;
 import com.zimbra.cs.index.ZimbraIndexReader.TermFieldEnumeration;
@@ -88,14 +85,12 @@ public final class MailboxIndex {
     private static final int MAX_TX_ITEMS = LC.zimbra_index_max_transaction_items.intValue();
     private static final long FAILURE_DELAY = LC.zimbra_index_deferred_items_failure_delay.intValue() * 1000;
 
-    private static final ThreadPoolExecutor INDEX_EXECUTOR = new ThreadPoolExecutor(
-            LC.zimbra_index_threads.intValue(), LC.zimbra_index_threads.intValue(),
-            Long.MAX_VALUE, TimeUnit.NANOSECONDS, new SynchronousQueue<Runnable>(),
-            new ThreadFactoryBuilder().setNameFormat("Index-%d").setDaemon(true).build());
-    // Re-index threads are created on demand basis. The number of threads are capped.
-    private static final ExecutorService REINDEX_EXECUTOR = new ThreadPoolExecutor(
-            0, LC.zimbra_reindex_threads.intValue(), 0L, TimeUnit.SECONDS, new SynchronousQueue<Runnable>(),
-            new ThreadFactoryBuilder().setNameFormat("ReIndex-%d").setDaemon(true).build());
+    // Re-index and compaction share the index threads but never take more than zimbra_reindex_threads of them.
+    private static final IndexScheduler INDEX_SCHEDULER = new IndexScheduler("Index",
+            LC.zimbra_index_threads.intValue() + LC.zimbra_reindex_threads.intValue(),
+            LC.zimbra_reindex_threads.intValue(), LC.zimbra_index_queue_max_tasks.intValue(),
+            LC.zimbra_index_queue_max_tasks_per_mailbox.intValue(), LC.zimbra_index_queue_starvation_limit.intValue());
+    private static final SearchResultCache SEARCH_RESULT_CACHE = SearchResultCache.getInstance();
 
     private volatile long lastFailedTime = -1;
     // Only one thread may run index at a time.
@@ -105,6 +100,8 @@ public final class MailboxIndex {
     private IndexStore indexStore;
     // current re-indexing operation for this mailbox, or NULL if a re-index is not in progress.
     private volatile ReIndexTask reIndex;
+    // true while a BatchIndexTask for this mailbox is queued but not yet running
+    private final AtomicBoolean batchQueued = new AtomicBoolean(false);
     // current compact-indexing operation for this mailbox, or NULL if a compact-index is not in progress.
     private volatile CompactIndexTask compactIndex;
     private volatile SetMultimap<MailItem.Type, Integer> deferredIds; // guarded by IndexHelper
@@ -126,7 +123,11 @@ public final class MailboxIndex {
      * Starts all index threads.
      */
     public static void startup() {
-        INDEX_EXECUTOR.prestartAllCoreThreads();
+        INDEX_SCHEDULER.start();
+    }
+
+    public static IndexScheduler getScheduler() {
+        return INDEX_SCHEDULER;
     }
 
     public static void shutdown() {
@@ -163,6 +164,18 @@ public final class MailboxIndex {
         assert(mailbox.lock.isUnlocked());
         assert(octx != null);
 
+        // pages 2..N of the same search are usually served from the result cache
+        SearchResultCache.Key cacheKey = isReIndexInProgress() ? null :
+            SEARCH_RESULT_CACHE.getKey(mailbox, octx, params);
+        int changeId = -1;
+        if (cacheKey != null) {
+            changeId = getLastChangeID();
+            ZimbraQueryResults cached = SEARCH_RESULT_CACHE.get(cacheKey, mailbox, octx, params, changeId);
+            if (cached != null) {
+                return cached;
+            }
+        }
+
         ZimbraQuery query = new ZimbraQuery(octx, proto, mailbox, params);
         Set<MailItem.Type> types = toIndexTypes(params.getTypes());
         // no need to index if the search doesn't involve Lucene
@@ -174,9 +187,24 @@ public final class MailboxIndex {
                 ZimbraLog.index.error("Failed to index deferred items", e);
             }
         }
+        // indexing the remaining items won't advance the change sequence, so don't cache text searches that miss them,
+        // and neither does the passing of time, so don't cache searches relative to the current time
+        if (cacheKey != null && !query.hasRelativeDate() &&
+                (!query.hasTextOperation() || getDeferredCount(types) == 0)) {
+            return SEARCH_RESULT_CACHE.record(cacheKey, mailbox, params, changeId, search(query));
+        }
         return search(query);
     }
 
+    private int getLastChangeID() {
+        mailbox.lock.lock(false);
+        try {
+            return mailbox.getLastChangeID();
+        } finally {
+            mailbox.lock.release();
+        }
+    }
+
     public ZimbraQueryResults search(OperationContext octxt, String queryString, Set<MailItem.Type> types,
             SortBy sortBy, int chunkSize, boolean inDumpster) throws ServiceException {
         SearchParams params = new SearchParams();
@@ -319,16 +347,17 @@ public final class MailboxIndex {
             cancelReIndex();
         }
         indexStore.deleteIndex();
+        SEARCH_RESULT_CACHE.invalidate(mailbox.getId());
     }
 
     /**
-     * Submits a task to {@link #INDEX_EXECUTOR}.
+     * Queues a task on {@link #INDEX_SCHEDULER} at the task's priority.
      *
      * @param task index task
-     * @throws RejectedExecutionException if all index threads are busy
+     * @throws RejectedExecutionException if the index queue is full
      */
     public void submit(IndexTask task) {
-        INDEX_EXECUTOR.submit(task);
+        INDEX_SCHEDULER.submit(task.getPriority(), task.mailbox.getId(), task);
     }
 
     void setIndexingSuspended( boolean suspended) {
@@ -361,10 +390,13 @@ public final class MailboxIndex {
         // If there was a failure, we trigger indexing even if the deferred count is still low.
         if ((lastFailedTime >= 0 && System.currentTimeMillis() - lastFailedTime > FAILURE_DELAY) ||
                 getDeferredCount(EnumSet.noneOf(MailItem.Type.class)) >= getBatchThreshold()) {
-            try {
-                INDEX_EXECUTOR.submit(new BatchIndexTask());
-            } catch (RejectedExecutionException e) {
-                ZimbraLog.index.warn("Skipping batch index because all index threads are busy");
+            if (batchQueued.compareAndSet(false, true)) { // one queued batch indexes everything deferred so far
+                try {
+                    submit(new BatchIndexTask());
+                } catch (RejectedExecutionException e) {
+                    batchQueued.set(false);
+                    ZimbraLog.index.warn("Skipping batch index because the index queue is full");
+                }
             }
         }
     }
@@ -458,7 +490,8 @@ public final class MailboxIndex {
                 throw ServiceException.ALREADY_IN_PROGRESS(
                         Integer.toString(mailbox.getId()), "Compact Index");
             }
-            REINDEX_EXECUTOR.submit(reIndex = task);
+            submit(task);
+            reIndex = task;
         } catch (RejectedExecutionException e) {
             throw ServiceException.FAILURE("Unable to submit reindex request. Try again later", e);
         }
@@ -490,7 +523,8 @@ public final class MailboxIndex {
                 throw ServiceException.ALREADY_IN_PROGRESS(
                         Integer.toString(mailbox.getId()), reIndex.status.toString());
             }
-            REINDEX_EXECUTOR.submit(compactIndex = task);
+            submit(task);
+            compactIndex = task;
         } catch (RejectedExecutionException e) {
             throw ServiceException.FAILURE("Unable to submit compact index request. Try again later", e);
         }
@@ -516,6 +550,11 @@ public final class MailboxIndex {
             this.ids = ids;
         }
 
+        @Override
+        protected IndexScheduler.Priority getPriority() {
+            return IndexScheduler.Priority.BATCH;
+        }
+
         @Override
         public void exec() {
             try {
@@ -548,6 +587,7 @@ public final class MailboxIndex {
                 synchronized (MailboxIndex.this) {
                     reIndex = null;
                 }
+                SEARCH_RESULT_CACHE.invalidate(mailbox.getId());
             }
         }
 
@@ -602,6 +642,11 @@ public final class MailboxIndex {
             super(mbox);
         }
 
+        @Override
+        protected IndexScheduler.Priority getPriority() {
+            return IndexScheduler.Priority.BATCH;
+        }
+
         @Override
         protected void exec() throws Exception {
             try {
@@ -1429,6 +1474,13 @@ public final class MailboxIndex {
         }
 
         protected abstract void exec() throws Exception;
+
+        /**
+         * Returns the scheduling class of this task, {@link IndexScheduler.Priority#INTERACTIVE} unless overridden.
+         */
+        protected IndexScheduler.Priority getPriority() {
+            return IndexScheduler.Priority.INTERACTIVE;
+        }
     }
 
     private final class BatchIndexTask extends IndexTask {
@@ -1439,6 +1491,7 @@ public final class MailboxIndex {
 
         @Override
         protected void exec() throws Exception {
+            batchQueued.set(false);
             indexDeferredItems(EnumSet.noneOf(MailItem.Type.class), new BatchStatus(), false);
         }
 
@@ -28,6 +28,7 @@ import com.zimbra.common.localconfig.LC;
 import com.zimbra.common.service.ServiceException;
 import com.zimbra.common.util.ZimbraLog;
 import com.zimbra.cs.mailbox.lock.DebugZLock;
+import com.zimbra.cs.mailbox.lock.MailboxLockStats;
 import com.zimbra.cs.mailbox.lock.ZLock;
 import com.zimbra.cs.util.Zimbra;
 import com.zimbra.cs.zookeeper.CuratorManager;
@@ -42,10 +43,19 @@ import com.zimbra.cs.zookeeper.CuratorManager;
  *
  */
 public final class MailboxLock {
-    private final ZLock zLock = DebugConfig.debugMailboxLock ? new DebugZLock() : new ZLock();
+    private final ZLock zLock = DebugConfig.debugMailboxLock ?
+            new DebugZLock(LC.zimbra_mailbox_lock_fair.booleanValue()) : new ZLock(LC.zimbra_mailbox_lock_fair.booleanValue());
     private InterProcessSemaphoreMutex dLock = null;
     private final Stack<Boolean> lockStack = new Stack<Boolean>();
     private Mailbox mbox;
+    private final MailboxLockStats stats = new MailboxLockStats();
+    /** outermost acquisition of the current thread; used to measure hold time */
+    private final ThreadLocal<Hold> currentHold = new ThreadLocal<Hold>();
+
+    private static final class Hold {
+        final long start = System.nanoTime();
+        String operation;
+    }
 
     public MailboxLock(String id, Mailbox mbox) {
         if (Zimbra.isAlwaysOn()) {
@@ -152,17 +162,66 @@ public final class MailboxLock {
         return zLock.getQueueLength();
     }
 
+    public MailboxLockStats getStats() {
+        return stats;
+    }
+
+    public boolean isFair() {
+        return zLock.isFair();
+    }
+
+    /**
+     * Attributes the hold time of the current thread's outermost lock to the given operation. Only the first call
+     * after the outermost lock is taken into account, so that nested transactions don't hide the actual holder.
+     */
+    void setOperation(String operation) {
+        Hold hold = currentHold.get();
+        if (hold != null && hold.operation == null) {
+            hold.operation = operation;
+        }
+    }
+
+    private void startHold() {
+        if (currentHold.get() == null) {
+            currentHold.set(new Hold());
+        }
+    }
+
+    private void endHold() {
+        if (getHoldCount() == 0) {
+            Hold hold = currentHold.get();
+            if (hold != null) {
+                currentHold.remove();
+                stats.recordHold(hold.operation, System.nanoTime() - hold.start);
+            }
+        }
+    }
+
     @VisibleForTesting
     boolean hasQueuedThreads() {
         return zLock.hasQueuedThreads();
     }
 
     public void lock(boolean write) {
+        lock(write, true);
+    }
+
+    /**
+     * @param recordWait false when re-locking during {@link #promote()}, whose wait was already recorded by the
+     *  original acquisition
+     */
+    private void lock(boolean write, boolean recordWait) {
         write = write || mbox.requiresWriteLock();
         ZimbraLog.mailbox.trace("LOCK %s", (write ? "WRITE" : "READ"));
         assert(neverReadBeforeWrite(write));
         try {
             if (tryLock(write)) {
+                if (getHoldCount() == 1) {
+                    if (recordWait) {
+                        stats.recordWait(0);
+                    }
+                    startHold();
+                }
                 if (mbox.requiresWriteLock() && !isWriteLockedByCurrentThread()) {
                     //writer finished a purge while we waited
                     promote();
@@ -180,7 +239,9 @@ public final class MailboxLock {
                 return;
             }
             int queueLength = zLock.getQueueLength();
+            stats.recordQueueLength(queueLength);
             if (queueLength >= LC.zimbra_mailbox_lock_max_waiting_threads.intValue()) {
+                stats.recordFailure();
                 // Too many threads are already waiting for the lock, can't let you queued. We don't want to log stack trace
                 // here because once requests back up, each new incoming request falls into here, which creates too much
                 // noise in the logs. Unless debug switch is enabled
@@ -191,7 +252,14 @@ public final class MailboxLock {
                 throw e;
             }
             // Wait for the lock up to the timeout.
+            long waitStart = System.nanoTime();
             if (tryLockWithTimeout(write)) {
+                if (getHoldCount() == 1) {
+                    if (recordWait) {
+                        stats.recordWait(System.nanoTime() - waitStart);
+                    }
+                    startHold();
+                }
                 if (mbox.requiresWriteLock() && !isWriteLockedByCurrentThread()) {
                     //writer finished a purge while we waited
                     promote();
@@ -208,6 +276,7 @@ public final class MailboxLock {
                 }
                 return;
             }
+            stats.recordFailure();
             LockFailedException e = new LockFailedException("timeout");
             e.logStackTrace();
             throw e;
@@ -241,6 +310,7 @@ public final class MailboxLock {
             zLock.readLock().unlock();
             assert(debugReleaseReadLock());
         }
+        endHold();
     }
 
     private void promote() {
@@ -252,7 +322,7 @@ public final class MailboxLock {
         zLock.readLock().unlock();
         assert(debugReleaseReadLock());
         for (int i = 0; i < count; i++) {
-            lock(true);
+            lock(true, false);
         }
     }
 
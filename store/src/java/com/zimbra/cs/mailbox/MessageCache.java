@@ -19,13 +19,20 @@ package com.zimbra.cs.mailbox;
 import java.io.IOException;
 import java.io.InputStream;
 import java.util.HashMap;
-import java.util.Iterator;
-import java.util.LinkedHashMap;
 import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
 
 import javax.mail.MessagingException;
 import javax.mail.internet.MimeMessage;
 
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.RemovalListener;
+import com.google.common.cache.RemovalNotification;
+import com.google.common.cache.Weigher;
+import com.google.common.util.concurrent.UncheckedExecutionException;
+import com.zimbra.common.localconfig.LC;
 import com.zimbra.common.mime.MimeConstants;
 import com.zimbra.common.service.ServiceException;
 import com.zimbra.common.util.ByteUtil;
@@ -48,19 +55,44 @@ public class MessageCache {
 
     private static final class CacheNode {
         CacheNode()  { }
-        MimeMessage message;
-        MimeMessage expanded;
+        volatile MimeMessage message;
+        volatile MimeMessage expanded;
+        /** Guarded by the node's monitor, as are loading and expanding the message. */
         Map<Integer, String> smimeAccessInfo = new HashMap<Integer, String>();
-        long size = 0;
+        /** Size of the raw message, in bytes. */
+        volatile long size = 0;
+
+        long getWeight() {
+            MimeMessage exp = expanded;
+            return exp != null && exp != message ? size * 2 : size;
+        }
     }
 
-    /** Cache mapping message digest to the corresponding message structure. */
-    private static Map<String, CacheNode> sCache = new LinkedHashMap<String, CacheNode>(150, (float) 0.75, true);
-    /** Maximum number of items in {@link #sCache}. */
-    private static int sMaxCacheSize;
-    /** Number of bytes of message data stored in the cache.  This value includes only
-     * messages that are read into memory, not streamed from disk. */
-    private volatile static long sDataSize = 0;
+    /** Average message size assumed when the byte limit is derived from the item count limit. */
+    private static final long DEFAULT_MESSAGE_WEIGHT = 64 * 1024;
+
+    /** Cache mapping message digest to the corresponding message structure, weighted by message size. */
+    private static volatile Cache<String, CacheNode> sCache;
+    /** Maximum number of bytes of message data in {@link #sCache}. */
+    private static long sMaxDataSize;
+    /** Maximum weight of a single entry, so that a few huge messages can't flush a whole segment. */
+    private static volatile int sMaxEntryWeight = Integer.MAX_VALUE;
+
+    private static final Weigher<String, CacheNode> WEIGHER = new Weigher<String, CacheNode>() {
+        @Override
+        public int weigh(String digest, CacheNode node) {
+            return (int) Math.max(1, Math.min(node.getWeight(), sMaxEntryWeight));
+        }
+    };
+
+    private static final RemovalListener<String, CacheNode> REMOVAL_LISTENER = new RemovalListener<String, CacheNode>() {
+        @Override
+        public void onRemoval(RemovalNotification<String, CacheNode> notification) {
+            if (notification.wasEvicted()) {
+                sLog.debug("Pruning digest %s from the cache.", notification.getKey());
+            }
+        }
+    };
 
     static {
         try {
@@ -70,26 +102,57 @@ public class MessageCache {
         }
     }
 
-    public static void loadSettings() throws ServiceException {
-        sMaxCacheSize = Provisioning.getInstance().getLocalServer().getMessageCacheSize();
-        ZimbraLog.cache.info("setting message cache size to " + sMaxCacheSize);
+    /**
+     * Sizes the cache from {@code zimbra_message_cache_max_bytes}, or from {@code zimbraMessageCacheSize}
+     * if the former is not set.  Cached messages are carried over when the limit changes.
+     */
+    public static synchronized void loadSettings() throws ServiceException {
+        long maxDataSize = LC.zimbra_message_cache_max_bytes.longValue();
+        if (maxDataSize <= 0) {
+            maxDataSize = Provisioning.getInstance().getLocalServer().getMessageCacheSize() * DEFAULT_MESSAGE_WEIGHT;
+        }
+        maxDataSize = Math.max(maxDataSize, 1);
+        if (sCache == null || maxDataSize != sMaxDataSize) {
+            int concurrency = Math.max(1, LC.zimbra_message_cache_concurrency.intValue());
+            sMaxEntryWeight = (int) Math.max(1, Math.min(maxDataSize / concurrency / 4, Integer.MAX_VALUE));
+            Cache<String, CacheNode> cache = CacheBuilder.newBuilder()
+                .concurrencyLevel(concurrency)
+                .maximumWeight(maxDataSize)
+                .weigher(WEIGHER)
+                .removalListener(REMOVAL_LISTENER)
+                .recordStats()
+                .build();
+            if (sCache != null) {
+                cache.putAll(sCache.asMap());
+            }
+            sCache = cache;
+            sMaxDataSize = maxDataSize;
+        }
+        ZimbraLog.cache.info("setting message cache size to " + maxDataSize + " bytes");
     }
 
     /** Returns the number of messages in the cache. */
     public static int getSize() {
-        synchronized (sCache) {
-            return sCache.size();
-        }
+        return (int) sCache.size();
     }
 
     public static boolean contains(String digest) {
-        synchronized (sCache) {
-            return sCache.containsKey(digest);
-        }
+        return digest != null && sCache.asMap().containsKey(digest);
     }
 
+    /** Returns the number of bytes of message data referenced by the cache, counting expanded
+     *  messages twice. */
     public static long getDataSize() {
-        return sDataSize;
+        long total = 0;
+        for (CacheNode node : sCache.asMap().values()) {
+            total += node.getWeight();
+        }
+        return total;
+    }
+
+    /** Returns the number of messages evicted from the cache to stay within its size limit. */
+    public static long getEvictionCount() {
+        return sCache.stats().evictionCount();
     }
 
     /** Uncaches any data associated with the given item.  This must be done
@@ -124,12 +187,8 @@ public class MessageCache {
      *  stale data. */
     public static void purge(String digest) {
         if (digest != null) {
-            synchronized (sCache) {
-                CacheNode node = sCache.remove(digest);
-                if (node != null) {
-                    sLog.debug("Purged digest %s from the message cache.", digest);
-                    sDataSize -= node.size;
-                }
+            if (sCache.asMap().remove(digest) != null) {
+                sLog.debug("Purged digest %s from the message cache.", digest);
             }
         }
     }
@@ -139,6 +198,9 @@ public class MessageCache {
      *  attachments are expanded and their components are presented as
      *  standard MIME attachments.  If TNEF or uuencode decoding fails, the
      *  MimeMessage wraps the raw message content.
+     *  <p>
+     *  Concurrent callers asking for the same digest share a single parse
+     *  of the message.
      *
      * @return A MimeMessage wrapping the RFC822 content of the Message.
      * @throws ServiceException when errors occur opening, reading,
@@ -148,85 +210,99 @@ public class MessageCache {
      * @see #getItemContent()
      * @see com.zimbra.cs.mime.TnefConverter
      * @see com.zimbra.cs.mime.UUEncodeConverter */
-    static MimeMessage getMimeMessage(MailItem item, boolean expand) throws ServiceException {
+    static MimeMessage getMimeMessage(final MailItem item, boolean expand) throws ServiceException {
         String digest = item.getDigest();
-        CacheNode cnode = null;
-        boolean cacheHit = true;
-        boolean newNode = false;
-        InputStream in = null;
+        final boolean[] loaded = new boolean[1];
         int mboxId = item.getMailboxId();
         boolean isEncrypted = false;
+        CacheNode cnode;
 
-        synchronized (sCache) {
-            cnode = sCache.get(digest);
-            if (cnode == null) {
-                newNode = true;
+        try {
+            if (digest == null) {
                 cnode = new CacheNode();
+                loadMessage(item, cnode);
+                loaded[0] = true;
+            } else {
+                cnode = sCache.get(digest, new Callable<CacheNode>() {
+                    @Override
+                    public CacheNode call() throws Exception {
+                        CacheNode node = new CacheNode();
+                        loadMessage(item, node);
+                        loaded[0] = true;
+                        return node;
+                    }
+                });
             }
+        } catch (ExecutionException e) {
+            throw toServiceException(item, e.getCause());
+        } catch (UncheckedExecutionException e) {
+            throw toServiceException(item, e.getCause());
+        } catch (Exception e) {
+            throw toServiceException(item, e);
         }
+        boolean cacheHit = !loaded[0];
 
-        try {
-            if (cnode.message == null) {
-                sLog.debug("Loading MimeMessage for item %d.", item.getId());
-                cacheHit = false;
-                try {
-                    in = fetchFromStore(item);
-                    cnode.message = new Mime.FixedMimeMessage(JMSession.getSession(), in);
-                    if (item.getSize() < MESSAGE_CACHE_DISK_STREAMING_THRESHOLD) {
-                        cnode.size = item.getSize();
-                        // Not the best place to increment the data size, but cacheItem()
-                        // won't get called if we're expanding a message for an existing
-                        // node.
-                        sDataSize += cnode.size;
-                    }
-                } finally {
-                    ByteUtil.closeStream(in);
+        MimeMessage result;
+        synchronized (cnode) {
+            long weight = cnode.getWeight();
+            try {
+                if (cnode.message == null) {
+                    cacheHit = false;
+                    loadMessage(item, cnode);
                 }
-            }
 
-            if (expand) {
-                sLog.debug("Expanding MimeMessage for item %d.", item.getId());
-                try {
-                    MimeMessage decryptedMimeMessage = null;
-                    if (item instanceof Message) {
-                        // if the mime is encrypted; decrypt it first
-                        if (cnode.message != null) {
-                            isEncrypted = Mime.isEncrypted(cnode.message.getContentType());
-                        }
-                        if (isEncrypted) {
-                            if (isSmimeFeatureToggled(item.getMailbox(), cnode)) {
-                                sLog.debug(
-                                    "Smime feature is toggled. So remove old entry from smimeAccessInfo for mailboxId=%d and itemDigest=%s",
-                                    mboxId, item.getDigest());
-                                cnode.smimeAccessInfo.remove(mboxId);
+                if (expand) {
+                    sLog.debug("Expanding MimeMessage for item %d.", item.getId());
+                    try {
+                        MimeMessage decryptedMimeMessage = null;
+                        if (item instanceof Message) {
+                            // if the mime is encrypted; decrypt it first
+                            if (cnode.message != null) {
+                                isEncrypted = Mime.isEncrypted(cnode.message.getContentType());
                             }
-                            if (cnode.expanded == null || !cnode.smimeAccessInfo.containsKey(mboxId)) {
-                                cacheHit = false;
-                                decryptedMimeMessage = doDecryption(item, cnode, mboxId);
+                            if (isEncrypted) {
+                                if (isSmimeFeatureToggled(item.getMailbox(), cnode)) {
+                                    sLog.debug(
+                                        "Smime feature is toggled. So remove old entry from smimeAccessInfo for mailboxId=%d and itemDigest=%s",
+                                        mboxId, item.getDigest());
+                                    cnode.smimeAccessInfo.remove(mboxId);
+                                }
+                                if (cnode.expanded == null || !cnode.smimeAccessInfo.containsKey(mboxId)) {
+                                    cacheHit = false;
+                                    decryptedMimeMessage = doDecryption(item, cnode, mboxId);
+                                }
                             }
                         }
+                        //expand if the message has not yet been expanded or if the message is decrypted successfully
+                        if (cnode.expanded == null || (decryptedMimeMessage != null && cnode.expanded != decryptedMimeMessage)) {
+                            cacheHit = false;
+                            expandMessage(item, cnode, decryptedMimeMessage);
+                        }
+                    } catch (Exception e) {
+                        // if the conversion bombs for any reason, revert to the original
+                        sLog.warn("MIME converter failed for message %d.  Reverting to original.", item.getId(), e);
+                        cnode.expanded = cnode.message;
                     }
-                    //expand if the message has not yet been expanded or if the message is decrypted successfully
-                    if (cnode.expanded == null || (decryptedMimeMessage != null && cnode.expanded != decryptedMimeMessage)) {
-                        cacheHit = false;
-                        expandMessage(item, cnode, decryptedMimeMessage);
-                    }
-                } catch (Exception e) {
-                    // if the conversion bombs for any reason, revert to the original
-                    sLog.warn("MIME converter failed for message %d.  Reverting to original.", item.getId(), e);
-                    cnode.expanded = cnode.message;
                 }
+            } catch (Exception e) {
+                throw toServiceException(item, e);
             }
 
-            if (newNode) {
-                cacheItem(digest, cnode);
+            if (digest != null && cnode.getWeight() != weight) {
+                // re-insert the node so that the cache picks up its new weight
+                sCache.asMap().replace(digest, cnode, cnode);
+            }
+
+            if (expand) {
+                if (isEncrypted && (!cnode.smimeAccessInfo.containsKey(mboxId)
+                    || cnode.smimeAccessInfo.get(mboxId) != null)) {
+                    result = cnode.message;
+                } else {
+                    result = cnode.expanded;
+                }
+            } else {
+                result = cnode.message;
             }
-        } catch (IOException e) {
-            throw ServiceException.FAILURE("IOException while retrieving content for item " + item.getId(), e);
-        } catch (MessagingException e) {
-            throw ServiceException.FAILURE("MessagingException while creating MimeMessage for item " + item.getId(), e);
-        } finally {
-            ByteUtil.closeStream(in);
         }
 
         if (cacheHit) {
@@ -236,18 +312,37 @@ public class MessageCache {
             sLog.debug("Cache miss for item %d: digest=%s, expand=%b.", item.getId(), item.getDigest(), expand);
             ZimbraPerf.COUNTER_MBOX_MSG_CACHE.increment(0);
         }
+        return result;
+    }
 
-        if (expand) {
-            if (isEncrypted && (!cnode.smimeAccessInfo.containsKey(mboxId)
-                || cnode.smimeAccessInfo.get(mboxId) != null)) {
-                return cnode.message;
-            }
-            return cnode.expanded;
-        } else {
-            return cnode.message;
+    private static void loadMessage(MailItem item, CacheNode cnode)
+        throws ServiceException, IOException, MessagingException {
+        sLog.debug("Loading MimeMessage for item %d.", item.getId());
+        InputStream in = null;
+        try {
+            in = fetchFromStore(item);
+            cnode.message = new Mime.FixedMimeMessage(JMSession.getSession(), in);
+            cnode.size = item.getSize();
+        } finally {
+            ByteUtil.closeStream(in);
         }
     }
 
+    private static ServiceException toServiceException(MailItem item, Throwable t) {
+        if (t instanceof ServiceException) {
+            return (ServiceException) t;
+        } else if (t instanceof IOException) {
+            return ServiceException.FAILURE("IOException while retrieving content for item " + item.getId(), t);
+        } else if (t instanceof MessagingException) {
+            return ServiceException.FAILURE("MessagingException while creating MimeMessage for item " + item.getId(), t);
+        } else if (t instanceof RuntimeException) {
+            throw (RuntimeException) t;
+        } else if (t instanceof Error) {
+            throw (Error) t;
+        }
+        return ServiceException.FAILURE("unable to load MimeMessage for item " + item.getId(), t);
+    }
+
     private static boolean isSmimeFeatureToggled(Mailbox mailbox, CacheNode cnode) {
         if (cnode.smimeAccessInfo.containsKey(mailbox.getId())) {
             try {
@@ -285,10 +380,6 @@ public class MessageCache {
             decodedMimeMessage != null ? decodedMimeMessage : mimeToExpand);
         expander.expand();
         cnode.expanded = expander.getExpanded();
-        if (cnode.expanded != cnode.message) {
-            sDataSize += cnode.size;
-            cnode.size *= 2;
-        }
     }
 
     private static MimeMessage doDecryption(MailItem item, CacheNode cnode, int mboxId) {
@@ -353,41 +444,32 @@ public class MessageCache {
      * @param expanded the expanded message
      */
     public static void cacheMessage(String digest, MimeMessage original, MimeMessage expanded) {
+        cacheMessage(digest, original, expanded, 0);
+    }
+
+    /**
+     * Public API that adds an existing <tt>MimeMessage</tt> to the cache.
+     * @param digest the message digest
+     * @param original the original message
+     * @param expanded the expanded message
+     * @param size the size of the raw message, in bytes
+     */
+    public static void cacheMessage(String digest, MimeMessage original, MimeMessage expanded, long size) {
         sLog.debug("Caching existing MimeMessage, digest=%s.", digest);
         CacheNode cnode = new CacheNode();
         cnode.message = original;
         cnode.expanded = expanded;
-        cacheItem(digest, cnode);
-    }
-
-    private static void cacheItem(String digest, CacheNode cnode) {
-        sLog.debug("Caching MimeMessage for digest %s.", digest);
-        synchronized (sCache) {
-            sCache.put(digest, cnode);
-            // Cache data size was incremented in getMimeMessage().
-
-            // trim the cache if needed
-            if (sCache.size() > sMaxCacheSize) {
-                Iterator<Map.Entry<String, CacheNode>> it = sCache.entrySet().iterator();
-                while (sCache.size() > sMaxCacheSize && it.hasNext()) {
-                    Map.Entry<String, CacheNode> entry = it.next();
-                    sLog.debug("Pruning digest %s from the cache.", entry.getKey());
-                    it.remove();
-                    sDataSize -= entry.getValue().size;
-                }
-            }
-        }
+        cnode.size = size;
+        sCache.put(digest, cnode);
     }
 
     public static void removeDecryptedMessages(int mboxId) {
         sLog.debug("Start removing decrypted messages for mboxId=%d", mboxId);
-        synchronized (sCache) {
-            Iterator<Map.Entry<String, CacheNode>> it = sCache.entrySet().iterator();
-            while (it.hasNext()) {
-                Map.Entry<String, CacheNode> entry = it.next();
-                CacheNode cacheNode = entry.getValue();
+        for (Map.Entry<String, CacheNode> entry : sCache.asMap().entrySet()) {
+            CacheNode cacheNode = entry.getValue();
+            synchronized (cacheNode) {
                 try {
-                    if (Mime.isEncrypted(cacheNode.message.getContentType())
+                    if (cacheNode.message != null && Mime.isEncrypted(cacheNode.message.getContentType())
                         && cacheNode.smimeAccessInfo.containsKey(mboxId)) {
                         cacheNode.smimeAccessInfo.remove(mboxId);
                     }
@@ -402,9 +484,9 @@ public class MessageCache {
 
     public static String getDecryptionError(int id, String digest) {
         if (digest != null) {
-            synchronized (sCache) {
-                CacheNode node = sCache.get(digest);
-                if (node != null) {
+            CacheNode node = sCache.getIfPresent(digest);
+            if (node != null) {
+                synchronized (node) {
                     return node.smimeAccessInfo.get(id);
                 }
             }
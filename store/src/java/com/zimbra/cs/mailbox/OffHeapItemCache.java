@@ -0,0 +1,252 @@
+/*
+ * ***** BEGIN LICENSE BLOCK *****
+ * Zimbra Collaboration Suite Server
+ * Copyright (C) 2017 Synacor, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software Foundation,
+ * version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <https://www.gnu.org/licenses/>.
+ * ***** END LICENSE BLOCK *****
+ */
+package com.zimbra.cs.mailbox;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.zimbra.common.localconfig.LC;
+import com.zimbra.common.service.ServiceException;
+import com.zimbra.common.util.LongLongHashMap;
+import com.zimbra.common.util.ZimbraLog;
+import com.zimbra.cs.util.Zimbra;
+
+/**
+ * Server-wide second level cache of {@link MailItem.UnderlyingData}, kept outside of the Java heap.  It sits between
+ * the soft-referenced per-mailbox item cache and the database, so that a full GC clearing the item caches does not
+ * result in every mailbox reloading its items from the database at once.
+ * <p>
+ * Entries are appended to fixed size ring buffers allocated in direct memory; once a ring is full, the oldest entries
+ * are overwritten.  Entries are keyed by mailbox and item id, and each ring is indexed by a primitive hash map so that
+ * cached items don't cost any objects on the heap.  Invalidating a whole mailbox bumps the mailbox's generation, which
+ * makes its existing entries unreachable without scanning the rings.  Generations are kept in a fixed number of slots
+ * shared by mailbox id, so that they take the same memory however many mailboxes come and go; invalidating a
+ * mailbox may also drop the entries of the mailboxes sharing its slot.
+ * <p>
+ * Enabled by setting {@code zimbra_mailbox_offheap_item_cache_mb} to a positive value.
+ */
+public final class OffHeapItemCache {
+
+    private static final int SEGMENTS = 16;
+    private static final int GENERATION_SLOTS = 4096;
+    private static final OffHeapItemCache instance = create();
+
+    private final Segment[] segments;
+    private final AtomicIntegerArray generations = new AtomicIntegerArray(GENERATION_SLOTS);
+
+    private static OffHeapItemCache create() {
+        long size = LC.zimbra_mailbox_offheap_item_cache_mb.longValue() * 1024 * 1024;
+        if (size <= 0 || Zimbra.isAlwaysOn()) {
+            return null;
+        }
+        try {
+            return new OffHeapItemCache(size, SEGMENTS);
+        } catch (OutOfMemoryError e) {
+            ZimbraLog.cache.error("unable to allocate %d bytes for the off-heap item cache; disabling it", size, e);
+            return null;
+        }
+    }
+
+    /**
+     * Returns the server-wide cache, or null if the off-heap item cache is disabled.
+     */
+    public static OffHeapItemCache getInstance() {
+        return instance;
+    }
+
+    @VisibleForTesting
+    OffHeapItemCache(long capacity, int segmentCount) {
+        int segmentSize = (int) Math.min(Integer.MAX_VALUE, capacity / segmentCount);
+        segments = new Segment[segmentCount];
+        for (int i = 0; i < segmentCount; i++) {
+            segments[i] = new Segment(segmentSize);
+        }
+    }
+
+    /**
+     * Returns the cached data of the item, or null if it is not cached.
+     */
+    MailItem.UnderlyingData get(Mailbox mbox, int itemId) {
+        byte[] data = get(mbox.getId(), itemId);
+        if (data == null) {
+            return null;
+        }
+        try {
+            MailItem.UnderlyingData ud = new MailItem.UnderlyingData();
+            ud.deserialize(new Metadata(new String(data, StandardCharsets.UTF_8)));
+            return ud;
+        } catch (ServiceException e) {
+            ZimbraLog.cache.warn("discarding undecodable off-heap cache entry for item %d in mailbox %d",
+                    itemId, mbox.getId(), e);
+            remove(mbox.getId(), itemId);
+            return null;
+        }
+    }
+
+    void put(Mailbox mbox, MailItem item) {
+        put(mbox.getId(), item.getId(), item.serializeUnderlyingData().toString().getBytes(StandardCharsets.UTF_8));
+    }
+
+    @VisibleForTesting
+    byte[] get(int mailboxId, int itemId) {
+        long key = key(mailboxId, itemId);
+        return segmentFor(key).get(key, generation(mailboxId));
+    }
+
+    @VisibleForTesting
+    void put(int mailboxId, int itemId, byte[] data) {
+        long key = key(mailboxId, itemId);
+        segmentFor(key).put(key, generation(mailboxId), data);
+    }
+
+    void remove(int mailboxId, int itemId) {
+        long key = key(mailboxId, itemId);
+        segmentFor(key).remove(key);
+    }
+
+    /**
+     * Drops all the cached items of the mailbox.
+     */
+    void invalidate(int mailboxId) {
+        generations.incrementAndGet(generationSlot(mailboxId));
+    }
+
+    @VisibleForTesting
+    int size() {
+        int size = 0;
+        for (Segment segment : segments) {
+            size += segment.size();
+        }
+        return size;
+    }
+
+    private int generation(int mailboxId) {
+        return generations.get(generationSlot(mailboxId));
+    }
+
+    private static int generationSlot(int mailboxId) {
+        // mailbox ids are allocated sequentially, so the low bits spread them evenly
+        return mailboxId & (GENERATION_SLOTS - 1);
+    }
+
+    private Segment segmentFor(long key) {
+        int hash = (int) (key ^ (key >>> 32));
+        hash ^= (hash >>> 16);
+        return segments[(hash & Integer.MAX_VALUE) % segments.length];
+    }
+
+    private static long key(int mailboxId, int itemId) {
+        return ((long) mailboxId << 32) | (itemId & 0xFFFFFFFFL);
+    }
+
+    /**
+     * A ring buffer of entries in direct memory.  Each entry is a header (key, generation, length) followed by the
+     * data, and may wrap around the end of the buffer.  Positions are absolute and only ever increase; the entry at
+     * {@code tail} is the oldest one not yet overwritten.
+     */
+    private static final class Segment {
+        private static final int HEADER = 16;
+
+        private final ByteBuffer buffer;
+        private final int capacity;
+        /** key to the position of its entry, -1 if absent */
+        private final LongLongHashMap index = new LongLongHashMap(1024, -1L);
+        private final byte[] header = new byte[HEADER];
+        private final ByteBuffer headerBuffer = ByteBuffer.wrap(header);
+        private long head = 0;
+        private long tail = 0;
+
+        Segment(int capacity) {
+            this.capacity = capacity;
+            this.buffer = ByteBuffer.allocateDirect(capacity);
+        }
+
+        synchronized byte[] get(long key, int generation) {
+            long pos = index.get(key);
+            if (pos < 0) {
+                return null;
+            }
+            read(pos, header, HEADER);
+            if (headerBuffer.getInt(8) != generation) {
+                index.remove(key);
+                return null;
+            }
+            byte[] data = new byte[headerBuffer.getInt(12)];
+            read(pos + HEADER, data, data.length);
+            return data;
+        }
+
+        synchronized void put(long key, int generation, byte[] data) {
+            int size = HEADER + data.length;
+            if (size > capacity / 4) {
+                // not worth evicting a large part of the segment for a single item
+                index.remove(key);
+                return;
+            }
+            long end = head + size;
+            while (end - tail > capacity) {
+                evictTail();
+            }
+            headerBuffer.putLong(0, key).putInt(8, generation).putInt(12, data.length);
+            write(head, header, HEADER);
+            write(head + HEADER, data, data.length);
+            index.put(key, head);
+            head = end;
+        }
+
+        synchronized void remove(long key) {
+            index.remove(key);
+        }
+
+        synchronized int size() {
+            return index.size();
+        }
+
+        private void evictTail() {
+            read(tail, header, HEADER);
+            long key = headerBuffer.getLong(0);
+            if (index.get(key) == tail) {
+                index.remove(key);
+            }
+            tail += HEADER + headerBuffer.getInt(12);
+        }
+
+        private void read(long pos, byte[] dst, int len) {
+            int off = (int) (pos % capacity);
+            int first = Math.min(len, capacity - off);
+            buffer.position(off);
+            buffer.get(dst, 0, first);
+            if (first < len) {
+                buffer.position(0);
+                buffer.get(dst, first, len - first);
+            }
+        }
+
+        private void write(long pos, byte[] src, int len) {
+            int off = (int) (pos % capacity);
+            int first = Math.min(len, capacity - off);
+            buffer.position(off);
+            buffer.put(src, 0, first);
+            if (first < len) {
+                buffer.position(0);
+                buffer.put(src, first, len - first);
+            }
+        }
+    }
+}
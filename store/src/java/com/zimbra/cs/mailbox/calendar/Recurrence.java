@@ -26,7 +26,6 @@ import java.util.GregorianCalendar;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
-import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
@@ -311,7 +310,7 @@ public class Recurrence
                 num++;
             }
 
-            List<Instance> toRet = new LinkedList<Instance>();
+            List<Instance> toRet = new ArrayList<Instance>();
             ListUtil.mergeSortedLists(toRet, lists, true);
 
             return toRet;
@@ -742,26 +741,25 @@ public class Recurrence
                     ParsedDateTime et = mDtStart.add(mDuration);
                     duration = et.getUtcTime() - mDtStart.getUtcTime();
                 }
-                List <java.util.Date> dateList = mRecur.expandRecurrenceOverRange(mDtStart, start - duration, end);
-
-                toRet = new ArrayList<Instance>(dateList.size());
+                // A duration in hours, minutes and seconds is the same length for every instance; one with days or
+                // weeks has to be added in the time zone in case it spans a daylight saving time change.
+                boolean fixedDuration = mDuration == null || (mDuration.getWeeks() == 0 && mDuration.getDays() == 0);
+                boolean allDay = !mDtStart.hasTime() || (mDtStart.hasZeroTime() && mDuration != null && mDuration.isMultipleOfDays());
 
-                int num = 0;
-                for (Iterator iter = dateList.iterator(); iter.hasNext();) {
-                    Date cur = (Date)iter.next();
-                    long instStart = cur.getTime();
+                toRet = new ArrayList<Instance>();
+                for (Iterator<Date> iter = mRecur.iterator(mDtStart, start - duration, end); iter.hasNext();) {
+                    long instStart = iter.next().getTime();
                     long instEnd;
-                    if (mDuration != null) {
+                    if (fixedDuration) {
+                        instEnd = instStart + duration;
+                    } else {
                         ParsedDateTime startDt = ParsedDateTime.fromUTCTime(instStart, tz);
                         instEnd = startDt.add(mDuration).getUtcTime();
-                    } else {
-                        instEnd = instStart;
                     }
                     if (instStart < end && instEnd > start) {
                         int startTzo = tz.getOffset(instStart);
                         int endTzo = tz.getOffset(instEnd);
-                        boolean allDay = !mDtStart.hasTime() || (mDtStart.hasZeroTime() && mDuration != null && mDuration.isMultipleOfDays());
-                        toRet.add(num++, new Instance(calItemId, mInvId, true, true, instStart, instEnd,
+                        toRet.add(new Instance(calItemId, mInvId, true, true, instStart, instEnd,
                                 allDay, startTzo, endTzo, false, false));
                     }
                 }
@@ -795,9 +793,14 @@ public class Recurrence
                 long endMillis = mRecur.getEstimatedEndTime(mDtStart).getTime();
                 if (mRecur.getCount() > 0) {
                     // If recurrence is limited by COUNT, run the expansion to figure out the true end time.
-                    List<Date> dates = mRecur.expandRecurrenceOverRange(mDtStart, mDtStart.getUtcTime(), endMillis);
-                    if (!dates.isEmpty())
-                        endMillis = dates.get(dates.size() - 1).getTime();
+                    Iterator<Date> dates = mRecur.iterator(mDtStart, mDtStart.getUtcTime(), endMillis);
+                    if (dates.hasNext()) {
+                        Date last;
+                        do {
+                            last = dates.next();
+                        } while (dates.hasNext());
+                        endMillis = last.getTime();
+                    }
                 }
                 ParsedDateTime end = ParsedDateTime.fromUTCTime(endMillis, mDtStart.getTimeZone());
                 if (mDuration != null)
@@ -1489,35 +1492,19 @@ public class Recurrence
             // Iterate the expanded instances and eliminate instances whose start time:
             // 1) lies outside the [start, end) range
             // 2) or matches RECURRENCE-ID of one of the exceptions.
-            for (Iterator<Instance> iter = stdInstances.iterator(); iter.hasNext(); ) {
-                Instance inst = iter.next();
+            ExceptionIndex exceptions = new ExceptionIndex(mExceptions);
+            List<Instance> kept = new ArrayList<Instance>(stdInstances.size());
+            for (Instance inst : stdInstances) {
                 if (inst != null) {
-                    if (inst.getEnd() < start || inst.getStart() >= end) {
-                        // Restrict to [start, end) range.
-                        iter.remove();
-                    } else {
-                        for (IException except : mExceptions) {
-                            if (except != null) {
-                                long instStart = inst.getStart();
-                                if (inst.isAllDay()) {
-                                    // Adjust start time value from instance's TZ to exception's TZ.
-                                    RecurId eRid = except.getRecurId();
-                                    if (eRid != null && eRid.getDt() != null) {
-                                        long eOffset = eRid.getDt().getOffset();
-                                        long iOffset = inst.getStartTzOffset();
-                                        if (iOffset != eOffset)
-                                            instStart += iOffset - eOffset;
-                                    }
-                                }
-                                if (except.matches(instStart)) {
-                                    iter.remove();
-                                    break;
-                                }
-                            }
-                        }
-                    }
+                    // Restrict to [start, end) range.
+                    if (inst.getEnd() < start || inst.getStart() >= end)
+                        continue;
+                    if (exceptions.matches(inst))
+                        continue;
                 }
+                kept.add(inst);
             }
+            stdInstances = kept;
 
             // Expand and add all exceptions in the range.
             List<List<Instance>> exceptionInstancesList = new ArrayList<List<Instance>>();
@@ -1616,6 +1603,62 @@ public class Recurrence
         protected List<IException> mExceptions;
     }
 
+    /**
+     * The exceptions of a recurrence rule by the time of their RECURRENCE-ID, so that an expansion with many
+     * exceptions doesn't go over all of them for every instance.  Exceptions with a RANGE, or without a
+     * RECURRENCE-ID time, are still gone over one by one.
+     */
+    private static final class ExceptionIndex {
+        /** RECURRENCE-ID times, for timed instances */
+        private final Set<Long> recurIdTimes = new HashSet<Long>();
+        /** RECURRENCE-ID times plus the exception's UTC offset, for all-day instances */
+        private final Set<Long> localRecurIdTimes = new HashSet<Long>();
+        private final List<IException> others = new ArrayList<IException>();
+
+        ExceptionIndex(List<IException> exceptions) {
+            for (IException except : exceptions) {
+                if (except == null)
+                    continue;
+                RecurId rid = except.getRecurId();
+                if (rid != null && rid.getDt() != null && rid.getRange() == RecurId.RANGE_NONE) {
+                    long recurIdTime = rid.getDt().getUtcTime();
+                    recurIdTimes.add(recurIdTime);
+                    localRecurIdTimes.add(recurIdTime + rid.getDt().getOffset());
+                } else {
+                    others.add(except);
+                }
+            }
+        }
+
+        boolean matches(Instance inst) {
+            long instStart = inst.getStart();
+            if (inst.isAllDay()) {
+                // Compare in local time, so that an all-day instance matches the exception for its date even if the
+                // instance and the exception are in different time zones.
+                if (localRecurIdTimes.contains(instStart + inst.getStartTzOffset()))
+                    return true;
+            } else if (recurIdTimes.contains(instStart)) {
+                return true;
+            }
+            for (IException except : others) {
+                long exceptStart = instStart;
+                if (inst.isAllDay()) {
+                    // Adjust start time value from instance's TZ to exception's TZ.
+                    RecurId eRid = except.getRecurId();
+                    if (eRid != null && eRid.getDt() != null) {
+                        long eOffset = eRid.getDt().getOffset();
+                        long iOffset = inst.getStartTzOffset();
+                        if (iOffset != eOffset)
+                            exceptStart += iOffset - eOffset;
+                    }
+                }
+                if (except.matches(exceptStart))
+                    return true;
+            }
+            return false;
+        }
+    }
+
     public static List<Instance> expandInstances(IRecurrence recur, int calItemId, long start, long end)
     throws ServiceException {
         List<Instance> list = recur.expandInstances(calItemId, start, end);
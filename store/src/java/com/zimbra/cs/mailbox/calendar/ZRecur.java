@@ -25,8 +25,10 @@ import java.util.Date;
 import java.util.Formatter;
 import java.util.GregorianCalendar;
 import java.util.HashSet;
+import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.NoSuchElementException;
 import java.util.Set;
 
 import org.apache.commons.httpclient.util.DateUtil;
@@ -36,6 +38,7 @@ import com.zimbra.common.calendar.ParsedDateTime;
 import com.zimbra.common.calendar.TimeZoneMap;
 import com.zimbra.common.calendar.ZWeekDay;
 import com.zimbra.common.service.ServiceException;
+import com.zimbra.common.util.Constants;
 import com.zimbra.common.util.ZimbraLog;
 import com.zimbra.cs.account.Provisioning;
 import com.zimbra.cs.account.Server;
@@ -586,82 +589,181 @@ public class ZRecur implements Cloneable {
         long rangeStart,
         long rangeEnd)
     throws ServiceException {
-        List<Date> toRet = new LinkedList<Date>();
-
-        Date rangeStartDate = new Date(rangeStart);
-        // subtract 1000ms (1sec) because the code in the method treats
-        // end time as inclusive while the rangeEnd input argument is
-        // exclusive value
-        Date rangeEndDate = new Date(rangeEnd - 1000);
-        Date dtStartDate = new Date(dtStart.getUtcTime());
-
-        Date earliestDate;
-        if (dtStartDate.after(rangeStartDate))
-            earliestDate = dtStartDate;
-        else
-            earliestDate = rangeStartDate;
+        List<Date> toRet = new ArrayList<Date>();
+        for (Iterator<Date> iter = iterator(dtStart, rangeStart, rangeEnd); iter.hasNext(); ) {
+            toRet.add(iter.next());
+        }
+        return toRet;
+    }
 
-        if (mUntil != null) {
-            Date until = mUntil.getDateForRecurUntil(dtStart.getTimeZone());
-            if (until.before(rangeEndDate))
-                rangeEndDate = until;
+    /**
+     * Returns the same instance start times as {@link #expandRecurrenceOverRange(ParsedDateTime, long, long)}, but
+     * expands the rule one frequency interval at a time as they are asked for, so that a caller looking for the first
+     * few instances, or the last one, doesn't have to hold all of them.
+     * <p>
+     * When the rule has no COUNT and no instance limit is configured, the instances before the range don't have to be
+     * counted, so the intervals that start well before the range are stepped over without being expanded. That is
+     * only done for rules whose BYxxx parts don't move the start of an interval around.
+     */
+    public Iterator<Date> iterator(ParsedDateTime dtStart, long rangeStart, long rangeEnd) throws ServiceException {
+        return new ExpansionIterator(dtStart, rangeStart, rangeEnd);
+    }
+
+    private class ExpansionIterator implements Iterator<Date> {
+        private final Date dtStartDate;
+        private final Date earliestDate;
+        private final Date rangeEndDate;
+        private final int maxInstancesExpanded;
+        private int numInstancesExpanded = 1;  // initially 1 rather than 0 because DTSTART is always included
+        private final GregorianCalendar cur;
+        private final int baseMonthDay;
+        private final boolean baseIsLeapDay;
+        private final int interval;
+        private int numConsecutiveIterationsWithoutMatchingInstance = 0;
+        private boolean done = false;
+        /** instances that were expanded but not returned yet */
+        private final LinkedList<Date> expanded = new LinkedList<Date>();
+
+        ExpansionIterator(ParsedDateTime dtStart, long rangeStart, long rangeEnd) throws ServiceException {
+            Date rangeStartDate = new Date(rangeStart);
+            // subtract 1000ms (1sec) because the code in the method treats
+            // end time as inclusive while the rangeEnd input argument is
+            // exclusive value
+            Date rangeEndDate = new Date(rangeEnd - 1000);
+            dtStartDate = new Date(dtStart.getUtcTime());
+
+            if (dtStartDate.after(rangeStartDate))
+                earliestDate = dtStartDate;
+            else
+                earliestDate = rangeStartDate;
+
+            if (mUntil != null) {
+                Date until = mUntil.getDateForRecurUntil(dtStart.getTimeZone());
+                if (until.before(rangeEndDate))
+                    rangeEndDate = until;
+            }
+
+            // Set limit of expansion count.
+            int maxInstancesFromConfig = sExpansionLimits.maxInstances;
+            if (maxInstancesFromConfig <= 0)
+                maxInstancesExpanded = mCount;
+            else if (mCount <= 0)
+                maxInstancesExpanded = maxInstancesFromConfig;
+            else
+                maxInstancesExpanded = Math.min(mCount, maxInstancesFromConfig);
+
+            // Set hard limit of expansion time range.  (bug 21989)
+            ParsedDateTime earliestDateTime = ParsedDateTime.fromUTCTime(earliestDate.getTime());
+            Date hardEndDate = getEstimatedEndTime(earliestDateTime);
+            if (hardEndDate.before(rangeEndDate))
+                rangeEndDate = hardEndDate;
+            this.rangeEndDate = rangeEndDate;
+
+            cur = dtStart.getCalendarCopy();
+            baseMonthDay = cur.get(Calendar.DAY_OF_MONTH);
+            baseIsLeapDay = ((baseMonthDay == 29) && (cur.get(Calendar.MONTH) == Calendar.FEBRUARY));
+
+            interval = mInterval <= 0 ? 1 : mInterval;
+
+            if (rangeEndDate.before(earliestDate)) {
+                ZimbraLog.calendar.debug("Expanding recurrence over range where range end %s is before earliest date %s",
+                        DateUtil.formatDate(rangeEndDate), DateUtil.formatDate(earliestDate));
+                done = true;
+                return;
+            }
+
+            // DTSTART is always part of the expansion, as long as it falls within
+            // the range.
+            if (!dtStartDate.before(earliestDate) && !dtStartDate.after(rangeEndDate))
+                expanded.add(dtStartDate);
+
+            skipToEarliestDate();
         }
 
-        // Set limit of expansion count.
-        int maxInstancesFromConfig = sExpansionLimits.maxInstances;
-        int maxInstancesExpanded;
-        if (maxInstancesFromConfig <= 0)
-            maxInstancesExpanded = mCount;
-        else if (mCount <= 0)
-            maxInstancesExpanded = maxInstancesFromConfig;
-        else
-            maxInstancesExpanded = Math.min(mCount, maxInstancesFromConfig);
-        int numInstancesExpanded = 1;  // initially 1 rather than 0 because DTSTART is always included
-
-        // Set hard limit of expansion time range.  (bug 21989)
-        ParsedDateTime earliestDateTime = ParsedDateTime.fromUTCTime(earliestDate.getTime());
-        Date hardEndDate = getEstimatedEndTime(earliestDateTime);
-        if (hardEndDate.before(rangeEndDate))
-            rangeEndDate = hardEndDate;
-
-        if (rangeEndDate.before(earliestDate)) {
-            ZimbraLog.calendar.debug("Expanding recurrence over range where range end %s is before earliest date %s",
-                    DateUtil.formatDate(rangeEndDate), DateUtil.formatDate(earliestDate));
-            return toRet;
+        @Override
+        public boolean hasNext() {
+            while (expanded.isEmpty() && !done) {
+                if (maxInstancesExpanded > 0 && numInstancesExpanded >= maxInstancesExpanded)
+                    done = true;
+                else
+                    expandInterval();
+            }
+            return !expanded.isEmpty();
+        }
+
+        @Override
+        public Date next() {
+            if (!hasNext())
+                throw new NoSuchElementException();
+            return expanded.removeFirst();
+        }
+
+        @Override
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
+
+        private void nextMonth() {
+            cur.set(Calendar.DAY_OF_MONTH, 1);
+            cur.add(Calendar.MONTH, interval);
+            int daysInMonth = cur.getActualMaximum(Calendar.DAY_OF_MONTH);
+            cur.set(Calendar.DAY_OF_MONTH, Math.min(baseMonthDay, daysInMonth));
         }
 
-        GregorianCalendar cur = dtStart.getCalendarCopy();
-        int baseMonthDay = cur.get(Calendar.DAY_OF_MONTH);
-        boolean baseIsLeapDay = ((baseMonthDay == 29) && (cur.get(Calendar.MONTH) == Calendar.FEBRUARY));
-
-        // until we hit rangeEnd, or we've SAVED count entries:
-        //
-        //     gather each set {
-        //
-        //
-        //
-        //        curDate forward one INTERVAL
-        //
-        //     }
-        //     check Set against BYSETPOS & ranges & count
-        //
-
-        int interval = mInterval;
-        if (interval <= 0)
-            interval = 1;
-
-        // DTSTART is always part of the expansion, as long as it falls within
-        // the range.
-        if (!dtStartDate.before(earliestDate) && !dtStartDate.after(rangeEndDate))
-            toRet.add(dtStartDate);
-
-        int numConsecutiveIterationsWithoutMatchingInstance = 0;
-        boolean pastHardEndTime = false;
-        long numIterations = 0;  // track how many times we looped
-        while (!pastHardEndTime && (maxInstancesExpanded <= 0 || numInstancesExpanded < maxInstancesExpanded)) {
-            numIterations++;
-            boolean curIsAtOrAfterEarliestDate = !cur.getTime().before(earliestDate);
-            boolean curIsAfterEndDate = cur.getTime().after(rangeEndDate);
+        /**
+         * Moves {@code cur} past the intervals that can't have an instance at or after the earliest date.  The BYxxx
+         * parts that are left only expand an interval into instances within the hour, day, week or month it starts
+         * in, so that is how long before the earliest date an interval has to start to be stepped over.
+         */
+        private void skipToEarliestDate() {
+            if (maxInstancesExpanded > 0)
+                return;
+            if (!mByMonthList.isEmpty() || !mByYearDayList.isEmpty())
+                return;
+            int field;
+            long period;
+            switch (mFreq) {
+            case HOURLY:
+                if (!mByMonthDayList.isEmpty() || !mByDayList.isEmpty() || !mByHourList.isEmpty())
+                    return;
+                field = Calendar.HOUR_OF_DAY;
+                period = Constants.MILLIS_PER_HOUR;
+                break;
+            case DAILY:
+                if (!mByMonthDayList.isEmpty() || !mByDayList.isEmpty())
+                    return;
+                field = Calendar.DAY_OF_YEAR;
+                period = Constants.MILLIS_PER_DAY;
+                break;
+            case WEEKLY:
+                if (!mByMonthDayList.isEmpty())
+                    return;
+                field = Calendar.WEEK_OF_YEAR;
+                period = Constants.MILLIS_PER_WEEK;
+                break;
+            case MONTHLY:
+                field = Calendar.MONTH;
+                period = Constants.MILLIS_PER_MONTH;
+                break;
+            default:
+                return;
+            }
+            // allow an extra hour for a daylight saving time change
+            long skipBefore = earliestDate.getTime() - period - Constants.MILLIS_PER_HOUR;
+            while (cur.getTimeInMillis() < skipBefore) {
+                if (field == Calendar.MONTH)
+                    nextMonth();
+                else
+                    cur.add(field, interval);
+            }
+        }
+
+        /**
+         * Expands the interval {@code cur} is in and moves it to the next one.
+         */
+        private void expandInterval() {
+            boolean curIsAtOrAfterEarliestDate = cur.getTimeInMillis() >= earliestDate.getTime();
+            boolean curIsAfterEndDate = cur.getTimeInMillis() > rangeEndDate.getTime();
             List<Calendar> addList = new LinkedList<Calendar>();
 
             switch (mFreq) {
@@ -676,19 +778,19 @@ public class ZRecur implements Cloneable {
                  * BYMONTH - only those months
                  */
                 if (!checkMonthList(cur))
-                    continue;
+                    return;
 
                 if (!checkYearDayList(cur))
-                    continue;
+                    return;
 
                 if (!checkMonthDayList(cur))
-                    continue;
+                    return;
 
                 if (!checkDayList(cur))
-                    continue;
+                    return;
 
                 if (!checkHourList(cur))
-                    continue;
+                    return;
 
                 addList.add((Calendar)(cur.clone()));
 
@@ -736,16 +838,16 @@ public class ZRecur implements Cloneable {
                  */
 
                 if (!checkMonthList(cur))
-                    continue;
+                    return;
 
                 if (!checkYearDayList(cur))
-                    continue;
+                    return;
 
                 if (!checkMonthDayList(cur))
-                    continue;
+                    return;
 
                 if (!checkDayList(cur))
-                    continue;
+                    return;
 
                 addList.add((Calendar)(cur.clone()));
 
@@ -788,13 +890,13 @@ public class ZRecur implements Cloneable {
                  *
                  */
                 if (!checkMonthList(cur))
-                    continue;
+                    return;
 
                 if (!checkYearDayList(cur))
-                    continue;
+                    return;
 
                 if (!checkMonthDayList(cur))
-                    continue;
+                    return;
 
                 addList.add((Calendar)(cur.clone()));
 
@@ -807,17 +909,14 @@ public class ZRecur implements Cloneable {
                 break;
             case MONTHLY:
                 if (!checkMonthList(cur))
-                    continue;
+                    return;
 
                 if (!checkYearDayList(cur))
-                    continue;
+                    return;
 
                 addList.add((Calendar)(cur.clone()));
 
-                cur.set(Calendar.DAY_OF_MONTH, 1);
-                cur.add(Calendar.MONTH, interval);
-                int daysInMonth = cur.getActualMaximum(Calendar.DAY_OF_MONTH);
-                cur.set(Calendar.DAY_OF_MONTH, Math.min(baseMonthDay, daysInMonth));
+                nextMonth();
 
                 addList = expandMonthDayList(addList);
                 addList = expandDayListForMonthlyYearly(addList);
@@ -863,7 +962,8 @@ public class ZRecur implements Cloneable {
                 break;
             default:
                 // MINUTELY and SECONDLY are intentionally not supported for performance reasons.
-                return toRet;
+                done = true;
+                return;
             }
 
             addList = handleSetPos(addList);
@@ -888,7 +988,7 @@ public class ZRecur implements Cloneable {
 
                 if (!toAdd.after(rangeEndDate)) {
                     if (!toAdd.before(earliestDate)) {
-                        toRet.add(toAdd);
+                        expanded.add(toAdd);
                         noInstanceFound = false;
                     }
                 } else {
@@ -915,15 +1015,15 @@ public class ZRecur implements Cloneable {
                 else
                     numConsecutiveIterationsWithoutMatchingInstance = 0;
                 if (numConsecutiveIterationsWithoutMatchingInstance >= 4) {
-                    ZimbraLog.calendar.warn("Invalid recurrence rule: " + toString());
-                    return toRet;
+                    ZimbraLog.calendar.warn("Invalid recurrence rule: " + ZRecur.this.toString());
+                    done = true;
+                    return;
                 }
             }
 
-            pastHardEndTime = foundInstancePastEndDate || (noInstanceFound && curIsAfterEndDate);
+            if (foundInstancePastEndDate || (noInstanceFound && curIsAfterEndDate))
+                done = true;
         }
-
-        return toRet;
     }
 
     @Override
@@ -0,0 +1,221 @@
+/*
+ * ***** BEGIN LICENSE BLOCK *****
+ * Zimbra Collaboration Suite Server
+ * Copyright (C) 2017 Synacor, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software Foundation,
+ * version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <https://www.gnu.org/licenses/>.
+ * ***** END LICENSE BLOCK *****
+ */
+package com.zimbra.cs.mailbox.calendar.cache;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.zimbra.cs.mailbox.calendar.IcalXmlStrMap;
+
+/**
+ * The busy time of one calendar folder: every instance that isn't free or transparent, sorted by start time, so that
+ * a free/busy lookup only has to pick out the instances overlapping its range instead of going over every
+ * appointment of the calendar summary.
+ *
+ * @see BusyTimelineCache
+ */
+public final class BusyTimeline {
+
+    public static final class Span {
+        private final long start;
+        private final long end;
+        private final String freeBusy;
+        private final int calItemId;
+        private final long recurrenceId;
+
+        Span(long start, long end, String freeBusy, int calItemId, long recurrenceId) {
+            this.start = start;
+            this.end = end;
+            this.freeBusy = freeBusy;
+            this.calItemId = calItemId;
+            this.recurrenceId = recurrenceId;
+        }
+
+        public long getStart()        { return start; }
+        public long getEnd()          { return end; }
+        public String getFreeBusy()   { return freeBusy; }
+        public int getCalItemId()     { return calItemId; }
+        public long getRecurrenceId() { return recurrenceId; }
+    }
+
+    private static final Comparator<Span> START_ORDER = new Comparator<Span>() {
+        @Override
+        public int compare(Span s1, Span s2) {
+            if (s1.start != s2.start)
+                return s1.start < s2.start ? -1 : 1;
+            if (s1.end != s2.end)
+                return s1.end < s2.end ? -1 : 1;
+            return 0;
+        }
+    };
+
+    /** spans of one calendar item, along with the summary data they were computed from */
+    private static final class ItemSpans {
+        final CalendarItemData source;
+        final List<Span> spans;
+
+        ItemSpans(CalendarItemData source, List<Span> spans) {
+            this.source = source;
+            this.spans = spans;
+        }
+    }
+
+    private final int folderId;
+    private final int modSeq;
+    private final long rangeStart;
+    private final long rangeEnd;
+    private final Map<Integer, ItemSpans> items;
+    private final List<Span> spans;
+    private final long maxDuration;
+    /** number of times the timeline was marked stale */
+    private final AtomicInteger staleMarks = new AtomicInteger();
+
+    private BusyTimeline(CalendarData calData, Map<Integer, ItemSpans> items, List<Span> spans, long maxDuration) {
+        this.folderId = calData.getFolderId();
+        this.modSeq = calData.getModSeq();
+        this.rangeStart = calData.getRangeStart();
+        this.rangeEnd = calData.getRangeEnd();
+        this.items = items;
+        this.spans = spans;
+        this.maxDuration = maxDuration;
+    }
+
+    /**
+     * Computes the timeline of a calendar summary.
+     */
+    public static BusyTimeline build(CalendarData calData) {
+        return build(calData, null);
+    }
+
+    /**
+     * Computes the timeline of a calendar summary, reusing the spans of every item whose summary data is the same
+     * one a previous timeline of the folder was computed from. The calendar summary cache keeps the data of items
+     * that didn't change, so only the changed items have to be gone over again.
+     */
+    static BusyTimeline build(CalendarData calData, BusyTimeline prev) {
+        Map<Integer, ItemSpans> items = new HashMap<Integer, ItemSpans>(calData.getNumItems() * 2);
+        List<Span> spans = new ArrayList<Span>();
+        long maxDuration = 0;
+        for (Iterator<CalendarItemData> iter = calData.calendarItemIterator(); iter.hasNext(); ) {
+            CalendarItemData calItem = iter.next();
+            ItemSpans item = prev == null ? null : prev.items.get(calItem.getCalItemId());
+            if (item == null || item.source != calItem) {
+                item = new ItemSpans(calItem, computeSpans(calItem, calData.getRangeEnd()));
+            }
+            items.put(calItem.getCalItemId(), item);
+            for (Span span : item.spans) {
+                spans.add(span);
+                maxDuration = Math.max(maxDuration, span.end - span.start);
+            }
+        }
+        Collections.sort(spans, START_ORDER);
+        return new BusyTimeline(calData, items, spans, maxDuration);
+    }
+
+    private static List<Span> computeSpans(CalendarItemData appt, long rangeEnd) {
+        FullInstanceData defaultInstance = appt.getDefaultData();
+        if (defaultInstance == null)
+            return Collections.emptyList();
+        List<Span> spans = new ArrayList<Span>(appt.getNumInstances());
+        int apptId = appt.getCalItemId();
+        boolean isTransparent = IcalXmlStrMap.TRANSP_TRANSPARENT.equals(defaultInstance.getTransparency());
+        long defaultDuration = 0;
+        if (defaultInstance.getDuration() != null)
+            defaultDuration = defaultInstance.getDuration().longValue();
+        String defaultFreeBusy = defaultInstance.getFreeBusyActual();
+        for (Iterator<InstanceData> instIter = appt.instanceIterator(); instIter.hasNext(); ) {
+            InstanceData instance = instIter.next();
+            long instStart = instance.getDtStart() != null ? instance.getDtStart().longValue() : 0;
+            // Skip instances that are outside the time range but were returned due to alarm being in range.
+            if (instStart >= rangeEnd)
+                continue;
+            long dur = defaultDuration;
+            if (instance.getDuration() != null)
+                dur = instance.getDuration().longValue();
+            if (dur <= 0)  // Only consider instances with non-zero, positive duration.
+                continue;
+
+            long recurIdDt = 0;
+            // Skip if instance is TRANSPARENT to free/busy searches.
+            if (instance instanceof FullInstanceData) {
+                FullInstanceData fullInst = (FullInstanceData) instance;
+                recurIdDt = fullInst.getRecurrenceId();
+                if (IcalXmlStrMap.TRANSP_TRANSPARENT.equals(fullInst.getTransparency()))
+                    continue;
+            } else if (isTransparent) {
+                continue;
+            }
+
+            String freeBusy = instance.getFreeBusyActual();
+            if (freeBusy == null)
+                freeBusy = defaultFreeBusy;
+            if (!IcalXmlStrMap.FBTYPE_FREE.equals(freeBusy))
+                spans.add(new Span(instStart, instStart + dur, freeBusy, apptId, recurIdDt));
+        }
+        return spans;
+    }
+
+    public int getFolderId()    { return folderId; }
+    public int getModSeq()      { return modSeq; }
+    public long getRangeStart() { return rangeStart; }
+    public long getRangeEnd()   { return rangeEnd; }
+    public int size()           { return spans.size(); }
+
+    /**
+     * Returns the spans overlapping the range, in start time order.
+     */
+    public List<Span> getSpans(long start, long end) {
+        // nothing that starts more than the longest span before the range can reach into it
+        int low = 0;
+        int high = spans.size();
+        long from = start - maxDuration;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (spans.get(mid).start < from)
+                low = mid + 1;
+            else
+                high = mid;
+        }
+        List<Span> result = new ArrayList<Span>();
+        for (int i = low; i < spans.size(); i++) {
+            Span span = spans.get(i);
+            if (span.start >= end)
+                break;
+            if (span.end > start)
+                result.add(span);
+        }
+        return result;
+    }
+
+    boolean containsItem(int calItemId) {
+        return items.containsKey(calItemId);
+    }
+
+    int getStaleMarks() {
+        return staleMarks.get();
+    }
+
+    void markStale() {
+        staleMarks.incrementAndGet();
+    }
+}
@@ -0,0 +1,221 @@
+/*
+ * ***** BEGIN LICENSE BLOCK *****
+ * Zimbra Collaboration Suite Server
+ * Copyright (C) 2017 Synacor, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software Foundation,
+ * version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <https://www.gnu.org/licenses/>.
+ * ***** END LICENSE BLOCK *****
+ */
+package com.zimbra.cs.mailbox.calendar.cache;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.RemovalCause;
+import com.google.common.cache.RemovalListener;
+import com.google.common.cache.RemovalNotification;
+import com.zimbra.common.localconfig.LC;
+import com.zimbra.common.mailbox.BaseItemInfo;
+import com.zimbra.common.service.ServiceException;
+import com.zimbra.common.util.Pair;
+import com.zimbra.cs.mailbox.CalendarItem;
+import com.zimbra.cs.mailbox.Folder;
+import com.zimbra.cs.mailbox.MailItem;
+import com.zimbra.cs.mailbox.Mailbox;
+import com.zimbra.cs.mailbox.calendar.cache.CalSummaryCache.CalendarDataResult;
+import com.zimbra.cs.session.PendingLocalModifications;
+import com.zimbra.cs.session.PendingModifications.Change;
+import com.zimbra.cs.session.PendingModifications.ModificationKey;
+import com.zimbra.cs.stats.ZimbraPerf;
+
+/**
+ * {@link BusyTimeline}s of local calendar folders over the same rolling window of months that the calendar summary
+ * cache keeps, for free/busy lookups.
+ * <p>
+ * A timeline is marked stale when a calendar item in its folder is created, changed, moved or deleted, and it is
+ * also checked against the folder's modification sequence. A stale timeline is recomputed from the calendar summary
+ * on the next lookup, going over again only the items whose summary data changed. At most
+ * {@code calendar_cache_busy_timeline_size} timelines are kept, the least recently used being dropped first; 0
+ * disables them.
+ */
+public class BusyTimelineCache {
+
+    private static final int MAX_SIZE = LC.calendar_cache_busy_timeline_size.intValue();
+
+    private final Cache<CalSummaryKey, BusyTimeline> timelines;
+
+    /** account ID -> IDs of the folders that have a timeline, kept up to date as timelines are added and dropped */
+    private final ConcurrentMap<String, Set<Integer>> accountFolders = new ConcurrentHashMap<String, Set<Integer>>();
+
+    BusyTimelineCache() {
+        timelines = CacheBuilder.newBuilder()
+            .maximumSize(Math.max(MAX_SIZE, 0))
+            .removalListener(new RemovalListener<CalSummaryKey, BusyTimeline>() {
+                @Override
+                public void onRemoval(RemovalNotification<CalSummaryKey, BusyTimeline> notification) {
+                    if (notification.getCause() != RemovalCause.REPLACED)
+                        deregisterFromAccount(notification.getKey());
+                }
+            })
+            .<CalSummaryKey, BusyTimeline>build();
+    }
+
+    private static Pair<Long, Long> getWindow() {
+        return Util.getMonthsRange(System.currentTimeMillis(),
+                LC.calendar_cache_range_month_from.intValue(), LC.calendar_cache_range_months.intValue());
+    }
+
+    /**
+     * Returns whether lookups for the range can be answered from timelines.
+     */
+    public boolean covers(long start, long end) {
+        if (MAX_SIZE <= 0 || !LC.calendar_cache_enabled.booleanValue())
+            return false;
+        Pair<Long, Long> window = getWindow();
+        return start >= window.getFirst() && end <= window.getSecond();
+    }
+
+    /**
+     * Returns the timeline of a folder of the mailbox, computing it if it isn't cached or is out of date. The caller
+     * must have checked that the range is {@link #covers(long, long) covered} and must hold the mailbox lock.
+     *
+     * @return null if there is no calendar summary for the folder
+     */
+    public BusyTimeline getBusyTimeline(Mailbox mbox, Folder folder) throws ServiceException {
+        String accountId = mbox.getAccountId();
+        Pair<Long, Long> window = getWindow();
+        CalSummaryKey key = new CalSummaryKey(accountId, folder.getId());
+        BusyTimeline timeline = timelines.getIfPresent(key);
+        int staleMarks = timeline == null ? 0 : timeline.getStaleMarks();
+        if (timeline != null && staleMarks == 0 && timeline.getModSeq() == folder.getImapMODSEQ() &&
+                timeline.getRangeStart() <= window.getFirst() && timeline.getRangeEnd() >= window.getSecond()) {
+            ZimbraPerf.COUNTER_CALENDAR_BUSY_TIMELINE_HIT.increment(1);
+            return timeline;
+        }
+        ZimbraPerf.COUNTER_CALENDAR_BUSY_TIMELINE_HIT.increment(0);
+
+        CalendarDataResult result = CalendarCacheManager.getInstance().getSummaryCache().getCalendarSummary(
+                null, accountId, folder.getId(), MailItem.Type.APPOINTMENT, window.getFirst(), window.getSecond(),
+                false);
+        if (result == null || result.data == null)
+            return null;
+        BusyTimeline built = BusyTimeline.build(result.data, timeline);
+        if (timeline == null) {
+            registerWithAccount(key);
+            timelines.asMap().putIfAbsent(key, built);
+        } else {
+            // if the timeline was marked stale in the meantime, leave it for the next lookup to recompute
+            if (timeline.getStaleMarks() == staleMarks)
+                timelines.asMap().replace(key, timeline, built);
+        }
+        return built;
+    }
+
+    private void registerWithAccount(CalSummaryKey key) {
+        String accountId = key.getAccountId();
+        Set<Integer> folders = accountFolders.get(accountId);
+        if (folders == null) {
+            folders = Collections.newSetFromMap(new ConcurrentHashMap<Integer, Boolean>());
+            Set<Integer> existing = accountFolders.putIfAbsent(accountId, folders);
+            if (existing != null)
+                folders = existing;
+        }
+        folders.add(key.getFolderId());
+    }
+
+    private void deregisterFromAccount(CalSummaryKey key) {
+        String accountId = key.getAccountId();
+        Set<Integer> folders = accountFolders.get(accountId);
+        // It may have been put back in the meantime.
+        if (folders != null && !timelines.asMap().containsKey(key)) {
+            folders.remove(key.getFolderId());
+            if (folders.isEmpty())
+                accountFolders.remove(accountId, folders);
+        }
+    }
+
+    // without counting as an access
+    private BusyTimeline peek(String accountId, int folderId) {
+        return timelines.asMap().get(new CalSummaryKey(accountId, folderId));
+    }
+
+    private void markStale(String accountId, int folderId) {
+        BusyTimeline timeline = peek(accountId, folderId);
+        if (timeline != null)
+            timeline.markStale();
+    }
+
+    /** for changes that only identify the item */
+    private void markStale(String accountId, int calItemId, int exceptFolderId) {
+        Set<Integer> folders = accountFolders.get(accountId);
+        if (folders == null)
+            return;
+        for (int folderId : folders) {
+            BusyTimeline timeline = folderId == exceptFolderId ? null : peek(accountId, folderId);
+            if (timeline != null && timeline.containsItem(calItemId))
+                timeline.markStale();
+        }
+    }
+
+    void notifyCommittedChanges(PendingLocalModifications mods, int changeId) {
+        if (accountFolders.isEmpty())
+            return;
+        if (mods.created != null) {
+            for (Map.Entry<ModificationKey, BaseItemInfo> entry : mods.created.entrySet()) {
+                BaseItemInfo item = entry.getValue();
+                if (item instanceof CalendarItem) {
+                    CalendarItem calItem = (CalendarItem) item;
+                    markStale(calItem.getMailbox().getAccountId(), calItem.getFolderId());
+                }
+            }
+        }
+        if (mods.modified != null) {
+            for (Map.Entry<ModificationKey, Change> entry : mods.modified.entrySet()) {
+                Change change = entry.getValue();
+                if (change.what instanceof CalendarItem) {
+                    CalendarItem calItem = (CalendarItem) change.what;
+                    String accountId = calItem.getMailbox().getAccountId();
+                    markStale(accountId, calItem.getFolderId());
+                    // If this is a folder move, the item has to come off the old folder's timeline too.
+                    if ((change.why & Change.FOLDER) != 0)
+                        markStale(accountId, calItem.getId(), calItem.getFolderId());
+                }
+            }
+        }
+        if (mods.deleted != null) {
+            for (Map.Entry<ModificationKey, Change> entry : mods.deleted.entrySet()) {
+                MailItem.Type type = (MailItem.Type) entry.getValue().what;
+                String accountId = entry.getKey().getAccountId();
+                if (type == MailItem.Type.APPOINTMENT && accountId != null)
+                    markStale(accountId, entry.getKey().getItemId(), -1);
+            }
+        }
+    }
+
+    void purgeMailbox(Mailbox mbox) {
+        String accountId = mbox.getAccountId();
+        Set<Integer> folders = accountFolders.get(accountId);
+        if (folders != null) {
+            // Get a copy of the folder list, as removal updates it.
+            for (int folderId : folders.toArray(new Integer[0]))
+                timelines.invalidate(new CalSummaryKey(accountId, folderId));
+        }
+    }
+
+    void clear() {
+        timelines.invalidateAll();
+    }
+}
@@ -17,19 +17,43 @@
 
 package com.zimbra.cs.mailbox.calendar.cache;
 
+import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
-import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.TimerTask;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.RemovalCause;
+import com.google.common.cache.RemovalListener;
+import com.google.common.cache.RemovalNotification;
+import com.google.common.cache.Weigher;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 
 import com.zimbra.common.account.Key.AccountBy;
 import com.zimbra.common.calendar.ParsedDateTime;
 import com.zimbra.common.localconfig.LC;
 import com.zimbra.common.mailbox.BaseItemInfo;
 import com.zimbra.common.service.ServiceException;
+import com.zimbra.common.util.Constants;
 import com.zimbra.common.util.Pair;
 import com.zimbra.common.util.ZimbraLog;
 import com.zimbra.cs.account.Account;
@@ -54,6 +78,7 @@ import com.zimbra.cs.session.PendingLocalModifications;
 import com.zimbra.cs.session.PendingModifications.Change;
 import com.zimbra.cs.session.PendingModifications.ModificationKey;
 import com.zimbra.cs.stats.ZimbraPerf;
+import com.zimbra.cs.util.Zimbra;
 
 // TODO: caching remote calendars
 // TODO: TTL instead of last-modified time check, if folder configured that way or remote
@@ -351,6 +376,8 @@ public class CalSummaryCache {
     private static final int sMaxStaleItems;
     private static final int sMaxStaleItemsBeforeInvalidatingCalendar;
     private static final int sMaxSearchDays;
+    private static final long sRefreshAhead;
+    private static final int sRefreshMax;
 
     private static final long MSEC_PER_DAY = 1000 * 60 * 60 * 24;
 
@@ -360,83 +387,101 @@ public class CalSummaryCache {
         sMaxStaleItems = LC.calendar_cache_max_stale_items.intValue();
         sMaxStaleItemsBeforeInvalidatingCalendar = 100;
         sMaxSearchDays = LC.calendar_search_max_days.intValueWithinRange(0, 3660);
+        sRefreshAhead = LC.calendar_cache_refresh_ahead_min.longValue() * Constants.MILLIS_PER_MINUTE;
+        sRefreshMax = LC.calendar_cache_refresh_max.intValue();
     }
 
-    @SuppressWarnings("serial")
-    private static class SummaryLRU extends LinkedHashMap<CalSummaryKey, CalendarData> {
-        private final int mMaxAllowed;
+    // In-memory tier.  A segmented concurrent cache, so that looking up or reloading one calendar doesn't hold up
+    // everybody else's, bounded by the estimated bytes of the summaries it holds rather than by their number, since
+    // a calendar can have anywhere from a handful to tens of thousands of appointments.  If calendar_cache_max_bytes
+    // is 0, it is bounded by calendar_cache_lru_size calendars instead.
+    private static class SummaryLRU {
+        private final Cache<CalSummaryKey, CalendarData> mCache;
+        private final AtomicLong mBytes = new AtomicLong();
 
         // map that keeps track of which calendar folders are cached for each account
         // This map is updated every time a calendar folder is added, removed, or aged out
         // of the LRU.
-        private final Map<String /* account id */, Set<Integer> /* folder ids */> mAccountFolders;
+        private final ConcurrentMap<String /* account id */, Set<Integer> /* folder ids */> mAccountFolders;
 
         private SummaryLRU(int capacity) {
-            super(capacity + 1, 1.0f, true);
-            mMaxAllowed = Math.max(capacity, 1);
-            mAccountFolders = new HashMap<String, Set<Integer>>();
+            mAccountFolders = new ConcurrentHashMap<String, Set<Integer>>();
+            CacheBuilder<CalSummaryKey, CalendarData> builder = CacheBuilder.newBuilder()
+                .concurrencyLevel(Math.max(LC.calendar_cache_concurrency.intValue(), 1))
+                .removalListener(new RemovalListener<CalSummaryKey, CalendarData>() {
+                    @Override
+                    public void onRemoval(RemovalNotification<CalSummaryKey, CalendarData> notification) {
+                        mBytes.addAndGet(-notification.getValue().getEstimatedSize());
+                        if (notification.getCause() != RemovalCause.REPLACED)
+                            deregisterFromAccount(notification.getKey());
+                    }
+                });
+            long maxBytes = LC.calendar_cache_max_bytes.longValue();
+            if (maxBytes > 0) {
+                builder = builder.maximumWeight(maxBytes).weigher(new Weigher<CalSummaryKey, CalendarData>() {
+                    @Override
+                    public int weigh(CalSummaryKey key, CalendarData value) {
+                        return Math.max(value.getEstimatedSize(), 1);
+                    }
+                });
+            } else {
+                builder = builder.maximumSize(Math.max(capacity, 1));
+            }
+            mCache = builder.build();
         }
 
-        @Override
-        public void clear() {
-            super.clear();
-            mAccountFolders.clear();
+        public CalendarData get(CalSummaryKey key) {
+            return mCache.getIfPresent(key);
         }
 
-        @Override
-        public CalendarData put(CalSummaryKey key, CalendarData value) {
-            CalendarData prevVal = super.put(key, value);
-            if (prevVal == null)
-                registerWithAccount(key);
-            return prevVal;
+        // without counting as an access
+        public CalendarData peek(CalSummaryKey key) {
+            return mCache.asMap().get(key);
         }
 
-        @Override
-        public void putAll(Map<? extends CalSummaryKey, ? extends CalendarData> t) {
-            super.putAll(t);
-            for (CalSummaryKey key : t.keySet()) {
-                registerWithAccount(key);
-            }
+        public void put(CalSummaryKey key, CalendarData value) {
+            registerWithAccount(key);
+            mBytes.addAndGet(value.getEstimatedSize());
+            mCache.put(key, value);
         }
 
-        @Override
-        public CalendarData remove(Object key) {
-            CalendarData prevVal = super.remove(key);
-            if (prevVal != null && key instanceof CalSummaryKey) {
-                CalSummaryKey k = (CalSummaryKey) key;
-                deregisterFromAccount(k);
-            }
-            return prevVal;
+        public void remove(CalSummaryKey key) {
+            mCache.invalidate(key);
+        }
+
+        public void clear() {
+            mCache.invalidateAll();
+        }
+
+        public long size() {
+            return mCache.size();
         }
 
-        @Override
-        protected boolean removeEldestEntry(Map.Entry<CalSummaryKey, CalendarData> eldest) {
-            boolean remove = size() > mMaxAllowed;
-            if (remove)
-                deregisterFromAccount(eldest.getKey());
-            return remove;
+        public long getEstimatedSize() {
+            return mBytes.get();
         }
 
         private void registerWithAccount(CalSummaryKey key) {
             String accountId = key.getAccountId();
-            int folderId = key.getFolderId();
             Set<Integer> folders = mAccountFolders.get(accountId);
             if (folders == null) {
-                folders = new HashSet<Integer>();
-                mAccountFolders.put(accountId, folders);
+                folders = Collections.newSetFromMap(new ConcurrentHashMap<Integer, Boolean>());
+                Set<Integer> existing = mAccountFolders.putIfAbsent(accountId, folders);
+                if (existing != null)
+                    folders = existing;
             }
-            folders.add(folderId);
+            folders.add(key.getFolderId());
         }
 
         private void deregisterFromAccount(CalSummaryKey key) {
             String accountId = key.getAccountId();
-            int folderId = key.getFolderId();
             Set<Integer> folders = mAccountFolders.get(accountId);
-            if (folders != null) {
-                folders.remove(folderId);
+            // It may have been put back in the meantime.
+            if (folders != null && !mCache.asMap().containsKey(key)) {
+                folders.remove(key.getFolderId());
                 // If no folders are cached for the account, drop the account entry from the map to save memory.
                 if (folders.isEmpty())
-                    mAccountFolders.remove(accountId);
+                    mAccountFolders.remove(accountId, folders);
             }
         }
 
@@ -448,7 +493,7 @@ public class CalSummaryCache {
             if (folders != null) {
                 for (int folderId : folders) {
                     CalSummaryKey key = new CalSummaryKey(accountId, folderId);
-                    CalendarData calData = get(key);
+                    CalendarData calData = peek(key);
                     if (calData != null) {
                         CalendarItemData ci = calData.getCalendarItemData(itemId);
                         if (ci != null) {
@@ -468,7 +513,7 @@ public class CalSummaryCache {
         public void removeAccount(String accountId) {
             Set<Integer> folders = mAccountFolders.get(accountId);
             if (folders != null) {
-                // Get a copy of the folder list to avoid ConcurrentModificationException on mMboxFolders.
+                // Get a copy of the folder list, as removal updates it.
                 Integer[] fids = folders.toArray(new Integer[0]);
                 for (int folderId : fids) {
                     CalSummaryKey key = new CalSummaryKey(accountId, folderId);
@@ -483,10 +528,56 @@ public class CalSummaryCache {
     private final int mLRUCapacity;
     private final CalSummaryMemcachedCache mMemcachedCache;
 
+    // reloads in progress, so that concurrent requests for the same calendar wait for one reload instead of all
+    // scanning the folder
+    private final ConcurrentMap<CalSummaryKey, FutureTask<CalendarData>> mLoading =
+        new ConcurrentHashMap<CalSummaryKey, FutureTask<CalendarData>>();
+
+    // number of requests for each calendar since the last refresh-ahead run
+    private final ConcurrentMap<CalSummaryKey, AtomicInteger> mRequests =
+        new ConcurrentHashMap<CalSummaryKey, AtomicInteger>();
+
+    // whether a refresh-ahead run is queued or in progress
+    private final AtomicBoolean mRefreshing = new AtomicBoolean(false);
+
+    /** Lazily started, so that the refresh thread only exists once refresh-ahead is enabled. */
+    private static final class Refresher {
+        static final ExecutorService EXECUTOR = Executors.newSingleThreadExecutor(
+                new ThreadFactoryBuilder().setNameFormat("CalSummaryRefresh").setDaemon(true).build());
+    }
+
     CalSummaryCache(final int capacity) {
         mLRUCapacity = capacity;
         mSummaryCache = new SummaryLRU(capacity);
         mMemcachedCache = new CalSummaryMemcachedCache();
+        if (mLRUCapacity > 0 && sRefreshAhead > 0) {
+            long interval = Math.max(sRefreshAhead / 4, Constants.MILLIS_PER_MINUTE);
+            // the timer only hands the run off, so that the reloads don't hold up the other shared timer tasks
+            Zimbra.sTimer.schedule(new TimerTask() {
+                @Override
+                public void run() {
+                    if (!mRefreshing.compareAndSet(false, true))
+                        return;  // previous run still in progress
+                    try {
+                        Refresher.EXECUTOR.execute(new Runnable() {
+                            @Override
+                            public void run() {
+                                try {
+                                    refreshAhead();
+                                } catch (Throwable t) {
+                                    ZimbraLog.calendar.warn(
+                                            "Error refreshing calendar summaries ahead of range rollover", t);
+                                } finally {
+                                    mRefreshing.set(false);
+                                }
+                            }
+                        });
+                    } catch (RejectedExecutionException e) {
+                        mRefreshing.set(false);
+                    }
+                }
+            }, interval, interval);
+        }
     }
 
     private static enum CacheLevel { Memory, Memcached, File, Miss }
@@ -546,6 +637,8 @@ public class CalSummaryCache {
         // Look up from memcached.
         CalSummaryKey key = new CalSummaryKey(targetAcctId, folderId);
         CalendarData calData = mMemcachedCache.getForRange(key, rangeStart, rangeEnd);
+        if (MemcachedConnector.isConnected())
+            ZimbraPerf.COUNTER_CALENDAR_CACHE_MEMCACHED_HIT.increment(calData != null ? 1 : 0);
         if (calData != null) {
             ZimbraPerf.COUNTER_CALENDAR_CACHE_HIT.increment(1);
             ZimbraPerf.COUNTER_CALENDAR_CACHE_MEM_HIT.increment(1);
@@ -565,7 +658,10 @@ public class CalSummaryCache {
             return null;
         }
 
-        int lruSize = 0;
+        if (sRefreshAhead > 0)
+            countRequest(key);
+
+        long lruSize = 0;
         CacheLevel dataFrom = CacheLevel.Memory;
         boolean incrementalUpdate = sMaxStaleItems > 0;
 
@@ -576,11 +672,9 @@ public class CalSummaryCache {
         int currentModSeq = folder.getImapMODSEQ();
 
         // Lookup from heap LRU.
-            synchronized (mSummaryCache) {
-                if (mLRUCapacity > 0) {
-                    calData = mSummaryCache.get(key);
-                    lruSize = mSummaryCache.size();
-                }
+            if (mLRUCapacity > 0) {
+                calData = mSummaryCache.get(key);
+                lruSize = mSummaryCache.size();
             }
             if (calData != null) {
                 // Sanity check: Cached data can't be newer than the backend data.
@@ -597,14 +691,13 @@ public class CalSummaryCache {
             // Load from file.
             try {
                 calData = FileStore.loadCalendarData(mbox.getId(), folderId, currentModSeq);
+                ZimbraPerf.COUNTER_CALENDAR_CACHE_FILE_HIT.increment(calData != null ? 1 : 0);
                 if (calData != null) {
                     // If data is up to date, add to LRU.
                     if (calData.getModSeq() == currentModSeq) {
                         if (mLRUCapacity > 0) {
-                            synchronized (mSummaryCache) {
-                                mSummaryCache.put(key, calData);
-                                lruSize = mSummaryCache.size();
-                            }
+                            mSummaryCache.put(key, calData);
+                            lruSize = mSummaryCache.size();
                         }
                     } else {
                         // Data loaded from file doesn't have stale items list.  It can't be refreshed incrementally.
@@ -646,21 +739,10 @@ public class CalSummaryCache {
             if (defaultRange == null)
                 defaultRange = Util.getMonthsRange(System.currentTimeMillis(),
                                                    sRangeMonthFrom, sRangeNumMonths);
-            calData = reloadCalendarOverRange(ownerOctxt, mbox, folderId, type,
-                    defaultRange.getFirst(), defaultRange.getSecond(), reusableCalData, incrementalUpdate);
-            synchronized (mSummaryCache) {
-                if (mLRUCapacity > 0) {
-                    mSummaryCache.put(key, calData);
-                    lruSize = mSummaryCache.size();
-                }
-            }
+            calData = reloadOnce(key, ownerOctxt, mbox, folderId, type, defaultRange, reusableCalData,
+                    incrementalUpdate, currentModSeq);
+            lruSize = mSummaryCache.size();
             dataFrom = CacheLevel.Miss;
-
-            try {
-                FileStore.saveCalendarData(mbox.getId(), calData);  // persist it
-            } catch (ServiceException e) {
-                ZimbraLog.calendar.warn("Error persisting calendar summary cache", e);
-            }
         }
 
         assert(calData != null);
@@ -703,6 +785,7 @@ public class CalSummaryCache {
             break;
         }
         ZimbraPerf.COUNTER_CALENDAR_CACHE_LRU_SIZE.increment(lruSize);
+        ZimbraPerf.COUNTER_CALENDAR_CACHE_LRU_BYTES.increment(mSummaryCache.getEstimatedSize());
 
         if (ZimbraLog.calendar.isDebugEnabled()) {
             ZimbraLog.calendar.debug("Calendar Summary for %s:%s reloaded (dataFrom=%s) - %s items private=%s",
@@ -712,14 +795,135 @@ public class CalSummaryCache {
         return result;
     }
 
+    /**
+     * Reloads the calendar over the range, adds it to the LRU and persists it.  If the calendar is already being
+     * reloaded by another thread, waits for that instead, unless this thread holds the mailbox lock, since the other
+     * thread may need it.
+     */
+    private CalendarData reloadOnce(final CalSummaryKey key, final OperationContext octxt, final Mailbox mbox,
+            final int folderId, final MailItem.Type type, final Pair<Long, Long> range, final CalendarData prevCalData,
+            final boolean incrementalUpdate, int minModSeq) throws ServiceException {
+        FutureTask<CalendarData> task = new FutureTask<CalendarData>(new Callable<CalendarData>() {
+            @Override
+            public CalendarData call() throws ServiceException {
+                CalendarData calData = reloadCalendarOverRange(octxt, mbox, folderId, type,
+                        range.getFirst(), range.getSecond(), prevCalData, incrementalUpdate);
+                if (mLRUCapacity > 0)
+                    mSummaryCache.put(key, calData);
+                try {
+                    FileStore.saveCalendarData(mbox.getId(), calData);  // persist it
+                } catch (ServiceException e) {
+                    ZimbraLog.calendar.warn("Error persisting calendar summary cache", e);
+                }
+                return calData;
+            }
+        });
+        FutureTask<CalendarData> running = mLoading.putIfAbsent(key, task);
+        if (running != null && mbox.lock.isUnlocked()) {
+            ZimbraPerf.COUNTER_CALENDAR_CACHE_SHARED_LOAD.increment(1);
+            CalendarData calData = getResult(key, running);
+            // A reload that started before the latest change is no good to us.
+            if (calData.getModSeq() >= minModSeq && calData.getRangeStart() <= range.getFirst() &&
+                    calData.getRangeEnd() >= range.getSecond())
+                return calData;
+        } else {
+            ZimbraPerf.COUNTER_CALENDAR_CACHE_SHARED_LOAD.increment(0);
+        }
+        try {
+            task.run();
+        } finally {
+            mLoading.remove(key, task);
+        }
+        return getResult(key, task);
+    }
+
+    private static CalendarData getResult(CalSummaryKey key, FutureTask<CalendarData> task) throws ServiceException {
+        try {
+            return task.get();
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof ServiceException)
+                throw (ServiceException) e.getCause();
+            throw ServiceException.FAILURE("Error reloading calendar summary " + key, e.getCause());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw ServiceException.FAILURE("Interrupted while reloading calendar summary " + key, e);
+        }
+    }
+
+    private void countRequest(CalSummaryKey key) {
+        AtomicInteger count = mRequests.get(key);
+        if (count == null) {
+            count = new AtomicInteger();
+            AtomicInteger existing = mRequests.putIfAbsent(key, count);
+            if (existing != null)
+                count = existing;
+        }
+        count.incrementAndGet();
+    }
+
+    /**
+     * When the cached range is about to roll over to the next month, reloads the calendars that were requested the
+     * most since the last run over both the current and the next range, so that the first requests after the
+     * rollover don't all have to scan their folders at once.
+     */
+    void refreshAhead() {
+        Map<CalSummaryKey, Integer> requests = new HashMap<CalSummaryKey, Integer>();
+        for (Iterator<Map.Entry<CalSummaryKey, AtomicInteger>> iter = mRequests.entrySet().iterator();
+                iter.hasNext(); ) {
+            Map.Entry<CalSummaryKey, AtomicInteger> entry = iter.next();
+            iter.remove();
+            if (entry.getValue().get() > 1)
+                requests.put(entry.getKey(), entry.getValue().get());
+        }
+        long now = System.currentTimeMillis();
+        Pair<Long, Long> current = Util.getMonthsRange(now, sRangeMonthFrom, sRangeNumMonths);
+        Pair<Long, Long> next = Util.getMonthsRange(now + sRefreshAhead, sRangeMonthFrom, sRangeNumMonths);
+        if (current.equals(next) || requests.isEmpty())
+            return;
+        Pair<Long, Long> range = new Pair<Long, Long>(current.getFirst(), next.getSecond());
+
+        List<Map.Entry<CalSummaryKey, Integer>> hottest =
+            new ArrayList<Map.Entry<CalSummaryKey, Integer>>(requests.entrySet());
+        Collections.sort(hottest, new Comparator<Map.Entry<CalSummaryKey, Integer>>() {
+            @Override
+            public int compare(Map.Entry<CalSummaryKey, Integer> e1, Map.Entry<CalSummaryKey, Integer> e2) {
+                return e2.getValue().compareTo(e1.getValue());
+            }
+        });
+        int refreshed = 0;
+        for (Map.Entry<CalSummaryKey, Integer> entry : hottest) {
+            if (refreshed >= sRefreshMax)
+                break;
+            CalSummaryKey key = entry.getKey();
+            CalendarData calData = mSummaryCache.peek(key);
+            if (calData == null || calData.getRangeEnd() >= range.getSecond())
+                continue;  // aged out, or already done
+            try {
+                Mailbox mbox = MailboxManager.getInstance().getMailboxByAccountId(key.getAccountId(),
+                        FetchMode.DO_NOT_AUTOCREATE);
+                if (mbox == null)
+                    continue;
+                Folder folder = mbox.getFolderById(null, key.getFolderId());
+                MailItem.Type type = folder.getDefaultView() == MailItem.Type.TASK ?
+                        MailItem.Type.TASK : MailItem.Type.APPOINTMENT;
+                reloadOnce(key, new OperationContext(mbox.getAccount()), mbox, folder.getId(), type, range, null,
+                        false, folder.getImapMODSEQ());
+                refreshed++;
+            } catch (ServiceException e) {
+                ZimbraLog.calendar.info("Unable to refresh calendar summary %s ahead of range rollover", key, e);
+            }
+        }
+        if (refreshed > 0) {
+            ZimbraLog.calendar.info("Refreshed %d calendar summaries ahead of range rollover", refreshed);
+        }
+    }
+
     private void invalidateSummary(Mailbox mbox, int folderId) {
         if (!LC.calendar_cache_enabled.booleanValue())
             return;
         int mboxId = mbox.getId();
         CalSummaryKey key = new CalSummaryKey(mbox.getAccountId(), folderId);
-        synchronized (mSummaryCache) {
-            mSummaryCache.remove(key);
-        }
+        mSummaryCache.remove(key);
         try {
             FileStore.deleteCalendarData(mboxId, folderId);
         } catch (ServiceException e) {
@@ -732,10 +936,8 @@ public class CalSummaryCache {
             return;
         CalSummaryKey key = new CalSummaryKey(mbox.getAccountId(), folderId);
         CalendarData calData = null;
-        synchronized (mSummaryCache) {
-            if (mLRUCapacity > 0) {
-                calData = mSummaryCache.get(key);
-            }
+        if (mLRUCapacity > 0) {
+            calData = mSummaryCache.peek(key);
         }
         // Invalidate the item from the calendar.
         if (calData != null) {
@@ -772,10 +974,7 @@ public class CalSummaryCache {
                     // If this is a folder move, invalidate the item from the old folder too.
                     if ((change.why & Change.FOLDER) != 0) {
                         String accountId = mbox.getAccountId();
-                        int prevFolderId;
-                        synchronized (mSummaryCache) {
-                            prevFolderId = mSummaryCache.getFolderForItem(accountId, itemId);
-                        }
+                        int prevFolderId = mSummaryCache.getFolderForItem(accountId, itemId);
                         if (prevFolderId != folderId && prevFolderId != SummaryLRU.FOLDER_NOT_FOUND) {
                             invalidateItem(mbox, prevFolderId, itemId);
                         }
@@ -810,10 +1009,7 @@ public class CalSummaryCache {
                         lastMbox = mbox;
                         int itemId = entry.getKey().getItemId();
                         String accountId = mbox.getAccountId();
-                        int folderId;
-                        synchronized (mSummaryCache) {
-                            folderId = mSummaryCache.getFolderForItem(accountId, itemId);
-                        }
+                        int folderId = mSummaryCache.getFolderForItem(accountId, itemId);
                         if (folderId != SummaryLRU.FOLDER_NOT_FOUND) {
                             invalidateItem(mbox, folderId, itemId);
                         }
@@ -828,9 +1024,7 @@ public class CalSummaryCache {
     }
 
     void purgeMailbox(Mailbox mbox) throws ServiceException {
-        synchronized (mSummaryCache) {
-            mSummaryCache.removeAccount(mbox.getAccountId());
-        }
+        mSummaryCache.removeAccount(mbox.getAccountId());
         if (MemcachedConnector.isConnected()) {
             mMemcachedCache.purgeMailbox(mbox);
         }
@@ -34,6 +34,9 @@ public class CalendarCacheManager {
     private boolean mSummaryCacheEnabled;
     private CalSummaryCache mSummaryCache;
 
+    // for local free/busy lookups, built on top of the summary cache
+    private BusyTimelineCache mBusyTimelineCache;
+
     // for CalDAV ctag caching
     private CalListCache mCalListCache;
     private CtagInfoCache mCtagCache;
@@ -53,11 +56,14 @@ public class CalendarCacheManager {
         if (mSummaryCacheEnabled)
             summaryLRUSize = LC.calendar_cache_lru_size.intValue();
         mSummaryCache = new CalSummaryCache(summaryLRUSize);
+        mBusyTimelineCache = new BusyTimelineCache();
     }
 
     public void notifyCommittedChanges(PendingLocalModifications mods, int changeId) {
-        if (mSummaryCacheEnabled)
+        if (mSummaryCacheEnabled) {
             mSummaryCache.notifyCommittedChanges(mods, changeId);
+            mBusyTimelineCache.notifyCommittedChanges(mods, changeId);
+        }
         if (MemcachedConnector.isConnected()) {
             mCalListCache.notifyCommittedChanges(mods, changeId);
             mCtagCache.notifyCommittedChanges(mods, changeId);
@@ -66,6 +72,7 @@ public class CalendarCacheManager {
 
     public void purgeMailbox(Mailbox mbox) throws ServiceException {
         mSummaryCache.purgeMailbox(mbox);
+        mBusyTimelineCache.purgeMailbox(mbox);
         if (MemcachedConnector.isConnected()) {
             mCalListCache.purgeMailbox(mbox);
             mCtagCache.purgeMailbox(mbox);
@@ -74,6 +81,7 @@ public class CalendarCacheManager {
 
     CtagInfoCache getCtagCache() { return mCtagCache; }
     public CalSummaryCache getSummaryCache() { return mSummaryCache; }
+    public BusyTimelineCache getBusyTimelineCache() { return mBusyTimelineCache; }
     public CtagResponseCache getCtagResponseCache() { return mCtagResponseCache; }
 
     public AccountCtags getCtags(AccountKey key) throws ServiceException {
@@ -36,6 +36,7 @@ public class CalendarData {
     private List<CalendarItemData> mCalendarItems;
     private Map<Integer, CalendarItemData> mCalendarItemsMap;
     private Set<Integer> mStaleItemIds;
+    private int mEstimatedSize = -1;  // items aren't added once the data is built
 
     CalendarData(int folderId, int modSeq, long rangeStart, long rangeEnd) {
         mFolderId = folderId;
@@ -64,6 +65,20 @@ public class CalendarData {
     public Iterator<CalendarItemData> calendarItemIterator() { return mCalendarItems.iterator(); }
     public int getNumItems() { return mCalendarItems.size(); }
 
+    /**
+     * Rough number of bytes held, for sizing the in-memory calendar summary cache.
+     */
+    int getEstimatedSize() {
+        if (mEstimatedSize < 0) {
+            long size = 100;
+            for (CalendarItemData calItemData : mCalendarItems) {
+                size += calItemData.getEstimatedSize();
+            }
+            mEstimatedSize = (int) Math.min(size, Integer.MAX_VALUE);
+        }
+        return mEstimatedSize;
+    }
+
     public CalendarData getSubRange(long rangeStart, long rangeEnd) {
         if (rangeStart <= mRangeStart && rangeEnd >= mRangeEnd)
             return this;
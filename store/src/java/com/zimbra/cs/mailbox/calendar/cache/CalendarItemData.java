@@ -127,6 +127,19 @@ public class CalendarItemData {
         return mInstances.size();
     }
 
+    /**
+     * Rough number of bytes held, for sizing the in-memory calendar summary cache.
+     */
+    int getEstimatedSize() {
+        int size = 200 + InstanceData.estimateSize(mUid);
+        if (mDefaultData != null)
+            size += mDefaultData.getEstimatedSize();
+        for (InstanceData inst : mInstances) {
+            size += inst.getEstimatedSize();
+        }
+        return size;
+    }
+
     public CalendarItemData getSubRange(long rangeStart, long rangeEnd) {
         if (rangeStart <= mActualRangeStart && rangeEnd >= mActualRangeEnd)
             return this;
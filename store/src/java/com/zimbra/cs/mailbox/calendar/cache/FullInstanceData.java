@@ -120,6 +120,15 @@ public class FullInstanceData extends InstanceData {
     public String getFreeBusyIntended() { return mFreeBusyIntended; }
     public String getTransparency() { return mTransparency; }
 
+    @Override
+    int getEstimatedSize() {
+        int size = super.getEstimatedSize() + 200 + estimateSize(mSummary) + estimateSize(mLocation) +
+            estimateSize(mFragment) + estimateSize(mDesc) + estimateSize(mDescHtml);
+        if (mAttendees != null)
+            size += 200 * mAttendees.size();
+        return size;
+    }
+
     public boolean isPublic(FullInstanceData defaultInstance) {
         if (mClassProp != null)
             return IcalXmlStrMap.CLASS_PUBLIC.equals(mClassProp);
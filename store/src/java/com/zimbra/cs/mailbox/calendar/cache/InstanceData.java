@@ -45,6 +45,17 @@ public class InstanceData {
     public String getFreeBusyActual() { return mFreeBusyActual; }
     public String getPercentComplete() { return mPercentComplete; }
 
+    /**
+     * Rough number of bytes held, for sizing the in-memory calendar summary cache.
+     */
+    int getEstimatedSize() {
+        return 160 + estimateSize(mRecurIdZ);
+    }
+
+    static int estimateSize(String str) {
+        return str == null ? 0 : 40 + 2 * str.length();
+    }
+
     public InstanceData(String recurIdZ, Long dtStart, Long duration, Long alarmAt, Long tzOffset,
                         String partStat, String freeBusyActual, String percentComplete) {
         init(recurIdZ, dtStart, duration, alarmAt, tzOffset, partStat, freeBusyActual, percentComplete);
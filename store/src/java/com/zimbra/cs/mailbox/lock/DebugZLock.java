@@ -34,7 +34,11 @@ public class DebugZLock extends ZLock {
     private final DebugReentrantWriteLock writeLock;
 
     public DebugZLock() {
-        super();
+        this(false);
+    }
+
+    public DebugZLock(boolean fair) {
+        super(fair);
         this.readLock = new DebugReentrantReadLock(this);
         this.writeLock = new DebugReentrantWriteLock(this);
     }
@@ -0,0 +1,212 @@
+/*
+ * ***** BEGIN LICENSE BLOCK *****
+ * Zimbra Collaboration Suite Server
+ * Copyright (C) 2017 Synacor, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software Foundation,
+ * version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <https://www.gnu.org/licenses/>.
+ * ***** END LICENSE BLOCK *****
+ */
+package com.zimbra.cs.mailbox.lock;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.zimbra.cs.stats.ZimbraPerf;
+
+/**
+ * Wait and hold time statistics for a single mailbox lock.  Hold times are
+ * attributed to the operation that held the lock, so that the operations
+ * causing lock convoys on a mailbox can be identified.  Every sample is also
+ * recorded in the server-wide {@link ZimbraPerf} histograms.
+ */
+public class MailboxLockStats {
+
+    private final Timing waits = new Timing();
+    private final Timing holds = new Timing();
+    private final AtomicLong failures = new AtomicLong();
+    private final AtomicLong maxQueueLength = new AtomicLong();
+    private final ConcurrentMap<String, Timing> holdsByOperation = new ConcurrentHashMap<String, Timing>();
+
+    /**
+     * Records the time a thread waited for the lock.  Uncontended acquisitions
+     * are recorded with 0 wait.
+     */
+    public void recordWait(long nanos) {
+        waits.record(nanos);
+        ZimbraPerf.HISTOGRAM_MBOX_LOCK_WAIT.record(TimeUnit.NANOSECONDS.toMicros(nanos));
+    }
+
+    /**
+     * Records an acquisition that failed because of a timeout or too many waiters.
+     */
+    public void recordFailure() {
+        failures.incrementAndGet();
+    }
+
+    /**
+     * Records the number of threads found waiting when a thread had to queue for the lock.
+     */
+    public void recordQueueLength(int length) {
+        updateMax(maxQueueLength, length);
+    }
+
+    /**
+     * Records the time a thread held the lock, from the outermost lock until
+     * the matching release.
+     *
+     * @param operation operation that held the lock, or null if unknown
+     */
+    public void recordHold(String operation, long nanos) {
+        holds.record(nanos);
+        ZimbraPerf.HISTOGRAM_MBOX_LOCK_HOLD.record(TimeUnit.NANOSECONDS.toMicros(nanos));
+        if (operation == null) {
+            operation = "unknown";
+        }
+        Timing timing = holdsByOperation.get(operation);
+        if (timing == null) {
+            Timing newTiming = new Timing();
+            timing = holdsByOperation.putIfAbsent(operation, newTiming);
+            if (timing == null) {
+                timing = newTiming;
+            }
+        }
+        timing.record(nanos);
+    }
+
+    public long getWaitCount() {
+        return waits.count.get();
+    }
+
+    /**
+     * Returns the number of acquisitions that had to wait for another thread.
+     */
+    public long getContendedCount() {
+        return waits.nonZero.get();
+    }
+
+    public long getWaitTotalMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(waits.total.get());
+    }
+
+    public long getWaitMaxMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(waits.max.get());
+    }
+
+    public long getHoldCount() {
+        return holds.count.get();
+    }
+
+    public long getHoldTotalMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(holds.total.get());
+    }
+
+    public long getHoldMaxMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(holds.max.get());
+    }
+
+    public long getFailureCount() {
+        return failures.get();
+    }
+
+    public long getMaxQueueLength() {
+        return maxQueueLength.get();
+    }
+
+    /**
+     * Returns the operations that held the lock the longest in total, longest first.
+     */
+    public List<OperationHold> getTopHolders(int limit) {
+        List<OperationHold> result = new ArrayList<OperationHold>(holdsByOperation.size());
+        for (Map.Entry<String, Timing> entry : holdsByOperation.entrySet()) {
+            Timing timing = entry.getValue();
+            result.add(new OperationHold(entry.getKey(), timing.count.get(),
+                    TimeUnit.NANOSECONDS.toMillis(timing.total.get()), TimeUnit.NANOSECONDS.toMillis(timing.max.get())));
+        }
+        Collections.sort(result, OperationHold.BY_TOTAL_DESC);
+        return result.size() > limit ? result.subList(0, limit) : result;
+    }
+
+    public void reset() {
+        waits.reset();
+        holds.reset();
+        failures.set(0);
+        maxQueueLength.set(0);
+        holdsByOperation.clear();
+    }
+
+    private static void updateMax(AtomicLong max, long value) {
+        long current;
+        while (value > (current = max.get())) {
+            if (max.compareAndSet(current, value)) {
+                break;
+            }
+        }
+    }
+
+    /**
+     * Total hold time of one operation on the lock.
+     */
+    public static final class OperationHold {
+        public static final Comparator<OperationHold> BY_TOTAL_DESC = new Comparator<OperationHold>() {
+            @Override
+            public int compare(OperationHold o1, OperationHold o2) {
+                return o1.totalMillis < o2.totalMillis ? 1 : o1.totalMillis > o2.totalMillis ? -1 : 0;
+            }
+        };
+
+        public final String operation;
+        public final long count;
+        public final long totalMillis;
+        public final long maxMillis;
+
+        public OperationHold(String operation, long count, long totalMillis, long maxMillis) {
+            this.operation = operation;
+            this.count = count;
+            this.totalMillis = totalMillis;
+            this.maxMillis = maxMillis;
+        }
+
+        @Override
+        public String toString() {
+            return operation + " count=" + count + " totalMs=" + totalMillis + " maxMs=" + maxMillis;
+        }
+    }
+
+    private static final class Timing {
+        final AtomicLong count = new AtomicLong();
+        final AtomicLong nonZero = new AtomicLong();
+        final AtomicLong total = new AtomicLong();
+        final AtomicLong max = new AtomicLong();
+
+        void record(long nanos) {
+            count.incrementAndGet();
+            if (nanos > 0) {
+                nonZero.incrementAndGet();
+                total.addAndGet(nanos);
+                updateMax(max, nanos);
+            }
+        }
+
+        void reset() {
+            count.set(0);
+            nonZero.set(0);
+            total.set(0);
+            max.set(0);
+        }
+    }
+}
@@ -31,6 +31,14 @@ public class ZLock extends ReentrantReadWriteLock {
         super();
     }
 
+    /**
+     * @param fair true to grant the lock in arrival order, so that a waiting writer is not starved by a steady
+     * stream of readers and vice versa
+     */
+    public ZLock(boolean fair) {
+        super(fair);
+    }
+
     public void printStackTrace(StringBuilder out) {
         Thread owner = getOwner();
         if (owner != null) {
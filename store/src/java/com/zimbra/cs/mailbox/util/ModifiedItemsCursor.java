@@ -0,0 +1,85 @@
+/*
+ * ***** BEGIN LICENSE BLOCK *****
+ * Zimbra Collaboration Suite Server
+ * Copyright (C) 2017 Synacor, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software Foundation,
+ * version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <https://www.gnu.org/licenses/>.
+ * ***** END LICENSE BLOCK *****
+ */
+package com.zimbra.cs.mailbox.util;
+
+import com.google.common.base.Objects;
+
+/**
+ * Position in the (mod_metadata, id) ordered scan of modified items, so that a big delta can be read a page at a
+ * time rather than all at once.
+ *
+ * @see com.zimbra.cs.mailbox.Mailbox#getModifiedItems(com.zimbra.cs.mailbox.OperationContext, ModifiedItemsCursor,
+ *  int, com.zimbra.cs.mailbox.MailItem.Type, java.util.Set, int, int)
+ */
+public final class ModifiedItemsCursor {
+    private int modSequence;
+    private int itemId;
+    private int rows;
+    private boolean more = true;
+
+    /**
+     * Starts right after all the items modified in the given change.
+     */
+    public ModifiedItemsCursor(int modSequence) {
+        this(modSequence, Integer.MAX_VALUE);
+    }
+
+    /**
+     * Starts right after the given item in the given change.
+     */
+    public ModifiedItemsCursor(int modSequence, int itemId) {
+        this.modSequence = modSequence;
+        this.itemId = itemId;
+    }
+
+    public int getModSequence() {
+        return modSequence;
+    }
+
+    public int getItemId() {
+        return itemId;
+    }
+
+    /**
+     * Returns false once a page came back short, i.e. the scan has reached the end.
+     */
+    public boolean hasMore() {
+        return more;
+    }
+
+    /**
+     * Moves the cursor past a row that has been read.
+     */
+    public void advance(int modSequence, int itemId) {
+        this.modSequence = modSequence;
+        this.itemId = itemId;
+        rows++;
+    }
+
+    /**
+     * Ends a page read with the given limit; a page with fewer rows than that means there is nothing left.
+     */
+    public void endPage(int limit) {
+        more = limit > 0 && rows >= limit;
+        rows = 0;
+    }
+
+    @Override
+    public String toString() {
+        return Objects.toStringHelper(this).add("modseq", modSequence).add("id", itemId).add("more", more).toString();
+    }
+}
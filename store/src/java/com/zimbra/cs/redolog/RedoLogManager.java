@@ -30,6 +30,7 @@ import java.util.concurrent.locks.ReentrantReadWriteLock;
 import java.util.concurrent.locks.ReentrantReadWriteLock.ReadLock;
 import java.util.concurrent.locks.ReentrantReadWriteLock.WriteLock;
 
+import com.zimbra.common.localconfig.LC;
 import com.zimbra.common.util.FileUtil;
 import com.zimbra.common.util.Pair;
 import com.zimbra.common.util.ZimbraLog;
@@ -38,7 +39,9 @@ import com.zimbra.cs.db.Db;
 import com.zimbra.cs.mailbox.MailServiceException;
 import com.zimbra.cs.redolog.logger.FileLogReader;
 import com.zimbra.cs.redolog.logger.FileLogWriter;
+import com.zimbra.cs.redolog.logger.GroupCommitLogWriter;
 import com.zimbra.cs.redolog.logger.LogWriter;
+import com.zimbra.cs.redolog.logger.RedoSegmentPool;
 import com.zimbra.cs.redolog.op.AbortTxn;
 import com.zimbra.cs.redolog.op.Checkpoint;
 import com.zimbra.cs.redolog.op.CommitTxn;
@@ -110,6 +113,9 @@ public class RedoLogManager {
     // the actual logger
     private LogWriter mLogWriter;
 
+    // preallocated log segments; null unless enabled in localconfig
+    private RedoSegmentPool mSegmentPool;
+
     private Object mStatGuard;
     private long mElapsed;
     private int mCounter;
@@ -166,7 +172,11 @@ public class RedoLogManager {
     public LogWriter createLogWriter(RedoLogManager redoMgr,
                                         File logfile,
                                         long fsyncIntervalMS) {
-        return new FileLogWriter(redoMgr, logfile, fsyncIntervalMS);
+        if (LC.zimbra_redolog_group_commit.booleanValue()) {
+            return new GroupCommitLogWriter(redoMgr, logfile, LC.zimbra_redolog_group_commit_ring_size.intValue(),
+                    mSegmentPool);
+        }
+        return new FileLogWriter(redoMgr, logfile, fsyncIntervalMS, mSegmentPool);
     }
 
     private void setInCrashRecovery(boolean b) {
@@ -209,6 +219,12 @@ public class RedoLogManager {
             signalFatalError(e);
         }
 
+        if (LC.zimbra_redolog_preallocate_segments.booleanValue()) {
+            mSegmentPool = new RedoSegmentPool(mLogFile.getParentFile(), mLogRolloverSoftMaxBytes,
+                    LC.zimbra_redolog_segment_pool_size.intValue());
+            mSegmentPool.start();
+        }
+
         long fsyncInterval = RedoConfig.redoLogFsyncIntervalMS();
         mLogWriter = createLogWriter(this, mLogFile, fsyncInterval);
 
@@ -360,6 +376,10 @@ public class RedoLogManager {
         } catch (Exception e) {
             ZimbraLog.redolog.error("Error closing redo log " + mLogFile.getName(), e);
         }
+        if (mSegmentPool != null) {
+            mSegmentPool.shutdown();
+            mSegmentPool = null;
+        }
 
         double rate = 0.0;
         if (mCounter > 0)
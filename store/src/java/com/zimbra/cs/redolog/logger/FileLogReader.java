@@ -69,6 +69,11 @@ public class FileLogReader {
             mHeader.read(mRAF);
             mHeaderRead = true;
             mFileSizeAtOpen = mRAF.length();
+            // A closed, preallocated segment records where its data ends.
+            long dataSize = mHeader.getFileSize();
+            if (!mHeader.getOpen() && dataSize >= FileHeader.HEADER_LEN && dataSize < mFileSizeAtOpen) {
+                mFileSizeAtOpen = dataSize;
+            }
         } catch (IOException e) {
             throw new IOException("Error opening " + mFile.getAbsolutePath(), e);
         }
@@ -96,7 +101,7 @@ public class FileLogReader {
           throw new IOException(mFile.getAbsolutePath() + " not open.");
         }
         long pos = mRAF.getFilePointer();
-        if (pos == mFileSizeAtOpen) {
+        if (pos >= mFileSizeAtOpen || atZeroTail(pos)) {
             // EOF reached.
             return null;
         }
@@ -166,6 +171,22 @@ public class FileLogReader {
         }
     }
 
+    /**
+     * Whether the data at pos is the zero-filled, unused part of a preallocated
+     * segment.  Every record starts with the redo op marker, so a zero byte where
+     * a record should start is the end of data unless another record follows.
+     */
+    private boolean atZeroTail(long pos) throws IOException {
+        if (mRAF.read() != 0) {
+            mRAF.seek(pos);
+            return false;
+        }
+        mRAF.seek(pos);
+        boolean found = searchInRAF(RedoableOp.REDO_MAGIC.getBytes());
+        mRAF.seek(pos);
+        return !found;
+    }
+
     /**
      * Search the pattern in mRAF, positioning the pointer at the beginning of the pattern.
      * @param pattern
@@ -96,10 +96,31 @@ public class FileLogWriter implements LogWriter {
 
     private CommitNotifyQueue mCommitNotifyQueue;
 
+    // non-null if the log is written as preallocated segments
+    private RedoSegmentPool mSegmentPool;
+    // allocated length of the file when it is written as preallocated segments
+    private long mCapacity;
+    private static final long GROWTH_INCREMENT = 1024 * 1024;
+
     public FileLogWriter(RedoLogManager redoLogMgr,
                          File logfile,
                          long fsyncIntervalMS) {
+        this(redoLogMgr, logfile, fsyncIntervalMS, null);
+    }
+
+    /**
+     * @param segmentPool if non-null, the log file is preallocated in
+     *                    segments of {@link RedoSegmentPool#getSegmentSize()}
+     *                    bytes and records are written into the preallocated
+     *                    space instead of extending the file on every append;
+     *                    the header file size then marks the end of the data
+     */
+    public FileLogWriter(RedoLogManager redoLogMgr,
+                         File logfile,
+                         long fsyncIntervalMS,
+                         RedoSegmentPool segmentPool) {
         mRedoLogMgr = redoLogMgr;
+        mSegmentPool = segmentPool;
 
         mHeader = new FileHeader(sServerId);
         mFile = logfile;
@@ -191,8 +212,11 @@ public class FileLogWriter implements LogWriter {
 
             mRAF = new RandomAccessFile(mFile, "rw");
 
-            if (mRAF.length() >= FileHeader.HEADER_LEN) {
+            boolean hasHeader = hasHeader();
+            boolean wasOpen = false;
+            if (hasHeader) {
                 mHeader.read(mRAF);
+                wasOpen = mHeader.getOpen();
                 mCreateTime = mHeader.getCreateTime();
                 if (mCreateTime == 0) {
                     mCreateTime = System.currentTimeMillis();
@@ -210,6 +234,19 @@ public class FileLogWriter implements LogWriter {
 
             // go to the end of file, so we can append
             long len = mRAF.length();
+            if (mSegmentPool != null) {
+                // In a preallocated segment the end of data is not the end of file.
+                if (!hasHeader) {
+                    len = FileHeader.HEADER_LEN;
+                } else if (wasOpen) {
+                    len = scanDataEnd();
+                } else if (mHeader.getFileSize() >= FileHeader.HEADER_LEN) {
+                    len = Math.min(mHeader.getFileSize(), len);
+                }
+                // Whole segments are only preallocated by the pool's background thread; if none
+                // was ready, the file grows in small steps as it is written.
+                mCapacity = mRAF.length();
+            }
             mRAF.seek(len);
             mFileSize = len;
 
@@ -231,7 +268,7 @@ public class FileLogWriter implements LogWriter {
                 if (mLastOpTstamp != 0)
                 	mHeader.setLastOpTstamp(mLastOpTstamp);
                 mHeader.setOpen(false);
-                mHeader.setFileSize(mRAF.length());
+                mHeader.setFileSize(mSegmentPool != null ? mFileSize : mRAF.length());
                 mHeader.write(mRAF);
 
                 mRAF.getChannel().force(true);
@@ -273,6 +310,53 @@ public class FileLogWriter implements LogWriter {
         int seq;
         boolean sameMboxAsLastOp = false;
 
+        synchronized (mLock) {
+            seq = append(op, data);
+            sameMboxAsLastOp = mLastOpMboxId == op.getMailboxId();
+            mLastOpMboxId = op.getMailboxId();
+        }
+
+        // cases 1 above
+        if (!synchronous)
+            return;
+
+        if (mFsyncIntervalMS > 0) {
+            if (!sameMboxAsLastOp) {
+                // case 2
+                try {
+                    // wait for fsync thread to write this entry to disk
+                    synchronized (mFsyncCond) {
+                        mFsyncCond.wait(10000);
+                    }
+                } catch (InterruptedException e) {
+                    ZimbraLog.redolog.info("Thread interrupted during fsync");
+                }
+                synchronized (mLock) {
+                    // timed out, so fsync in this thread
+                    if (seq > mFsyncSeq)
+                        fsync();
+                }
+            } else {
+                // If this op is on same mailbox as last op, let's assume there's a thread issuing
+                // many updates on a single mailbox in a loop, such as when importing a large ics file.
+                // We don't want to pause for mFsyncIntervalMS between every op (because all writes
+                // to a single mailbox are synchronized), so fsync inline and return immediately.
+                fsync();
+            }
+        } else {
+            // case 3
+            fsync();
+        }
+    }
+
+    private int mLastOpMboxId;
+
+    /**
+     * Writes the supplied bytes to the end of the log file, without any fsync.  Commit
+     * callbacks for {@link CommitTxn} records are queued and made after the next fsync.
+     * @return sequence number of the logged item
+     */
+    protected int append(RedoableOp op, InputStream data) throws IOException {
         synchronized (mLock) {
             if (mRAF == null)
                 throw new IOException("Redolog file closed");
@@ -291,10 +375,12 @@ public class FileLogWriter implements LogWriter {
 
             mLogSeq++;
             mLogCount++;
-            seq = mLogSeq;
+            int seq = mLogSeq;
             int numRead;
             byte[] buf = new byte[1024];
             while ((numRead = data.read(buf)) >= 0) {
+                if (mSegmentPool != null)
+                    ensureCapacity(mFileSize + numRead);
                 mRAF.write(buf, 0, numRead);
                 mFileSize += numRead;
             }
@@ -316,46 +402,10 @@ public class FileLogWriter implements LogWriter {
             }
 
             mLastLogTime = System.currentTimeMillis();
-
-            sameMboxAsLastOp = mLastOpMboxId == op.getMailboxId();
-            mLastOpMboxId = op.getMailboxId();
-        }
-
-        // cases 1 above
-        if (!synchronous)
-            return;
-
-        if (mFsyncIntervalMS > 0) {
-            if (!sameMboxAsLastOp) {
-                // case 2
-                try {
-                    // wait for fsync thread to write this entry to disk
-                    synchronized (mFsyncCond) {
-                        mFsyncCond.wait(10000);
-                    }
-                } catch (InterruptedException e) {
-                    ZimbraLog.redolog.info("Thread interrupted during fsync");
-                }
-                synchronized (mLock) {
-                    // timed out, so fsync in this thread
-                    if (seq > mFsyncSeq)
-                        fsync();
-                }
-            } else {
-                // If this op is on same mailbox as last op, let's assume there's a thread issuing
-                // many updates on a single mailbox in a loop, such as when importing a large ics file.
-                // We don't want to pause for mFsyncIntervalMS between every op (because all writes
-                // to a single mailbox are synchronized), so fsync inline and return immediately.
-                fsync();
-            }
-        } else {
-            // case 3
-            fsync();
+            return seq;
         }
     }
 
-    private int mLastOpMboxId;
-
     @Override public void flush() throws IOException {
         fsync();
     }
@@ -380,10 +430,12 @@ public class FileLogWriter implements LogWriter {
 
         String currentPath = mFile.getAbsolutePath();
 
-        // Open a temporary logger.
+        // Open a temporary logger, on a preallocated segment if there is one ready.
         File tempLogfile = new File(mFile.getParentFile(), romgr.getTempFilename(lastSeq + 1));
+        if (mSegmentPool != null)
+            mSegmentPool.take(tempLogfile);
         FileLogWriter tempLogger =
-            new FileLogWriter(mRedoLogMgr, tempLogfile, 0);
+            new FileLogWriter(mRedoLogMgr, tempLogfile, 0, mSegmentPool);
         tempLogger.open();
         tempLogger.noStat(true);
 
@@ -408,6 +460,9 @@ public class FileLogWriter implements LogWriter {
             File destDir = rolloverFile.getParentFile();
             if (destDir != null && !destDir.exists())
                 destDir.mkdirs();
+            // Archived logs don't keep the unused preallocated space.
+            if (mSegmentPool != null)
+                truncate(mFile, mFileSize);
             if (!mFile.renameTo(rolloverFile))
                 throw new IOException("Unable to rename current redo log to " + rolloverFile.getAbsolutePath());
         }
@@ -425,6 +480,60 @@ public class FileLogWriter implements LogWriter {
         return rolloverFile;
     }
 
+    /**
+     * Whether the file starts with a header.  A segment taken from the
+     * segment pool is all zeros until the header is written on open.
+     */
+    private boolean hasHeader() throws IOException {
+        if (mRAF.length() < FileHeader.HEADER_LEN)
+            return false;
+        if (mSegmentPool == null)
+            return true;
+        mRAF.seek(0);
+        return mRAF.read() != 0;
+    }
+
+    /**
+     * Finds the end of the last complete record in a segment that was not
+     * closed properly.  Whatever follows is either preallocated zeros or a
+     * partially written record, which crash recovery truncates.
+     */
+    private long scanDataEnd() throws IOException {
+        FileLogReader reader = new FileLogReader(mFile);
+        reader.open();
+        long end = FileHeader.HEADER_LEN;
+        try {
+            while (reader.getNextOp() != null)
+                end = reader.position();
+        } catch (IOException e) {
+            ZimbraLog.redolog.warn("Redolog %s has junk data after offset %d", mFile.getAbsolutePath(), end);
+        } finally {
+            reader.close();
+        }
+        return end;
+    }
+
+    // Zero-fills the next GROWTH_INCREMENT bytes if writing up to the given size would extend
+    // the file.  This runs under the log lock, so it never fills more than that, and leaves
+    // forcing it to disk to the next fsync.
+    private void ensureCapacity(long size) throws IOException {
+        if (size > mCapacity) {
+            long newLen = (size + GROWTH_INCREMENT - 1) / GROWTH_INCREMENT * GROWTH_INCREMENT;
+            RedoSegmentPool.zeroFill(mRAF.getChannel(), mCapacity, newLen, false);
+            mCapacity = newLen;
+        }
+    }
+
+    private static void truncate(File file, long size) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            if (size < raf.length())
+                raf.setLength(size);
+        } finally {
+            raf.close();
+        }
+    }
+
     public synchronized void enableFsync() throws IOException {
         startFsyncThread();
         fsync();
@@ -450,7 +559,7 @@ public class FileLogWriter implements LogWriter {
     }
 
     // do fsync if there are items logged since last fsync
-    private void fsync() throws IOException {
+    protected void fsync() throws IOException {
         boolean fsyncNeeded = false;
         int seq = 0;
         synchronized (mLock) {
@@ -0,0 +1,253 @@
+/*
+ * ***** BEGIN LICENSE BLOCK *****
+ * Zimbra Collaboration Suite Server
+ * Copyright (C) 2017 Synacor, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software Foundation,
+ * version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <https://www.gnu.org/licenses/>.
+ * ***** END LICENSE BLOCK *****
+ */
+package com.zimbra.cs.redolog.logger;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.LockSupport;
+
+import com.zimbra.common.util.Constants;
+import com.zimbra.common.util.ZimbraLog;
+import com.zimbra.cs.redolog.RedoLogManager;
+import com.zimbra.cs.redolog.op.RedoableOp;
+import com.zimbra.cs.stats.ZimbraPerf;
+import com.zimbra.cs.util.Zimbra;
+
+/**
+ * {@link FileLogWriter} that makes synchronous log entries durable with group commit.
+ * <p>
+ * Threads calling {@link #log} with {@code synchronous=true} publish their entry into a
+ * lock-free ring buffer and park.  A single committer thread drains everything published
+ * so far, appends it to the log file, does one fsync for the whole batch and then wakes
+ * every thread in that batch.  There is no fixed sleep between fsyncs; entries that arrive
+ * while an fsync is in progress simply form the next batch, so the batch size adapts to the
+ * load and an idle server commits with the latency of a single fsync.
+ * <p>
+ * Asynchronous entries (e.g. commit records) are appended directly by the calling thread,
+ * as in {@link FileLogWriter}, and the committer is woken to fsync them, which is also when
+ * the callbacks of commit records are made.  The committer fsyncs whatever was appended
+ * since the last fsync every time it wakes up, whether or not there was a batch.
+ */
+public class GroupCommitLogWriter extends FileLogWriter {
+
+    private static final long COMMITTER_IDLE_PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+    private static final long WAITER_PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(10);
+
+    private final AtomicReferenceArray<Entry> mRing;
+    private final int mRingMask;
+    private final AtomicLong mTail = new AtomicLong();  // next ring slot to claim
+    private volatile long mHead;                        // next ring slot the committer reads
+
+    private volatile CommitThread mCommitter;
+
+    public GroupCommitLogWriter(RedoLogManager redoLogMgr, File logfile, int ringSize) {
+        this(redoLogMgr, logfile, ringSize, null);
+    }
+
+    public GroupCommitLogWriter(RedoLogManager redoLogMgr, File logfile, int ringSize,
+            RedoSegmentPool segmentPool) {
+        super(redoLogMgr, logfile, 0, segmentPool);
+        int size = Integer.highestOneBit(Math.max(ringSize, 2) - 1) << 1;
+        mRing = new AtomicReferenceArray<Entry>(size);
+        mRingMask = size - 1;
+    }
+
+    @Override public synchronized void open() throws IOException {
+        super.open();
+        if (mCommitter == null) {
+            mCommitter = new CommitThread();
+            mCommitter.start();
+        }
+    }
+
+    @Override public synchronized void close() throws IOException {
+        CommitThread committer = mCommitter;
+        if (committer != null) {
+            committer.stopThread();
+            mCommitter = null;
+        }
+        super.close();
+    }
+
+    @Override public void log(RedoableOp op, InputStream data, boolean synchronous) throws IOException {
+        CommitThread committer = mCommitter;
+        if (!synchronous) {
+            append(op, data);
+            if (committer != null && committer.mIdle) {
+                LockSupport.unpark(committer);
+            }
+            return;
+        }
+        if (committer == null) {
+            throw new IOException("Redolog file closed");
+        }
+
+        Entry entry = new Entry(op, data, Thread.currentThread());
+        publish(entry, committer);
+
+        boolean interrupted = false;
+        while (!entry.mDone) {
+            LockSupport.parkNanos(entry, WAITER_PARK_NANOS);
+            if (Thread.interrupted()) {
+                interrupted = true;
+            }
+            if (!entry.mDone && !committer.isAlive()) {
+                throw new IOException("Redolog group commit thread is not running");
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+        if (entry.mError != null) {
+            throw entry.mError;
+        }
+    }
+
+    private void publish(Entry entry, CommitThread committer) {
+        long slot = mTail.getAndIncrement();
+        // Ring is full; wait for the committer to catch up.
+        while (slot - mHead >= mRing.length()) {
+            LockSupport.unpark(committer);
+            LockSupport.parkNanos(this, WAITER_PARK_NANOS);
+        }
+        mRing.set((int) (slot & mRingMask), entry);
+        if (committer.mIdle) {
+            LockSupport.unpark(committer);
+        }
+    }
+
+    /**
+     * Removes all entries that have been published contiguously from the ring buffer.
+     */
+    private List<Entry> drain(List<Entry> batch) {
+        long head = mHead;
+        Entry entry;
+        while ((entry = mRing.get((int) (head & mRingMask))) != null) {
+            mRing.set((int) (head & mRingMask), null);
+            batch.add(entry);
+            head++;
+            mHead = head;
+        }
+        return batch;
+    }
+
+    private boolean isRingEmpty() {
+        return mRing.get((int) (mHead & mRingMask)) == null;
+    }
+
+    private void commit(List<Entry> batch) {
+        IOException error = null;
+        try {
+            for (Entry entry : batch) {
+                append(entry.mOp, entry.mData);
+            }
+            fsync();
+        } catch (IOException e) {
+            error = e;
+        }
+
+        long now = System.nanoTime();
+        ZimbraPerf.HISTOGRAM_REDO_COMMIT_BATCH.record(batch.size());
+        for (Entry entry : batch) {
+            ZimbraPerf.HISTOGRAM_REDO_COMMIT_LATENCY.record(TimeUnit.NANOSECONDS.toMicros(now - entry.mQueuedAt));
+            entry.mError = error;
+            entry.mDone = true;
+            LockSupport.unpark(entry.mWaiter);
+        }
+        if (error != null) {
+            ZimbraLog.redolog.error("Error while group committing to %s", getAbsolutePath(), error);
+        }
+    }
+
+    private static final class Entry {
+        final RedoableOp mOp;
+        final InputStream mData;
+        final Thread mWaiter;
+        final long mQueuedAt = System.nanoTime();
+        IOException mError;
+        volatile boolean mDone;  // write of mDone publishes mError
+
+        Entry(RedoableOp op, InputStream data, Thread waiter) {
+            mOp = op;
+            mData = data;
+            mWaiter = waiter;
+        }
+    }
+
+    // Appends and fsyncs batches of synchronous log entries as fast as the disk allows, and fsyncs
+    // asynchronous entries when there is no batch.
+    private final class CommitThread extends Thread {
+        private volatile boolean mRunning = true;
+        volatile boolean mIdle;
+
+        CommitThread() {
+            super("GroupCommitLogWriter.CommitThread-" + System.currentTimeMillis());
+            setDaemon(true);
+        }
+
+        @Override public void run() {
+            ZimbraLog.redolog.info("Starting group commit thread with ring size %d", mRing.length());
+            List<Entry> batch = new ArrayList<Entry>();
+            try {
+                while (true) {
+                    drain(batch);
+                    if (!batch.isEmpty()) {
+                        commit(batch);
+                        batch.clear();
+                        continue;
+                    }
+                    // asynchronous entries appended since the last batch
+                    fsync();
+                    if (!mRunning) {
+                        break;
+                    }
+                    mIdle = true;
+                    if (isRingEmpty() && mRunning) {
+                        LockSupport.parkNanos(this, COMMITTER_IDLE_PARK_NANOS);
+                    }
+                    mIdle = false;
+                }
+            } catch (OutOfMemoryError e) {
+                Zimbra.halt("out of memory", e);
+            } catch (Throwable t) {
+                Zimbra.halt("Error while group committing " + getAbsolutePath() + "; Aborting.", t);
+            }
+            ZimbraLog.redolog.info("group commit thread exiting");
+        }
+
+        // Stop the commit thread after it has committed everything published so far.
+        void stopThread() {
+            mRunning = false;
+            LockSupport.unpark(this);
+            try {
+                while (isAlive()) {
+                    ZimbraLog.redolog.info("waiting for %s to finish.", getName());
+                    join(Constants.MILLIS_PER_MINUTE);
+                }
+                ZimbraLog.redolog.info("%s finished", getName());
+            } catch (InterruptedException e) {
+                ZimbraLog.redolog.warn("InterruptedException while stopping CommitThread", e);
+            }
+        }
+    }
+}
@@ -0,0 +1,209 @@
+/*
+ * ***** BEGIN LICENSE BLOCK *****
+ * Zimbra Collaboration Suite Server
+ * Copyright (C) 2017 Synacor, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software Foundation,
+ * version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <https://www.gnu.org/licenses/>.
+ * ***** END LICENSE BLOCK *****
+ */
+package com.zimbra.cs.redolog.logger;
+
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.zimbra.common.util.ZimbraLog;
+
+/**
+ * Keeps a number of zero-filled, fixed-size redo log segments ready in the
+ * redo log directory, so that a rollover can start the new log on a file
+ * whose blocks are already allocated.  Writes into a preallocated segment
+ * don't change the file size, so fsync of the log doesn't have to flush
+ * file system metadata on every commit.
+ * <p>
+ * Segments are filled by a background thread.  If none is ready at rollover,
+ * {@link FileLogWriter} grows the new log a little at a time as it is written.
+ */
+public class RedoSegmentPool {
+
+    private static final String SEGMENT_FILENAME_PREFIX = "~seg-redo-";
+    private static final String SEGMENT_FILENAME_SUFFIX = ".seg";
+    private static final int ZERO_FILL_CHUNK = 1024 * 1024;
+
+    private final File mDir;
+    private final long mSegmentSize;
+    private final int mPoolSize;
+    private final BlockingQueue<File> mReady = new LinkedBlockingQueue<File>();
+    private final AtomicLong mNextId = new AtomicLong(System.currentTimeMillis());
+    private final Object mFillerGuard = new Object();
+    private Filler mFiller;
+
+    /**
+     * @param dir directory of the redo log; segments must be on the same file
+     *            system so they can be renamed into place
+     * @param segmentSize size of each segment, rounded up to a multiple of 1MB
+     * @param poolSize number of segments to keep ready
+     */
+    public RedoSegmentPool(File dir, long segmentSize, int poolSize) {
+        mDir = dir;
+        long chunks = Math.max(1, (segmentSize + ZERO_FILL_CHUNK - 1) / ZERO_FILL_CHUNK);
+        mSegmentSize = chunks * ZERO_FILL_CHUNK;
+        mPoolSize = Math.max(poolSize, 1);
+    }
+
+    public long getSegmentSize() {
+        return mSegmentSize;
+    }
+
+    /**
+     * Picks up segments left by a previous run and starts the background filler.
+     */
+    public synchronized void start() {
+        File[] leftover = mDir.listFiles(new FilenameFilter() {
+            @Override
+            public boolean accept(File dir, String name) {
+                return name.startsWith(SEGMENT_FILENAME_PREFIX);
+            }
+        });
+        if (leftover != null) {
+            for (File f : leftover) {
+                if (f.getName().endsWith(SEGMENT_FILENAME_SUFFIX) && f.length() == mSegmentSize) {
+                    mReady.add(f);
+                } else if (!f.delete()) {
+                    ZimbraLog.redolog.warn("Unable to delete redo log segment %s", f.getAbsolutePath());
+                }
+            }
+        }
+        if (mFiller == null) {
+            mFiller = new Filler();
+            mFiller.start();
+        }
+    }
+
+    public synchronized void shutdown() {
+        if (mFiller != null) {
+            mFiller.stopThread();
+            mFiller = null;
+        }
+    }
+
+    /**
+     * Renames a ready segment to the given file.
+     * @return false if no segment was ready
+     */
+    public boolean take(File dest) {
+        try {
+            File segment;
+            while ((segment = mReady.poll()) != null) {
+                if (segment.renameTo(dest)) {
+                    return true;
+                }
+                ZimbraLog.redolog.warn("Unable to rename redo log segment %s to %s",
+                        segment.getAbsolutePath(), dest.getAbsolutePath());
+                segment.delete();
+            }
+            ZimbraLog.redolog.info("No preallocated redo log segment ready for %s", dest.getName());
+            return false;
+        } finally {
+            synchronized (mFillerGuard) {
+                mFillerGuard.notifyAll();
+            }
+        }
+    }
+
+    private void createSegment() throws IOException {
+        File tmp = new File(mDir, SEGMENT_FILENAME_PREFIX + mNextId.getAndIncrement() + ".tmp");
+        RandomAccessFile raf = new RandomAccessFile(tmp, "rw");
+        try {
+            zeroFill(raf.getChannel(), 0, mSegmentSize, true);
+        } finally {
+            raf.close();
+        }
+        // Only fully allocated segments get the segment suffix.
+        String name = tmp.getName();
+        File segment = new File(mDir, name.substring(0, name.length() - 4) + SEGMENT_FILENAME_SUFFIX);
+        if (!tmp.renameTo(segment)) {
+            tmp.delete();
+            throw new IOException("Unable to rename " + tmp.getAbsolutePath() + " to " + segment.getAbsolutePath());
+        }
+        mReady.add(segment);
+    }
+
+    /**
+     * Writes zeros into the file between the given offsets, so the blocks are
+     * really allocated instead of making a sparse file, and optionally forces
+     * the data and metadata to disk.
+     */
+    static void zeroFill(FileChannel channel, long from, long to, boolean force) throws IOException {
+        ByteBuffer zeros = ByteBuffer.allocate((int) Math.min(ZERO_FILL_CHUNK, Math.max(to - from, 1)));
+        long pos = from;
+        while (pos < to) {
+            zeros.clear();
+            if (to - pos < zeros.capacity()) {
+                zeros.limit((int) (to - pos));
+            }
+            pos += channel.write(zeros, pos);
+        }
+        if (force) {
+            channel.force(true);
+        }
+    }
+
+    private final class Filler extends Thread {
+        private volatile boolean mRunning = true;
+
+        Filler() {
+            super("RedoSegmentPool.Filler");
+            setDaemon(true);
+        }
+
+        @Override
+        public void run() {
+            ZimbraLog.redolog.info("Starting redo log segment filler; %d segments of %d bytes", mPoolSize, mSegmentSize);
+            while (mRunning) {
+                try {
+                    while (mRunning && mReady.size() < mPoolSize) {
+                        createSegment();
+                    }
+                } catch (IOException e) {
+                    ZimbraLog.redolog.warn("Unable to preallocate redo log segment in %s", mDir.getAbsolutePath(), e);
+                }
+                synchronized (mFillerGuard) {
+                    try {
+                        if (mRunning) {
+                            mFillerGuard.wait(60 * 1000);
+                        }
+                    } catch (InterruptedException e) {
+                    }
+                }
+            }
+            ZimbraLog.redolog.info("redo log segment filler exiting");
+        }
+
+        void stopThread() {
+            mRunning = false;
+            synchronized (mFillerGuard) {
+                mFillerGuard.notifyAll();
+            }
+            try {
+                join();
+            } catch (InterruptedException e) {
+                ZimbraLog.redolog.warn("InterruptedException while stopping redo log segment filler", e);
+            }
+        }
+    }
+}
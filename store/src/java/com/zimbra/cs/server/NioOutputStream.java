@@ -19,13 +19,20 @@ package com.zimbra.cs.server;
 
 import java.io.IOException;
 import java.io.OutputStream;
+import java.nio.channels.FileChannel;
 
 import org.apache.mina.core.buffer.IoBuffer;
+import org.apache.mina.core.file.DefaultFileRegion;
+import org.apache.mina.core.filterchain.IoFilterChain;
+import org.apache.mina.core.future.IoFutureListener;
 import org.apache.mina.core.future.WriteFuture;
 import org.apache.mina.core.session.IoSession;
+import org.apache.mina.filter.ssl.SslFilter;
 
 import com.google.common.base.Charsets;
+import com.google.common.io.Closeables;
 import com.zimbra.common.util.ZimbraLog;
+import com.zimbra.cs.security.sasl.SaslFilter;
 
 public final class NioOutputStream extends OutputStream {
     private final IoSession session;
@@ -88,8 +95,46 @@ public final class NioOutputStream extends OutputStream {
         }
     }
 
-    private synchronized void writeToSession(Object output) throws IOException {
-        long writeBytes = session.getScheduledWriteBytes();
+    /**
+     * Returns true if bytes written to the session reach the socket unmodified, in which
+     * case {@link #transferFrom} may be used.  Once TLS or a SASL security layer has been
+     * negotiated, content has to be copied through the filter chain instead.
+     */
+    public boolean isTransferSupported() {
+        IoFilterChain chain = session.getFilterChain();
+        return !chain.contains(SslFilter.class) && !chain.contains(SaslFilter.class);
+    }
+
+    /**
+     * Writes <tt>count</tt> bytes from <tt>channel</tt> starting at <tt>position</tt>.  The
+     * I/O processor sends the region with {@link FileChannel#transferTo}, so the data never
+     * crosses the heap.  Takes ownership of the channel, which is closed once the write
+     * completes or fails.  Only valid if {@link #isTransferSupported} returns true.
+     */
+    public synchronized void transferFrom(final FileChannel channel, long position, long count) throws IOException {
+        WriteFuture future;
+        try {
+            flush();
+            // scheduled write bytes don't account for file regions, so always throttle on the region's size
+            future = writeToSession(new DefaultFileRegion(channel, position, count), count);
+        } catch (IOException e) {
+            Closeables.closeQuietly(channel);
+            throw e;
+        }
+        future.addListener(new IoFutureListener<WriteFuture>() {
+            @Override
+            public void operationComplete(WriteFuture future) {
+                Closeables.closeQuietly(channel);
+            }
+        });
+    }
+
+    private synchronized WriteFuture writeToSession(Object output) throws IOException {
+        return writeToSession(output, 0);
+    }
+
+    private synchronized WriteFuture writeToSession(Object output, long extraBytes) throws IOException {
+        long writeBytes = session.getScheduledWriteBytes() + extraBytes;
         WriteFuture future = session.write(output);
         if (writeBytes > maxScheduledBytes) {
             ZimbraLog.nio.debug("IOSession has %d scheduled write bytes; waiting for buffer to catch up", writeBytes);
@@ -107,6 +152,7 @@ public final class NioOutputStream extends OutputStream {
                 ZimbraLog.nio.debug("now have %d scheduled bytes, %d messages; %d written bytes %d messages", session.getScheduledWriteBytes(), session.getScheduledWriteMessages(), session.getWrittenBytes(), session.getWrittenMessages());
             }
         }
+        return future;
     }
 
     @Override
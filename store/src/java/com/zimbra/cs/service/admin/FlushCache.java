@@ -46,6 +46,7 @@ import com.zimbra.cs.account.accesscontrol.Rights.Admin;
 import com.zimbra.cs.gal.GalGroup;
 import com.zimbra.cs.httpclient.URLUtil;
 import com.zimbra.cs.imap.ImapHandler;
+import com.zimbra.cs.mailbox.FolderRightsIndex;
 import com.zimbra.cs.mailclient.imap.ImapConnection;
 import com.zimbra.cs.service.AuthProvider;
 import com.zimbra.cs.util.SkinUtil;
@@ -188,6 +189,8 @@ public class FlushCache extends AdminDocumentHandler {
     throws ServiceException {
         CacheEntry[] entries = getCacheEntries(cacheSelector);
         Provisioning.getInstance().flushCache(cacheType, entries);
+        // folder grants to groups, COSes and domains are resolved against the flushed entries
+        FolderRightsIndex.invalidateAll();
     }
 
     public static void sendFlushRequest(Map<String,Object> context, String appContext, String resourceUri) {
@@ -189,11 +189,19 @@ public final class GetContacts extends MailDocumentHandler  {
                 }
             }
         } else {
-            for (Contact con : mbox.getContactList(octxt, folderId, sort)) {
-                if (con != null) {
-                    ToXML.encodeContact(response, ifmt, octxt, con, null, null,
-                            false /* summary */, attrs, fields, null, returnHiddenAttrs, maxMembers,
-                            returnCertInfo);
+            List<Contact> contacts = mbox.getContactList(octxt, folderId, sort);
+            if (isStreamingResponse(context)) {
+                // the contacts are in memory anyway, just don't build their elements until the response is written
+                response.addStreamingElements(MailConstants.E_CONTACT, contacts.size(),
+                        new ContactWriter(contacts, ifmt, octxt, attrs, fields, returnHiddenAttrs, maxMembers,
+                                returnCertInfo));
+            } else {
+                for (Contact con : contacts) {
+                    if (con != null) {
+                        ToXML.encodeContact(response, ifmt, octxt, con, null, null,
+                                false /* summary */, attrs, fields, null, returnHiddenAttrs, maxMembers,
+                                returnCertInfo);
+                    }
                 }
             }
         }
@@ -201,6 +209,39 @@ public final class GetContacts extends MailDocumentHandler  {
     }
 
 
+    private static final class ContactWriter implements Element.ChildStream.ChildWriter {
+        private final List<Contact> contacts;
+        private final ItemIdFormatter ifmt;
+        private final OperationContext octxt;
+        private final List<String> attrs;
+        private final int fields;
+        private final boolean returnHiddenAttrs;
+        private final long maxMembers;
+        private final boolean returnCertInfo;
+
+        ContactWriter(List<Contact> contacts, ItemIdFormatter ifmt, OperationContext octxt, List<String> attrs,
+                int fields, boolean returnHiddenAttrs, long maxMembers, boolean returnCertInfo) {
+            this.contacts = contacts;
+            this.ifmt = ifmt;
+            this.octxt = octxt;
+            this.attrs = attrs;
+            this.fields = fields;
+            this.returnHiddenAttrs = returnHiddenAttrs;
+            this.maxMembers = maxMembers;
+            this.returnCertInfo = returnCertInfo;
+        }
+
+        @Override
+        public void write(int index, Element parent) throws ServiceException {
+            Contact con = contacts.get(index);
+            if (con != null) {
+                ToXML.encodeContact(parent, ifmt, octxt, con, null, null,
+                        false /* summary */, attrs, fields, null, returnHiddenAttrs, maxMembers,
+                        returnCertInfo);
+            }
+        }
+    }
+
     static void partitionItems(ZimbraSoapContext lc, ArrayList<ItemId> ids, ArrayList<Integer> local,
             Map<String, StringBuffer> remote) throws ServiceException {
         Account acct = getRequestedAccount(lc);
@@ -110,7 +110,7 @@ public class Search extends MailDocumentHandler  {
             // must use results.getSortBy() because the results might have ignored our sortBy
             // request and used something else...
             response.addAttribute(MailConstants.A_SORTBY, results.getSortBy().toString());
-            putHits(zsc, octxt, response, results, params);
+            putHits(zsc, octxt, response, results, params, isStreamingResponse(context));
             return response;
         } finally {
             Closeables.closeQuietly(results);
@@ -128,7 +128,7 @@ public class Search extends MailDocumentHandler  {
     }
 
     private void putHits(ZimbraSoapContext zsc, OperationContext octxt, Element el, ZimbraQueryResults results,
-            SearchParams params) throws ServiceException {
+            SearchParams params, boolean streaming) throws ServiceException {
 
         if (params.getInlineRule() == ExpandResults.HITS ||
             params.getInlineRule() == ExpandResults.FIRST_MSG ||
@@ -159,7 +159,10 @@ public class Search extends MailDocumentHandler  {
         boolean expand;
         ExpandResults expandValue = params.getInlineRule();
         int hitNum = 0;
-        while (pager.hasNext() && resp.size() < params.getLimit()) {
+        // hits whose encoding is deferred until the response is serialized, as long as they all encode the same way
+        List<ZimbraHit> deferred = new ArrayList<ZimbraHit>();
+        String deferredName = null;
+        while (pager.hasNext() && resp.size() + deferred.size() < params.getLimit()) {
             hitNum ++;
             ZimbraHit hit = pager.getNextHit();
             if (hit instanceof MessageHit) {
@@ -179,10 +182,27 @@ public class Search extends MailDocumentHandler  {
                 } else {
                     expand = expandValue.matches(hit.getParsedItemID());
                 }
-                resp.add(hit, expand);
             } else {
-                resp.add(hit);
+                expand = false;
             }
+            if (streaming) {
+                String name = resp.getStreamingName(hit, expand);
+                if (name != null && (deferredName == null || deferredName.equals(name))) {
+                    deferredName = name;
+                    deferred.add(hit);
+                    continue;
+                }
+                // can't stream this page, encode what has been deferred so far and carry on as usual
+                streaming = false;
+                for (ZimbraHit dhit : deferred) {
+                    resp.add(dhit);
+                }
+                deferred.clear();
+            }
+            resp.add(hit, expand);
+        }
+        if (!deferred.isEmpty()) {
+            resp.addStreaming(deferredName, deferred);
         }
         resp.addHasMore(pager.hasNext());
         resp.add(results.getResultInfo());
@@ -189,6 +189,57 @@ final class SearchResponse {
         }
     }
 
+    /**
+     * Returns the name of the element the hit encodes to if its encoding can be deferred until the response is
+     * serialized (see {@link #addStreaming(String, List)}), otherwise null. The hit's items are loaded up front so
+     * that the deferred encoding only works off what is already in memory.
+     */
+    String getStreamingName(ZimbraHit hit, boolean expandMsg) throws ServiceException {
+        if (expandMsg) { // may have to mark the message read
+            return null;
+        } else if (params.getFetchMode() == SearchParams.Fetch.IDS) {
+            return MailConstants.E_HIT;
+        } else if (hit instanceof ConversationHit) {
+            if (params.fullConversation()) { // may have to fetch the other messages
+                return null;
+            }
+            ConversationHit chit = (ConversationHit) hit;
+            chit.getConversation();
+            for (MessageHit mhit : chit.getMessageHits()) {
+                mhit.getMessage();
+            }
+            return MailConstants.E_CONV;
+        } else if (hit instanceof MessageHit) {
+            ((MessageHit) hit).getMessage();
+            return MailConstants.E_MSG;
+        } else if (hit instanceof ContactHit) {
+            ((ContactHit) hit).getContact();
+            return MailConstants.E_CONTACT;
+        }
+        return null;
+    }
+
+    /**
+     * Append the hits, which all encode to {@code name} elements, without building their elements until the
+     * response is serialized.
+     *
+     * @param name element name returned by {@link #getStreamingName(ZimbraHit, boolean)} for each of the hits
+     * @param hits hits to append
+     */
+    void addStreaming(String name, final List<ZimbraHit> hits) {
+        element.addStreamingElements(name, hits.size(), new Element.ChildStream.ChildWriter() {
+            @Override
+            public void write(int index, Element parent) throws ServiceException {
+                SearchResponse resp = new SearchResponse(zsc, octxt, parent, params);
+                resp.setIncludeMailbox(includeMailbox);
+                resp.setSortOrder(sortOrder);
+                resp.setAllRead(allRead);
+                resp.add(hits.get(index));
+            }
+        });
+        size += hits.size();
+    }
+
     private Element add(ConversationHit hit) throws ServiceException {
         if (params.getFetchMode() == SearchParams.Fetch.IDS) {
             Element el = element.addNonUniqueElement(MailConstants.E_CONV);
@@ -40,6 +40,7 @@ import com.zimbra.cs.mailbox.Mailbox.FolderNode;
 import com.zimbra.cs.mailbox.OperationContext;
 import com.zimbra.cs.mailbox.OperationContextData;
 import com.zimbra.cs.mailbox.Tag;
+import com.zimbra.cs.mailbox.util.ModifiedItemsCursor;
 import com.zimbra.cs.mailbox.util.PagedDelete;
 import com.zimbra.cs.mailbox.util.TypedIdList;
 import com.zimbra.cs.service.util.ItemId;
@@ -318,44 +319,57 @@ public class Sync extends MailDocumentHandler {
             ToXML.encodeTag(response, ifmt, octxt, tag, Change.ALL_FIELDS);
         }
 
-        // finally, handle created/modified "other items"
+        // finally, handle created/modified "other items", reading them a page at a time in change order so that
+        // memory use is bounded by the page size rather than by how far behind the client is
         int itemCount = 0;
-        Pair<List<Integer>,TypedIdList> changed = mbox.getModifiedItems(octxt, Math.min(begin, deleteModSeqCutoff), messageSyncStart, MailItem.Type.UNKNOWN, targetIds, deleteModSeqCutoff);
-        List<Integer> modified = changed.getFirst();
+        boolean overflow = false;
+        // hidden items are returned as "deleted" only as far as the scan got; the next sync picks up the rest
+        boolean anyHidden = targetIds != null || octxt.isDelegatedRequest(mbox);
+        int hiddenModSeqCutoff = mboxLastChangeId;
+        ModifiedItemsCursor cursor = new ModifiedItemsCursor(Math.min(begin, deleteModSeqCutoff));
+        while (cursor.hasMore() && !overflow) {
+            Pair<List<Integer>,TypedIdList> changed = mbox.getModifiedItems(octxt, cursor, messageSyncStart,
+                    MailItem.Type.UNKNOWN, targetIds, deleteModSeqCutoff, DebugConfig.syncModifiedItemsPageSize);
+            List<Integer> modified = changed.getFirst();
+
+            // items that have been altered in non-visible folders will be returned as "deleted" in order to handle moves
+            if (changed.getSecond() != null) {
+                tombstones.addAll(changed.getSecond());
+            }
 
-        // items that have been altered in non-visible folders will be returned as "deleted" in order to handle moves
-        if (changed.getSecond() != null) {
-            tombstones.addAll(changed.getSecond());
-        }
+            delta: while (!overflow && !modified.isEmpty()) {
+                List<Integer> batch = modified.subList(0, Math.min(modified.size(), FETCH_BATCH_SIZE));
+                for (MailItem item : mbox.getItemById(octxt, batch, MailItem.Type.UNKNOWN)) {
+                    // detect interrupted sync and resume from the appropriate place
+                    if ((item.getModifiedSequence() == begin + 1 && item.getId() < changeItemIdCutoff) ||
+                        item.getModifiedSequence() <= begin) { //if interrupted delete and un-interrupted modifications.
+                        continue;
+                    }
 
-        delta: while (!modified.isEmpty()) {
-            List<Integer> batch = modified.subList(0, Math.min(modified.size(), FETCH_BATCH_SIZE));
-            for (MailItem item : mbox.getItemById(octxt, batch, MailItem.Type.UNKNOWN)) {
-                // detect interrupted sync and resume from the appropriate place
-                if ((item.getModifiedSequence() == begin + 1 && item.getId() < changeItemIdCutoff) ||
-                    item.getModifiedSequence() <= begin) { //if interrupted delete and un-interrupted modifications.
-                    continue;
-                }
+                    // if we've overflowed this sync response, set things up so that a subsequent sync starts from where we're cutting off
+                    if (itemCount >= changeLimit) {
+                        response.addAttribute(MailConstants.A_QUERY_MORE, true);
+                        newSyncToken.setChangeModSeq((item.getModifiedSequence() - 1));
+                        newSyncToken.setChangeItemId(item.getId());
+                        if (anyHidden) {
+                            hiddenModSeqCutoff = Math.max(deleteModSeqCutoff, item.getModifiedSequence() - 1);
+                        }
+                        newSyncToken.setDeleteModSeq(hiddenModSeqCutoff);
+                        overflow = true;
+                        break delta;
+                    }
 
-                // if we've overflowed this sync response, set things up so that a subsequent sync starts from where we're cutting off
-                if (itemCount >= changeLimit) {
-                    response.addAttribute(MailConstants.A_QUERY_MORE, true);
-                    newSyncToken.setChangeModSeq((item.getModifiedSequence() - 1));
-                    newSyncToken.setChangeItemId(item.getId());
-                    newSyncToken.setDeleteModSeq(mboxLastChangeId);
-                    break delta;
+                    // For items in the system, if the content has changed since the user last sync'ed
+                    // (because it was edited or created), just send back the folder ID and saved date --
+                    // the client will request the whole object out of band -- potentially using the
+                    // content servlet's "include metadata in headers" hack.
+                    // If it's just the metadata that changed, send back the set of mutable attributes.
+                    boolean created = item.getSavedSequence() > begin;
+                    ToXML.encodeItem(response, ifmt, octxt, item, created ? Change.FOLDER | Change.CONFLICT | Change.DATE | Change.PARENT : MUTABLE_FIELDS);
+                    itemCount++;
                 }
-
-                // For items in the system, if the content has changed since the user last sync'ed
-                // (because it was edited or created), just send back the folder ID and saved date --
-                // the client will request the whole object out of band -- potentially using the
-                // content servlet's "include metadata in headers" hack.
-                // If it's just the metadata that changed, send back the set of mutable attributes.
-                boolean created = item.getSavedSequence() > begin;
-                ToXML.encodeItem(response, ifmt, octxt, item, created ? Change.FOLDER | Change.CONFLICT | Change.DATE | Change.PARENT : MUTABLE_FIELDS);
-                itemCount++;
+                batch.clear();
             }
-            batch.clear();
         }
 
         // cleanup: only return a <deleted> element if we're sending back deleted item ids
@@ -373,6 +387,11 @@ public class Sync extends MailDocumentHandler {
         } else {
             encodeUnpagedDelete(eDeleted, tombstones, typedDeletes);
         }
+        if (newSyncToken.getDeleteModSeq() > hiddenModSeqCutoff) {
+            // the deletes were paged past the point where the scan for hidden items stopped
+            newSyncToken.setDeleteModSeq(hiddenModSeqCutoff);
+            newSyncToken.setDeleteItemId(0);
+        }
         return newSyncToken.toString();
     }
 
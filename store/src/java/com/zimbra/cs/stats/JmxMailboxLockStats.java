@@ -0,0 +1,153 @@
+/*
+ * ***** BEGIN LICENSE BLOCK *****
+ * Zimbra Collaboration Suite Server
+ * Copyright (C) 2017 Synacor, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software Foundation,
+ * version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <https://www.gnu.org/licenses/>.
+ * ***** END LICENSE BLOCK *****
+ */
+package com.zimbra.cs.stats;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.zimbra.common.service.ServiceException;
+import com.zimbra.common.util.Pair;
+import com.zimbra.common.util.ZimbraLog;
+import com.zimbra.cs.mailbox.Mailbox;
+import com.zimbra.cs.mailbox.MailboxManager;
+import com.zimbra.cs.mailbox.lock.MailboxLockStats;
+import com.zimbra.cs.mailbox.lock.MailboxLockStats.OperationHold;
+
+/**
+ * Exposes mailbox lock contention through JMX.  Percentiles are server-wide since the last stats dump; the top
+ * lists are aggregated over the mailboxes currently loaded.
+ */
+public class JmxMailboxLockStats implements JmxMailboxLockStatsMBean {
+
+    private static final int TOP_LIMIT = 10;
+
+    @Override
+    public long getLockWaitP50Us() {
+        return ZimbraPerf.HISTOGRAM_MBOX_LOCK_WAIT.getPercentile(50);
+    }
+
+    @Override
+    public long getLockWaitP99Us() {
+        return ZimbraPerf.HISTOGRAM_MBOX_LOCK_WAIT.getPercentile(99);
+    }
+
+    @Override
+    public long getLockWaitMaxUs() {
+        return ZimbraPerf.HISTOGRAM_MBOX_LOCK_WAIT.getMax();
+    }
+
+    @Override
+    public long getLockHoldP50Us() {
+        return ZimbraPerf.HISTOGRAM_MBOX_LOCK_HOLD.getPercentile(50);
+    }
+
+    @Override
+    public long getLockHoldP99Us() {
+        return ZimbraPerf.HISTOGRAM_MBOX_LOCK_HOLD.getPercentile(99);
+    }
+
+    @Override
+    public long getLockHoldMaxUs() {
+        return ZimbraPerf.HISTOGRAM_MBOX_LOCK_HOLD.getMax();
+    }
+
+    @Override
+    public long getMaxQueueLength() {
+        long max = 0;
+        for (Mailbox mbox : getLoadedMailboxes()) {
+            max = Math.max(max, mbox.lock.getStats().getMaxQueueLength());
+        }
+        return max;
+    }
+
+    @Override
+    public String[] getTopContendedMailboxes() {
+        // the wait totals keep changing, so sort on a snapshot of them
+        List<Pair<Long, Mailbox>> waits = new ArrayList<Pair<Long, Mailbox>>();
+        for (Mailbox mbox : getLoadedMailboxes()) {
+            waits.add(new Pair<Long, Mailbox>(mbox.lock.getStats().getWaitTotalMillis(), mbox));
+        }
+        Collections.sort(waits, new Comparator<Pair<Long, Mailbox>>() {
+            @Override
+            public int compare(Pair<Long, Mailbox> p1, Pair<Long, Mailbox> p2) {
+                return Long.compare(p2.getFirst(), p1.getFirst());
+            }
+        });
+        List<String> result = new ArrayList<String>(TOP_LIMIT);
+        for (Pair<Long, Mailbox> wait : waits) {
+            Mailbox mbox = wait.getSecond();
+            MailboxLockStats stats = mbox.lock.getStats();
+            if (result.size() >= TOP_LIMIT || stats.getContendedCount() == 0) {
+                break;
+            }
+            result.add(String.format("%d %s contended=%d waitMs=%d maxWaitMs=%d holdMs=%d maxHoldMs=%d failures=%d maxQueue=%d",
+                    mbox.getId(), mbox.getAccountId(), stats.getContendedCount(), stats.getWaitTotalMillis(),
+                    stats.getWaitMaxMillis(), stats.getHoldTotalMillis(), stats.getHoldMaxMillis(),
+                    stats.getFailureCount(), stats.getMaxQueueLength()));
+        }
+        return result.toArray(new String[result.size()]);
+    }
+
+    @Override
+    public String[] getTopLockHolders() {
+        Map<String, long[]> totals = new HashMap<String, long[]>();
+        for (Mailbox mbox : getLoadedMailboxes()) {
+            for (OperationHold hold : mbox.lock.getStats().getTopHolders(Integer.MAX_VALUE)) {
+                long[] total = totals.get(hold.operation);
+                if (total == null) {
+                    total = new long[3];
+                    totals.put(hold.operation, total);
+                }
+                total[0] += hold.count;
+                total[1] += hold.totalMillis;
+                total[2] = Math.max(total[2], hold.maxMillis);
+            }
+        }
+        List<OperationHold> holds = new ArrayList<OperationHold>(totals.size());
+        for (Map.Entry<String, long[]> entry : totals.entrySet()) {
+            long[] total = entry.getValue();
+            holds.add(new OperationHold(entry.getKey(), total[0], total[1], total[2]));
+        }
+        Collections.sort(holds, OperationHold.BY_TOTAL_DESC);
+        int size = Math.min(TOP_LIMIT, holds.size());
+        String[] result = new String[size];
+        for (int i = 0; i < size; i++) {
+            result[i] = holds.get(i).toString();
+        }
+        return result;
+    }
+
+    @Override
+    public void reset() {
+        for (Mailbox mbox : getLoadedMailboxes()) {
+            mbox.lock.getStats().reset();
+        }
+    }
+
+    private List<Mailbox> getLoadedMailboxes() {
+        try {
+            return MailboxManager.getInstance().getAllLoadedMailboxes();
+        } catch (ServiceException e) {
+            ZimbraLog.perf.warn("unable to get loaded mailboxes", e);
+            return new ArrayList<Mailbox>();
+        }
+    }
+}
@@ -0,0 +1,33 @@
+/*
+ * ***** BEGIN LICENSE BLOCK *****
+ * Zimbra Collaboration Suite Server
+ * Copyright (C) 2017 Synacor, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software Foundation,
+ * version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <https://www.gnu.org/licenses/>.
+ * ***** END LICENSE BLOCK *****
+ */
+package com.zimbra.cs.stats;
+
+public interface JmxMailboxLockStatsMBean
+{
+    long getLockWaitP50Us();
+    long getLockWaitP99Us();
+    long getLockWaitMaxUs();
+    long getLockHoldP50Us();
+    long getLockHoldP99Us();
+    long getLockHoldMaxUs();
+    long getMaxQueueLength();
+    /** loaded mailboxes with the most total lock wait time, one line per mailbox */
+    String[] getTopContendedMailboxes();
+    /** operations with the most total lock hold time across loaded mailboxes, one line per operation */
+    String[] getTopLockHolders();
+    void reset();
+}
@@ -24,6 +24,10 @@ import com.zimbra.common.stats.RealtimeStatsCallback;
 import com.zimbra.cs.account.Provisioning;
 import com.zimbra.cs.account.accesscontrol.PermissionCache;
 import com.zimbra.cs.account.ldap.LdapProv;
+import com.zimbra.cs.index.SearchResultCache;
+import com.zimbra.cs.mailbox.IndexScheduler;
+import com.zimbra.cs.mailbox.IndexScheduler.Priority;
+import com.zimbra.cs.mailbox.MailboxIndex;
 import com.zimbra.cs.mailbox.MessageCache;
 import com.zimbra.cs.store.BlobInputStream;
 import com.zimbra.cs.store.FileDescriptorCache;
@@ -35,22 +39,39 @@ public class ServerStatsCallback implements RealtimeStatsCallback {
         Map<String, Object> data = new HashMap<String, Object>();
         data.put(ZimbraPerf.RTS_MBOX_CACHE_SIZE, ZimbraPerf.getMailboxCacheSize());
         data.put(ZimbraPerf.RTS_MSG_CACHE_SIZE, MessageCache.getSize());
+        data.put(ZimbraPerf.RTS_MSG_CACHE_BYTES, MessageCache.getDataSize());
+        data.put(ZimbraPerf.RTS_MSG_CACHE_EVICTIONS, MessageCache.getEvictionCount());
         
         FileDescriptorCache fdc = BlobInputStream.getFileDescriptorCache();
         data.put(ZimbraPerf.RTS_FD_CACHE_SIZE, fdc.getSize());
         data.put(ZimbraPerf.RTS_FD_CACHE_HIT_RATE, fdc.getHitRate());
+        data.put(ZimbraPerf.RTS_FD_CACHE_EVICTIONS, fdc.getEvictionCount());
+        data.put(ZimbraPerf.RTS_FD_CACHE_OPEN_FDS, fdc.getOpenFileCount());
         
+        data.put(ZimbraPerf.RTS_SEARCH_RESULT_CACHE_BYTES, SearchResultCache.getInstance().getSize());
+
         data.put(ZimbraPerf.RTS_ACL_CACHE_HIT_RATE, PermissionCache.getHitRate());
+
+        IndexScheduler indexScheduler = MailboxIndex.getScheduler();
+        data.put(ZimbraPerf.RTS_INDEX_QUEUE_INTERACTIVE, indexScheduler.getQueueDepth(Priority.INTERACTIVE));
+        data.put(ZimbraPerf.RTS_INDEX_QUEUE_INTERACTIVE_AGE, indexScheduler.getOldestWaitMillis(Priority.INTERACTIVE));
+        data.put(ZimbraPerf.RTS_INDEX_QUEUE_BACKGROUND, indexScheduler.getQueueDepth(Priority.BACKGROUND));
+        data.put(ZimbraPerf.RTS_INDEX_QUEUE_BACKGROUND_AGE, indexScheduler.getOldestWaitMillis(Priority.BACKGROUND));
+        data.put(ZimbraPerf.RTS_INDEX_QUEUE_BATCH, indexScheduler.getQueueDepth(Priority.BATCH));
+        data.put(ZimbraPerf.RTS_INDEX_QUEUE_BATCH_AGE, indexScheduler.getOldestWaitMillis(Priority.BATCH));
         
         Provisioning prov = Provisioning.getInstance();
         if (prov instanceof LdapProv) {
             LdapProv ldap = (LdapProv) prov;
             data.put(ZimbraPerf.RTS_ACCOUNT_CACHE_SIZE, ldap.getAccountCacheSize());
             data.put(ZimbraPerf.RTS_ACCOUNT_CACHE_HIT_RATE, ldap.getAccountCacheHitRate());
+            data.put(ZimbraPerf.RTS_ACCOUNT_CACHE_MISSES, ldap.getAccountCacheMissCount());
+            data.put(ZimbraPerf.RTS_ACCOUNT_CACHE_LOAD_MS, ldap.getAccountCacheLoadTime());
             data.put(ZimbraPerf.RTS_COS_CACHE_SIZE, ldap.getCosCacheSize());
             data.put(ZimbraPerf.RTS_COS_CACHE_HIT_RATE, ldap.getCosCacheHitRate());
             data.put(ZimbraPerf.RTS_DOMAIN_CACHE_SIZE, ldap.getDomainCacheSize());
             data.put(ZimbraPerf.RTS_DOMAIN_CACHE_HIT_RATE, ldap.getDomainCacheHitRate());
+            data.put(ZimbraPerf.RTS_DOMAIN_CACHE_LOAD_MS, ldap.getDomainCacheLoadTime());
             data.put(ZimbraPerf.RTS_SERVER_CACHE_SIZE, ldap.getServerCacheSize());
             data.put(ZimbraPerf.RTS_SERVER_CACHE_HIT_RATE, ldap.getServerCacheHitRate());
             data.put(ZimbraPerf.RTS_UCSERVICE_CACHE_SIZE, ldap.getUCServiceCacheSize());
@@ -40,6 +40,7 @@ import com.zimbra.common.service.ServiceException;
 import com.zimbra.common.stats.Accumulator;
 import com.zimbra.common.stats.Counter;
 import com.zimbra.common.stats.DeltaCalculator;
+import com.zimbra.common.stats.Histogram;
 import com.zimbra.common.stats.RealtimeStats;
 import com.zimbra.common.stats.RealtimeStatsCallback;
 import com.zimbra.common.stats.StatsDumper;
@@ -118,12 +119,27 @@ public class ZimbraPerf {
     @Description("Number of message structures cached in memory")
     public static final String RTS_MSG_CACHE_SIZE = "msg_cache_size";
 
+    @Description("Bytes of message data referenced by the message structure cache")
+    public static final String RTS_MSG_CACHE_BYTES = "msg_cache_bytes";
+
+    @Description("Number of message structures evicted from the message cache")
+    public static final String RTS_MSG_CACHE_EVICTIONS = "msg_cache_evictions";
+
     @Description("Number of open file descriptors that reference message content")
     public static final String RTS_FD_CACHE_SIZE = "fd_cache_size";
 
     @Description("File descriptor cache hit rate")
     public static final String RTS_FD_CACHE_HIT_RATE = "fd_cache_hit_rate";
 
+    @Description("Number of file descriptors evicted from the file descriptor cache")
+    public static final String RTS_FD_CACHE_EVICTIONS = "fd_cache_evictions";
+
+    @Description("Number of message content file descriptors that are open, including evicted ones still in use")
+    public static final String RTS_FD_CACHE_OPEN_FDS = "fd_cache_open_fds";
+
+    @Description("Estimated bytes of hit lists held by the search result cache")
+    public static final String RTS_SEARCH_RESULT_CACHE_BYTES = "search_result_cache_bytes";
+
     // LDAP provisioning caches.
     @Description("LDAP ACL cache hit rate")
     public static final String RTS_ACL_CACHE_HIT_RATE = "acl_cache_hit_rate";
@@ -134,6 +150,12 @@ public class ZimbraPerf {
     @Description("LDAP account cache hit rate")
     public static final String RTS_ACCOUNT_CACHE_HIT_RATE = "account_cache_hit_rate";
 
+    @Description("Number of LDAP account cache lookups that missed")
+    public static final String RTS_ACCOUNT_CACHE_MISSES = "account_cache_misses";
+
+    @Description("Average milliseconds taken to refresh an expired LDAP account cache entry")
+    public static final String RTS_ACCOUNT_CACHE_LOAD_MS = "account_cache_load_ms";
+
     @Description("LDAP COS cache size")
     public static final String RTS_COS_CACHE_SIZE = "cos_cache_size";
 
@@ -146,6 +168,9 @@ public class ZimbraPerf {
     @Description("LDAP domain cache hit rate")
     public static final String RTS_DOMAIN_CACHE_HIT_RATE = "domain_cache_hit_rate";
 
+    @Description("Average milliseconds taken to refresh an expired LDAP domain cache entry")
+    public static final String RTS_DOMAIN_CACHE_LOAD_MS = "domain_cache_load_ms";
+
     @Description("LDAP server cache size")
     public static final String RTS_SERVER_CACHE_SIZE = "server_cache_size";
 
@@ -176,6 +201,24 @@ public class ZimbraPerf {
     @Description("LDAP XMPP cache hit rate")
     public static final String RTS_XMPP_CACHE_HIT_RATE = "xmpp_cache_hit_rate";
 
+    @Description("Number of queued interactive index tasks")
+    public static final String RTS_INDEX_QUEUE_INTERACTIVE = "index_queue_interactive";
+
+    @Description("Age (ms) of the oldest queued interactive index task")
+    public static final String RTS_INDEX_QUEUE_INTERACTIVE_AGE = "index_queue_interactive_age_ms";
+
+    @Description("Number of queued background index tasks, such as merges")
+    public static final String RTS_INDEX_QUEUE_BACKGROUND = "index_queue_background";
+
+    @Description("Age (ms) of the oldest queued background index task")
+    public static final String RTS_INDEX_QUEUE_BACKGROUND_AGE = "index_queue_background_age_ms";
+
+    @Description("Number of queued re-index and compaction tasks")
+    public static final String RTS_INDEX_QUEUE_BATCH = "index_queue_batch";
+
+    @Description("Age (ms) of the oldest queued re-index or compaction task")
+    public static final String RTS_INDEX_QUEUE_BATCH_AGE = "index_queue_batch_age_ms";
+
     // Accumulators.  To add a new accumulator, create a static instance here and
     // add it to sAccumulators.
     public static final Counter COUNTER_LMTP_RCVD_MSGS = new Counter();
@@ -190,6 +233,9 @@ public class ZimbraPerf {
     public static final Counter COUNTER_MBOX_CACHE = new Counter();           // Mailbox cache hit rate
     public static final Counter COUNTER_MBOX_MSG_CACHE = new Counter();
     public static final Counter COUNTER_MBOX_ITEM_CACHE = new Counter();
+    public static final Counter COUNTER_MBOX_ITEM_OFFHEAP_CACHE = new Counter();
+    public static final Counter COUNTER_SEARCH_RESULT_CACHE = new Counter();
+    public static final Counter COUNTER_FOLDER_RIGHTS_INDEX = new Counter();
     public static final StopWatch STOPWATCH_SOAP = new StopWatch();
     public static final StopWatch STOPWATCH_IMAP = new StopWatch();
     public static final StopWatch STOPWATCH_POP = new StopWatch();
@@ -199,11 +245,20 @@ public class ZimbraPerf {
     public static final Counter COUNTER_CALENDAR_CACHE_HIT = new Counter();
     public static final Counter COUNTER_CALENDAR_CACHE_MEM_HIT = new Counter();
     public static final Counter COUNTER_CALENDAR_CACHE_LRU_SIZE = new Counter();
+    public static final Counter COUNTER_CALENDAR_CACHE_LRU_BYTES = new Counter();
+    public static final Counter COUNTER_CALENDAR_CACHE_MEMCACHED_HIT = new Counter();
+    public static final Counter COUNTER_CALENDAR_CACHE_FILE_HIT = new Counter();
+    public static final Counter COUNTER_CALENDAR_CACHE_SHARED_LOAD = new Counter();
+    public static final Counter COUNTER_CALENDAR_BUSY_TIMELINE_HIT = new Counter();
     public static final Counter COUNTER_IDX_BYTES_WRITTEN = new Counter();
     public static final Counter COUNTER_IDX_BYTES_READ = new Counter();
     public static final Counter COUNTER_BLOB_INPUT_STREAM_READ = new Counter();
     public static final Counter COUNTER_BLOB_INPUT_STREAM_SEEK_RATE = new Counter();
     public static final StopWatch STOPWATCH_EWS = new StopWatch();
+    public static final Histogram HISTOGRAM_REDO_COMMIT_BATCH = new Histogram();     // redo log records per group fsync
+    public static final Histogram HISTOGRAM_REDO_COMMIT_LATENCY = new Histogram();   // redo log record to fsync, in microseconds
+    public static final Histogram HISTOGRAM_MBOX_LOCK_WAIT = new Histogram();        // mailbox lock wait, in microseconds
+    public static final Histogram HISTOGRAM_MBOX_LOCK_HOLD = new Histogram();        // mailbox lock hold, in microseconds
 
     public static final ActivityTracker SOAP_TRACKER = new ActivityTracker("soap.csv");
     public static final ActivityTracker IMAP_TRACKER = new ActivityTracker("imap.csv");
@@ -229,17 +284,21 @@ public class ZimbraPerf {
             RTS_POP_CONN, RTS_POP_THREADS, RTS_POP_SSL_CONN, RTS_POP_SSL_THREADS,
             RTS_IMAP_CONN, RTS_IMAP_THREADS, RTS_IMAP_SSL_CONN, RTS_IMAP_SSL_THREADS,
             RTS_HTTP_IDLE_THREADS, RTS_HTTP_THREADS, RTS_SOAP_SESSIONS,
-            RTS_MBOX_CACHE_SIZE, RTS_MSG_CACHE_SIZE,
-            RTS_FD_CACHE_SIZE, RTS_FD_CACHE_HIT_RATE,
+            RTS_MBOX_CACHE_SIZE, RTS_MSG_CACHE_SIZE, RTS_MSG_CACHE_BYTES, RTS_MSG_CACHE_EVICTIONS,
+            RTS_FD_CACHE_SIZE, RTS_FD_CACHE_HIT_RATE, RTS_FD_CACHE_EVICTIONS, RTS_FD_CACHE_OPEN_FDS,
+            RTS_SEARCH_RESULT_CACHE_BYTES,
             RTS_ACL_CACHE_HIT_RATE,
-            RTS_ACCOUNT_CACHE_SIZE, RTS_ACCOUNT_CACHE_HIT_RATE,
+            RTS_ACCOUNT_CACHE_SIZE, RTS_ACCOUNT_CACHE_HIT_RATE, RTS_ACCOUNT_CACHE_MISSES, RTS_ACCOUNT_CACHE_LOAD_MS,
             RTS_COS_CACHE_SIZE, RTS_COS_CACHE_HIT_RATE,
-            RTS_DOMAIN_CACHE_SIZE, RTS_DOMAIN_CACHE_HIT_RATE,
+            RTS_DOMAIN_CACHE_SIZE, RTS_DOMAIN_CACHE_HIT_RATE, RTS_DOMAIN_CACHE_LOAD_MS,
             RTS_SERVER_CACHE_SIZE, RTS_SERVER_CACHE_HIT_RATE,
             RTS_UCSERVICE_CACHE_SIZE, RTS_UCSERVICE_CACHE_HIT_RATE,
             RTS_ZIMLET_CACHE_SIZE, RTS_ZIMLET_CACHE_HIT_RATE,
             RTS_GROUP_CACHE_SIZE, RTS_GROUP_CACHE_HIT_RATE,
             RTS_XMPP_CACHE_SIZE, RTS_XMPP_CACHE_HIT_RATE,
+            RTS_INDEX_QUEUE_INTERACTIVE, RTS_INDEX_QUEUE_INTERACTIVE_AGE,
+            RTS_INDEX_QUEUE_BACKGROUND, RTS_INDEX_QUEUE_BACKGROUND_AGE,
+            RTS_INDEX_QUEUE_BATCH, RTS_INDEX_QUEUE_BATCH_AGE,
             }
         );
 
@@ -291,6 +350,15 @@ public class ZimbraPerf {
     @Description("Item cache hit rate")
     private static final String DC_MBOX_ITEM_CACHE = "mbox_item_cache";
 
+    @Description("Off-heap item cache hit rate, counting only lookups that missed the item cache")
+    private static final String DC_MBOX_ITEM_OFFHEAP_CACHE = "mbox_item_offheap_cache";
+
+    @Description("Search result cache hit rate, counting only searches that can be cached")
+    private static final String DC_SEARCH_RESULT_CACHE = "search_result_cache";
+
+    @Description("Folder rights index hit rate, counting only permission checks by other accounts")
+    private static final String DC_FOLDER_RIGHTS_INDEX = "folder_rights_index";
+
     @Description("Number of SOAP requests received")
     private static final String DC_SOAP_COUNT = "soap_count";
 
@@ -345,6 +413,63 @@ public class ZimbraPerf {
     @Description("Number of calendars (folders) in the calendar summary cache LRU in Java heap")
     private static final String DC_CALCACHE_LRU_SIZE = "calcache_lru_size";
 
+    @Description("Estimated bytes of calendar summaries in the calendar summary cache in Java heap")
+    private static final String DC_CALCACHE_LRU_BYTES = "calcache_lru_bytes";
+
+    @Description("Hit rate of memcached lookups of calendar summaries")
+    private static final String DC_CALCACHE_MEMCACHED_HIT = "calcache_memcached_hit";
+
+    @Description("Hit rate of file lookups of calendar summaries that missed in memory")
+    private static final String DC_CALCACHE_FILE_HIT = "calcache_file_hit";
+
+    @Description("Rate of calendar summary reloads that waited on one already running for the same calendar")
+    private static final String DC_CALCACHE_SHARED_LOAD = "calcache_shared_load";
+
+    @Description("Hit rate of busy timelines used for local free/busy lookups")
+    private static final String DC_CALCACHE_BUSY_TIMELINE_HIT = "calcache_busy_timeline_hit";
+
+    @Description("Number of fsyncs done by the group-commit redo log writer")
+    private static final String DC_REDO_BATCH_COUNT = "redo_batch_count";
+
+    @Description("Median number of redo log records made durable by a single group fsync")
+    private static final String DC_REDO_BATCH_P50 = "redo_batch_p50";
+
+    @Description("99th percentile of the number of redo log records made durable by a single group fsync")
+    private static final String DC_REDO_BATCH_P99 = "redo_batch_p99";
+
+    @Description("Median latency (us) from logging a synchronous redo record until it is fsynced")
+    private static final String DC_REDO_COMMIT_US_P50 = "redo_commit_us_p50";
+
+    @Description("90th percentile latency (us) from logging a synchronous redo record until it is fsynced")
+    private static final String DC_REDO_COMMIT_US_P90 = "redo_commit_us_p90";
+
+    @Description("99th percentile latency (us) from logging a synchronous redo record until it is fsynced")
+    private static final String DC_REDO_COMMIT_US_P99 = "redo_commit_us_p99";
+
+    @Description("Maximum latency (us) from logging a synchronous redo record until it is fsynced")
+    private static final String DC_REDO_COMMIT_US_MAX = "redo_commit_us_max";
+
+    @Description("Number of mailbox lock acquisitions")
+    private static final String DC_MBOX_LOCK_COUNT = "mbox_lock_count";
+
+    @Description("Median time (us) spent waiting for a mailbox lock")
+    private static final String DC_MBOX_LOCK_WAIT_US_P50 = "mbox_lock_wait_us_p50";
+
+    @Description("99th percentile time (us) spent waiting for a mailbox lock")
+    private static final String DC_MBOX_LOCK_WAIT_US_P99 = "mbox_lock_wait_us_p99";
+
+    @Description("Maximum time (us) spent waiting for a mailbox lock")
+    private static final String DC_MBOX_LOCK_WAIT_US_MAX = "mbox_lock_wait_us_max";
+
+    @Description("Median time (us) a mailbox lock was held")
+    private static final String DC_MBOX_LOCK_HOLD_US_P50 = "mbox_lock_hold_us_p50";
+
+    @Description("99th percentile time (us) a mailbox lock was held")
+    private static final String DC_MBOX_LOCK_HOLD_US_P99 = "mbox_lock_hold_us_p99";
+
+    @Description("Maximum time (us) a mailbox lock was held")
+    private static final String DC_MBOX_LOCK_HOLD_US_MAX = "mbox_lock_hold_us_max";
+
     private static CopyOnWriteArrayList<Accumulator> sAccumulators =
         new CopyOnWriteArrayList<Accumulator>(
                     new Accumulator[] {
@@ -360,6 +485,9 @@ public class ZimbraPerf {
                         new DeltaCalculator(COUNTER_MBOX_CACHE).setAverageName(DC_MBOX_CACHE),
                         new DeltaCalculator(COUNTER_MBOX_MSG_CACHE).setAverageName(DC_MBOX_MSG_CACHE),
                         new DeltaCalculator(COUNTER_MBOX_ITEM_CACHE).setAverageName(DC_MBOX_ITEM_CACHE),
+                        new DeltaCalculator(COUNTER_MBOX_ITEM_OFFHEAP_CACHE).setAverageName(DC_MBOX_ITEM_OFFHEAP_CACHE),
+                        new DeltaCalculator(COUNTER_SEARCH_RESULT_CACHE).setAverageName(DC_SEARCH_RESULT_CACHE),
+                        new DeltaCalculator(COUNTER_FOLDER_RIGHTS_INDEX).setAverageName(DC_FOLDER_RIGHTS_INDEX),
                         new DeltaCalculator(STOPWATCH_SOAP).setCountName(DC_SOAP_COUNT).setAverageName(DC_SOAP_MS_AVG),
                         new DeltaCalculator(STOPWATCH_IMAP).setCountName(DC_IMAP_COUNT).setAverageName(DC_IMAP_MS_AVG),
                         new DeltaCalculator(STOPWATCH_POP).setCountName(DC_POP_COUNT).setAverageName(DC_POP_MS_AVG),
@@ -369,10 +497,24 @@ public class ZimbraPerf {
                         new DeltaCalculator(COUNTER_CALENDAR_CACHE_HIT).setAverageName(DC_CALCACHE_HIT),
                         new DeltaCalculator(COUNTER_CALENDAR_CACHE_MEM_HIT).setAverageName(DC_CALCACHE_MEM_HIT),
                         new DeltaCalculator(COUNTER_CALENDAR_CACHE_LRU_SIZE).setAverageName(DC_CALCACHE_LRU_SIZE),
+                        new DeltaCalculator(COUNTER_CALENDAR_CACHE_LRU_BYTES).setAverageName(DC_CALCACHE_LRU_BYTES),
+                        new DeltaCalculator(COUNTER_CALENDAR_CACHE_MEMCACHED_HIT).setAverageName(DC_CALCACHE_MEMCACHED_HIT),
+                        new DeltaCalculator(COUNTER_CALENDAR_CACHE_FILE_HIT).setAverageName(DC_CALCACHE_FILE_HIT),
+                        new DeltaCalculator(COUNTER_CALENDAR_CACHE_SHARED_LOAD).setAverageName(DC_CALCACHE_SHARED_LOAD),
+                        new DeltaCalculator(COUNTER_CALENDAR_BUSY_TIMELINE_HIT).setAverageName(DC_CALCACHE_BUSY_TIMELINE_HIT),
                         new DeltaCalculator(COUNTER_IDX_BYTES_WRITTEN).setTotalName(DC_IDX_BYTES_WRITTEN).setAverageName(DC_IDX_BYTES_WRITTTEN_AVG),
                         new DeltaCalculator(COUNTER_IDX_BYTES_READ).setTotalName(DC_IDX_BYTES_READ).setAverageName(DC_IDX_BYTES_READ_AVG),
                         new DeltaCalculator(COUNTER_BLOB_INPUT_STREAM_READ).setTotalName(DC_BIS_READ),
                         new DeltaCalculator(COUNTER_BLOB_INPUT_STREAM_SEEK_RATE).setAverageName(DC_BIS_SEEK_RATE),
+                        HISTOGRAM_REDO_COMMIT_BATCH.setCountName(DC_REDO_BATCH_COUNT).addPercentileName(50, DC_REDO_BATCH_P50)
+                            .addPercentileName(99, DC_REDO_BATCH_P99),
+                        HISTOGRAM_REDO_COMMIT_LATENCY.addPercentileName(50, DC_REDO_COMMIT_US_P50)
+                            .addPercentileName(90, DC_REDO_COMMIT_US_P90).addPercentileName(99, DC_REDO_COMMIT_US_P99)
+                            .setMaxName(DC_REDO_COMMIT_US_MAX),
+                        HISTOGRAM_MBOX_LOCK_WAIT.setCountName(DC_MBOX_LOCK_COUNT).addPercentileName(50, DC_MBOX_LOCK_WAIT_US_P50)
+                            .addPercentileName(99, DC_MBOX_LOCK_WAIT_US_P99).setMaxName(DC_MBOX_LOCK_WAIT_US_MAX),
+                        HISTOGRAM_MBOX_LOCK_HOLD.addPercentileName(50, DC_MBOX_LOCK_HOLD_US_P50)
+                            .addPercentileName(99, DC_MBOX_LOCK_HOLD_US_P99).setMaxName(DC_MBOX_LOCK_HOLD_US_MAX),
                         realtimeStats
                     }
         );
@@ -485,6 +627,7 @@ public class ZimbraPerf {
         jmxServerStats = new JmxServerStats();
         try {
             jmxServer.registerMBean(jmxServerStats, new ObjectName("ZimbraCollaborationSuite:type=ServerStats"));
+            jmxServer.registerMBean(new JmxMailboxLockStats(), new ObjectName("ZimbraCollaborationSuite:type=MailboxLockStats"));
         } catch (Exception e) {
             ZimbraLog.perf.warn("Unable to register JMX interface.", e);
         }
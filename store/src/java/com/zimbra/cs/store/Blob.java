@@ -106,7 +106,12 @@ public class Blob {
             if (!isCompressed()) {
                 this.rawSize = file.length();
             } else {
-                initializeSizeAndDigest();
+                BlockCompressedFormat.Index index = BlockCompressedFormat.readIndex(file);
+                if (index != null) {
+                    this.rawSize = index.getRawSize();
+                } else {
+                    initializeSizeAndDigest();
+                }
             }
         }
         return rawSize;
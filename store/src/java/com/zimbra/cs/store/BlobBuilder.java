@@ -26,7 +26,6 @@ import java.nio.ByteBuffer;
 import java.nio.channels.FileChannel;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
-import java.util.zip.GZIPOutputStream;
 
 import com.zimbra.common.localconfig.DebugConfig;
 import com.zimbra.common.localconfig.LC;
@@ -159,7 +158,7 @@ public class BlobBuilder {
 
             // This call exceeded compression threshold.  Compress the stream and
             // write everything that we've read so far.
-            out = new GZIPOutputStream(out);
+            out = new BlockCompressedOutputStream(out);
             writeToFile(buf, 0, bufLen);
             blob.setCompressed(true);
             compressionThresholdExceeded = true;
@@ -218,6 +217,10 @@ public class BlobBuilder {
         }
 
         try {
+            if (out instanceof BlockCompressedOutputStream) {
+                // write the block index before syncing
+                ((BlockCompressedOutputStream) out).finish();
+            }
             if (!DebugConfig.disableMessageStoreFsync) {
                 out.flush();
                 if (fc != null) {
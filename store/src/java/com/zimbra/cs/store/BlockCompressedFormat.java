@@ -0,0 +1,258 @@
+/*
+ * ***** BEGIN LICENSE BLOCK *****
+ * Zimbra Collaboration Suite Server
+ * Copyright (C) 2017 Synacor, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software Foundation,
+ * version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <https://www.gnu.org/licenses/>.
+ * ***** END LICENSE BLOCK *****
+ */
+package com.zimbra.cs.store;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * Seekable block-compressed blob format.
+ * <p>
+ * The blob is a sequence of independent gzip members, each holding one block of
+ * {@link Index#getBlockSize()} uncompressed bytes, followed by an empty gzip member whose
+ * extra field holds the compressed length of every block.  Since a multi-member gzip file is
+ * still a valid gzip file, {@link java.util.zip.GZIPInputStream} and every other reader of
+ * legacy compressed blobs see the same content, while {@link SharedFile} can use the index to
+ * decompress only the blocks that a ranged read touches.
+ * <p>
+ * Index member layout (multi-byte values are little-endian, as in the gzip header):
+ * <pre>
+ *   gzip header, FLG=FEXTRA     10 bytes
+ *   XLEN                         2 bytes
+ *   'Z' 'B' LEN                  4 bytes
+ *   version                      1 byte
+ *   block size                   4 bytes
+ *   uncompressed size            8 bytes
+ *   block count                  4 bytes
+ *   compressed block lengths     4 bytes each
+ *   index member length          4 bytes
+ *   empty deflate block          2 bytes
+ *   CRC32, ISIZE (zero)          8 bytes
+ * </pre>
+ */
+public final class BlockCompressedFormat {
+
+    static final byte VERSION = 1;
+    static final byte SUBFIELD_ID1 = 'Z';
+    static final byte SUBFIELD_ID2 = 'B';
+    static final int GZIP_HEADER_LENGTH = 10;
+    static final int FEXTRA = 0x04;
+    static final int GZIP_TRAILER_LENGTH = 8;
+    static final byte[] EMPTY_DEFLATE_BLOCK = new byte[] { 0x03, 0x00 };
+    /** Length of the index data apart from the per-block lengths. */
+    static final int INDEX_FIXED_LENGTH = 1 + 4 + 8 + 4 + 4;
+    /** Largest number of blocks that fits in the 64KB gzip extra field. */
+    static final int MAX_BLOCKS = (0xFFFF - 4 - INDEX_FIXED_LENGTH) / 4;
+    /** Bytes at the end of the file that identify the index member. */
+    private static final int TAIL_LENGTH = 4 + EMPTY_DEFLATE_BLOCK.length + GZIP_TRAILER_LENGTH;
+
+    private BlockCompressedFormat() {
+    }
+
+    /**
+     * Block index of a block-compressed blob.
+     */
+    public static final class Index {
+        private final int blockSize;
+        private final long rawSize;
+        /** File offset of each block, plus the offset of the index member. */
+        private final long[] offsets;
+
+        Index(int blockSize, long rawSize, long[] offsets) {
+            this.blockSize = blockSize;
+            this.rawSize = rawSize;
+            this.offsets = offsets;
+        }
+
+        public int getBlockSize() {
+            return blockSize;
+        }
+
+        /** Returns the uncompressed size of the blob. */
+        public long getRawSize() {
+            return rawSize;
+        }
+
+        public int getBlockCount() {
+            return offsets.length - 1;
+        }
+
+        long getBlockOffset(int block) {
+            return offsets[block];
+        }
+
+        int getCompressedLength(int block) {
+            return (int) (offsets[block + 1] - offsets[block]);
+        }
+
+        /** Returns the uncompressed length of the given block. */
+        int getBlockLength(int block) {
+            return (int) Math.min(blockSize, rawSize - (long) block * blockSize);
+        }
+    }
+
+    /**
+     * Reads the block index of the given file.
+     *
+     * @return the index, or <tt>null</tt> if the file is not block-compressed
+     */
+    public static Index readIndex(File file) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            return readIndex(raf);
+        } finally {
+            raf.close();
+        }
+    }
+
+    static Index readIndex(RandomAccessFile raf) throws IOException {
+        long fileLength = raf.length();
+        if (fileLength < GZIP_HEADER_LENGTH + 2 + 4 + INDEX_FIXED_LENGTH + EMPTY_DEFLATE_BLOCK.length + GZIP_TRAILER_LENGTH) {
+            return null;
+        }
+        byte[] tail = new byte[TAIL_LENGTH];
+        raf.seek(fileLength - TAIL_LENGTH);
+        raf.readFully(tail);
+        if (tail[4] != EMPTY_DEFLATE_BLOCK[0] || tail[5] != EMPTY_DEFLATE_BLOCK[1]) {
+            return null;
+        }
+        for (int i = 6; i < TAIL_LENGTH; i++) {
+            if (tail[i] != 0) {
+                return null;
+            }
+        }
+        long memberLength = getInt(tail, 0) & 0xFFFFFFFFL;
+        if (memberLength > fileLength || memberLength < TAIL_LENGTH + GZIP_HEADER_LENGTH + 6) {
+            return null;
+        }
+
+        byte[] member = new byte[(int) memberLength];
+        long memberOffset = fileLength - memberLength;
+        raf.seek(memberOffset);
+        raf.readFully(member);
+        if ((member[0] & 0xFF) != 0x1f || (member[1] & 0xFF) != 0x8b || member[2] != 8 || member[3] != FEXTRA ||
+                member[12] != SUBFIELD_ID1 || member[13] != SUBFIELD_ID2) {
+            return null;
+        }
+        int xlen = getShort(member, 10);
+        int subLength = getShort(member, 14);
+        if (xlen != subLength + 4 || GZIP_HEADER_LENGTH + 2 + xlen + TAIL_LENGTH - 4 != memberLength) {
+            return null;
+        }
+        int pos = 16;
+        if (member[pos] != VERSION) {
+            return null;
+        }
+        int blockSize = getInt(member, pos + 1);
+        long rawSize = getLong(member, pos + 5);
+        int count = getInt(member, pos + 13);
+        if (blockSize <= 0 || count < 0 || subLength != INDEX_FIXED_LENGTH + 4 * count ||
+                (long) count * blockSize < rawSize || (count > 0 && (long) (count - 1) * blockSize >= rawSize)) {
+            return null;
+        }
+        pos += 17;
+        long[] offsets = new long[count + 1];
+        long offset = 0;
+        for (int i = 0; i < count; i++, pos += 4) {
+            offsets[i] = offset;
+            offset += getInt(member, pos) & 0xFFFFFFFFL;
+        }
+        if (offset != memberOffset) {
+            return null;
+        }
+        offsets[count] = offset;
+        return new Index(blockSize, rawSize, offsets);
+    }
+
+    /**
+     * Decompresses one block into <tt>dest</tt>, which must hold at least
+     * {@link Index#getBlockSize()} bytes.
+     *
+     * @return the number of uncompressed bytes in the block
+     */
+    static int readBlock(FileChannel channel, Index index, int block, byte[] dest, Inflater inflater)
+    throws IOException {
+        byte[] member = new byte[index.getCompressedLength(block)];
+        ByteBuffer buf = ByteBuffer.wrap(member);
+        long offset = index.getBlockOffset(block);
+        while (buf.hasRemaining()) {
+            if (channel.read(buf, offset + buf.position()) < 0) {
+                throw new EOFException("block " + block + " truncated at offset " + offset);
+            }
+        }
+        if (member.length < GZIP_HEADER_LENGTH + GZIP_TRAILER_LENGTH ||
+                (member[0] & 0xFF) != 0x1f || (member[1] & 0xFF) != 0x8b || member[3] != 0) {
+            throw new IOException("corrupt block " + block + " at offset " + index.getBlockOffset(block));
+        }
+        int expected = index.getBlockLength(block);
+        int trailer = member.length - GZIP_TRAILER_LENGTH;
+        inflater.reset();
+        inflater.setInput(member, GZIP_HEADER_LENGTH, trailer - GZIP_HEADER_LENGTH);
+        int len = 0;
+        try {
+            while (len < expected && !inflater.finished()) {
+                int n = inflater.inflate(dest, len, expected - len);
+                if (n == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                    break;
+                }
+                len += n;
+            }
+        } catch (DataFormatException e) {
+            throw new IOException("corrupt block " + block + " at offset " + index.getBlockOffset(block), e);
+        }
+        CRC32 crc = new CRC32();
+        crc.update(dest, 0, len);
+        if (len != expected || getInt(member, trailer + 4) != len || getInt(member, trailer) != (int) crc.getValue()) {
+            throw new IOException("corrupt block " + block + " at offset " + index.getBlockOffset(block));
+        }
+        return len;
+    }
+
+    static void putShort(byte[] b, int off, int value) {
+        b[off] = (byte) value;
+        b[off + 1] = (byte) (value >>> 8);
+    }
+
+    static void putInt(byte[] b, int off, int value) {
+        putShort(b, off, value);
+        putShort(b, off + 2, value >>> 16);
+    }
+
+    static void putLong(byte[] b, int off, long value) {
+        putInt(b, off, (int) value);
+        putInt(b, off + 4, (int) (value >>> 32));
+    }
+
+    private static int getShort(byte[] b, int off) {
+        return (b[off] & 0xFF) | ((b[off + 1] & 0xFF) << 8);
+    }
+
+    private static int getInt(byte[] b, int off) {
+        return getShort(b, off) | (getShort(b, off + 2) << 16);
+    }
+
+    private static long getLong(byte[] b, int off) {
+        return (getInt(b, off) & 0xFFFFFFFFL) | ((long) getInt(b, off + 4) << 32);
+    }
+}
@@ -0,0 +1,209 @@
+/*
+ * ***** BEGIN LICENSE BLOCK *****
+ * Zimbra Collaboration Suite Server
+ * Copyright (C) 2017 Synacor, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software Foundation,
+ * version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <https://www.gnu.org/licenses/>.
+ * ***** END LICENSE BLOCK *****
+ */
+package com.zimbra.cs.store;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+import com.zimbra.common.localconfig.LC;
+import com.zimbra.common.util.ByteUtil;
+import com.zimbra.common.util.ZimbraLog;
+
+/**
+ * Writes a blob in the {@link BlockCompressedFormat}.  The block index is written
+ * by {@link #finish()} or {@link #close()}.
+ */
+public class BlockCompressedOutputStream extends OutputStream {
+
+    private static final byte[] GZIP_HEADER = new byte[] { 0x1f, (byte) 0x8b, Deflater.DEFLATED, 0, 0, 0, 0, 0, 0, (byte) 0xff };
+
+    private final OutputStream out;
+    private final byte[] block;
+    private int blockLen = 0;
+    private long rawSize = 0;
+    private final Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+    private final CRC32 crc = new CRC32();
+    private final ByteArrayOutputStream compressed;
+    private final byte[] deflateBuf = new byte[8192];
+    private int[] blockLengths = new int[16];
+    private int blockCount = 0;
+    private boolean finished = false;
+
+    public BlockCompressedOutputStream(OutputStream out) {
+        this(out, getDefaultBlockSize());
+    }
+
+    public BlockCompressedOutputStream(OutputStream out, int blockSize) {
+        if (blockSize <= 0) {
+            throw new IllegalArgumentException("invalid block size " + blockSize);
+        }
+        this.out = out;
+        this.block = new byte[blockSize];
+        this.compressed = new ByteArrayOutputStream(blockSize / 2);
+    }
+
+    private static int getDefaultBlockSize() {
+        return Math.max(LC.zimbra_blob_compression_block_size_kb.intValue(), 1) * 1024;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        write(new byte[] { (byte) b }, 0, 1);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        if (finished) {
+            throw new IOException("stream is finished");
+        }
+        while (len > 0) {
+            int n = Math.min(len, block.length - blockLen);
+            System.arraycopy(b, off, block, blockLen, n);
+            blockLen += n;
+            off += n;
+            len -= n;
+            if (blockLen == block.length) {
+                writeBlock();
+            }
+        }
+    }
+
+    /**
+     * Writes one gzip member holding the buffered block.
+     */
+    private void writeBlock() throws IOException {
+        if (blockLen == 0) {
+            return;
+        }
+        compressed.reset();
+        compressed.write(GZIP_HEADER);
+        deflater.reset();
+        deflater.setInput(block, 0, blockLen);
+        deflater.finish();
+        while (!deflater.finished()) {
+            int n = deflater.deflate(deflateBuf);
+            compressed.write(deflateBuf, 0, n);
+        }
+        crc.reset();
+        crc.update(block, 0, blockLen);
+        byte[] trailer = new byte[BlockCompressedFormat.GZIP_TRAILER_LENGTH];
+        BlockCompressedFormat.putInt(trailer, 0, (int) crc.getValue());
+        BlockCompressedFormat.putInt(trailer, 4, blockLen);
+        compressed.write(trailer);
+
+        if (blockCount == blockLengths.length) {
+            int[] grown = new int[blockLengths.length * 2];
+            System.arraycopy(blockLengths, 0, grown, 0, blockCount);
+            blockLengths = grown;
+        }
+        blockLengths[blockCount++] = compressed.size();
+        compressed.writeTo(out);
+        rawSize += blockLen;
+        blockLen = 0;
+    }
+
+    /**
+     * Writes any buffered data and the block index, without closing the underlying stream.
+     */
+    public void finish() throws IOException {
+        if (finished) {
+            return;
+        }
+        writeBlock();
+        finished = true;
+        deflater.end();
+        if (blockCount > BlockCompressedFormat.MAX_BLOCKS) {
+            // too many blocks to index; the blob is still a valid multi-member gzip file
+            ZimbraLog.store.debug("not writing block index for %d blocks", blockCount);
+            return;
+        }
+
+        int subLength = BlockCompressedFormat.INDEX_FIXED_LENGTH + 4 * blockCount;
+        int memberLength = BlockCompressedFormat.GZIP_HEADER_LENGTH + 2 + 4 + subLength +
+                BlockCompressedFormat.EMPTY_DEFLATE_BLOCK.length + BlockCompressedFormat.GZIP_TRAILER_LENGTH;
+        byte[] member = new byte[memberLength];
+        System.arraycopy(GZIP_HEADER, 0, member, 0, GZIP_HEADER.length);
+        member[3] = BlockCompressedFormat.FEXTRA;
+        int pos = BlockCompressedFormat.GZIP_HEADER_LENGTH;
+        BlockCompressedFormat.putShort(member, pos, subLength + 4);
+        member[pos + 2] = BlockCompressedFormat.SUBFIELD_ID1;
+        member[pos + 3] = BlockCompressedFormat.SUBFIELD_ID2;
+        BlockCompressedFormat.putShort(member, pos + 4, subLength);
+        pos += 6;
+        member[pos] = BlockCompressedFormat.VERSION;
+        BlockCompressedFormat.putInt(member, pos + 1, block.length);
+        BlockCompressedFormat.putLong(member, pos + 5, rawSize);
+        BlockCompressedFormat.putInt(member, pos + 13, blockCount);
+        pos += 17;
+        for (int i = 0; i < blockCount; i++, pos += 4) {
+            BlockCompressedFormat.putInt(member, pos, blockLengths[i]);
+        }
+        BlockCompressedFormat.putInt(member, pos, memberLength);
+        pos += 4;
+        System.arraycopy(BlockCompressedFormat.EMPTY_DEFLATE_BLOCK, 0, member, pos,
+                BlockCompressedFormat.EMPTY_DEFLATE_BLOCK.length);
+        // CRC32 and ISIZE of the empty member are both zero
+        out.write(member);
+    }
+
+    @Override
+    public void flush() throws IOException {
+        out.flush();
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            finish();
+        } finally {
+            out.close();
+        }
+    }
+
+    /**
+     * Block-compresses the data stored in <tt>src</tt> and writes it to <tt>dest</tt>.
+     * Counterpart of {@link com.zimbra.common.util.FileUtil#compress}.
+     */
+    public static void compress(File src, File dest, boolean sync) throws IOException {
+        FileInputStream fin = null;
+        FileOutputStream fos = null;
+        boolean isComplete = false;
+        try {
+            fin = new FileInputStream(src);
+            fos = new FileOutputStream(dest);
+            BlockCompressedOutputStream bout = new BlockCompressedOutputStream(fos);
+            ByteUtil.copy(fin, false, bout, false);
+            bout.finish();
+            if (sync) {
+                fos.getChannel().force(true);
+            }
+            isComplete = true;
+        } finally {
+            ByteUtil.closeStream(fin);
+            ByteUtil.closeStream(fos);
+            if (!isComplete) {
+                dest.delete();
+            }
+        }
+    }
+}
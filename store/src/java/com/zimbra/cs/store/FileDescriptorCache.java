@@ -21,14 +21,13 @@ import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.util.ArrayList;
-import java.util.Collections;
-import java.util.Iterator;
-import java.util.LinkedHashMap;
-import java.util.List;
-import java.util.Map;
+import java.nio.channels.ClosedChannelException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.zip.GZIPInputStream;
 
+import com.googlecode.concurrentlinkedhashmap.ConcurrentLinkedHashMap;
+import com.googlecode.concurrentlinkedhashmap.EvictionListener;
 import com.zimbra.common.service.ServiceException;
 import com.zimbra.common.stats.Counter;
 import com.zimbra.common.util.FileCache;
@@ -40,44 +39,48 @@ import com.zimbra.cs.account.Provisioning;
 import com.zimbra.cs.account.Server;
 
 /**
- * Caches file descriptors to blobs in the mail store.  If the blob is compressed,
- * uses a {@link FileCache} to access the uncompressed data.  Cache entries
+ * Caches file descriptors to blobs in the mail store.  Block-compressed blobs are
+ * read in place (see {@link BlockCompressedFormat}).  If the blob is a legacy gzip
+ * blob, uses a {@link FileCache} to access the uncompressed data.  Cache entries
  * that reference uncompressed blobs keep the file descriptor open until {@link #remove}
  * is called or the cache entry is aged out.
+ * <p>
+ * Lookups don't take a lock.  Each {@link SharedFile} is reference counted, so an
+ * entry that is evicted or removed while a read is in progress is closed by the
+ * last reader instead of being parked on a cleanup list.
  */
 public class FileDescriptorCache
 {
     private static final Log sLog = LogFactory.getLog(FileDescriptorCache.class);
 
-    // Create the file cache with default LinkedHashMap values, but sorted by last access time.
-    private final LinkedHashMap<String, SharedFile> mCache = new LinkedHashMap<String, SharedFile>(16, 0.75f, true);
-    // Create a concurrent list for the SharedFies for which the mapping has been removed but is still in use by some threads.
-    private final List<SharedFileInfo> mInactiveCache = Collections.synchronizedList(new ArrayList<SharedFileInfo>());
-    private int mMaxSize = 1000;
+    private volatile int mMaxSize = 1000;
+    private final ConcurrentLinkedHashMap<String, SharedFile> mCache;
     private final FileCache<String> mUncompressedFileCache;
     private final Counter mHitRate = new Counter();
-
-    private class SharedFileInfo {
-        public String path;
-        public SharedFile file;
-
-        public SharedFileInfo(String path, SharedFile file) {
-            this.path = path;
-            this.file = file;
-        }
-    }
+    private final AtomicLong mEvictions = new AtomicLong();
+    private final AtomicInteger mOpenFiles = new AtomicInteger();
 
     public FileDescriptorCache(FileCache<String> uncompressedCache) {
         mUncompressedFileCache = uncompressedCache;
+        mCache = new ConcurrentLinkedHashMap.Builder<String, SharedFile>()
+            .maximumWeightedCapacity(mMaxSize)
+            .listener(new EvictionListener<String, SharedFile>() {
+                @Override
+                public void onEviction(String path, SharedFile file) {
+                    mEvictions.incrementAndGet();
+                    sLog.debug("Evicting file descriptor for %s, %s", path, file);
+                    retire(path, file);
+                }
+            }).build();
     }
 
-    public synchronized FileDescriptorCache setMaxSize(int maxSize) {
+    public FileDescriptorCache setMaxSize(int maxSize) {
         if (maxSize < 0)
             throw new IllegalArgumentException("maxSize value of " + maxSize + " is invalid (must be at least 0)");
 
         mMaxSize = maxSize;
         mHitRate.reset(); // Recalculate hit rate based on the new size.
-        pruneIfNecessary();
+        mCache.setCapacity(maxSize);
         return this;
     }
 
@@ -95,21 +98,14 @@ public class FileDescriptorCache
 
     /**
      * Closes all file descriptors, clears the cache, and removes any files from
-     * the uncompressed cache.
+     * the uncompressed cache.  Descriptors that are still being read are closed
+     * by their last reader.
      */
-    public synchronized void shutdown() {
-        Iterator<Map.Entry<String, SharedFile>> iEntries = mCache.entrySet().iterator();
-        while (iEntries.hasNext()) {
-            Map.Entry<String, SharedFile> entry = iEntries.next();
-            String path = entry.getKey();
-            SharedFile file = entry.getValue();
-            iEntries.remove();
-            try {
-                boolean success = close(file, path);
-                if (!success)
-                    sLog.warn("Unable to close %s. File is in use.", file);
-            } catch (IOException e) {
-                sLog.warn("Unable to close %s", file, e);
+    public void shutdown() {
+        for (String path : mCache.keySet()) {
+            SharedFile file = mCache.remove(path);
+            if (file != null && !retire(path, file)) {
+                sLog.warn("Unable to close %s. File is in use.", file);
             }
         }
     }
@@ -120,49 +116,86 @@ public class FileDescriptorCache
     public int read(String path, long rawSize, long fileOffset, byte[] buf, int bufferOffset, int len)
     throws IOException {
         sLog.debug("Reading %s.  rawSize=%d, fileOffset=%d, bufferOffset=%d, len=%d.", path, rawSize, fileOffset, bufferOffset, len);
-        SharedFile file = null;
-        int numRead;
-
-        try {
-            file = getSharedFile(path, rawSize);
-            numRead = file.read(fileOffset, buf, bufferOffset, len);
-        } finally {
-            if (file != null) {
-               file.doneReading();
+        for (boolean retry = false; ; retry = true) {
+            SharedFile file = getSharedFile(path, rawSize);
+            try {
+                return file.read(fileOffset, buf, bufferOffset, len);
+            } catch (ClosedChannelException e) {
+                // Interrupting a thread in a read closes the channel for every thread sharing it.
+                // Drop the dead descriptor, and reopen it unless this thread is the one interrupted.
+                discard(path, file);
+                if (retry || Thread.currentThread().isInterrupted()) {
+                    throw e;
+                }
+                sLog.debug("File descriptor for %s was closed by an interrupted reader.  Reopening it.", path);
+            } finally {
+                if (file.release()) {
+                    closed(path, file);
+                }
             }
         }
-
-        return numRead;
     }
 
     boolean contains(String path) {
-        synchronized (this) {
-            return mCache.containsKey(path);
-        }
+        return mCache.containsKey(path);
     }
 
     /**
-     * Returns the existing cache entry or creates a new one.  Implicitly
-     * increments the number of readers for the <tt>SharedFile</tt>.
+     * Returns the existing cache entry or creates a new one.  The returned
+     * <tt>SharedFile</tt> has been acquired, and must be released by the caller.
      */
     private SharedFile getSharedFile(String path, long rawSize) throws IOException {
-        SharedFile sharedFile = null;
+        while (true) {
+            SharedFile sharedFile = mCache.get(path);
+            if (sharedFile != null) {
+                if (sharedFile.acquire()) {
+                    if (sharedFile.isOpen()) {
+                        sLog.debug("Found existing file descriptor for %s, rawSize=%d.", path, rawSize);
+                        mHitRate.increment(100);
+                        return sharedFile;
+                    }
+                    // Closed by an interrupted reader.
+                    if (sharedFile.release()) {
+                        closed(path, sharedFile);
+                    }
+                    discard(path, sharedFile);
+                    continue;
+                }
+                // Closed after being evicted, but the eviction hasn't been reflected in the map yet.
+                mCache.remove(path, sharedFile);
+                continue;
+            }
 
-        synchronized (this) {
-            sharedFile = mCache.get(path);
-        }
-        if (sharedFile != null) {
-            sLog.debug("Found existing file descriptor for %s, rawSize=%d.", path, rawSize);
-            sharedFile.aboutToRead();
-            mHitRate.increment(100);
-            return sharedFile;
+            // Open a new file descriptor.
+            mHitRate.increment(0);
+            sharedFile = open(path, rawSize);
+            sharedFile.acquire();
+
+            SharedFile existing = mCache.putIfAbsent(path, sharedFile);
+            if (existing == null) {
+                sLog.debug("Caching file descriptor: path=%s, sharedFile=%s", path, sharedFile);
+                return sharedFile;
+            }
+            sLog.debug("Another thread just opened the same file.  Closing our copy and using the other one.");
+            sharedFile.release();
+            retire(path, sharedFile);
+            if (existing.acquire()) {
+                return existing;
+            }
         }
+    }
 
-        // Open a new file descriptor.
-        mHitRate.increment(0);
+    private SharedFile open(String path, long rawSize) throws IOException {
         File file = new File(path);
 
-        if (file.length() != rawSize && FileUtil.isGzipped(file)) {
+        boolean compressed = file.length() != rawSize && FileUtil.isGzipped(file);
+        BlockCompressedFormat.Index index = compressed ? BlockCompressedFormat.readIndex(file) : null;
+
+        SharedFile sharedFile;
+        if (index != null) {
+            sLog.debug("Opening new file descriptor for block-compressed file %s.", path);
+            sharedFile = new SharedFile(file, index);
+        } else if (compressed) {
             sLog.debug("Adding file descriptor cache entry for %s from the uncompressed file cache.", path);
             FileCache.Item uncompressed = mUncompressedFileCache.get(path);
             if (uncompressed == null) {
@@ -181,91 +214,66 @@ public class FileDescriptorCache
             sLog.debug("Opening new file descriptor for %s.", path);
             sharedFile = new SharedFile(file);
         }
-
-        synchronized (this) {
-            if (mCache.containsKey(path)) {
-                sLog.debug("Another thread just opened the same file.  Closing our copy and returning the other one.");
-                sharedFile.close();
-                sharedFile = mCache.get(path);
-            } else {
-                sLog.debug("Caching file descriptor: path=%s, sharedFile=%s", path, sharedFile);
-                mCache.put(path, sharedFile);
-            }
-        }
-        sharedFile.aboutToRead();
-        pruneIfNecessary();
-
+        mOpenFiles.incrementAndGet();
         return sharedFile;
     }
 
     /**
      * Closes the file descriptor and removes it from the cache.  Does nothing if the file
-     * descriptor is not in the cache.
+     * descriptor is not in the cache.  If the file is being read, the descriptor is closed
+     * when the last reader finishes.
      */
     public void remove(String path) throws IOException {
-        SharedFile file = null;
-
-        synchronized (this) {
-            file = mCache.remove(path);
-        }
-
+        SharedFile file = mCache.remove(path);
         if (file != null) {
-            boolean success = close(file, path);
-            if (!success)
-                mInactiveCache.add(new SharedFileInfo(path, file));
+            retire(path, file);
         } else {
             sLog.debug("Attempted to remove %s but could not find it in the cache.", path);
         }
-
-        // Close if there are any SharedFiles in the inactive cache.
-        quietCloseInactiveCache();
     }
 
     /**
-     * Close the file if it is not in use.
-     * @return true if the file is closed, false otherwise.
-     * @throws IOException if there is an error closing the file.
+     * Removes a file whose channel was closed underneath its readers from the cache, if it is still
+     * cached, so that the next read opens a new descriptor.
      */
-    private boolean close(SharedFile file, String path) throws IOException {
-        if (file != null) {
-            sLog.debug("Closing file descriptor for %s, %s", path, file);
+    private void discard(String path, SharedFile file) {
+        if (mCache.remove(path, file)) {
+            retire(path, file);
+        }
+    }
 
-            if (file.getNumReaders() == 0) {
-                file.close();
-                if (mUncompressedFileCache != null) {
-                    synchronized (this) {
-                        if (!mCache.containsKey(path)) {
-                            mUncompressedFileCache.remove(path);
-                        } else {
-                            sLog.debug("Not removing %s from the uncompressed cache.  Another thread reopened it.");
-                        }
-                    }
-                }
+    /**
+     * Marks a file that is no longer in the cache for closing.
+     * @return true if the file was closed, false if it is still in use.
+     */
+    private boolean retire(String path, SharedFile file) {
+        sLog.debug("Closing file descriptor for %s, %s", path, file);
+        try {
+            if (file.retire()) {
+                closed(path, file);
                 return true;
             }
-            return false;
+        } catch (IOException e) {
+            ZimbraLog.store.warn("Unable to close file descriptor for " + path, e);
         }
-        return true;
+        return false;
     }
 
-    private void quietCloseInactiveCache() {
-        synchronized (mInactiveCache) {
-            Iterator<SharedFileInfo> iter = mInactiveCache.iterator();
-            while (iter.hasNext()) {
-                SharedFileInfo info = iter.next();
-                try {
-                    boolean success = close(info.file, info.path);
-                    if (success)
-                        iter.remove();
-                } catch (IOException e) {
-                    ZimbraLog.store.warn("Unable to close file descriptor for " + info.path, e);
-                    iter.remove();
-                }
+    /**
+     * Called once the descriptor for <tt>path</tt> has actually been closed.
+     */
+    private void closed(String path, SharedFile file) {
+        mOpenFiles.decrementAndGet();
+        if (mUncompressedFileCache != null) {
+            if (!mCache.containsKey(path)) {
+                mUncompressedFileCache.remove(path);
+            } else {
+                sLog.debug("Not removing %s from the uncompressed cache.  Another thread reopened it.", path);
             }
         }
     }
 
-    public synchronized int getSize() {
+    public int getSize() {
         return mCache.size();
     }
 
@@ -273,34 +281,18 @@ public class FileDescriptorCache
         return mHitRate.getAverage();
     }
 
-    private void pruneIfNecessary() {
-         if (getSize() <= mMaxSize)
-            return;
-
-        List<Map.Entry<String, SharedFile>> removeList = new ArrayList<Map.Entry<String, SharedFile>>();
-
-        synchronized (this) {
-            Iterator<Map.Entry<String, SharedFile>> iEntries = mCache.entrySet().iterator();
-            while (iEntries.hasNext() && mCache.size() > mMaxSize) {
-                Map.Entry<String, SharedFile> mapEntry = iEntries.next();
-                iEntries.remove();
-                removeList.add(mapEntry);
-            }
-        }
-        for (Map.Entry<String, SharedFile> mapEntry : removeList) {
-            String path = mapEntry.getKey();
-            SharedFile file = mapEntry.getValue();
-            try {
-                boolean success = close(file, path);
-                if (!success) {
-                    mInactiveCache.add(new SharedFileInfo(path, file));
-                }
-            } catch (IOException e) {
-                ZimbraLog.store.warn("Unable to close file descriptor for " + path, e);
-            }
-        }
+    /**
+     * Returns the number of entries that have been evicted to stay within the maximum size.
+     */
+    public long getEvictionCount() {
+        return mEvictions.get();
+    }
 
-        // Close if there are any SharedFiles in the inactive cache.
-        quietCloseInactiveCache();
+    /**
+     * Returns the number of open file descriptors, including evicted or removed entries
+     * that are still being read.
+     */
+    public int getOpenFileCount() {
+        return mOpenFiles.get();
     }
 }
@@ -20,6 +20,7 @@
  */
 package com.zimbra.cs.store;
 
+import java.io.File;
 import java.io.IOException;
 import java.io.Serializable;
 
@@ -103,6 +104,15 @@ public abstract class MailboxBlob {
 
     abstract public Blob getLocalBlob() throws IOException;
 
+    /**
+     * Returns the file that holds this blob's content byte for byte, or <tt>null</tt>
+     * if the content is compressed or isn't stored in a local file of its own.
+     * Callers may stream directly from the returned file.
+     */
+    public File getRawFile() throws IOException {
+        return null;
+    }
+
     @Override
     public String toString() {
         return mailbox.getId() + ":" + itemId + ":" + revision + "[" + getLocator() + "]";
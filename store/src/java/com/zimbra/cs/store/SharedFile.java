@@ -22,37 +22,69 @@ package com.zimbra.cs.store;
 import java.io.File;
 import java.io.IOException;
 import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.Inflater;
 
 import com.zimbra.cs.stats.ZimbraPerf;
 
 /**
- * Synchronized container for a <tt>RandomAccessFile</tt> object.  Used by multiple
+ * Reference-counted container for a <tt>FileChannel</tt>.  Used by multiple
  * <tt>BlobInputStream</tt> objects that share a single file descriptor.
+ * Reads are positional, so concurrent readers don't contend on a file pointer.
+ * <p>
+ * Once the file is retired from the {@link FileDescriptorCache}, the descriptor
+ * is closed as soon as the last reader releases it.
  */
 public class SharedFile {
 
-    private File mFile;
-    private RandomAccessFile mRAF;
-    private long mPos = 0;
-    
+    private final File mFile;
+    private final FileChannel mChannel;
+
     /**
-     * Keep track of the number of threads that are reading from this file.
-     * We do this so that we don't delete a file that's being read on
-     * Windows (bug 43497).
+     * Number of threads that are reading from this file, or -1 once the file is closed.
+     * We track readers so that we don't close a descriptor that is in use, or delete a
+     * file that's being read on Windows (bug 43497).
      */
-    private int mNumReaders;
-    
+    private final AtomicInteger mRefCount = new AtomicInteger();
+    private volatile boolean mRetired = false;
+
     /**
      * Remember the file's length, in case we have an open file descriptor and the
      * uncompressed cache deletes this file from disk.
      */
-    private long mLength;
+    private final long mLength;
+
+    /**
+     * End of the last read, used to track the seek rate.
+     */
+    private volatile long mPos = 0;
+
+    /**
+     * Block index if the file is block-compressed, in which case file offsets
+     * passed to {@link #read} are offsets into the uncompressed data.
+     */
+    private final BlockCompressedFormat.Index mIndex;
+    // guarded by this
+    private Inflater mInflater;
+    private byte[] mBlock;
+    private int mCurrentBlock = -1;
 
     /**
      * Creates a new <tt>SharedFile</tt> and opens the underlying
      * file descriptor.
      */
     SharedFile(File file)
+    throws IOException {
+        this(file, null);
+    }
+
+    /**
+     * Creates a new <tt>SharedFile</tt> for a block-compressed file and opens
+     * the underlying file descriptor.
+     */
+    SharedFile(File file, BlockCompressedFormat.Index index)
     throws IOException {
         if (file == null) {
             throw new NullPointerException("file cannot be null");
@@ -61,71 +93,136 @@ public class SharedFile {
             throw new IOException(file.getPath() + " does not exist.");
         }
         mFile = file;
-        mLength = file.length();
-        openIfNecessary();
+        mIndex = index;
+        mLength = index == null ? file.length() : index.getRawSize();
+        mChannel = new RandomAccessFile(file, "r").getChannel();
     }
 
-    synchronized long getLength() {
+    /**
+     * Returns false if the channel was closed, either by {@link #retire} or because a reader
+     * was interrupted, which closes it for all readers.
+     */
+    boolean isOpen() {
+        return mChannel.isOpen();
+    }
+
+    long getLength() {
         return mLength;
     }
     
-    synchronized int read(long fileOffset, byte[] b, int off, int len)
+    int read(long fileOffset, byte[] b, int off, int len)
     throws IOException {
-        int numRead = 0;
-        boolean seeked = false;
-        openIfNecessary();
-        
-        if (mPos != fileOffset) {
-            mRAF.seek(fileOffset);
-            mPos = fileOffset;
-            seeked = true;
+        if (mIndex != null) {
+            synchronized (this) {
+                return readBlocks(fileOffset, b, off, len);
+            }
         }
-        numRead = mRAF.read(b, off, len);
-        mPos += numRead;
-        
-        if (seeked) {
+
+        int numRead = mChannel.read(ByteBuffer.wrap(b, off, len), fileOffset);
+        if (mPos != fileOffset) {
             ZimbraPerf.COUNTER_BLOB_INPUT_STREAM_SEEK_RATE.increment(100);
         } else {
             ZimbraPerf.COUNTER_BLOB_INPUT_STREAM_SEEK_RATE.increment(0);
         }
+        if (numRead > 0) {
+            mPos = fileOffset + numRead;
+        }
         ZimbraPerf.COUNTER_BLOB_INPUT_STREAM_READ.increment();
         return numRead;
     }
-    
-    synchronized void aboutToRead() {
-        mNumReaders++;
-    }
-    
-    synchronized void doneReading() {
-        if (mNumReaders > 0) {
-            mNumReaders--;
+
+    /**
+     * Reads uncompressed data from a block-compressed file, inflating only the
+     * blocks that the requested range touches.
+     */
+    private int readBlocks(long offset, byte[] b, int off, int len)
+    throws IOException {
+        if (offset >= mLength) {
+            return -1;
         }
+        if (mInflater == null) {
+            mInflater = new Inflater(true);
+            mBlock = new byte[mIndex.getBlockSize()];
+        }
+
+        int numRead = 0;
+        while (numRead < len && offset < mLength) {
+            int block = (int) (offset / mIndex.getBlockSize());
+            if (block != mCurrentBlock) {
+                if (block != mCurrentBlock + 1) {
+                    ZimbraPerf.COUNTER_BLOB_INPUT_STREAM_SEEK_RATE.increment(100);
+                } else {
+                    ZimbraPerf.COUNTER_BLOB_INPUT_STREAM_SEEK_RATE.increment(0);
+                }
+                mCurrentBlock = -1;
+                BlockCompressedFormat.readBlock(mChannel, mIndex, block, mBlock, mInflater);
+                mCurrentBlock = block;
+            }
+            int blockOffset = (int) (offset - (long) block * mIndex.getBlockSize());
+            int n = Math.min(len - numRead, mIndex.getBlockLength(block) - blockOffset);
+            System.arraycopy(mBlock, blockOffset, b, off + numRead, n);
+            numRead += n;
+            offset += n;
+        }
+        ZimbraPerf.COUNTER_BLOB_INPUT_STREAM_READ.increment();
+        return numRead;
     }
-    
-    synchronized int getNumReaders() {
-        return mNumReaders;
-    }
-    
-    private synchronized void openIfNecessary()
-    throws IOException {
-        if (mRAF == null) {
-            if (!mFile.exists()) {
-                throw new IOException(mFile.getPath() + " does not exist.");
+
+    /**
+     * Registers a reader.
+     *
+     * @return false if the file has already been closed
+     */
+    boolean acquire() {
+        while (true) {
+            int count = mRefCount.get();
+            if (count < 0) {
+                return false;
+            } else if (mRefCount.compareAndSet(count, count + 1)) {
+                return true;
             }
-            mRAF = new RandomAccessFile(mFile, "r");
-            mPos = 0;
         }
     }
-    
-    synchronized void close()
-    throws IOException {
-        if (mRAF != null) {
-            mRAF.close();
-            mPos = 0;
-            mRAF = null;
+
+    /**
+     * Unregisters a reader, closing the file if it has been retired and this
+     * was the last reader.
+     *
+     * @return true if this call closed the file
+     */
+    boolean release() throws IOException {
+        if (mRefCount.decrementAndGet() == 0 && mRetired) {
+            return closeIfUnused();
         }
+        return false;
     }
-    
+
+    /**
+     * Marks the file as no longer cached, closing it now if there are no readers.
+     * Otherwise the last reader closes it in {@link #release}.
+     *
+     * @return true if this call closed the file
+     */
+    boolean retire() throws IOException {
+        mRetired = true;
+        return closeIfUnused();
+    }
+
+    private boolean closeIfUnused() throws IOException {
+        if (!mRefCount.compareAndSet(0, -1)) {
+            return false;
+        }
+        mChannel.close();
+        synchronized (this) {
+            if (mInflater != null) {
+                mInflater.end();
+                mInflater = null;
+                mBlock = null;
+            }
+        }
+        return true;
+    }
+
     public String toString() {
         return mFile.toString();
     }
@@ -31,6 +31,7 @@ import com.zimbra.cs.mailbox.Mailbox;
 import com.zimbra.cs.store.Blob;
 import com.zimbra.cs.store.BlobBuilder;
 import com.zimbra.cs.store.BlobInputStream;
+import com.zimbra.cs.store.BlockCompressedOutputStream;
 import com.zimbra.cs.store.FileDescriptorCache;
 import com.zimbra.cs.store.IncomingDirectory;
 import com.zimbra.cs.store.MailboxBlob;
@@ -50,7 +51,7 @@ public final class FileBlobStore extends StoreManager {
     public void startup() throws IOException, ServiceException {
         IncomingDirectory.startSweeper();
 
-        // initialize file uncompressed file cache and file descriptor cache
+        // initialize file descriptor cache, and the uncompressed file cache for legacy gzip blobs
         File tmpDir = new File(LC.zimbra_tmp_directory.value());
         File ufCacheDir = new File(tmpDir, "uncompressed");
         FileUtil.ensureDirExists(ufCacheDir);
@@ -171,7 +172,7 @@ public final class FileBlobStore extends StoreManager {
                 FileUtil.copy(srcFile, dest, !DebugConfig.disableMessageStoreFsync);
                 destCompressed = src.isCompressed();
             } else {
-                FileUtil.compress(srcFile, dest, !DebugConfig.disableMessageStoreFsync);
+                BlockCompressedOutputStream.compress(srcFile, dest, !DebugConfig.disableMessageStoreFsync);
                 destCompressed = true;
             }
         } else {
@@ -16,6 +16,9 @@
  */
 package com.zimbra.cs.store.file;
 
+import java.io.File;
+import java.io.IOException;
+
 import com.zimbra.cs.mailbox.Mailbox;
 import com.zimbra.cs.store.MailboxBlob;
 
@@ -40,4 +43,12 @@ public class VolumeMailboxBlob extends MailboxBlob {
     public VolumeBlob getLocalBlob() {
         return blob;
     }
+
+    @Override
+    public File getRawFile() throws IOException {
+        if (blob == null || blob.isCompressed()) {
+            return null;
+        }
+        return blob.getFile();
+    }
 }
@@ -0,0 +1,586 @@
+/*
+ * ***** BEGIN LICENSE BLOCK *****
+ * Zimbra Collaboration Suite Server
+ * Copyright (C) 2017 Synacor, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software Foundation,
+ * version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <https://www.gnu.org/licenses/>.
+ * ***** END LICENSE BLOCK *****
+ */
+package com.zimbra.cs.store.packed;
+
+import java.io.ByteArrayInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import com.zimbra.common.localconfig.DebugConfig;
+import com.zimbra.common.util.ByteUtil;
+import com.zimbra.common.util.FileUtil;
+import com.zimbra.common.util.ZimbraLog;
+
+/**
+ * Blobs of one mailbox, stored in append-only pack files.
+ * <p>
+ * Blobs up to the maximum packed size are appended to the current pack file; larger blobs
+ * are written as loose files next to the packs.  An append-only index log maps each blob key
+ * to its pack, offset and length, and is replayed into memory when the store is opened.
+ * Appends are made durable by a group fsync, so that concurrent deliveries share one sync
+ * of the pack and the index log.  {@link #compact} copies the live blobs out of packs that
+ * are mostly garbage and deletes those packs.
+ */
+final class MailboxPackStore {
+
+    static final String INDEX_FILE = "index.log";
+    private static final String INDEX_TMP_FILE = "index.log.tmp";
+    private static final String PACK_PREFIX = "pack-";
+    private static final String PACK_SUFFIX = ".dat";
+    private static final String LOOSE_SUFFIX = ".msg";
+
+    private static final byte OP_PUT = 1;
+    private static final byte OP_DELETE = 2;
+    /** op, key, pack, offset, length */
+    static final int RECORD_LENGTH = 1 + 8 + 4 + 8 + 4;
+    /** Pack number of blobs stored as loose files. */
+    private static final int LOOSE = -1;
+
+    private static final class Entry {
+        final int pack;
+        final long offset;
+        final int length;
+
+        Entry(int pack, long offset, int length) {
+            this.pack = pack;
+            this.offset = offset;
+            this.length = length;
+        }
+    }
+
+    private static final class PackStats {
+        long size;
+        long liveBytes;
+    }
+
+    private final File dir;
+    private final int maxBlobSize;
+    private final long maxPackSize;
+
+    // guarded by this
+    private final Map<Long, Entry> index = new HashMap<Long, Entry>();
+    private final Map<Integer, PackStats> packs = new HashMap<Integer, PackStats>();
+    private final Map<Integer, FileChannel> readers = new HashMap<Integer, FileChannel>();
+    private long nextKey = 1;
+    private long indexRecords = 0;
+    private int currentPack = 0;
+    private FileChannel packChannel;
+    private FileChannel indexChannel;
+    private long writeSeq = 0;
+    private boolean closed = false;
+
+    /** Held for reading while a pack is read, and for writing while a pack is deleted. */
+    private final ReadWriteLock packLock = new ReentrantReadWriteLock();
+    private final Object syncLock = new Object();
+    private long syncedSeq = 0;
+
+    MailboxPackStore(File dir, int maxBlobSize, long maxPackSize) throws IOException {
+        this.dir = dir;
+        this.maxBlobSize = maxBlobSize;
+        this.maxPackSize = maxPackSize;
+        FileUtil.ensureDirExists(dir);
+        replayIndex();
+        openCurrentPack();
+    }
+
+    File getDirectory() {
+        return dir;
+    }
+
+    /**
+     * Reads the index log into memory.  A partial record at the end of the log, left by a
+     * crash during an append, is truncated.
+     */
+    private void replayIndex() throws IOException {
+        File file = new File(dir, INDEX_FILE);
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        indexChannel = raf.getChannel();
+        long length = indexChannel.size();
+        long valid = length - length % RECORD_LENGTH;
+        ByteBuffer buf = ByteBuffer.allocate(RECORD_LENGTH * 1024);
+        long pos = 0;
+        while (pos < valid) {
+            buf.clear();
+            buf.limit((int) Math.min(buf.capacity(), valid - pos));
+            while (buf.hasRemaining()) {
+                if (indexChannel.read(buf, pos + buf.position()) < 0) {
+                    throw new EOFException("unexpected end of " + file);
+                }
+            }
+            buf.flip();
+            while (buf.remaining() >= RECORD_LENGTH) {
+                byte op = buf.get();
+                long key = buf.getLong();
+                int pack = buf.getInt();
+                long offset = buf.getLong();
+                int len = buf.getInt();
+                if (op == OP_PUT) {
+                    index.put(key, new Entry(pack, offset, len));
+                } else {
+                    index.remove(key);
+                }
+                nextKey = Math.max(nextKey, key + 1);
+                indexRecords++;
+            }
+            pos += buf.limit();
+        }
+        if (valid != length) {
+            ZimbraLog.store.warn("truncating partial record at the end of %s", file);
+            indexChannel.truncate(valid);
+        }
+        indexChannel.position(valid);
+
+        for (String name : dir.list()) {
+            if (name.startsWith(PACK_PREFIX) && name.endsWith(PACK_SUFFIX)) {
+                int pack = Integer.parseInt(name.substring(PACK_PREFIX.length(), name.length() - PACK_SUFFIX.length()));
+                getPackStats(pack).size = new File(dir, name).length();
+                currentPack = Math.max(currentPack, pack);
+            }
+        }
+        for (Entry entry : index.values()) {
+            if (entry.pack != LOOSE) {
+                getPackStats(entry.pack).liveBytes += entry.length;
+            }
+        }
+    }
+
+    private PackStats getPackStats(int pack) {
+        PackStats stats = packs.get(pack);
+        if (stats == null) {
+            stats = new PackStats();
+            packs.put(pack, stats);
+        }
+        return stats;
+    }
+
+    private File getPackFile(int pack) {
+        return new File(dir, PACK_PREFIX + pack + PACK_SUFFIX);
+    }
+
+    private File getLooseFile(long key) {
+        return new File(dir, key + LOOSE_SUFFIX);
+    }
+
+    private void openCurrentPack() throws IOException {
+        PackStats stats = packs.get(currentPack);
+        if (stats != null && stats.size >= maxPackSize) {
+            currentPack++;
+        }
+        packChannel = new RandomAccessFile(getPackFile(currentPack), "rw").getChannel();
+        getPackStats(currentPack).size = packChannel.size();
+        packChannel.position(packChannel.size());
+    }
+
+    /** Starts a new pack once the current one is full.  Caller must hold the monitor. */
+    private void rollPackIfNecessary(int len) throws IOException {
+        if (packChannel.size() > 0 && packChannel.size() + len > maxPackSize) {
+            // the old pack is no longer covered by the group sync, so sync it now
+            if (!DebugConfig.disableMessageStoreFsync) {
+                packChannel.force(false);
+            }
+            // keep the channel open for reading; a concurrent sync may still be using it
+            FileChannel old = readers.put(currentPack, packChannel);
+            if (old != null) {
+                old.close();
+            }
+            currentPack++;
+            packChannel = new RandomAccessFile(getPackFile(currentPack), "rw").getChannel();
+            getPackStats(currentPack).size = 0;
+        }
+    }
+
+    /**
+     * Stores a blob and returns its key.  The blob and its index record are durable when
+     * this method returns.
+     */
+    long put(InputStream in, long actualSize) throws IOException {
+        if (actualSize < 0 || actualSize > maxBlobSize) {
+            return putLoose(in);
+        }
+        byte[] data = ByteUtil.getContent(in, (int) actualSize);
+        if (data.length > maxBlobSize) {
+            return putLoose(new ByteArrayInputStream(data));
+        }
+
+        long seq;
+        long key;
+        synchronized (this) {
+            checkOpen();
+            rollPackIfNecessary(data.length);
+            long offset = packChannel.position();
+            writeFully(packChannel, ByteBuffer.wrap(data));
+            PackStats stats = getPackStats(currentPack);
+            stats.size += data.length;
+            stats.liveBytes += data.length;
+            key = nextKey++;
+            Entry entry = new Entry(currentPack, offset, data.length);
+            index.put(key, entry);
+            appendRecord(OP_PUT, key, entry);
+            seq = ++writeSeq;
+        }
+        sync(seq);
+        return key;
+    }
+
+    private long putLoose(InputStream in) throws IOException {
+        long key;
+        synchronized (this) {
+            checkOpen();
+            key = nextKey++;
+        }
+        File file = getLooseFile(key);
+        FileOutputStream out = new FileOutputStream(file);
+        long len;
+        try {
+            len = ByteUtil.copy(in, false, out, false);
+            if (!DebugConfig.disableMessageStoreFsync) {
+                out.getChannel().force(true);
+            }
+        } catch (IOException e) {
+            ByteUtil.closeStream(out);
+            file.delete();
+            throw e;
+        } finally {
+            ByteUtil.closeStream(out);
+        }
+
+        long seq;
+        synchronized (this) {
+            checkOpen();
+            Entry entry = new Entry(LOOSE, 0, (int) Math.min(len, Integer.MAX_VALUE));
+            index.put(key, entry);
+            appendRecord(OP_PUT, key, entry);
+            seq = ++writeSeq;
+        }
+        sync(seq);
+        return key;
+    }
+
+    /**
+     * Appends a record to the index log.  Caller must hold the monitor.
+     */
+    private void appendRecord(byte op, long key, Entry entry) throws IOException {
+        ByteBuffer record = ByteBuffer.allocate(RECORD_LENGTH);
+        record.put(op).putLong(key).putInt(entry.pack).putLong(entry.offset).putInt(entry.length).flip();
+        writeFully(indexChannel, record);
+        indexRecords++;
+    }
+
+    private static void writeFully(FileChannel channel, ByteBuffer buf) throws IOException {
+        while (buf.hasRemaining()) {
+            channel.write(buf);
+        }
+    }
+
+    /**
+     * Waits until everything up to write <tt>seq</tt> is on disk.  One caller syncs the pack and
+     * the index log on behalf of every write that completed before it started.
+     */
+    private void sync(long seq) throws IOException {
+        if (DebugConfig.disableMessageStoreFsync) {
+            return;
+        }
+        synchronized (syncLock) {
+            if (syncedSeq >= seq) {
+                return;
+            }
+            long target;
+            FileChannel pack;
+            FileChannel log;
+            synchronized (this) {
+                target = writeSeq;
+                pack = packChannel;
+                log = indexChannel;
+            }
+            pack.force(false);
+            log.force(false);
+            syncedSeq = target;
+        }
+    }
+
+    /**
+     * Returns the content of a blob, or <tt>null</tt> if there is no blob with the given key.
+     */
+    InputStream get(long key) throws IOException {
+        packLock.readLock().lock();
+        try {
+            Entry entry;
+            FileChannel channel;
+            synchronized (this) {
+                checkOpen();
+                entry = index.get(key);
+                if (entry == null) {
+                    return null;
+                } else if (entry.pack == LOOSE) {
+                    return new FileInputStream(getLooseFile(key));
+                }
+                channel = readers.get(entry.pack);
+                if (channel == null) {
+                    channel = new RandomAccessFile(getPackFile(entry.pack), "r").getChannel();
+                    readers.put(entry.pack, channel);
+                }
+            }
+            ByteBuffer buf = ByteBuffer.allocate(entry.length);
+            while (buf.hasRemaining()) {
+                if (channel.read(buf, entry.offset + buf.position()) < 0) {
+                    throw new EOFException("blob " + key + " truncated in " + getPackFile(entry.pack));
+                }
+            }
+            return new ByteArrayInputStream(buf.array());
+        } finally {
+            packLock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Returns the length of a blob, or -1 if there is no blob with the given key.
+     */
+    synchronized long getLength(long key) throws IOException {
+        checkOpen();
+        Entry entry = index.get(key);
+        if (entry == null) {
+            return -1;
+        }
+        return entry.pack == LOOSE ? getLooseFile(key).length() : entry.length;
+    }
+
+    /**
+     * Returns the file of a blob stored as a loose file, or <tt>null</tt> if the blob is packed
+     * or there is no blob with the given key.
+     */
+    synchronized File getLooseBlobFile(long key) throws IOException {
+        checkOpen();
+        Entry entry = index.get(key);
+        return entry != null && entry.pack == LOOSE ? getLooseFile(key) : null;
+    }
+
+    /**
+     * Deletes a blob.  Deletes are not synced; a delete lost in a crash leaves an orphaned blob
+     * for the consistency checker to report.
+     */
+    boolean delete(long key) throws IOException {
+        Entry entry;
+        synchronized (this) {
+            checkOpen();
+            entry = index.remove(key);
+            if (entry == null) {
+                return false;
+            }
+            appendRecord(OP_DELETE, key, entry);
+            if (entry.pack != LOOSE) {
+                PackStats stats = packs.get(entry.pack);
+                if (stats != null) {
+                    stats.liveBytes -= entry.length;
+                }
+            }
+        }
+        if (entry.pack == LOOSE) {
+            return getLooseFile(key).delete();
+        }
+        return true;
+    }
+
+    synchronized List<Long> getKeys() {
+        return new ArrayList<Long>(index.keySet());
+    }
+
+    /**
+     * Returns true if a full pack has at least <tt>threshold</tt> percent garbage.
+     */
+    synchronized boolean needsCompaction(int threshold) {
+        return !getCompactablePacks(threshold).isEmpty();
+    }
+
+    private List<Integer> getCompactablePacks(int threshold) {
+        List<Integer> result = new ArrayList<Integer>();
+        for (Map.Entry<Integer, PackStats> pack : packs.entrySet()) {
+            PackStats stats = pack.getValue();
+            if (pack.getKey() != currentPack && stats.size > 0 &&
+                    (stats.size - stats.liveBytes) * 100 >= stats.size * threshold) {
+                result.add(pack.getKey());
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Copies the live blobs out of every full pack with at least <tt>threshold</tt> percent
+     * garbage into the current pack, deletes the old packs, and rewrites the index log.
+     */
+    void compact(int threshold) throws IOException {
+        List<Integer> victims;
+        synchronized (this) {
+            victims = getCompactablePacks(threshold);
+        }
+        for (int pack : victims) {
+            Map<Long, Entry> live = new HashMap<Long, Entry>();
+            synchronized (this) {
+                for (Map.Entry<Long, Entry> entry : index.entrySet()) {
+                    if (entry.getValue().pack == pack) {
+                        live.put(entry.getKey(), entry.getValue());
+                    }
+                }
+            }
+            for (Map.Entry<Long, Entry> entry : live.entrySet()) {
+                long key = entry.getKey();
+                InputStream in = get(key);
+                if (in == null) {
+                    continue;
+                }
+                byte[] data = ByteUtil.getContent(in, entry.getValue().length);
+                synchronized (this) {
+                    checkOpen();
+                    if (index.get(key) != entry.getValue()) {
+                        continue;  // deleted while we were copying it
+                    }
+                    rollPackIfNecessary(data.length);
+                    long offset = packChannel.position();
+                    writeFully(packChannel, ByteBuffer.wrap(data));
+                    PackStats stats = getPackStats(currentPack);
+                    stats.size += data.length;
+                    stats.liveBytes += data.length;
+                    Entry moved = new Entry(currentPack, offset, data.length);
+                    index.put(key, moved);
+                    appendRecord(OP_PUT, key, moved);
+                    writeSeq++;
+                }
+            }
+            long seq;
+            synchronized (this) {
+                seq = writeSeq;
+            }
+            // the copies must be durable before the originals go away
+            sync(seq);
+
+            packLock.writeLock().lock();
+            try {
+                synchronized (syncLock) {
+                    synchronized (this) {
+                        FileChannel reader = readers.remove(pack);
+                        if (reader != null) {
+                            reader.close();
+                        }
+                        packs.remove(pack);
+                    }
+                }
+                if (!getPackFile(pack).delete()) {
+                    ZimbraLog.store.warn("unable to delete compacted pack %s", getPackFile(pack));
+                }
+            } finally {
+                packLock.writeLock().unlock();
+            }
+            ZimbraLog.store.debug("compacted pack %d in %s: moved %d blobs", pack, dir, live.size());
+        }
+        rewriteIndexIfNecessary();
+    }
+
+    /**
+     * Replaces the index log with a snapshot of the live entries once most of its records
+     * are obsolete.
+     */
+    private void rewriteIndexIfNecessary() throws IOException {
+        // hold off group syncs, which use the old log's channel
+        synchronized (syncLock) {
+            synchronized (this) {
+                if (!closed && indexRecords > index.size() * 2L) {
+                    rewriteIndex();
+                }
+            }
+        }
+    }
+
+    private void rewriteIndex() throws IOException {
+        File tmp = new File(dir, INDEX_TMP_FILE);
+        RandomAccessFile raf = new RandomAccessFile(tmp, "rw");
+        FileChannel channel = raf.getChannel();
+        boolean success = false;
+        try {
+            channel.truncate(0);
+            ByteBuffer buf = ByteBuffer.allocate(RECORD_LENGTH * 1024);
+            for (Map.Entry<Long, Entry> entry : index.entrySet()) {
+                if (buf.remaining() < RECORD_LENGTH) {
+                    buf.flip();
+                    writeFully(channel, buf);
+                    buf.clear();
+                }
+                Entry value = entry.getValue();
+                buf.put(OP_PUT).putLong(entry.getKey()).putInt(value.pack).putLong(value.offset).putInt(value.length);
+            }
+            buf.flip();
+            writeFully(channel, buf);
+            channel.force(true);
+            success = true;
+        } finally {
+            if (!success) {
+                channel.close();
+                tmp.delete();
+            }
+        }
+        // the pack must be durable before the old log that also covers it is replaced
+        packChannel.force(false);
+        if (!tmp.renameTo(new File(dir, INDEX_FILE))) {
+            channel.close();
+            tmp.delete();
+            throw new IOException("unable to replace index log in " + dir);
+        }
+        indexChannel.close();
+        indexChannel = channel;
+        indexRecords = index.size();
+    }
+
+    private void checkOpen() throws IOException {
+        if (closed) {
+            throw new IOException("pack store is closed: " + dir);
+        }
+    }
+
+    synchronized void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        for (FileChannel reader : readers.values()) {
+            closeQuietly(reader);
+        }
+        readers.clear();
+        closeQuietly(packChannel);
+        closeQuietly(indexChannel);
+    }
+
+    private static void closeQuietly(FileChannel channel) {
+        try {
+            if (channel != null) {
+                channel.close();
+            }
+        } catch (IOException e) {
+            ZimbraLog.store.debug("unable to close channel", e);
+        }
+    }
+}
@@ -0,0 +1,502 @@
+/*
+ * ***** BEGIN LICENSE BLOCK *****
+ * Zimbra Collaboration Suite Server
+ * Copyright (C) 2017 Synacor, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software Foundation,
+ * version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <https://www.gnu.org/licenses/>.
+ * ***** END LICENSE BLOCK *****
+ */
+package com.zimbra.cs.store.packed;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.google.common.util.concurrent.Uninterruptibles;
+import com.zimbra.common.localconfig.LC;
+import com.zimbra.common.service.ServiceException;
+import com.zimbra.common.util.ByteUtil;
+import com.zimbra.common.util.FileUtil;
+import com.zimbra.common.util.ZimbraLog;
+import com.zimbra.cs.mailbox.Mailbox;
+import com.zimbra.cs.store.Blob;
+import com.zimbra.cs.store.MailboxBlob;
+import com.zimbra.cs.store.StagedBlob;
+import com.zimbra.cs.store.external.ExternalBlob;
+import com.zimbra.cs.store.external.ExternalStoreManager;
+import com.zimbra.cs.store.file.FileBlobStore;
+import com.zimbra.cs.store.file.VolumeMailboxBlob;
+
+/**
+ * Store manager that packs small blobs into per-mailbox append-only pack files, so that a
+ * delivery costs one append and a shared fsync instead of a new file, a directory entry and
+ * an fsync of its own.  Enabled by setting <tt>zimbra_class_store</tt> to this class.
+ * <p>
+ * Locators have the form <tt>mailboxId-key</tt>.  Blobs larger than
+ * <tt>packed_store_max_blob_size</tt> are kept as loose files next to the packs.  A
+ * background task compacts packs whose share of deleted blobs reaches
+ * <tt>packed_store_compaction_threshold</tt> percent.
+ * <p>
+ * Packs are local, so unlike the remote stores blobs are read straight from their pack or loose
+ * file instead of being copied into the local blob cache.  About
+ * <tt>packed_store_max_open_mailboxes</tt> mailbox stores are kept open; beyond that the least
+ * recently used store that isn't in use is closed.
+ * <p>
+ * Switching an existing server to this store manager needs no migration.  Blobs written before
+ * the switch keep their volume id as locator and stay in their volume; they are read and
+ * deleted through {@link FileBlobStore} as before, while new blobs go into packs.  Moving the
+ * old blobs into packs is left to the regular blob moves between volumes.
+ *
+ * @see MailboxPackStore
+ */
+public class PackedStoreManager extends ExternalStoreManager {
+
+    private File root;
+    // guarded by itself; in access order, so that the eldest entry is the least recently used store
+    private final Map<Integer, OpenStore> stores = new LinkedHashMap<Integer, OpenStore>(16, 0.75f, true);
+    // stores removed from stores that aren't closed yet, by mailbox id; guarded by stores
+    private final Map<Integer, OpenStore> retiredStores = new HashMap<Integer, OpenStore>();
+    // reads and deletes the blobs written before the switch to packs
+    private final FileBlobStore fileStore = new FileBlobStore();
+    private ScheduledExecutorService compactor;
+
+    /**
+     * A mailbox store and the number of operations using it.  The store is opened by its first
+     * user and closed once it is retired and no longer in use, both outside of the lock on
+     * {@link #stores}, so that one mailbox's disk I/O doesn't hold up the others.
+     */
+    private static final class OpenStore {
+        final int mailboxId;
+        final File dir;
+        // retired store of the same mailbox, which must be closed before this one opens the directory;
+        // two open stores on the same directory would corrupt it.  Guarded by this, and cleared once
+        // it is closed so that retired stores don't pile up behind a mailbox.
+        private OpenStore predecessor;
+        private final CountDownLatch closed = new CountDownLatch(1);
+        private MailboxPackStore store; // guarded by this
+        int users = 0; // guarded by stores
+        boolean retired = false; // guarded by stores
+        boolean deleteOnClose = false; // guarded by stores
+
+        OpenStore(int mailboxId, File dir, OpenStore predecessor) {
+            this.mailboxId = mailboxId;
+            this.dir = dir;
+            this.predecessor = predecessor;
+        }
+
+        /** Returns the store, opening it on first use. */
+        synchronized MailboxPackStore get() throws IOException {
+            if (store == null) {
+                awaitPredecessor();
+                store = new MailboxPackStore(dir, LC.packed_store_max_blob_size.intValue(),
+                        LC.packed_store_max_pack_size.longValue());
+            }
+            return store;
+        }
+
+        /** Returns the store, or null if nobody has opened it yet. */
+        synchronized MailboxPackStore getIfOpen() {
+            return store;
+        }
+
+        /** Closes the store and, if the mailbox was deleted, removes its directory. */
+        void close(boolean delete) {
+            try {
+                awaitPredecessor();
+                synchronized (this) {
+                    if (store != null) {
+                        store.close();
+                    }
+                }
+                if (delete) {
+                    FileUtil.deleteDir(dir);
+                }
+            } catch (IOException e) {
+                ZimbraLog.store.warn("unable to delete packs in %s", dir, e);
+            } finally {
+                closed.countDown();
+            }
+        }
+
+        private void awaitPredecessor() {
+            OpenStore prev;
+            synchronized (this) {
+                prev = predecessor;
+            }
+            if (prev != null) {
+                Uninterruptibles.awaitUninterruptibly(prev.closed);
+                synchronized (this) {
+                    predecessor = null;
+                }
+            }
+        }
+    }
+
+    @Override
+    public void startup() throws IOException, ServiceException {
+        super.startup();
+        root = new File(LC.packed_store_directory.value());
+        FileUtil.ensureDirExists(root);
+        long interval = LC.packed_store_compaction_interval.longValue();
+        if (interval > 0) {
+            compactor = Executors.newSingleThreadScheduledExecutor(
+                    new ThreadFactoryBuilder().setNameFormat("PackedStoreCompactor").setDaemon(true).build());
+            compactor.scheduleWithFixedDelay(new Runnable() {
+                @Override
+                public void run() {
+                    compactAll();
+                }
+            }, interval, interval, TimeUnit.MILLISECONDS);
+        }
+        ZimbraLog.store.info("Using PackedStoreManager with packs in %s", root);
+    }
+
+    @Override
+    public void shutdown() {
+        if (compactor != null) {
+            compactor.shutdownNow();
+        }
+        List<OpenStore> open;
+        synchronized (stores) {
+            open = new ArrayList<OpenStore>(stores.values());
+            stores.clear();
+        }
+        for (OpenStore store : open) {
+            store.close(false);
+        }
+        super.shutdown();
+    }
+
+    @VisibleForTesting
+    File getMailboxDirectory(int mboxId) {
+        return new File(root, (mboxId >> 12) + File.separator + mboxId);
+    }
+
+    /**
+     * Returns the mailbox's store entry.  The store itself is opened by {@link OpenStore#get}.
+     * Every call must be paired with a call to {@link #release}, so that the store isn't closed
+     * while it is in use.
+     */
+    private OpenStore acquire(Mailbox mbox) {
+        OpenStore open;
+        List<OpenStore> evicted;
+        synchronized (stores) {
+            open = stores.get(mbox.getId());
+            if (open == null) {
+                open = new OpenStore(mbox.getId(), getMailboxDirectory(mbox.getId()), retiredStores.get(mbox.getId()));
+                stores.put(mbox.getId(), open);
+            }
+            open.users++; // before evicting, so that the new store isn't the one closed to make room
+            evicted = evict();
+        }
+        for (OpenStore old : evicted) {
+            close(old);
+        }
+        return open;
+    }
+
+    private void release(OpenStore open) {
+        synchronized (stores) {
+            if (--open.users > 0 || !open.retired) {
+                return;
+            }
+        }
+        close(open);
+    }
+
+    /**
+     * Retires the least recently used stores beyond <tt>packed_store_max_open_mailboxes</tt>
+     * that aren't in use.  A busy store stays open until a later call.
+     *
+     * @return the retired stores, to be closed once the lock on {@link #stores} is released
+     */
+    private List<OpenStore> evict() {
+        assert Thread.holdsLock(stores);
+        int excess = stores.size() - LC.packed_store_max_open_mailboxes.intValue();
+        if (excess <= 0) {
+            return Collections.emptyList();
+        }
+        List<OpenStore> evicted = new ArrayList<OpenStore>(excess);
+        for (Iterator<OpenStore> it = stores.values().iterator(); it.hasNext() && evicted.size() < excess;) {
+            OpenStore open = it.next();
+            if (open.users == 0) {
+                it.remove();
+                retire(open);
+                evicted.add(open);
+            }
+        }
+        return evicted;
+    }
+
+    /**
+     * Marks a store removed from {@link #stores} as retired.  It is closed by the caller if it
+     * isn't in use, otherwise by the {@link #release} of its last user.
+     *
+     * @return true if the store isn't in use and must be closed now
+     */
+    private boolean retire(OpenStore open) {
+        assert Thread.holdsLock(stores);
+        open.retired = true;
+        retiredStores.put(open.mailboxId, open);
+        return open.users == 0;
+    }
+
+    /** Closes a retired store that is no longer in use. */
+    private void close(OpenStore open) {
+        boolean delete;
+        synchronized (stores) {
+            delete = open.deleteOnClose;
+        }
+        open.close(delete);
+        synchronized (stores) {
+            if (retiredStores.get(open.mailboxId) == open) {
+                retiredStores.remove(open.mailboxId);
+            }
+        }
+    }
+
+    /** Whether the locator was written by this store manager rather than by {@link FileBlobStore}. */
+    private static boolean isPacked(String locator) {
+        return locator != null && locator.indexOf('-') > 0;
+    }
+
+    private static long getKey(String locator, Mailbox mbox) throws IOException {
+        String prefix = mbox.getId() + "-";
+        if (locator == null || !locator.startsWith(prefix)) {
+            throw new IOException("locator " + locator + " does not belong to mailbox " + mbox.getId());
+        }
+        try {
+            return Long.parseLong(locator.substring(prefix.length()));
+        } catch (NumberFormatException e) {
+            throw new IOException("invalid locator " + locator);
+        }
+    }
+
+    @Override
+    public String writeStreamToStore(InputStream in, long actualSize, Mailbox mbox) throws IOException {
+        OpenStore open = acquire(mbox);
+        try {
+            return mbox.getId() + "-" + open.get().put(in, actualSize);
+        } finally {
+            release(open);
+        }
+    }
+
+    @Override
+    public InputStream readStreamFromStore(String locator, Mailbox mbox) throws IOException {
+        long key = getKey(locator, mbox);
+        OpenStore open = acquire(mbox);
+        try {
+            return open.get().get(key);
+        } finally {
+            release(open);
+        }
+    }
+
+    @Override
+    public boolean deleteFromStore(String locator, Mailbox mbox) throws IOException {
+        long key = getKey(locator, mbox);
+        OpenStore open = acquire(mbox);
+        try {
+            return open.get().delete(key);
+        } finally {
+            release(open);
+        }
+    }
+
+    @Override
+    public StagedBlob stage(Blob blob, Mailbox mbox) throws IOException, ServiceException {
+        // stream into the pack without also copying the blob into the local cache
+        InputStream in = getContent(blob);
+        try {
+            return stage(in, blob.getRawSize(), mbox);
+        } finally {
+            ByteUtil.closeStream(in);
+        }
+    }
+
+    @Override
+    public MailboxBlob getMailboxBlob(Mailbox mbox, int itemId, int revision, String locator, boolean validate)
+    throws ServiceException {
+        if (!isPacked(locator)) {
+            return fileStore.getMailboxBlob(mbox, itemId, revision, locator, validate);
+        }
+        return super.getMailboxBlob(mbox, itemId, revision, locator, validate);
+    }
+
+    @Override
+    public boolean delete(MailboxBlob mblob) throws IOException {
+        if (mblob instanceof VolumeMailboxBlob) {
+            return fileStore.delete(mblob);
+        }
+        return super.delete(mblob);
+    }
+
+    @Override
+    public InputStream getContent(MailboxBlob mblob) throws IOException {
+        if (mblob == null) {
+            return null;
+        } else if (mblob instanceof VolumeMailboxBlob) {
+            return fileStore.getContent(mblob);
+        }
+        InputStream in = readStreamFromStore(mblob.getLocator(), mblob.getMailbox());
+        if (in == null) {
+            throw new IOException("no blob for locator " + mblob.getLocator());
+        }
+        return in;
+    }
+
+    @Override
+    public InputStream getContent(Blob blob) throws IOException {
+        if (blob instanceof PackedBlob) {
+            return blob.getInputStream();
+        } else if (!(blob instanceof ExternalBlob)) {
+            // a volume blob written before the switch to packs
+            return fileStore.getContent(blob);
+        }
+        return super.getContent(blob);
+    }
+
+    /**
+     * Returns loose blobs as their own file and packed blobs as a {@link PackedBlob}, without
+     * going through the local blob cache.
+     */
+    @Override
+    protected Blob getLocalBlob(Mailbox mbox, String locator, boolean fromCache) throws IOException {
+        long key = getKey(locator, mbox);
+        File loose;
+        long length;
+        OpenStore open = acquire(mbox);
+        try {
+            MailboxPackStore store = open.get();
+            loose = store.getLooseBlobFile(key);
+            length = store.getLength(key);
+        } finally {
+            release(open);
+        }
+        if (length < 0) {
+            throw new IOException("no blob for locator " + locator);
+        }
+        ExternalBlob blob = loose != null ? new ExternalBlob(loose, length, null) :
+                new PackedBlob(getMailboxDirectory(mbox.getId()), length);
+        blob.setLocator(locator);
+        blob.setMbox(mbox);
+        return blob;
+    }
+
+    /**
+     * A blob stored inside a pack.  Its content is read from the pack by {@link #getInputStream};
+     * {@link #getFile} is the mailbox's pack directory and must not be read as the blob.
+     */
+    private final class PackedBlob extends ExternalBlob {
+        PackedBlob(File dir, long length) {
+            super(dir, length, null);
+            setCompressed(false);
+        }
+
+        @Override
+        public InputStream getInputStream() throws IOException {
+            InputStream in = readStreamFromStore(getLocator(), getMbox());
+            if (in == null) {
+                throw new IOException("no blob for locator " + getLocator());
+            }
+            return in;
+        }
+    }
+
+    @Override
+    public List<String> getAllBlobPaths(Mailbox mbox) throws IOException {
+        List<Long> keys;
+        OpenStore open = acquire(mbox);
+        try {
+            keys = open.get().getKeys();
+        } finally {
+            release(open);
+        }
+        List<String> locators = new ArrayList<String>(keys.size());
+        for (long key : keys) {
+            locators.add(mbox.getId() + "-" + key);
+        }
+        return locators;
+    }
+
+    @Override
+    public boolean deleteStore(Mailbox mbox, Iterable<MailboxBlob.MailboxBlobInfo> blobs)
+    throws IOException, ServiceException {
+        OpenStore open;
+        boolean closeNow;
+        synchronized (stores) {
+            open = stores.remove(mbox.getId());
+            if (open == null) {
+                // never opened by us; the entry only serves to delete the directory in turn
+                open = new OpenStore(mbox.getId(), getMailboxDirectory(mbox.getId()), retiredStores.get(mbox.getId()));
+            }
+            // the directory goes once the readers still using the store are done with it
+            open.deleteOnClose = true;
+            closeNow = retire(open);
+        }
+        if (closeNow) {
+            close(open);
+        }
+        return fileStore.deleteStore(mbox, null);
+    }
+
+    /**
+     * Compacts the packs of every open mailbox store that has enough garbage.
+     */
+    @VisibleForTesting
+    void compactAll() {
+        int threshold = LC.packed_store_compaction_threshold.intValue();
+        List<OpenStore> snapshot;
+        synchronized (stores) {
+            snapshot = new ArrayList<OpenStore>(stores.values());
+            for (OpenStore open : snapshot) {
+                open.users++;
+            }
+        }
+        for (OpenStore open : snapshot) {
+            MailboxPackStore store = open.getIfOpen();
+            try {
+                if (store != null && store.needsCompaction(threshold)) {
+                    store.compact(threshold);
+                }
+            } catch (IOException e) {
+                ZimbraLog.store.warn("unable to compact packs in %s", store.getDirectory(), e);
+            } catch (RuntimeException e) {
+                ZimbraLog.store.warn("unable to compact packs in %s", store.getDirectory(), e);
+            } finally {
+                release(open);
+            }
+        }
+    }
+
+    @Override
+    public boolean supports(StoreFeature feature) {
+        switch (feature) {
+            case BULK_DELETE:  return true;
+            case CENTRALIZED:  return false;
+            default:           return super.supports(feature);
+        }
+    }
+}
@@ -469,7 +469,9 @@ public final class Zimbra {
         } catch (Exception ignored) {
         }
 
-        EphemeralStore.getFactory().shutdown();
+        EphemeralStore.Factory ephemeralFactory = EphemeralStore.getFactory();
+        ephemeralFactory.flushWriteBehind();
+        ephemeralFactory.shutdown();
     }
 
     public static synchronized boolean started() {
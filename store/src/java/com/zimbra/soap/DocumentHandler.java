@@ -116,6 +116,13 @@ public abstract class DocumentHandler {
         return (ZimbraSoapContext) context.get(SoapEngine.ZIMBRA_CONTEXT);
     }
 
+    /** Returns whether the response is serialized straight to the client, so
+     *  that large runs of child elements may be deferred to serialization time
+     *  with {@link Element#addStreamingElements}. */
+    public static boolean isStreamingResponse(Map<String, Object> context) {
+        return Boolean.TRUE.equals(context.get(SoapServlet.STREAMING_RESPONSE));
+    }
+
     /** Generates a new {@link com.zimbra.cs.mailbox.OperationContext}
      *  object reflecting the constraints serialized in the <tt>&lt;context></tt>
      *  element in the SOAP header.<p>
@@ -429,31 +429,7 @@ public class SoapEngine {
             acknowledgeNotifications(zsc);
 
             if (doc.getQName().equals(ZimbraNamespace.E_BATCH_REQUEST)) {
-                boolean contOnError = doc.getAttribute(ZimbraNamespace.A_ONERROR, ZimbraNamespace.DEF_ONERROR).equals("continue");
-                responseBody = zsc.createElement(ZimbraNamespace.E_BATCH_RESPONSE);
-                if (!isResumed) {
-                    ZimbraLog.soap.info(doc.getName());
-                }
-                for (Element req : doc.listElements()) {
-                    String id = req.getAttribute(A_REQUEST_CORRELATOR, null);
-                    long start = System.currentTimeMillis();
-                    Element br = dispatchRequest(dispatcher.getHandler(req), req, context, zsc);
-                    if (!isResumed) {
-                        ZimbraLog.soap.info("(batch) %s elapsed=%d", req.getName(), System.currentTimeMillis() - start);
-                    }
-                    if (id != null) {
-                        br.addAttribute(A_REQUEST_CORRELATOR, id);
-                    }
-                    responseBody.addNonUniqueElement(br);
-                    if (!contOnError && responseProto.isFault(br)) {
-                        break;
-                    }
-                    if (proxyAuthToken != null) {
-                        // requests will invalidate it when proxying locally;
-                        // make sure it's set for each sub-request in batch
-                        zsc.getAuthToken().setProxyAuthToken(proxyAuthToken);
-                    }
-                }
+                responseBody = dispatchBatch(doc, context, zsc, isResumed, proxyAuthToken);
             } else {
                 String id = doc.getAttribute(A_REQUEST_CORRELATOR, null);
                 long start = System.currentTimeMillis();
@@ -499,6 +475,46 @@ public class SoapEngine {
         return responseProto.soapEnvelope(responseBody, responseHeader);
     }
 
+    /**
+     * Handles the requests of a {@code BatchRequest} in order.
+     * <p>
+     * The sub-responses are never streamed: each one is generated in full before the next request is dispatched, so
+     * that it reflects the mailbox as of its own request, and so that a failure while generating it is reported as its
+     * own fault rather than failing the whole batch.
+     */
+    Element dispatchBatch(Element doc, Map<String, Object> context, ZimbraSoapContext zsc, boolean isResumed,
+            String proxyAuthToken) {
+        SoapProtocol responseProto = zsc.getResponseProtocol();
+        boolean contOnError = doc.getAttribute(ZimbraNamespace.A_ONERROR, ZimbraNamespace.DEF_ONERROR)
+                .equals("continue");
+        Element responseBody = zsc.createElement(ZimbraNamespace.E_BATCH_RESPONSE);
+        if (!isResumed) {
+            ZimbraLog.soap.info(doc.getName());
+        }
+        context.remove(SoapServlet.STREAMING_RESPONSE);
+        for (Element req : doc.listElements()) {
+            String id = req.getAttribute(A_REQUEST_CORRELATOR, null);
+            long start = System.currentTimeMillis();
+            Element br = dispatchRequest(dispatcher.getHandler(req), req, context, zsc);
+            if (!isResumed) {
+                ZimbraLog.soap.info("(batch) %s elapsed=%d", req.getName(), System.currentTimeMillis() - start);
+            }
+            if (id != null) {
+                br.addAttribute(A_REQUEST_CORRELATOR, id);
+            }
+            responseBody.addNonUniqueElement(br);
+            if (!contOnError && responseProto.isFault(br)) {
+                break;
+            }
+            if (proxyAuthToken != null) {
+                // requests will invalidate it when proxying locally;
+                // make sure it's set for each sub-request in batch
+                zsc.getAuthToken().setProxyAuthToken(proxyAuthToken);
+            }
+        }
+        return responseBody;
+    }
+
     /**
      * Handles individual requests, either direct or from a batch
      */
@@ -72,6 +72,8 @@ public class SoapServlet extends ZimbraServlet {
     public static final String IS_ADMIN_REQUEST = "zimbra.isadminreq";
     /** Flag for requests that want to force invalidation of client cookies */
     public static final String INVALIDATE_COOKIES = "zimbra.invalidateCookies";
+    /** Set if the response envelope is serialized straight to the client, so handlers may defer encoding to it */
+    public static final String STREAMING_RESPONSE = "zimbra.streamingResponse";
 
 
     // Used by sExtraServices
@@ -281,6 +283,9 @@ public class SoapServlet extends ZimbraServlet {
         context.put(SERVLET_CONTEXT, getServletContext());
         context.put(SERVLET_REQUEST, req);
         context.put(SERVLET_RESPONSE, resp);
+        if (LC.soap_response_streaming_enabled.booleanValue()) {
+            context.put(STREAMING_RESPONSE, Boolean.TRUE);
+        }
 
         try {
             Boolean isAdminReq = isAdminRequest(req);
@@ -356,6 +361,19 @@ public class SoapServlet extends ZimbraServlet {
             }
         }
 
+        byte[] soapBytes = null;
+        if (!chunkingEnabled) {
+            // Serialize the envelope before committing to a status, as any streamed children are only generated now.
+            try {
+                soapBytes = toUTF8(envelope);
+            } catch (IOException e) {
+                envelope.destroy();
+                envelope = toFault(soapProto, e);
+                statusCode = HttpServletResponse.SC_INTERNAL_SERVER_ERROR;
+                soapBytes = envelope.toUTF8();
+            }
+        }
+
         // use jetty default if the LC key is not set
         int responseBufferSize = soapResponseBufferSize();
         if (responseBufferSize != -1)
@@ -365,18 +383,50 @@ public class SoapServlet extends ZimbraServlet {
         resp.setStatus(statusCode);
         resp.setHeader("Cache-Control", "no-store, no-cache");
 
-        if (chunkingEnabled) {
-            // Let jetty chunk the response if applicable.
-            ZimbraServletOutputStream out = new ZimbraServletOutputStream(resp.getOutputStream());
-            envelope.output(out);
-            out.flush();
-        } else {
-            // serialize the envelope to a byte array and send the response with Content-Length header.
-            byte[] soapBytes = envelope.toUTF8();
-            resp.setContentLength(soapBytes.length);
-            resp.getOutputStream().write(soapBytes);
-            resp.getOutputStream().flush();
+        try {
+            if (chunkingEnabled) {
+                // Let jetty chunk the response if applicable.
+                ZimbraServletOutputStream out = new ZimbraServletOutputStream(resp.getOutputStream());
+                try {
+                    envelope.output(out);
+                } catch (IOException e) {
+                    // Streamed children failed to generate.  Until the response buffer has been flushed, the client
+                    // can still be sent a fault; after that all we can do is cut the response short.
+                    if (resp.isCommitted()) {
+                        throw e;
+                    }
+                    // drop what was written so far, whether it is buffered in the response or in our stream
+                    resp.resetBuffer();
+                    resp.setStatus(HttpServletResponse.SC_INTERNAL_SERVER_ERROR);
+                    out = new ZimbraServletOutputStream(resp.getOutputStream());
+                    Element fault = toFault(soapProto, e);
+                    fault.output(out);
+                    fault.destroy();
+                }
+                out.flush();
+            } else {
+                // send the serialized envelope with Content-Length header.
+                resp.setContentLength(soapBytes.length);
+                resp.getOutputStream().write(soapBytes);
+                resp.getOutputStream().flush();
+            }
+        } finally {
+            envelope.destroy();
         }
-        envelope.destroy();
+    }
+
+    /**
+     * Same as {@link Element#toUTF8()}, but fails if the envelope can't be serialized, which may happen when
+     * children streamed with {@link Element#addStreamingElements} fail to generate.
+     */
+    private static byte[] toUTF8(Element envelope) throws IOException {
+        StringBuilder sb = new StringBuilder();
+        envelope.marshal(sb);
+        return sb.toString().getBytes(Charsets.UTF_8);
+    }
+
+    private static Element toFault(SoapProtocol soapProto, IOException e) {
+        ZimbraLog.soap.warn("unable to serialize the response", e);
+        return soapProto.soapEnvelope(soapProto.soapFault(ServiceException.FAILURE(e.toString(), e)));
     }
 }